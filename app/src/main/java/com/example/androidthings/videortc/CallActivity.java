@@ -3,17 +3,19 @@ package com.example.androidthings.videortc;
 import android.app.Activity;
 import android.app.AlertDialog;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.util.Log;
+import android.view.View;
 import android.widget.ImageButton;
 import android.widget.TextView;
 
 import org.appspot.apprtc.AppRTCClient;
+import org.appspot.apprtc.LocalRTCClient;
 import org.appspot.apprtc.PeerConnectionClient;
 import org.appspot.apprtc.WebSocketRTCClient;
 import org.webrtc.IceCandidate;
 import org.webrtc.RendererCommon.ScalingType;
 import org.webrtc.SessionDescription;
-import org.webrtc.StatsReport;
 import org.webrtc.SurfaceViewRenderer;
 import org.webrtc.VideoCapturer;
 import org.webrtc.VideoRenderer;
@@ -28,6 +30,16 @@ import util.ProxyVideoSink;
 
 public class CallActivity extends Activity implements AppRTCClient.SignalingEvents, PeerConnectionClient.PeerConnectionEvents {
 
+    // Frame rate cap for the picture-in-picture view. The fullscreen view is not capped.
+    private static final int PIP_MAX_FPS = 15;
+    // Lowest video bitrate the adaptive bitrate controller may go down to.
+    private static final int VIDEO_MIN_BITRATE_KBPS = 150;
+    // Send bandwidth estimates below which video is suspended for audio, and above which it resumes.
+    private static final int AUDIO_ONLY_SUSPEND_KBPS = 100;
+    private static final int AUDIO_ONLY_RESUME_KBPS = 300;
+    // Signaling server. LocalRTCClient.ROOM_URL connects calls within this process instead.
+    private static final String ROOM_URL = "https://appr.tc";
+
     ProxyVideoRendererCallbacks remoteVideo = new ProxyVideoRendererCallbacks();
     ProxyVideoSink localVideo = new ProxyVideoSink();
     List<VideoRenderer.Callbacks> remoteVideos = new ArrayList<>();
@@ -37,6 +49,9 @@ public class CallActivity extends Activity implements AppRTCClient.SignalingEven
 
     PeerConnectionClient.PeerConnectionParameters pcParameters;
 
+    // Time onCreate() started, used to measure the time to the first local and remote frames.
+    long callStartTimeMs;
+
     boolean isInitiator = false;
     boolean activityRunning;
     boolean iceConnected = false;
@@ -47,9 +62,11 @@ public class CallActivity extends Activity implements AppRTCClient.SignalingEven
     SurfaceViewRenderer svrSmall;
     SurfaceViewRenderer svrFull;
     ImageButton buttonToggleMute;
+    TextView audioOnlyIndicator;
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
+        callStartTimeMs = SystemClock.elapsedRealtime();
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_call);
 
@@ -60,6 +77,8 @@ public class CallActivity extends Activity implements AppRTCClient.SignalingEven
         ImageButton cameraSwitchButton = findViewById(R.id.button_call_switch_camera);
         cameraSwitchButton.setOnClickListener(view -> pcClient.switchCamera());
 
+        audioOnlyIndicator = findViewById(R.id.audio_only_indicator);
+
         buttonToggleMute = findViewById(R.id.button_call_toggle_mic);
         buttonToggleMute.setOnClickListener(view -> {
             micEnabled = !micEnabled;
@@ -69,6 +88,10 @@ public class CallActivity extends Activity implements AppRTCClient.SignalingEven
 
         // Video Setup
         remoteVideos.add(remoteVideo);
+        localVideo.setFirstFrameListener(() -> Log.d("CallActivity",
+                "Time to first local frame: " + (SystemClock.elapsedRealtime() - callStartTimeMs) + " ms"));
+        remoteVideo.setFirstFrameListener(() -> Log.d("CallActivity",
+                "Time to first remote frame: " + (SystemClock.elapsedRealtime() - callStartTimeMs) + " ms"));
 
         svrSmall = findViewById(R.id.pip_video_view);
         svrSmall.setOnClickListener(view -> setSwappedFeeds(!isSwappedFeeds)); // Swap feeds on pip view click.
@@ -84,7 +107,37 @@ public class CallActivity extends Activity implements AppRTCClient.SignalingEven
 
         setSwappedFeeds(true); // Start with local feed in fullscreen and swap it when call is connected
 
-        pcParameters = new PeerConnectionClient.PeerConnectionParameters(
+        pcParameters = createPeerConnectionParameters();
+
+        pcClient.createPeerConnectionFactory(
+                getApplicationContext(),
+                pcParameters,
+                this);
+
+        String roomID = "JESUS-" + new Random().nextInt(100);
+        ((TextView) findViewById(R.id.roomID)).setText("ROOM ID: " + roomID);
+
+        // start room connection
+        if (ROOM_URL.equals(LocalRTCClient.ROOM_URL)) {
+            appRtcClient = new LocalRTCClient(this);
+        } else {
+            WebSocketRTCClient webSocketClient = new WebSocketRTCClient(this);
+            webSocketClient.setJoinTimingsListener(
+                    timings -> Log.d("CallActivity", "Join timings: " + timings));
+            appRtcClient = webSocketClient;
+        }
+        appRtcClient.connectToRoom(new AppRTCClient.RoomConnectionParameters(
+                ROOM_URL,
+                roomID,
+                false));
+    }
+
+    /**
+     * Parameters of the peer connections of this activity. MainActivity pre-warms the peer
+     * connection factory with them, so they must not depend on the activity state.
+     */
+    static PeerConnectionClient.PeerConnectionParameters createPeerConnectionParameters() {
+        return new PeerConnectionClient.PeerConnectionParameters(
                 true,
                 false,
                 false,
@@ -106,27 +159,12 @@ public class CallActivity extends Activity implements AppRTCClient.SignalingEven
                 false,
                 false,
                 null);
-
-        pcClient.createPeerConnectionFactory(
-                getApplicationContext(),
-                pcParameters,
-                this);
-
-        String roomID = "JESUS-" + new Random().nextInt(100);
-        ((TextView) findViewById(R.id.roomID)).setText("ROOM ID: " + roomID);
-
-        // start room connection
-        appRtcClient = new WebSocketRTCClient(this);
-        appRtcClient.connectToRoom(new AppRTCClient.RoomConnectionParameters(
-                "https://appr.tc",
-                roomID,
-                false));
     }
 
     private void setSwappedFeeds(boolean isSwappedFeeds) {
         this.isSwappedFeeds = isSwappedFeeds;
-        localVideo.setTarget(isSwappedFeeds ? svrFull : svrSmall);
-        remoteVideo.setTarget(isSwappedFeeds ? svrSmall : svrFull);
+        localVideo.setTarget(isSwappedFeeds ? svrFull : svrSmall, isSwappedFeeds ? 0 : PIP_MAX_FPS);
+        remoteVideo.setTarget(isSwappedFeeds ? svrSmall : svrFull, isSwappedFeeds ? PIP_MAX_FPS : 0);
         svrFull.setMirror(isSwappedFeeds);
         svrSmall.setMirror(!isSwappedFeeds);
     }
@@ -233,6 +271,10 @@ public class CallActivity extends Activity implements AppRTCClient.SignalingEven
     public void onIceConnected() {
         iceConnected = true;
         pcClient.enableStatsEvents(true, 1000); // Enable statistics callback.
+        if (pcParameters.videoMaxBitrate > 0) {
+            pcClient.enableAdaptiveBitrate(VIDEO_MIN_BITRATE_KBPS, pcParameters.videoMaxBitrate);
+        }
+        pcClient.enableAudioOnlyFallback(AUDIO_ONLY_SUSPEND_KBPS, AUDIO_ONLY_RESUME_KBPS);
         setSwappedFeeds(false);
     }
 
@@ -247,12 +289,14 @@ public class CallActivity extends Activity implements AppRTCClient.SignalingEven
     }
 
     @Override
-    public void onPeerConnectionStatsReady(final StatsReport[] reports) {
+    public void onPeerConnectionError(final String description) {
+        reportError(description);
     }
 
     @Override
-    public void onPeerConnectionError(final String description) {
-        reportError(description);
+    public void onAudioOnlyFallback(final boolean audioOnly) {
+        Log.d("CallActivity", audioOnly ? "Poor connection, video paused" : "Video resumed");
+        runOnUiThread(() -> audioOnlyIndicator.setVisibility(audioOnly ? View.VISIBLE : View.GONE));
     }
 
 
@@ -4,6 +4,9 @@ import android.app.Activity;
 import android.content.Intent;
 import android.os.Bundle;
 
+import org.appspot.apprtc.IceServerCache;
+import org.appspot.apprtc.PeerConnectionClient;
+
 public class MainActivity extends Activity {
 
     @Override
@@ -11,6 +14,13 @@ public class MainActivity extends Activity {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.main_activity);
 
+        // Load WebRTC and create the peer connection factory while the user is still here, so
+        // the call starts faster.
+        PeerConnectionClient.prewarm(getApplicationContext(),
+                CallActivity.createPeerConnectionParameters());
+        // Keep TURN credentials across restarts so the first call can skip the TURN request.
+        IceServerCache.getInstance().init(getCacheDir());
+
         findViewById(R.id.connectBtn).setOnClickListener(arg0 -> {
             Intent myIntent = new Intent(this, CallActivity.class);
             startActivity(myIntent);
@@ -0,0 +1,151 @@
+/*
+ *  Copyright 2017 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+/**
+ * Suspends the local video when the connection cannot carry it, so that the
+ * remaining bandwidth goes to audio, and resumes it once the connection
+ * recovers.
+ *
+ * <p>Video is suspended once every sample for a few seconds had a send
+ * bandwidth estimate below the suspend threshold, high loss or high RTT. It
+ * is resumed once every sample for longer had the estimate above the higher
+ * resume threshold and a known, low RTT. The estimate may not grow while no
+ * video is sent, so video is also resumed on a timer as a probe while the RTT
+ * is low; each probe that fails quickly doubles the time to the next one.
+ * Hold times are measured on the sample timestamps, so they do not depend on
+ * how often samples arrive.
+ *
+ * <p>The controller has no Android dependencies; feed it with onSample() to
+ * replay recorded stats traces. Not thread safe, PeerConnectionClient drives
+ * it from the stats lane of its peer.
+ */
+public class AudioOnlyFallback implements PeerConnectionStats.Listener {
+  /** Metrics the controller needs from PeerConnectionStats. */
+  public static final int STATS_METRICS = BitrateController.STATS_METRICS;
+
+  // Loss and RTT at or above which a sample is poor.
+  private static final int SUSPEND_LOSS_PERCENT = 20;
+  private static final int SUSPEND_RTT_MS = 1000;
+  // RTT below which video may be resumed.
+  private static final int RESUME_RTT_MS = 500;
+  // Time samples must stay poor before suspending video, and good before
+  // resuming it.
+  private static final long SUSPEND_HOLD_MS = 2000;
+  private static final long RESUME_HOLD_MS = 4000;
+  // Time in audio-only mode before video is resumed as a probe.
+  private static final long INITIAL_PROBE_MS = 15000;
+  private static final long MAX_PROBE_MS = 240000;
+  // A probe suspended again within this time failed.
+  private static final long FAILED_PROBE_MS = 10000;
+
+  /** Applies the controller decisions. */
+  public interface Actuator {
+    void setVideoSuspended(boolean suspended);
+  }
+
+  private final Actuator actuator;
+  private final int suspendBelowKbps;
+  private final int resumeAboveKbps;
+  private boolean suspended;
+  // Time of the first sample of the current poor or good run, -1 if none.
+  private long poorSinceMs = -1;
+  private long goodSinceMs = -1;
+  // Time of the last transition, or of the first sample.
+  private long stateSinceMs = -1;
+  private long probeIntervalMs = INITIAL_PROBE_MS;
+  private boolean probing;
+
+  /**
+   * Video is suspended when the send bandwidth estimate falls below
+   * |suspendBelowKbps| and resumed when it reaches |resumeAboveKbps|, which
+   * must be higher.
+   */
+  public AudioOnlyFallback(Actuator actuator, int suspendBelowKbps, int resumeAboveKbps) {
+    if (resumeAboveKbps <= suspendBelowKbps) {
+      throw new IllegalArgumentException("Resume threshold " + resumeAboveKbps
+          + " kbps must be above suspend threshold " + suspendBelowKbps + " kbps");
+    }
+    this.actuator = actuator;
+    this.suspendBelowKbps = suspendBelowKbps;
+    this.resumeAboveKbps = resumeAboveKbps;
+  }
+
+  public boolean isVideoSuspended() {
+    return suspended;
+  }
+
+  @Override
+  public void onStatsChanged(PeerConnectionStats stats, int changedMetrics) {
+    if (!stats.has(PeerConnectionStats.AVAILABLE_SEND_BANDWIDTH)) {
+      return;
+    }
+    onSample(new BitrateController.Sample(stats.getUpdateTimeMs(),
+        stats.get(PeerConnectionStats.AVAILABLE_SEND_BANDWIDTH),
+        stats.has(PeerConnectionStats.RTT_MS) ? stats.get(PeerConnectionStats.RTT_MS) : -1,
+        stats.has(PeerConnectionStats.VIDEO_SEND_LOSS_PERCENT)
+            ? stats.get(PeerConnectionStats.VIDEO_SEND_LOSS_PERCENT)
+            : -1));
+  }
+
+  /** Feeds one stats sample to the controller. Unknown values are negative. */
+  public void onSample(BitrateController.Sample sample) {
+    final long timeMs = sample.timeMs;
+    if (stateSinceMs < 0) {
+      stateSinceMs = timeMs;
+    }
+    final long bandwidthKbps = sample.availableSendBandwidthBps / 1000;
+    if (!suspended) {
+      boolean poor = (bandwidthKbps > 0 && bandwidthKbps < suspendBelowKbps)
+          || sample.lossPercent >= SUSPEND_LOSS_PERCENT || sample.rttMs >= SUSPEND_RTT_MS;
+      if (!poor) {
+        poorSinceMs = -1;
+        return;
+      }
+      if (poorSinceMs < 0) {
+        poorSinceMs = timeMs;
+      }
+      if (timeMs - poorSinceMs >= SUSPEND_HOLD_MS) {
+        if (probing && timeMs - stateSinceMs <= FAILED_PROBE_MS) {
+          probeIntervalMs = Math.min(probeIntervalMs * 2, MAX_PROBE_MS);
+        } else {
+          probeIntervalMs = INITIAL_PROBE_MS;
+        }
+        setSuspended(true, timeMs);
+      }
+      return;
+    }
+    // Loss of the video that is not sent is meaningless, only RTT counts. An
+    // unknown RTT is not low.
+    boolean lowRtt = sample.rttMs >= 0 && sample.rttMs < RESUME_RTT_MS;
+    boolean good = bandwidthKbps >= resumeAboveKbps && lowRtt;
+    if (!good) {
+      goodSinceMs = -1;
+    } else if (goodSinceMs < 0) {
+      goodSinceMs = timeMs;
+    }
+    if (goodSinceMs >= 0 && timeMs - goodSinceMs >= RESUME_HOLD_MS) {
+      probing = false;
+      setSuspended(false, timeMs);
+    } else if (lowRtt && timeMs - stateSinceMs >= probeIntervalMs) {
+      probing = true;
+      setSuspended(false, timeMs);
+    }
+  }
+
+  private void setSuspended(boolean suspended, long timeMs) {
+    this.suspended = suspended;
+    poorSinceMs = -1;
+    goodSinceMs = -1;
+    stateSinceMs = timeMs;
+    actuator.setVideoSuspended(suspended);
+  }
+}
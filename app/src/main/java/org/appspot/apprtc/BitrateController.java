@@ -0,0 +1,264 @@
+/*
+ *  Copyright 2014 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Closed-loop controller for the video send bitrate.
+ *
+ * <p>Each stats sample (bandwidth estimate, RTT and loss) is turned into a
+ * target bitrate by a pluggable Policy. The target is applied through an
+ * Actuator only when it differs enough from the current one, decreases are
+ * applied immediately and increases only after the network has been stable
+ * for a while. When the target no longer fits the current capture format the
+ * controller steps down (or back up) a ladder of capture formats. Hold times
+ * are measured on the sample timestamps, so they do not depend on how often
+ * samples arrive.
+ *
+ * <p>The controller has no Android dependencies; feed it with onSample() to
+ * replay recorded stats traces. Not thread safe, PeerConnectionClient drives
+ * it from the stats lane of its peer.
+ */
+public class BitrateController implements PeerConnectionStats.Listener {
+  /** Metrics the controller needs from PeerConnectionStats. */
+  public static final int STATS_METRICS =
+      PeerConnectionStats.mask(PeerConnectionStats.AVAILABLE_SEND_BANDWIDTH)
+      | PeerConnectionStats.mask(PeerConnectionStats.RTT_MS)
+      | PeerConnectionStats.mask(PeerConnectionStats.VIDEO_SEND_LOSS_PERCENT);
+
+  // Relative bitrate change below which the current bitrate is kept.
+  private static final double MIN_BITRATE_CHANGE = 0.1;
+  // Time without a decrease before the bitrate may increase.
+  private static final long INCREASE_HOLD_MS = 3000;
+  // Time a capture format must have been too large or too small before it is
+  // changed.
+  private static final long FORMAT_DOWN_HOLD_MS = 2000;
+  private static final long FORMAT_UP_HOLD_MS = 5000;
+  // A capture format is left when the bitrate falls below this fraction of
+  // what it needs, and entered when the bitrate reaches what it needs.
+  private static final double FORMAT_DOWN_RATIO = 0.6;
+  // Bits per pixel used to estimate the bitrate a capture format needs.
+  private static final double BITS_PER_PIXEL = 0.05;
+
+  /** One stats sample. Unknown values are negative. */
+  public static class Sample {
+    // Time the sample was taken, in any monotonic base.
+    public final long timeMs;
+    public final long availableSendBandwidthBps;
+    public final long rttMs;
+    public final long lossPercent;
+
+    public Sample(long timeMs, long availableSendBandwidthBps, long rttMs, long lossPercent) {
+      this.timeMs = timeMs;
+      this.availableSendBandwidthBps = availableSendBandwidthBps;
+      this.rttMs = rttMs;
+      this.lossPercent = lossPercent;
+    }
+  }
+
+  /** Capture resolution and frame rate. */
+  public static class CaptureFormat {
+    public final int width;
+    public final int height;
+    public final int fps;
+
+    public CaptureFormat(int width, int height, int fps) {
+      this.width = width;
+      this.height = height;
+      this.fps = fps;
+    }
+
+    /** Rough bitrate in kbps needed to encode this format with decent quality. */
+    public int requiredBitrateKbps() {
+      return (int) (width * height * fps * BITS_PER_PIXEL / 1000);
+    }
+
+    @Override
+    public String toString() {
+      return width + "x" + height + "@" + fps;
+    }
+  }
+
+  /** Maps a stats sample to a target bitrate. */
+  public interface Policy {
+    int targetBitrateKbps(Sample sample, int currentKbps, int minKbps, int maxKbps);
+  }
+
+  /** Applies the controller decisions to the peer connection. */
+  public interface Actuator {
+    void setVideoMaxBitrate(int maxBitrateKbps);
+    void changeCaptureFormat(int width, int height, int fps);
+  }
+
+  /**
+   * Default policy: back off multiplicatively on loss or high RTT, probe
+   * upwards additively on low loss, never above the estimated available
+   * bandwidth. Without a loss value, it only backs off on high RTT.
+   */
+  public static class LossBasedPolicy implements Policy {
+    private static final int HIGH_LOSS_PERCENT = 10;
+    private static final int LOW_LOSS_PERCENT = 2;
+    private static final int HIGH_RTT_MS = 400;
+    private static final double DECREASE_FACTOR = 0.85;
+    private static final double INCREASE_FACTOR = 1.08;
+    private static final int INCREASE_STEP_KBPS = 20;
+    private static final double BANDWIDTH_UTILIZATION = 0.9;
+
+    @Override
+    public int targetBitrateKbps(Sample sample, int currentKbps, int minKbps, int maxKbps) {
+      double target = currentKbps;
+      if (sample.lossPercent >= HIGH_LOSS_PERCENT || sample.rttMs >= HIGH_RTT_MS) {
+        target = currentKbps * DECREASE_FACTOR;
+      } else if (sample.lossPercent >= 0 && sample.lossPercent <= LOW_LOSS_PERCENT) {
+        target = currentKbps * INCREASE_FACTOR + INCREASE_STEP_KBPS;
+      }
+      if (sample.availableSendBandwidthBps > 0) {
+        target = Math.min(target, sample.availableSendBandwidthBps * BANDWIDTH_UTILIZATION / 1000);
+      }
+      return (int) Math.max(minKbps, Math.min(maxKbps, target));
+    }
+  }
+
+  private final Policy policy;
+  private final Actuator actuator;
+  private final int minBitrateKbps;
+  private final int maxBitrateKbps;
+  // Capture formats from the highest to the lowest.
+  private final List<CaptureFormat> formats;
+  private int currentBitrateKbps;
+  private int formatIndex;
+  // Time of the last decrease, or of the first sample. -1 before it.
+  private long lastDecreaseTimeMs = -1;
+  // Time since which the current format has been too large or too small, or
+  // -1 if it is not.
+  private long formatDownSinceMs = -1;
+  private long formatUpSinceMs = -1;
+
+  public BitrateController(Policy policy, Actuator actuator, int minBitrateKbps,
+      int maxBitrateKbps, List<CaptureFormat> formats) {
+    this.policy = policy;
+    this.actuator = actuator;
+    this.minBitrateKbps = minBitrateKbps;
+    this.maxBitrateKbps = maxBitrateKbps;
+    this.formats = new ArrayList<>(formats);
+    this.currentBitrateKbps = maxBitrateKbps;
+  }
+
+  /**
+   * Returns a ladder of capture formats starting at the given one, each step
+   * halving the pixel count or, at the lowest resolution, the frame rate.
+   */
+  public static List<CaptureFormat> formatLadder(int width, int height, int fps) {
+    List<CaptureFormat> ladder = new ArrayList<>();
+    ladder.add(new CaptureFormat(width, height, fps));
+    int w = width;
+    int h = height;
+    while (w * h / 2 >= 320 * 180) {
+      w = w * 7 / 10 / 2 * 2;
+      h = h * 7 / 10 / 2 * 2;
+      ladder.add(new CaptureFormat(w, h, fps));
+    }
+    if (fps > 15) {
+      ladder.add(new CaptureFormat(w, h, 15));
+    }
+    return Collections.unmodifiableList(ladder);
+  }
+
+  public int getCurrentBitrateKbps() {
+    return currentBitrateKbps;
+  }
+
+  public CaptureFormat getCurrentFormat() {
+    return formats.isEmpty() ? null : formats.get(formatIndex);
+  }
+
+  @Override
+  public void onStatsChanged(PeerConnectionStats stats, int changedMetrics) {
+    if (!stats.has(PeerConnectionStats.AVAILABLE_SEND_BANDWIDTH)) {
+      return;
+    }
+    onSample(new Sample(stats.getUpdateTimeMs(),
+        stats.get(PeerConnectionStats.AVAILABLE_SEND_BANDWIDTH),
+        stats.has(PeerConnectionStats.RTT_MS) ? stats.get(PeerConnectionStats.RTT_MS) : -1,
+        stats.has(PeerConnectionStats.VIDEO_SEND_LOSS_PERCENT)
+            ? stats.get(PeerConnectionStats.VIDEO_SEND_LOSS_PERCENT)
+            : -1));
+  }
+
+  /** Feeds one stats sample to the controller, in time order. */
+  public void onSample(Sample sample) {
+    if (lastDecreaseTimeMs < 0) {
+      lastDecreaseTimeMs = sample.timeMs;
+    }
+    int target =
+        policy.targetBitrateKbps(sample, currentBitrateKbps, minBitrateKbps, maxBitrateKbps);
+    if (target < currentBitrateKbps) {
+      lastDecreaseTimeMs = sample.timeMs;
+      if (isSignificantChange(target)) {
+        applyBitrate(target);
+      }
+    } else if (target > currentBitrateKbps
+        && sample.timeMs - lastDecreaseTimeMs >= INCREASE_HOLD_MS
+        && (isSignificantChange(target) || target == maxBitrateKbps)) {
+      applyBitrate(target);
+    }
+    updateCaptureFormat(sample.timeMs);
+  }
+
+  private boolean isSignificantChange(int target) {
+    return Math.abs(target - currentBitrateKbps) >= currentBitrateKbps * MIN_BITRATE_CHANGE;
+  }
+
+  private void applyBitrate(int bitrateKbps) {
+    currentBitrateKbps = bitrateKbps;
+    actuator.setVideoMaxBitrate(bitrateKbps);
+  }
+
+  private void updateCaptureFormat(long timeMs) {
+    if (formats.size() < 2) {
+      return;
+    }
+    CaptureFormat current = formats.get(formatIndex);
+    if (formatIndex < formats.size() - 1
+        && currentBitrateKbps < current.requiredBitrateKbps() * FORMAT_DOWN_RATIO) {
+      formatUpSinceMs = -1;
+      if (formatDownSinceMs < 0) {
+        formatDownSinceMs = timeMs;
+      }
+      if (timeMs - formatDownSinceMs >= FORMAT_DOWN_HOLD_MS) {
+        applyFormat(formatIndex + 1);
+      }
+    } else if (formatIndex > 0
+        && currentBitrateKbps >= formats.get(formatIndex - 1).requiredBitrateKbps()) {
+      formatDownSinceMs = -1;
+      if (formatUpSinceMs < 0) {
+        formatUpSinceMs = timeMs;
+      }
+      if (timeMs - formatUpSinceMs >= FORMAT_UP_HOLD_MS) {
+        applyFormat(formatIndex - 1);
+      }
+    } else {
+      formatDownSinceMs = -1;
+      formatUpSinceMs = -1;
+    }
+  }
+
+  private void applyFormat(int index) {
+    formatIndex = index;
+    formatDownSinceMs = -1;
+    formatUpSinceMs = -1;
+    CaptureFormat format = formats.get(index);
+    actuator.changeCaptureFormat(format.width, format.height, format.fps);
+  }
+}
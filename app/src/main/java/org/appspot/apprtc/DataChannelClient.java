@@ -0,0 +1,399 @@
+/*
+ *  Copyright 2017 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import android.util.Log;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.appspot.apprtc.util.ByteBufferPool;
+import org.webrtc.DataChannel;
+
+/**
+ * Sends and receives text and binary messages over the data channel of a
+ * peer.
+ *
+ * <p>Text messages that fit in one chunk are sent as plain data channel text
+ * messages. Binary messages and longer text messages are split into binary
+ * chunks of at most CHUNK_SIZE bytes, each starting with a flags byte:
+ * FLAG_TEXT if the message is text, FLAG_FINAL on its last chunk. Chunked
+ * messages need an ordered channel. Plain text messages from other clients
+ * are received as is.
+ *
+ * <p>send() copies messages into pooled direct buffers and queues them. The
+ * queue is written to the channel on |sendExecutor| while its buffered amount
+ * is below HIGH_WATER_MARK, and again once it falls to LOW_WATER_MARK. send()
+ * returns false if a message would grow a non-empty queue beyond
+ * MAX_QUEUED_BYTES, and Listener.onWritable() is called once the queue is
+ * empty again. Messages that can never be sent, because they are larger than
+ * getMaxMessageSize() or the client is closed, throw instead.
+ *
+ * <p>Listener messages are delivered on the WebRTC signaling thread, and
+ * should not block it.
+ */
+public class DataChannelClient {
+  private static final String TAG = "DataChannelClient";
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  /** Size of a chunk on the channel, flags byte included. */
+  public static final int CHUNK_SIZE = 16 * 1024;
+  /** Largest message that can be sent or received. */
+  public static final int MAX_MESSAGE_SIZE = 16 * 1024 * 1024;
+  /** Bytes above which send() rejects messages, unless the queue is empty. */
+  public static final int MAX_QUEUED_BYTES = 4 * 1024 * 1024;
+  // Buffered amount of the channel above which queued chunks wait, and below
+  // which they are sent again.
+  private static final long HIGH_WATER_MARK = 1024 * 1024;
+  private static final long LOW_WATER_MARK = 256 * 1024;
+  private static final int MAX_POOLED_CHUNKS = 64;
+  private static final byte FLAG_TEXT = 1;
+  private static final byte FLAG_FINAL = 2;
+
+  /** Receives the messages of the channel, see the class comment. */
+  public interface Listener {
+    void onTextMessage(String text);
+
+    /** |data| is only valid during the call. */
+    void onBinaryMessage(ByteBuffer data);
+
+    /** Called once the queue is empty after send() returned false. */
+    void onWritable();
+  }
+
+  private final DataChannel channel;
+  private final boolean ordered;
+  private final Executor sendExecutor;
+  private final ByteBufferPool pool = new ByteBufferPool(CHUNK_SIZE, MAX_POOLED_CHUNKS);
+  private final AtomicBoolean drainScheduled = new AtomicBoolean();
+  // Channels opened by the remote peer, which it sends its messages on.
+  private final List<DataChannel> remoteChannels = new ArrayList<>();
+  private volatile Listener listener;
+  private volatile boolean closed;
+
+  // Guarded by |this|.
+  private final ArrayDeque<DataChannel.Buffer> queue = new ArrayDeque<>();
+  private long queuedBytes;
+  private boolean blocked;
+
+  // Written on |sendExecutor| and on the signaling thread respectively.
+  private volatile long messagesSent;
+  private volatile long bytesSent;
+  private volatile long messagesReceived;
+  private volatile long bytesReceived;
+
+  DataChannelClient(DataChannel channel, boolean ordered, Executor sendExecutor) {
+    this.channel = channel;
+    this.ordered = ordered;
+    this.sendExecutor = sendExecutor;
+    channel.registerObserver(new ChannelObserver(channel, true /* sending */));
+  }
+
+  public void setListener(Listener listener) {
+    this.listener = listener;
+  }
+
+  /**
+   * Queues a text message. Returns false if it does not fit in the queue
+   * until Listener.onWritable() is called.
+   *
+   * @throws IllegalArgumentException if it is larger than the channel allows.
+   * @throws IllegalStateException if the client is closed.
+   */
+  public boolean send(String text) {
+    byte[] bytes = text.getBytes(UTF_8);
+    return queue(ByteBuffer.wrap(bytes), true /* text */);
+  }
+
+  /**
+   * Queues the remaining bytes of |data| as a binary message, without
+   * changing its position. Returns false if it does not fit in the queue
+   * until Listener.onWritable() is called.
+   *
+   * @throws IllegalArgumentException if it is larger than getMaxMessageSize().
+   * @throws IllegalStateException if the client is closed.
+   */
+  public boolean send(ByteBuffer data) {
+    return queue(data.duplicate(), false /* text */);
+  }
+
+  /**
+   * Largest binary message that can be sent. Unordered channels cannot
+   * reassemble chunks, so their messages must fit in one chunk.
+   */
+  public int getMaxMessageSize() {
+    return ordered ? MAX_MESSAGE_SIZE : CHUNK_SIZE - 1;
+  }
+
+  public boolean isClosed() {
+    return closed;
+  }
+
+  /** Bytes queued by send() and not yet written to the channel. */
+  public synchronized long getQueuedBytes() {
+    return queuedBytes;
+  }
+
+  public long getMessagesSent() {
+    return messagesSent;
+  }
+
+  public long getBytesSent() {
+    return bytesSent;
+  }
+
+  public long getMessagesReceived() {
+    return messagesReceived;
+  }
+
+  public long getBytesReceived() {
+    return bytesReceived;
+  }
+
+  /** Number of chunk buffers allocated so far, to check they are reused. */
+  public long getAllocatedChunkCount() {
+    return pool.getAllocatedCount();
+  }
+
+  // Called on the negotiation lane.
+  void addRemoteChannel(DataChannel remoteChannel) {
+    if (closed) {
+      remoteChannel.dispose();
+      return;
+    }
+    remoteChannels.add(remoteChannel);
+    remoteChannel.registerObserver(new ChannelObserver(remoteChannel, false /* sending */));
+  }
+
+  // Called on the negotiation lane, once nothing runs on |sendExecutor|.
+  void close() {
+    closed = true;
+    for (DataChannel remoteChannel : remoteChannels) {
+      remoteChannel.unregisterObserver();
+      remoteChannel.dispose();
+    }
+    remoteChannels.clear();
+    channel.unregisterObserver();
+    channel.dispose();
+    synchronized (this) {
+      queue.clear();
+      queuedBytes = 0;
+    }
+  }
+
+  private boolean queue(ByteBuffer data, boolean text) {
+    final int length = data.remaining();
+    final boolean plainText = text && length <= CHUNK_SIZE;
+    if (closed) {
+      throw new IllegalStateException("Data channel client is closed.");
+    }
+    if (!plainText && length > getMaxMessageSize()) {
+      throw new IllegalArgumentException(
+          "Message of " + length + " bytes is too large for the channel.");
+    }
+    synchronized (this) {
+      if (queuedBytes + length > MAX_QUEUED_BYTES && queuedBytes > 0) {
+        blocked = true;
+        return false;
+      }
+      if (plainText) {
+        ByteBuffer chunk = pool.acquire();
+        chunk.put(data);
+        chunk.flip();
+        queue.add(new DataChannel.Buffer(chunk, false /* binary */));
+      } else {
+        final byte flags = text ? FLAG_TEXT : 0;
+        do {
+          ByteBuffer chunk = pool.acquire();
+          int chunkLength = Math.min(data.remaining(), CHUNK_SIZE - 1);
+          chunk.put(data.remaining() == chunkLength ? (byte) (flags | FLAG_FINAL) : flags);
+          int limit = data.limit();
+          data.limit(data.position() + chunkLength);
+          chunk.put(data);
+          data.limit(limit);
+          chunk.flip();
+          queue.add(new DataChannel.Buffer(chunk, true /* binary */));
+        } while (data.hasRemaining());
+      }
+      queuedBytes += length;
+    }
+    scheduleDrain();
+    return true;
+  }
+
+  private void scheduleDrain() {
+    if (drainScheduled.compareAndSet(false, true)) {
+      sendExecutor.execute(this::drain);
+    }
+  }
+
+  // Writes queued chunks while the buffered amount of the channel is below
+  // the high water mark. Runs on |sendExecutor|. Channel methods block on the
+  // signaling thread, so they are never called with |this| locked.
+  private void drain() {
+    drainScheduled.set(false);
+    if (closed || channel.state() != DataChannel.State.OPEN) {
+      return;
+    }
+    long bufferedAmount = channel.bufferedAmount();
+    boolean writable = false;
+    while (true) {
+      if (bufferedAmount >= HIGH_WATER_MARK) {
+        // The estimate ignores what was transmitted meanwhile.
+        bufferedAmount = channel.bufferedAmount();
+        if (bufferedAmount >= HIGH_WATER_MARK) {
+          break;
+        }
+      }
+      DataChannel.Buffer chunk;
+      synchronized (this) {
+        chunk = queue.poll();
+        if (chunk == null) {
+          writable = blocked;
+          blocked = false;
+          break;
+        }
+      }
+      final boolean lastChunk = !chunk.binary || (chunk.data.get(0) & FLAG_FINAL) != 0;
+      final int length = chunk.data.remaining() - (chunk.binary ? 1 : 0);
+      if (!channel.send(chunk)) {
+        Log.e(TAG, "Failed to send on data channel " + channel.label());
+      }
+      pool.release(chunk.data);
+      synchronized (this) {
+        queuedBytes -= length;
+      }
+      bufferedAmount += length;
+      bytesSent += length;
+      if (lastChunk) {
+        messagesSent++;
+      }
+    }
+    Listener listener = this.listener;
+    if (writable && listener != null) {
+      listener.onWritable();
+    }
+  }
+
+  private void deliver(ByteBuffer data, boolean text) {
+    bytesReceived += data.remaining();
+    messagesReceived++;
+    Listener listener = this.listener;
+    if (listener == null) {
+      return;
+    }
+    if (text) {
+      listener.onTextMessage(UTF_8.decode(data).toString());
+    } else {
+      listener.onBinaryMessage(data);
+    }
+  }
+
+  // Observer of one channel. Callbacks run on the signaling thread.
+  private class ChannelObserver implements DataChannel.Observer {
+    private final DataChannel observedChannel;
+    private final boolean sending;
+    // Chunks of the message being received, grown as needed.
+    private ByteBuffer message;
+    // Set while the rest of a message too large to receive is dropped.
+    private boolean discarding;
+
+    ChannelObserver(DataChannel observedChannel, boolean sending) {
+      this.observedChannel = observedChannel;
+      this.sending = sending;
+    }
+
+    @Override
+    public void onBufferedAmountChange(long previousAmount) {
+      if (sending && observedChannel.bufferedAmount() <= LOW_WATER_MARK) {
+        synchronized (DataChannelClient.this) {
+          if (queue.isEmpty()) {
+            return;
+          }
+        }
+        scheduleDrain();
+      }
+    }
+
+    @Override
+    public void onStateChange() {
+      DataChannel.State state = observedChannel.state();
+      Log.d(TAG, "Data channel state changed: " + observedChannel.label() + ": " + state);
+      if (sending && state == DataChannel.State.OPEN) {
+        scheduleDrain();
+      }
+    }
+
+    @Override
+    public void onMessage(DataChannel.Buffer buffer) {
+      if (closed) {
+        return;
+      }
+      ByteBuffer data = buffer.data;
+      if (!buffer.binary) {
+        deliver(data, true /* text */);
+        return;
+      }
+      if (!data.hasRemaining()) {
+        return;
+      }
+      final byte flags = data.get();
+      final boolean text = (flags & FLAG_TEXT) != 0;
+      final boolean lastChunk = (flags & FLAG_FINAL) != 0;
+      if (discarding) {
+        discarding = !lastChunk;
+        return;
+      }
+      if (lastChunk && (message == null || message.position() == 0)) {
+        // Single chunk message, delivered without copy.
+        deliver(data, text);
+        return;
+      }
+      if (message == null || message.remaining() < data.remaining()) {
+        if (!growMessage(data.remaining())) {
+          Log.e(TAG, "Dropping message larger than " + MAX_MESSAGE_SIZE + " bytes.");
+          if (message != null) {
+            message.clear();
+          }
+          discarding = !lastChunk;
+          return;
+        }
+      }
+      message.put(data);
+      if (lastChunk) {
+        message.flip();
+        deliver(message, text);
+        message.clear();
+      }
+    }
+
+    private boolean growMessage(int length) {
+      final int size = message == null ? 0 : message.position();
+      if (size + length > MAX_MESSAGE_SIZE) {
+        return false;
+      }
+      int capacity = message == null ? CHUNK_SIZE : message.capacity();
+      while (capacity < size + length) {
+        capacity = Math.min(capacity * 2, MAX_MESSAGE_SIZE);
+      }
+      ByteBuffer grown = ByteBuffer.allocateDirect(capacity);
+      if (message != null) {
+        message.flip();
+        grown.put(message);
+      }
+      message = grown;
+      return true;
+    }
+  }
+}
@@ -0,0 +1,679 @@
+/*
+ *  Copyright 2017 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import android.util.Log;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import org.appspot.apprtc.util.ByteBufferPool;
+import org.appspot.apprtc.util.SerialExecutor;
+
+/**
+ * Sends files to the remote peer over a DataChannelClient, and receives the
+ * files it sends into a directory.
+ *
+ * <p>Files are read with positional FileChannel reads and sent in chunks of
+ * CHUNK_SIZE bytes, or less if the channel messages are smaller, e.g. on
+ * unordered channels, each with its CRC32. Up to WINDOW_CHUNKS chunks are in
+ * flight; the receiver acknowledges each chunk it verified and wrote, and
+ * asks for a chunk again if its CRC does not match. The sender also waits
+ * when the data channel queue is full, and sends again from the last
+ * acknowledged chunk when no acknowledgement came for ACK_TIMEOUT_MS, e.g.
+ * because the channel lost or reordered messages.
+ *
+ * <p>The receiver writes to "<name>.<transfer ID>.part" and renames it once
+ * the file is complete. Transfers that did not complete are offered again
+ * when a new channel is attached, e.g. after a reconnection, and the receiver
+ * then resumes after the chunks already in the partial file of that
+ * transfer. The sender fails the transfer instead if the file changed since.
+ *
+ * <p>Messages are binary data channel messages starting with MAGIC, a type
+ * byte and the transfer ID; malformed ones are dropped. The engine takes
+ * over the listener of the channel; other messages are forwarded to the
+ * listener set with setChannelListener(). File I/O runs on its own threads,
+ * never on the WebRTC or PeerConnectionClient threads. Listener callbacks are
+ * invoked from them as well.
+ */
+public class FileTransfer implements DataChannelClient.Listener {
+  private static final String TAG = "FileTransfer";
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  /** Size of the file chunks, if the channel allows it. */
+  public static final int CHUNK_SIZE = 64 * 1024;
+  /** Smallest chunks, which the channel messages must fit. */
+  public static final int MIN_CHUNK_SIZE = 1024;
+  /** Chunks sent without acknowledgement at most. */
+  public static final int WINDOW_CHUNKS = 8;
+  /** Time without acknowledgement after which chunks are sent again. */
+  public static final long ACK_TIMEOUT_MS = 5000;
+  private static final String PART_SUFFIX = ".part";
+  private static final int MAGIC = 0x46545831; // "FTX1"
+  private static final byte TYPE_OFFER = 1;
+  private static final byte TYPE_ACCEPT = 2;
+  private static final byte TYPE_CHUNK = 3;
+  private static final byte TYPE_ACK = 4;
+  private static final byte TYPE_NACK = 5;
+  private static final byte TYPE_DONE = 6;
+  private static final byte TYPE_CANCEL = 7;
+  // Magic, type and transfer ID.
+  private static final int HEADER_SIZE = 4 + 1 + 8;
+  // Index and CRC of a chunk.
+  private static final int CHUNK_HEADER_SIZE = HEADER_SIZE + 4 + 4;
+  // Size, chunk size and name length of an offer.
+  private static final int OFFER_HEADER_SIZE = 8 + 4 + 2;
+  private static final int MAX_MESSAGE_SIZE = CHUNK_HEADER_SIZE + CHUNK_SIZE;
+  private static final int MAX_POOLED_MESSAGES = 2 * WINDOW_CHUNKS;
+
+  private static final ExecutorService executor =
+      Executors.newFixedThreadPool(2, new ThreadFactory() {
+        private final AtomicInteger threadCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+          Thread thread = new Thread(runnable, "FileTransfer" + threadCount.getAndIncrement());
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+  // Checks the acknowledgement timeouts of all engines.
+  private static final ScheduledExecutorService ackTimer =
+      Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "FileTransferTimer");
+        thread.setDaemon(true);
+        return thread;
+      });
+
+  /** Transfer events, invoked on the transfer threads. */
+  public interface Listener {
+    void onTransferProgress(long transferId, boolean incoming, long bytes, long size);
+
+    void onTransferCompleted(long transferId, boolean incoming, File file);
+
+    void onTransferFailed(long transferId, boolean incoming, String error);
+  }
+
+  private static class Outgoing {
+    final long id;
+    final File file;
+    final long size;
+    final long lastModified;
+    FileChannel fileChannel;
+    // Chosen for the channel of the current offer.
+    int chunkSize;
+    int chunkCount;
+    // Set once the receiver accepted the offer on the current channel.
+    boolean accepted;
+    int nextChunk;
+    int ackedChunks;
+    // Set when the receiver answered since the last acknowledgement check.
+    boolean answered;
+
+    Outgoing(long id, File file) {
+      this.id = id;
+      this.file = file;
+      this.size = file.length();
+      this.lastModified = file.lastModified();
+    }
+  }
+
+  private static class Incoming {
+    final long id;
+    final String name;
+    final long size;
+    final int chunkSize;
+    final int chunkCount;
+    final File partFile;
+    FileChannel fileChannel;
+    int nextChunk;
+
+    Incoming(long id, String name, long size, int chunkSize, File partFile) {
+      this.id = id;
+      this.name = name;
+      this.size = size;
+      this.chunkSize = chunkSize;
+      this.chunkCount = (int) getChunkCount(size, chunkSize);
+      this.partFile = partFile;
+    }
+  }
+
+  private final File receiveDirectory;
+  private final Listener listener;
+  private final long ackTimeoutMs;
+  // Runs all the work of this engine, in order.
+  private final SerialExecutor lane = new SerialExecutor(executor);
+  // Copies of received messages, handed from the signaling thread to |lane|.
+  private final ByteBufferPool messagePool =
+      new ByteBufferPool(MAX_MESSAGE_SIZE, MAX_POOLED_MESSAGES, false /* direct */);
+  private final Random random = new Random();
+  private volatile DataChannelClient.Listener channelListener;
+
+  // Accessed on |lane| only.
+  private DataChannelClient channel;
+  private final Map<Long, Outgoing> outgoing = new HashMap<>();
+  private final Map<Long, Incoming> incoming = new HashMap<>();
+  private final ByteBuffer sendBuffer = ByteBuffer.allocate(MAX_MESSAGE_SIZE);
+  private final CRC32 crc = new CRC32();
+  // Runs while there are outgoing transfers and a channel.
+  private ScheduledFuture<?> ackTimeoutFuture;
+
+  public FileTransfer(File receiveDirectory, Listener listener) {
+    this(receiveDirectory, listener, ACK_TIMEOUT_MS);
+  }
+
+  FileTransfer(File receiveDirectory, Listener listener, long ackTimeoutMs) {
+    this.receiveDirectory = receiveDirectory;
+    this.listener = listener;
+    this.ackTimeoutMs = ackTimeoutMs;
+  }
+
+  /** Receives the channel messages that are not file transfer messages. */
+  public void setChannelListener(DataChannelClient.Listener channelListener) {
+    this.channelListener = channelListener;
+  }
+
+  /**
+   * Transfers over |channel| from now on, offering again the files whose
+   * transfer did not complete.
+   */
+  public void attach(final DataChannelClient channel) {
+    channel.setListener(this);
+    lane.execute(() -> {
+      detachInternal();
+      this.channel = channel;
+      for (Outgoing transfer : new ArrayList<>(outgoing.values())) {
+        sendOffer(transfer);
+      }
+    });
+  }
+
+  /**
+   * Stops using the channel, e.g. when the call ends. Transfers continue
+   * once a channel is attached again.
+   */
+  public void detach() {
+    lane.execute(this::detachInternal);
+  }
+
+  /** Starts sending |file| and returns the ID of the transfer. */
+  public long send(final File file) {
+    final long id = random.nextLong();
+    lane.execute(() -> {
+      Outgoing transfer = new Outgoing(id, file);
+      try {
+        transfer.fileChannel = new RandomAccessFile(file, "r").getChannel();
+      } catch (IOException e) {
+        listener.onTransferFailed(id, false, "Cannot open " + file + ": " + e.getMessage());
+        return;
+      }
+      outgoing.put(id, transfer);
+      if (channel != null) {
+        sendOffer(transfer);
+      }
+    });
+    return id;
+  }
+
+  /** Cancels an incoming or outgoing transfer. */
+  public void cancel(final long transferId) {
+    lane.execute(() -> {
+      if (outgoing.containsKey(transferId) || incoming.containsKey(transferId)) {
+        sendControl(TYPE_CANCEL, transferId);
+        fail(transferId, "Cancelled");
+      }
+    });
+  }
+
+  @Override
+  public void onTextMessage(String text) {
+    DataChannelClient.Listener channelListener = this.channelListener;
+    if (channelListener != null) {
+      channelListener.onTextMessage(text);
+    }
+  }
+
+  @Override
+  public void onBinaryMessage(ByteBuffer data) {
+    if (data.remaining() < HEADER_SIZE || data.getInt(data.position()) != MAGIC) {
+      DataChannelClient.Listener channelListener = this.channelListener;
+      if (channelListener != null) {
+        channelListener.onBinaryMessage(data);
+      }
+      return;
+    }
+    if (data.remaining() > MAX_MESSAGE_SIZE) {
+      Log.e(TAG, "Dropping file transfer message of " + data.remaining() + " bytes.");
+      return;
+    }
+    // |data| is only valid during the call.
+    final ByteBuffer message = messagePool.acquire();
+    message.put(data.duplicate());
+    message.flip();
+    lane.execute(() -> {
+      try {
+        handleMessage(message);
+      } finally {
+        messagePool.release(message);
+      }
+    });
+  }
+
+  @Override
+  public void onWritable() {
+    lane.execute(() -> {
+      for (Outgoing transfer : new ArrayList<>(outgoing.values())) {
+        sendChunks(transfer);
+      }
+    });
+    DataChannelClient.Listener channelListener = this.channelListener;
+    if (channelListener != null) {
+      channelListener.onWritable();
+    }
+  }
+
+  private void detachInternal() {
+    channel = null;
+    stopAckTimeouts();
+    for (Outgoing transfer : outgoing.values()) {
+      transfer.accepted = false;
+    }
+    // Incoming transfers resume from their partial file when offered again.
+    for (Incoming transfer : incoming.values()) {
+      closeQuietly(transfer.fileChannel);
+    }
+    incoming.clear();
+  }
+
+  // |message| holds at least HEADER_SIZE bytes.
+  private void handleMessage(ByteBuffer message) {
+    message.getInt(); // Magic.
+    final byte type = message.get();
+    final long id = message.getLong();
+    switch (type) {
+      case TYPE_OFFER:
+        handleOffer(id, message);
+        break;
+      case TYPE_ACCEPT:
+      case TYPE_ACK:
+      case TYPE_NACK: {
+        Outgoing transfer = outgoing.get(id);
+        if (message.remaining() < 4) {
+          Log.e(TAG, "Dropping truncated acknowledgement of transfer " + id);
+        } else if (transfer != null) {
+          handleAck(transfer, type, message.getInt());
+        }
+        break;
+      }
+      case TYPE_CHUNK: {
+        Incoming transfer = incoming.get(id);
+        if (message.remaining() < CHUNK_HEADER_SIZE - HEADER_SIZE) {
+          Log.e(TAG, "Dropping truncated chunk of transfer " + id);
+        } else if (transfer != null) {
+          handleChunk(transfer, message);
+        }
+        break;
+      }
+      case TYPE_DONE: {
+        Outgoing transfer = outgoing.remove(id);
+        if (transfer != null) {
+          closeQuietly(transfer.fileChannel);
+          stopAckTimeoutsIfIdle();
+          listener.onTransferCompleted(id, false, transfer.file);
+        }
+        break;
+      }
+      case TYPE_CANCEL:
+        fail(id, "Cancelled by the remote peer");
+        break;
+      default:
+        Log.w(TAG, "Unknown file transfer message: " + type);
+    }
+  }
+
+  // Sender side.
+
+  private void sendOffer(Outgoing transfer) {
+    if (transfer.file.length() != transfer.size
+        || transfer.file.lastModified() != transfer.lastModified) {
+      // The receiver would resume with parts of the previous content.
+      sendControl(TYPE_CANCEL, transfer.id);
+      fail(transfer.id, transfer.file + " changed during the transfer");
+      return;
+    }
+    final int chunkSize =
+        Math.min(CHUNK_SIZE, channel.getMaxMessageSize() - CHUNK_HEADER_SIZE);
+    if (chunkSize < MIN_CHUNK_SIZE) {
+      fail(transfer.id, "Data channel messages of " + channel.getMaxMessageSize()
+          + " bytes are too small for file chunks");
+      return;
+    }
+    transfer.chunkSize = chunkSize;
+    transfer.chunkCount = (int) getChunkCount(transfer.size, chunkSize);
+    transfer.accepted = false;
+    transfer.answered = true;
+    byte[] name = transfer.file.getName().getBytes(UTF_8);
+    ByteBuffer message = startMessage(TYPE_OFFER, transfer.id);
+    message.putLong(transfer.size).putInt(chunkSize).putShort((short) name.length).put(name);
+    sendMessage(message);
+    if (channel != null) {
+      startAckTimeouts();
+    }
+  }
+
+  private void handleAck(Outgoing transfer, byte type, int chunk) {
+    if (chunk < 0 || chunk > transfer.chunkCount) {
+      Log.e(TAG, "Invalid chunk index " + chunk + " for transfer " + transfer.id);
+      return;
+    }
+    transfer.answered = true;
+    if (type == TYPE_ACCEPT) {
+      transfer.accepted = true;
+      transfer.nextChunk = chunk;
+      transfer.ackedChunks = chunk;
+    } else if (type == TYPE_ACK) {
+      transfer.ackedChunks = Math.max(transfer.ackedChunks, chunk);
+      transfer.nextChunk = Math.max(transfer.nextChunk, transfer.ackedChunks);
+      listener.onTransferProgress(transfer.id, false,
+          Math.min(transfer.size, (long) transfer.ackedChunks * transfer.chunkSize),
+          transfer.size);
+    } else {
+      // Go back to the corrupt chunk; the receiver drops the ones after it.
+      Log.w(TAG, "Resending chunk " + chunk + " of transfer " + transfer.id);
+      transfer.nextChunk = Math.min(transfer.nextChunk, chunk);
+    }
+    sendChunks(transfer);
+  }
+
+  // Sends chunks while the window and the channel queue allow it.
+  private void sendChunks(Outgoing transfer) {
+    while (channel != null && transfer.accepted && transfer.nextChunk < transfer.chunkCount
+        && transfer.nextChunk - transfer.ackedChunks < WINDOW_CHUNKS) {
+      final int chunk = transfer.nextChunk;
+      final long position = (long) chunk * transfer.chunkSize;
+      final int length = (int) Math.min(transfer.chunkSize, transfer.size - position);
+      ByteBuffer message = startMessage(TYPE_CHUNK, transfer.id);
+      message.putInt(chunk);
+      final int crcPosition = message.position();
+      message.putInt(0);
+      final int dataPosition = message.position();
+      message.limit(dataPosition + length);
+      try {
+        while (message.hasRemaining()) {
+          if (transfer.fileChannel.read(message, position + message.position() - dataPosition)
+              < 0) {
+            throw new IOException("File is shorter than " + transfer.size + " bytes");
+          }
+        }
+      } catch (IOException e) {
+        sendControl(TYPE_CANCEL, transfer.id);
+        fail(transfer.id, "Cannot read " + transfer.file + ": " + e.getMessage());
+        return;
+      }
+      crc.reset();
+      crc.update(message.array(), dataPosition, length);
+      message.putInt(crcPosition, (int) crc.getValue());
+      if (!sendMessage(message)) {
+        // Sent again from onWritable().
+        return;
+      }
+      transfer.nextChunk++;
+    }
+  }
+
+  // Receiver side.
+
+  private void handleOffer(long id, ByteBuffer message) {
+    if (message.remaining() < OFFER_HEADER_SIZE) {
+      Log.e(TAG, "Dropping truncated offer of transfer " + id);
+      return;
+    }
+    final long size = message.getLong();
+    final int chunkSize = message.getInt();
+    final int nameLength = message.getShort() & 0xffff;
+    if (message.remaining() < nameLength) {
+      Log.e(TAG, "Dropping truncated offer of transfer " + id);
+      return;
+    }
+    byte[] nameBytes = new byte[nameLength];
+    message.get(nameBytes);
+    // Only keep the file name, the sender does not choose the directory.
+    final String name = new File(new String(nameBytes, UTF_8)).getName();
+    if (size < 0 || chunkSize < MIN_CHUNK_SIZE || chunkSize > CHUNK_SIZE
+        || getChunkCount(size, chunkSize) > Integer.MAX_VALUE || name.isEmpty()
+        || name.equals(".") || name.equals("..")) {
+      Log.e(TAG, "Rejecting file offer " + name + ": " + size + " bytes.");
+      sendControl(TYPE_CANCEL, id);
+      return;
+    }
+    Incoming transfer = incoming.get(id);
+    if (transfer == null) {
+      // Named after the transfer, so that only the same file is resumed.
+      transfer = new Incoming(id, name, size, chunkSize,
+          new File(receiveDirectory, name + "." + Long.toHexString(id) + PART_SUFFIX));
+      try {
+        transfer.fileChannel = new RandomAccessFile(transfer.partFile, "rw").getChannel();
+        // Resume after the complete chunks of a previous attempt, which may
+        // have used another chunk size.
+        transfer.nextChunk = (int) Math.min(
+            transfer.fileChannel.size() / chunkSize, (long) transfer.chunkCount);
+        transfer.fileChannel.truncate((long) transfer.nextChunk * chunkSize);
+      } catch (IOException e) {
+        closeQuietly(transfer.fileChannel);
+        sendControl(TYPE_CANCEL, id);
+        listener.onTransferFailed(id, true, "Cannot write " + transfer.partFile + ": "
+            + e.getMessage());
+        return;
+      }
+      incoming.put(id, transfer);
+      if (transfer.nextChunk > 0) {
+        Log.d(TAG, "Resuming " + name + " at chunk " + transfer.nextChunk);
+      }
+    }
+    sendAck(TYPE_ACCEPT, id, transfer.nextChunk);
+    if (transfer.nextChunk == transfer.chunkCount) {
+      complete(transfer);
+    }
+  }
+
+  private void handleChunk(Incoming transfer, ByteBuffer message) {
+    final int chunk = message.getInt();
+    final int expectedCrc = message.getInt();
+    if (chunk < transfer.nextChunk) {
+      // Sent again after a timeout, the acknowledgement may have been lost.
+      sendAck(TYPE_ACK, transfer.id, transfer.nextChunk);
+      return;
+    }
+    if (chunk != transfer.nextChunk) {
+      // Sent before a resend request, or reordered.
+      return;
+    }
+    final long position = (long) chunk * transfer.chunkSize;
+    final int length = message.remaining();
+    if (length != Math.min(transfer.chunkSize, transfer.size - position)) {
+      Log.e(TAG, "Invalid length " + length + " of chunk " + chunk);
+      sendAck(TYPE_NACK, transfer.id, chunk);
+      return;
+    }
+    crc.reset();
+    crc.update(message.array(), message.arrayOffset() + message.position(), length);
+    if ((int) crc.getValue() != expectedCrc) {
+      Log.e(TAG, "CRC mismatch in chunk " + chunk + " of " + transfer.name);
+      sendAck(TYPE_NACK, transfer.id, chunk);
+      return;
+    }
+    try {
+      while (message.hasRemaining()) {
+        transfer.fileChannel.write(message, position + length - message.remaining());
+      }
+    } catch (IOException e) {
+      sendControl(TYPE_CANCEL, transfer.id);
+      fail(transfer.id, "Cannot write " + transfer.partFile + ": " + e.getMessage());
+      return;
+    }
+    transfer.nextChunk++;
+    sendAck(TYPE_ACK, transfer.id, transfer.nextChunk);
+    listener.onTransferProgress(
+        transfer.id, true, Math.min(transfer.size, position + length), transfer.size);
+    if (transfer.nextChunk == transfer.chunkCount) {
+      complete(transfer);
+    }
+  }
+
+  private void complete(Incoming transfer) {
+    incoming.remove(transfer.id);
+    File file = new File(receiveDirectory, transfer.name);
+    try {
+      transfer.fileChannel.force(false);
+      transfer.fileChannel.close();
+      if (file.exists()) {
+        file = new File(receiveDirectory, System.currentTimeMillis() + "-" + transfer.name);
+      }
+      if (!transfer.partFile.renameTo(file)) {
+        throw new IOException("Cannot rename " + transfer.partFile + " to " + file);
+      }
+    } catch (IOException e) {
+      closeQuietly(transfer.fileChannel);
+      listener.onTransferFailed(transfer.id, true, e.getMessage());
+      return;
+    }
+    sendControl(TYPE_DONE, transfer.id);
+    Log.d(TAG, "Received " + file + ": " + transfer.size + " bytes.");
+    listener.onTransferCompleted(transfer.id, true, file);
+  }
+
+  // Acknowledgement timeouts.
+
+  private void startAckTimeouts() {
+    if (ackTimeoutFuture == null) {
+      ackTimeoutFuture = ackTimer.scheduleWithFixedDelay(() -> lane.execute(this::checkAckTimeouts),
+          ackTimeoutMs, ackTimeoutMs, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  private void stopAckTimeouts() {
+    if (ackTimeoutFuture != null) {
+      ackTimeoutFuture.cancel(false);
+      ackTimeoutFuture = null;
+    }
+  }
+
+  private void stopAckTimeoutsIfIdle() {
+    if (outgoing.isEmpty()) {
+      stopAckTimeouts();
+    }
+  }
+
+  // Sends again what the receiver did not answer for a whole period, between
+  // one and two timeouts ago.
+  private void checkAckTimeouts() {
+    if (channel == null) {
+      return;
+    }
+    for (Outgoing transfer : new ArrayList<>(outgoing.values())) {
+      if (transfer.answered) {
+        transfer.answered = false;
+      } else if (!transfer.accepted) {
+        Log.w(TAG, "Offering transfer " + transfer.id + " again");
+        sendOffer(transfer);
+      } else if (transfer.nextChunk > transfer.ackedChunks) {
+        Log.w(TAG, "Resending transfer " + transfer.id + " from chunk " + transfer.ackedChunks);
+        transfer.nextChunk = transfer.ackedChunks;
+        sendChunks(transfer);
+      }
+    }
+  }
+
+  // Common.
+
+  private void fail(long id, String error) {
+    Outgoing sending = outgoing.remove(id);
+    if (sending != null) {
+      closeQuietly(sending.fileChannel);
+      stopAckTimeoutsIfIdle();
+      listener.onTransferFailed(id, false, error);
+    }
+    Incoming receiving = incoming.remove(id);
+    if (receiving != null) {
+      closeQuietly(receiving.fileChannel);
+      if (!receiving.partFile.delete()) {
+        Log.w(TAG, "Cannot delete " + receiving.partFile);
+      }
+      listener.onTransferFailed(id, true, error);
+    }
+  }
+
+  private ByteBuffer startMessage(byte type, long id) {
+    sendBuffer.clear();
+    sendBuffer.putInt(MAGIC).put(type).putLong(id);
+    return sendBuffer;
+  }
+
+  private void sendControl(byte type, long id) {
+    sendMessage(startMessage(type, id));
+  }
+
+  private void sendAck(byte type, long id, int chunk) {
+    sendMessage(startMessage(type, id).putInt(chunk));
+  }
+
+  // Returns false if the channel queue is full or there is no channel, or if
+  // the message cannot be sent at all, which fails its transfer. The channel
+  // copies the message, so the buffer can be reused.
+  private boolean sendMessage(ByteBuffer message) {
+    message.flip();
+    if (channel == null) {
+      return false;
+    }
+    try {
+      return channel.send(message);
+    } catch (IllegalStateException e) {
+      // Closed with its peer connection. Transfers resume on the next
+      // channel attached.
+      Log.w(TAG, "Data channel closed, waiting for a new one.");
+      detachInternal();
+      return false;
+    } catch (IllegalArgumentException e) {
+      Log.e(TAG, "Cannot send file transfer message: " + e.getMessage());
+      fail(message.getLong(4 + 1), e.getMessage());
+      return false;
+    }
+  }
+
+  private static long getChunkCount(long size, int chunkSize) {
+    return (size + chunkSize - 1) / chunkSize;
+  }
+
+  private static void closeQuietly(FileChannel fileChannel) {
+    if (fileChannel == null) {
+      return;
+    }
+    try {
+      fileChannel.close();
+    } catch (IOException e) {
+      Log.w(TAG, "Failed to close file", e);
+    }
+  }
+}
@@ -0,0 +1,323 @@
+/*
+ *  Copyright 2014 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import android.util.Log;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Scanner;
+import java.util.Set;
+import org.appspot.apprtc.util.HttpRequestExecutor;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.webrtc.PeerConnection;
+
+/**
+ * Process-wide cache of the TURN servers returned by ICE server URLs.
+ *
+ * <p>Entries live for the credential lifetime announced by the server
+ * ("lifetimeDuration"). Once most of the lifetime has passed, the cached
+ * servers are still returned but refreshed in the background, so back to back
+ * calls never wait for the TURN request. Entries are persisted to disk so that
+ * the first call after a cold start can skip the request too.
+ */
+public class IceServerCache {
+  private static final String TAG = "IceServerCache";
+  private static final int TURN_HTTP_TIMEOUT_MS = 5000;
+  private static final String CACHE_FILE_NAME = "ice_servers.json";
+  // Lifetime used when the server does not announce one.
+  static final long DEFAULT_LIFETIME_MS = 10 * 60 * 1000;
+  // Entries are not used this close to their expiry, so that calls do not
+  // start with credentials about to expire.
+  static final long EXPIRY_MARGIN_MS = 60 * 1000;
+  // Fraction of the lifetime after which an entry is refreshed.
+  static final double REFRESH_RATIO = 0.75;
+
+  private static IceServerCache instance;
+
+  private final Clock clock;
+  private final Fetcher fetcher;
+  private final Map<String, Entry> entries = new HashMap<>();
+  // URLs with a background refresh in flight.
+  private final Set<String> refreshingUrls = new HashSet<>();
+  private final Object saveLock = new Object();
+  private File cacheFile;
+  private long hitCount;
+  private long missCount;
+  private long refreshCount;
+
+  // Server response and its validity, in wall clock time so that it
+  // survives restarts.
+  private static class Entry {
+    final String response;
+    final List<PeerConnection.IceServer> iceServers;
+    final long fetchTimeMs;
+    final long expiryTimeMs;
+
+    Entry(String response, List<PeerConnection.IceServer> iceServers, long fetchTimeMs,
+        long expiryTimeMs) {
+      this.response = response;
+      this.iceServers = iceServers;
+      this.fetchTimeMs = fetchTimeMs;
+      this.expiryTimeMs = expiryTimeMs;
+    }
+
+    boolean isUsable(long nowMs) {
+      return nowMs < expiryTimeMs - EXPIRY_MARGIN_MS;
+    }
+
+    boolean needsRefresh(long nowMs) {
+      return nowMs >= fetchTimeMs + (long) ((expiryTimeMs - fetchTimeMs) * REFRESH_RATIO);
+    }
+  }
+
+  /** Wall clock time, in milliseconds since the epoch. */
+  interface Clock {
+    long currentTimeMillis();
+  }
+
+  /** Requests the TURN server response of a URL, blocking the calling thread. */
+  interface Fetcher {
+    String fetch(String url) throws IOException;
+  }
+
+  public static synchronized IceServerCache getInstance() {
+    if (instance == null) {
+      instance = new IceServerCache(System::currentTimeMillis, IceServerCache::requestTurnServers);
+    }
+    return instance;
+  }
+
+  IceServerCache(Clock clock, Fetcher fetcher) {
+    this.clock = clock;
+    this.fetcher = fetcher;
+  }
+
+  /**
+   * Persists entries in |cacheDir| and loads the ones stored by previous runs
+   * in the background, on the HttpRequestExecutor lane of the cache file.
+   */
+  public void init(File cacheDir) {
+    File file;
+    synchronized (this) {
+      if (cacheFile != null) {
+        return;
+      }
+      cacheFile = new File(cacheDir, CACHE_FILE_NAME);
+      file = cacheFile;
+    }
+    if (!HttpRequestExecutor.getInstance().submit(
+            file.toURI().toString(), "TURN cache load", this::load)) {
+      Log.e(TAG, "Not loading TURN server cache, request executor saturated.");
+    }
+  }
+
+  /**
+   * Returns the TURN servers of |url|, from the cache if possible. Otherwise
+   * requests them, blocking the calling thread. Must be run off the main
+   * thread!
+   */
+  public List<PeerConnection.IceServer> getIceServers(String url) throws IOException {
+    long nowMs = clock.currentTimeMillis();
+    Entry entry;
+    synchronized (this) {
+      entry = entries.get(url);
+      if (entry != null && entry.isUsable(nowMs)) {
+        hitCount++;
+        if (entry.needsRefresh(nowMs) && refreshingUrls.add(url)) {
+          refreshInBackground(url);
+        }
+      } else {
+        missCount++;
+        entry = null;
+      }
+    }
+    if (entry != null) {
+      Log.d(TAG, "Using cached TURN servers of " + url + ". Expire in "
+              + (entry.expiryTimeMs - nowMs) / 1000 + " s");
+      return new ArrayList<>(entry.iceServers);
+    }
+    return new ArrayList<>(fetch(url).iceServers);
+  }
+
+  public synchronized long getHitCount() {
+    return hitCount;
+  }
+
+  public synchronized long getMissCount() {
+    return missCount;
+  }
+
+  /** Number of entries refreshed in the background before expiring. */
+  public synchronized long getRefreshCount() {
+    return refreshCount;
+  }
+
+  private void refreshInBackground(final String url) {
+    Log.d(TAG, "Refreshing TURN servers of " + url);
+    Runnable refresh = () -> {
+      try {
+        fetch(url);
+        synchronized (this) {
+          refreshCount++;
+        }
+      } catch (IOException e) {
+        Log.e(TAG, "TURN server refresh failed: " + e.toString());
+      } finally {
+        synchronized (this) {
+          refreshingUrls.remove(url);
+        }
+      }
+    };
+    if (!HttpRequestExecutor.getInstance().submit(url, "TURN refresh " + url, refresh)) {
+      synchronized (this) {
+        refreshingUrls.remove(url);
+      }
+    }
+  }
+
+  // Requests the TURN servers of |url| and caches them.
+  private Entry fetch(String url) throws IOException {
+    String response = fetcher.fetch(url);
+    long nowMs = clock.currentTimeMillis();
+    Entry entry = newEntry(response, nowMs, -1);
+    synchronized (this) {
+      entries.put(url, entry);
+    }
+    save();
+    return entry;
+  }
+
+  private static String requestTurnServers(String url) throws IOException {
+    Log.d(TAG, "Request TURN from: " + url);
+    HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+    connection.setDoOutput(true);
+    connection.setRequestProperty("REFERER", "https://appr.tc");
+    connection.setConnectTimeout(TURN_HTTP_TIMEOUT_MS);
+    connection.setReadTimeout(TURN_HTTP_TIMEOUT_MS);
+    int responseCode = connection.getResponseCode();
+    if (responseCode != 200) {
+      throw new IOException("Non-200 response when requesting TURN server from " + url + " : "
+          + connection.getHeaderField(null));
+    }
+    InputStream responseStream = connection.getInputStream();
+    String response = drainStream(responseStream);
+    connection.disconnect();
+    Log.d(TAG, "TURN response: " + response);
+    return response;
+  }
+
+  // Decodes |response|, expiring at |expiryTimeMs|, or after the lifetime
+  // announced by the server if -1.
+  private static Entry newEntry(String response, long fetchTimeMs, long expiryTimeMs)
+      throws IOException {
+    SignalingMessageDecoder.TurnResponse turnResponse =
+        SignalingMessageDecoder.decodeTurnResponse(response);
+    if (expiryTimeMs == -1) {
+      long lifetimeMs =
+          turnResponse.lifetimeMs >= 0 ? turnResponse.lifetimeMs : DEFAULT_LIFETIME_MS;
+      expiryTimeMs = fetchTimeMs + lifetimeMs;
+    }
+    return new Entry(response, turnResponse.iceServers, fetchTimeMs, expiryTimeMs);
+  }
+
+  private void load() {
+    File file;
+    synchronized (this) {
+      file = cacheFile;
+    }
+    if (!file.exists()) {
+      return;
+    }
+    try (InputStream in = new FileInputStream(file)) {
+      JSONObject json = new JSONObject(drainStream(in));
+      long nowMs = clock.currentTimeMillis();
+      int loaded = 0;
+      synchronized (this) {
+        Iterator<String> urls = json.keys();
+        while (urls.hasNext()) {
+          String url = urls.next();
+          Entry entry;
+          try {
+            JSONObject jsonEntry = json.getJSONObject(url);
+            entry = newEntry(jsonEntry.getString("response"), jsonEntry.getLong("fetchTime"),
+                jsonEntry.getLong("expiryTime"));
+          } catch (IOException | JSONException e) {
+            Log.e(TAG, "Skipping corrupt TURN server cache entry of " + url + ": " + e.toString());
+            continue;
+          }
+          // Do not overwrite entries fetched while loading.
+          if (entry.isUsable(nowMs) && !entries.containsKey(url)) {
+            entries.put(url, entry);
+            loaded++;
+          }
+        }
+      }
+      Log.d(TAG, "Loaded " + loaded + " cached TURN server entries.");
+    } catch (IOException | JSONException e) {
+      Log.e(TAG, "Failed to load TURN server cache: " + e.toString());
+    }
+  }
+
+  private void save() {
+    File file;
+    JSONObject json = new JSONObject();
+    try {
+      synchronized (this) {
+        file = cacheFile;
+        if (file == null) {
+          return;
+        }
+        for (Map.Entry<String, Entry> mapEntry : entries.entrySet()) {
+          Entry entry = mapEntry.getValue();
+          JSONObject jsonEntry = new JSONObject();
+          jsonEntry.put("response", entry.response);
+          jsonEntry.put("fetchTime", entry.fetchTimeMs);
+          jsonEntry.put("expiryTime", entry.expiryTimeMs);
+          json.put(mapEntry.getKey(), jsonEntry);
+        }
+      }
+    } catch (JSONException e) {
+      throw new RuntimeException(e);
+    }
+    // Write to a temporary file first so a crash never leaves a torn file.
+    synchronized (saveLock) {
+      File tempFile = new File(file.getPath() + ".tmp");
+      try (OutputStream out = new FileOutputStream(tempFile)) {
+        out.write(json.toString().getBytes("UTF-8"));
+      } catch (IOException e) {
+        Log.e(TAG, "Failed to save TURN server cache: " + e.toString());
+        return;
+      }
+      if (!tempFile.renameTo(file)) {
+        Log.e(TAG, "Failed to replace TURN server cache file.");
+      }
+    }
+  }
+
+  // Return the contents of an InputStream as a String.
+  private static String drainStream(InputStream in) {
+    Scanner s = new Scanner(in, "UTF-8").useDelimiter("\\A");
+    return s.hasNext() ? s.next() : "";
+  }
+}
@@ -0,0 +1,52 @@
+/*
+ *  Copyright 2014 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+/**
+ * Time spent in each phase of joining a room, in milliseconds. Phases run
+ * concurrently, so they do not add up to the total. -1 means the phase did
+ * not happen.
+ */
+public class JoinTimings {
+  /** From sending the room join request to receiving its response. */
+  public final long roomRequestMs;
+  /** Decoding the room response, not counting the wait for TURN servers. */
+  public final long roomParseMs;
+  /** From requesting TURN servers to receiving them. */
+  public final long turnRequestMs;
+  /** Time the join waited for TURN servers after decoding the room response. */
+  public final long turnWaitMs;
+  /** From opening the WebSocket to it being connected. */
+  public final long webSocketConnectMs;
+  /** True if the WebSocket was opened before the room response arrived. */
+  public final boolean speculativeWebSocket;
+  /** From connectToRoom() to the WebSocket being registered. */
+  public final long totalMs;
+
+  public JoinTimings(long roomRequestMs, long roomParseMs, long turnRequestMs, long turnWaitMs,
+      long webSocketConnectMs, boolean speculativeWebSocket, long totalMs) {
+    this.roomRequestMs = roomRequestMs;
+    this.roomParseMs = roomParseMs;
+    this.turnRequestMs = turnRequestMs;
+    this.turnWaitMs = turnWaitMs;
+    this.webSocketConnectMs = webSocketConnectMs;
+    this.speculativeWebSocket = speculativeWebSocket;
+    this.totalMs = totalMs;
+  }
+
+  @Override
+  public String toString() {
+    return "Room request: " + roomRequestMs + " ms. Room parse: " + roomParseMs
+        + " ms. TURN request: " + turnRequestMs + " ms. TURN wait: " + turnWaitMs
+        + " ms. WebSocket connect: " + webSocketConnectMs + " ms"
+        + (speculativeWebSocket ? " (speculative)" : "") + ". Total: " + totalMs + " ms";
+  }
+}
@@ -0,0 +1,180 @@
+/*
+ *  Copyright 2014 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import java.util.Collections;
+import java.util.concurrent.Executor;
+import org.appspot.apprtc.util.SignalingExecutor;
+import org.webrtc.IceCandidate;
+import org.webrtc.PeerConnection;
+import org.webrtc.SessionDescription;
+
+/**
+ * AppRTCClient that signals through a LocalSignalingHub in the same process,
+ * without any network access. Two LocalRTCClients joining the same room ID
+ * connect their peer connections to each other. No ICE servers are used, so
+ * the peers only exchange host candidates.
+ *
+ * <p>Unlike WebSocketRTCClient, it does not depend on the Android framework,
+ * so it can also drive peer connections on a desktop JVM. SignalingEvents
+ * are invoked in order on a lane of the shared SignalingExecutor, so many
+ * clients can run in one process without a thread each.
+ */
+public class LocalRTCClient implements AppRTCClient {
+  /** Room URL for which CallActivity uses this client. */
+  public static final String ROOM_URL = "local:";
+
+  private final SignalingEvents events;
+  private final LocalSignalingHub hub;
+  private final Executor executor = SignalingExecutor.newLane();
+  // Set once disconnectFromRoom() is called, after which tasks are dropped.
+  private volatile boolean closed;
+  // Accessed on |executor| only.
+  private RoomConnectionParameters connectionParameters;
+  private boolean connected;
+
+  public LocalRTCClient(SignalingEvents events) {
+    this(events, LocalSignalingHub.getDefault());
+  }
+
+  public LocalRTCClient(SignalingEvents events, LocalSignalingHub hub) {
+    this.events = events;
+    this.hub = hub;
+  }
+
+  @Override
+  public void connectToRoom(final RoomConnectionParameters connectionParameters) {
+    post(() -> {
+      this.connectionParameters = connectionParameters;
+      if (connectionParameters.loopback) {
+        // The offer comes back as the answer, see sendOfferSdp().
+        connected = true;
+        events.onConnectedToRoom(new AppRTCClient.SignalingParameters(
+            Collections.<PeerConnection.IceServer>emptyList(), true, "loopback", null, null, null,
+            null));
+        return;
+      }
+      LocalSignalingHub.JoinResult result = hub.join(connectionParameters.roomId, this);
+      if (result == null) {
+        events.onChannelError("Room is full: " + connectionParameters.roomId);
+        return;
+      }
+      connected = true;
+      events.onConnectedToRoom(new AppRTCClient.SignalingParameters(
+          Collections.<PeerConnection.IceServer>emptyList(), result.initiator, result.clientId,
+          null, null, result.offerSdp, result.iceCandidates));
+    });
+  }
+
+  @Override
+  public void sendOfferSdp(final SessionDescription sdp) {
+    post(() -> {
+      if (connected && connectionParameters.loopback) {
+        events.onRemoteDescription(new SessionDescription(
+            SessionDescription.Type.fromCanonicalForm("answer"), sdp.description));
+        return;
+      }
+      send(new SignalingMessageDecoder.SignalingMessage(
+          SignalingMessageDecoder.Type.OFFER, "offer", sdp, null));
+    });
+  }
+
+  @Override
+  public void sendAnswerSdp(final SessionDescription sdp) {
+    post(() -> send(new SignalingMessageDecoder.SignalingMessage(
+        SignalingMessageDecoder.Type.ANSWER, "answer", sdp, null)));
+  }
+
+  @Override
+  public void sendLocalIceCandidate(final IceCandidate candidate) {
+    post(() -> {
+      if (connected && connectionParameters.loopback) {
+        events.onRemoteIceCandidate(candidate);
+        return;
+      }
+      send(new SignalingMessageDecoder.SignalingMessage(SignalingMessageDecoder.Type.CANDIDATE,
+          "candidate", null, new IceCandidate[] {candidate}));
+    });
+  }
+
+  @Override
+  public void sendLocalIceCandidateRemovals(final IceCandidate[] candidates) {
+    post(() -> {
+      if (connected && connectionParameters.loopback) {
+        events.onRemoteIceCandidatesRemoved(candidates);
+        return;
+      }
+      send(new SignalingMessageDecoder.SignalingMessage(
+          SignalingMessageDecoder.Type.REMOVE_CANDIDATES, "remove-candidates", null, candidates));
+    });
+  }
+
+  @Override
+  public void disconnectFromRoom() {
+    post(() -> {
+      if (connected && !connectionParameters.loopback) {
+        hub.leave(connectionParameters.roomId, this);
+      }
+      connected = false;
+    });
+    closed = true;
+  }
+
+  // Called by the hub with its lock held.
+  void deliver(final SignalingMessageDecoder.SignalingMessage message) {
+    post(() -> {
+      if (!connected) {
+        return;
+      }
+      switch (message.type) {
+        case OFFER:
+        case ANSWER:
+          events.onRemoteDescription(message.sdp);
+          break;
+        case CANDIDATE:
+          for (IceCandidate candidate : message.candidates) {
+            events.onRemoteIceCandidate(candidate);
+          }
+          break;
+        case REMOVE_CANDIDATES:
+          events.onRemoteIceCandidatesRemoved(message.candidates);
+          break;
+        default:
+          break;
+      }
+    });
+  }
+
+  // Called by the hub with its lock held when the other client left.
+  void deliverBye() {
+    post(() -> {
+      if (connected) {
+        events.onChannelClose();
+      }
+    });
+  }
+
+  // Runs |task| on the executor, unless the client was disconnected, like
+  // WebSocketRTCClient ignores calls made after disconnecting.
+  private void post(Runnable task) {
+    if (!closed) {
+      executor.execute(task);
+    }
+  }
+
+  private void send(SignalingMessageDecoder.SignalingMessage message) {
+    if (!connected) {
+      events.onChannelError("Sending " + message.typeName + " in non connected state.");
+      return;
+    }
+    hub.send(connectionParameters.roomId, this, message);
+  }
+}
@@ -0,0 +1,141 @@
+/*
+ *  Copyright 2014 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.webrtc.IceCandidate;
+import org.webrtc.SessionDescription;
+
+/**
+ * In-process signaling server for LocalRTCClient, with the room semantics of
+ * appr.tc: a room holds two clients, the first one to join is the initiator,
+ * and the messages it sends while alone are handed to the second client when
+ * it joins. Messages are passed as objects, without any encoding.
+ */
+public class LocalSignalingHub {
+  private static final int ROOM_CAPACITY = 2;
+  private static final LocalSignalingHub defaultHub = new LocalSignalingHub();
+
+  private final Map<String, Room> rooms = new HashMap<>();
+  private int nextClientId;
+  private long messageCount;
+
+  private static class Room {
+    final List<LocalRTCClient> clients = new ArrayList<>(ROOM_CAPACITY);
+    // Messages of the initiator sent while it was alone.
+    SessionDescription offerSdp;
+    final List<IceCandidate> iceCandidates = new ArrayList<>();
+  }
+
+  /** Room state handed to a joining client. */
+  static class JoinResult {
+    final String clientId;
+    final boolean initiator;
+    final SessionDescription offerSdp;
+    final List<IceCandidate> iceCandidates;
+
+    JoinResult(String clientId, boolean initiator, SessionDescription offerSdp,
+        List<IceCandidate> iceCandidates) {
+      this.clientId = clientId;
+      this.initiator = initiator;
+      this.offerSdp = offerSdp;
+      this.iceCandidates = iceCandidates;
+    }
+  }
+
+  /** Hub shared by the clients that do not specify one. */
+  public static LocalSignalingHub getDefault() {
+    return defaultHub;
+  }
+
+  /** Number of messages passed between clients since the hub was created. */
+  public synchronized long getMessageCount() {
+    return messageCount;
+  }
+
+  // Returns null if the room is full.
+  synchronized JoinResult join(String roomId, LocalRTCClient client) {
+    Room room = rooms.get(roomId);
+    if (room == null) {
+      room = new Room();
+      rooms.put(roomId, room);
+    }
+    if (room.clients.size() >= ROOM_CAPACITY) {
+      return null;
+    }
+    room.clients.add(client);
+    String clientId = Integer.toString(nextClientId++);
+    if (room.clients.size() == 1) {
+      return new JoinResult(clientId, true, null, null);
+    }
+    JoinResult result =
+        new JoinResult(clientId, false, room.offerSdp, new ArrayList<>(room.iceCandidates));
+    room.offerSdp = null;
+    room.iceCandidates.clear();
+    return result;
+  }
+
+  // Delivers |message| to the other client of the room, or keeps it for the
+  // next client to join.
+  synchronized void send(
+      String roomId, LocalRTCClient sender, SignalingMessageDecoder.SignalingMessage message) {
+    Room room = rooms.get(roomId);
+    if (room == null || !room.clients.contains(sender)) {
+      return;
+    }
+    messageCount++;
+    for (LocalRTCClient client : room.clients) {
+      if (client != sender) {
+        client.deliver(message);
+        return;
+      }
+    }
+    switch (message.type) {
+      case OFFER:
+        room.offerSdp = message.sdp;
+        break;
+      case CANDIDATE:
+        for (IceCandidate candidate : message.candidates) {
+          room.iceCandidates.add(candidate);
+        }
+        break;
+      case REMOVE_CANDIDATES:
+        for (IceCandidate removed : message.candidates) {
+          for (int i = room.iceCandidates.size() - 1; i >= 0; --i) {
+            IceCandidate candidate = room.iceCandidates.get(i);
+            if (candidate.sdp.equals(removed.sdp) && candidate.sdpMid.equals(removed.sdpMid)) {
+              room.iceCandidates.remove(i);
+            }
+          }
+        }
+        break;
+      default:
+        break;
+    }
+  }
+
+  // Removes |client| from the room and tells the other client it left.
+  synchronized void leave(String roomId, LocalRTCClient client) {
+    Room room = rooms.get(roomId);
+    if (room == null || !room.clients.remove(client)) {
+      return;
+    }
+    for (LocalRTCClient other : room.clients) {
+      other.deliverBye();
+    }
+    if (room.clients.isEmpty()) {
+      rooms.remove(roomId);
+    }
+  }
+}
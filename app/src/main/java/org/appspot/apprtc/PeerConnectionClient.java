@@ -13,23 +13,23 @@ package org.appspot.apprtc;
 import android.content.Context;
 import android.os.Environment;
 import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
 import android.util.Log;
 import java.io.File;
 import java.io.IOException;
-import java.nio.ByteBuffer;
-import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
-import java.util.Iterator;
 import java.util.List;
-import java.util.Timer;
-import java.util.TimerTask;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.appspot.apprtc.AppRTCClient.SignalingParameters;
+import org.appspot.apprtc.util.QueueWaitStats;
+import org.appspot.apprtc.util.SerialExecutor;
 import org.webrtc.AudioSource;
 import org.webrtc.AudioTrack;
 import org.webrtc.CameraVideoCapturer;
@@ -71,9 +71,15 @@ import org.webrtc.voiceengine.WebRtcAudioUtils;
 /**
  * Peer connection client implementation.
  *
- * <p>All public methods are routed to local looper thread.
- * All PeerConnectionEvents callbacks are invoked from the same looper thread.
- * This class is a singleton.
+ * <p>Creates one peer connection to the remote party with
+ * createPeerConnection(), and optionally more with createPeer() for mesh
+ * calls. All peers share the factory, the capturer and the local tracks.
+ * Calls on the local media are routed to a single executor thread. Each peer
+ * has serial lanes on a shared thread pool: negotiation (SDP, ICE candidates
+ * and PeerConnectionEvents callbacks), control (send parameters), stats
+ * (polling and adaptive bitrate) and data (data channel sends). Work of one lane runs in order,
+ * lanes of a peer and of different peers run in parallel. The time tasks wait
+ * in each lane is recorded in getQueueWaitStats().
  */
 public class PeerConnectionClient {
   public static final String VIDEO_TRACK_ID = "ARDAMSv0";
@@ -87,13 +93,11 @@ public class PeerConnectionClient {
   private static final String VIDEO_CODEC_H264_HIGH = "H264 High";
   private static final String AUDIO_CODEC_OPUS = "opus";
   private static final String AUDIO_CODEC_ISAC = "ISAC";
-  private static final String VIDEO_CODEC_PARAM_START_BITRATE = "x-google-start-bitrate";
   private static final String VIDEO_FLEXFEC_FIELDTRIAL = "WebRTC-FlexFEC-03-Advertised/Enabled/WebRTC-FlexFEC-03/Enabled/";
   private static final String VIDEO_VP8_INTEL_HW_ENCODER_FIELDTRIAL = "WebRTC-IntelVP8/Enabled/";
   private static final String VIDEO_H264_HIGH_PROFILE_FIELDTRIAL = "WebRTC-H264HighProfile/Enabled/";
   private static final String DISABLE_WEBRTC_AGC_FIELDTRIAL = "WebRTC-Audio-MinimizeResamplingOnMobile/Enabled/";
   private static final String VIDEO_FRAME_EMIT_FIELDTRIAL = PeerConnectionFactory.VIDEO_FRAME_EMIT_TRIAL + "/" + PeerConnectionFactory.TRIAL_ENABLED + "/";
-  private static final String AUDIO_CODEC_PARAM_BITRATE = "maxaveragebitrate";
   private static final String AUDIO_ECHO_CANCELLATION_CONSTRAINT = "googEchoCancellation";
   private static final String AUDIO_AUTO_GAIN_CONTROL_CONSTRAINT = "googAutoGainControl";
   private static final String AUDIO_HIGH_PASS_FILTER_CONSTRAINT = "googHighpassFilter";
@@ -103,54 +107,77 @@ public class PeerConnectionClient {
   private static final int HD_VIDEO_WIDTH = 1280;
   private static final int HD_VIDEO_HEIGHT = 720;
   private static final int BPS_IN_KBPS = 1000;
-
-  // Executor thread is started once in private ctor and is used for all
-  // peer connection API calls to ensure new peer connection factory is
-  // created on the same thread as previously destroyed factory.
-  private static final ExecutorService executor = Executors.newSingleThreadExecutor();
-
-  private final PCObserver pcObserver = new PCObserver();
-  private final SDPObserver sdpObserver = new SDPObserver();
+  private static final int MAX_SIMULCAST_LAYERS = 3;
+  // Bitrate range of each simulcast layer of a 720p capture, lowest layer
+  // first. With fewer layers the highest ones are used.
+  private static final int[] SIMULCAST_LAYER_MIN_BITRATES_KBPS = {30, 150, 600};
+  private static final int[] SIMULCAST_LAYER_MAX_BITRATES_KBPS = {200, 700, 2500};
+
+  private static final String LANE_MEDIA = "media";
+  private static final String LANE_NEGOTIATION = "negotiation";
+  private static final String LANE_CONTROL = "control";
+  private static final String LANE_STATS = "stats";
+  private static final String LANE_DATA = "data";
+
+  private static final QueueWaitStats queueWaitStats = new QueueWaitStats();
+  // Executor thread is started once and is used for all factory and local
+  // media calls to ensure new peer connection factory is created on the same
+  // thread as previously destroyed factory.
+  private static final SerialExecutor executor = new SerialExecutor(
+      Executors.newSingleThreadExecutor(), queueWaitStats, LANE_MEDIA);
+  // Schedules statistics polling, which then runs on the stats lane of the
+  // peer, so that slow media calls do not delay it.
+  private static final ScheduledExecutorService statsTimer =
+      Executors.newSingleThreadScheduledExecutor();
+  // Threads running the lanes of the peers.
+  private static final ExecutorService peerThreadPool =
+      Executors.newFixedThreadPool(Math.max(2, Runtime.getRuntime().availableProcessors()));
+  private static final String DEFAULT_PEER_ID = "default";
+  // EGL context shared by all clients once prewarm() was called.
+  private static EglBase warmEglBase;
+  // Factory kept between calls and the key of the parameters it was created
+  // with. Accessed on the executor thread only.
+  private static PeerConnectionFactory warmFactory;
+  private static String warmFactoryKey;
 
   private final EglBase rootEglBase;
   private PeerConnectionFactory factory;
-  private PeerConnection peerConnection;
+  private String factoryKey;
   PeerConnectionFactory.Options options = null;
   private AudioSource audioSource;
   private VideoSource videoSource;
-  private boolean videoCallEnabled;
+  private volatile boolean videoCallEnabled;
   private boolean preferIsac;
   private String preferredVideoCodec;
+  private volatile int simulcastLayers;
   private boolean videoCapturerStopped;
-  private boolean isError;
-  private Timer statsTimer;
+  // Capture is stopped by stopVideoSource() or by the audio-only fallback,
+  // and runs again once neither wants it stopped.
+  private boolean videoSourceStopped;
+  private boolean videoSuspended;
+  private volatile boolean isError;
+  private final PeerConnectionStats peerConnectionStats = new PeerConnectionStats();
   private VideoSink localRender;
-  private List<VideoRenderer.Callbacks> remoteRenders;
-  private SignalingParameters signalingParameters;
   private int videoWidth;
   private int videoHeight;
   private int videoFps;
   private MediaConstraints audioConstraints;
   private MediaConstraints sdpMediaConstraints;
   private PeerConnectionParameters peerConnectionParameters;
-  // Queued remote ICE candidates are consumed only after both local and
-  // remote descriptions are set. Similarly local ICE candidates are sent to
-  // remote peer after both local and remote description are set.
-  private List<IceCandidate> queuedRemoteCandidates;
   private PeerConnectionEvents events;
-  private boolean isInitiator;
-  private SessionDescription localSdp; // either offer or answer SDP
+  // All open peers. Accessed on the executor thread only.
+  private final List<Peer> peers = new ArrayList<>();
+  // Peer driven by the single peer API: createPeerConnection(), createOffer(), ...
+  private volatile Peer defaultPeer;
+  // Local media shared by all peers.
   private MediaStream mediaStream;
   private VideoCapturer videoCapturer;
   // enableVideo is set to true if video should be rendered and sent.
-  private boolean renderVideo;
+  private volatile boolean renderVideo;
   private VideoTrack localVideoTrack;
-  private VideoTrack remoteVideoTrack;
-  private RtpSender localVideoSender;
   // enableAudio is set to true if audio should be sent.
   private boolean enableAudio;
   private AudioTrack localAudioTrack;
-  private DataChannel dataChannel;
   private boolean dataChannelEnabled;
 
   /**
@@ -281,24 +308,43 @@ public class PeerConnectionClient {
     void onPeerConnectionClosed();
 
     /**
-     * Callback fired once peer connection statistics is ready.
+     * Callback fired once peer connection error happened.
      */
-    void onPeerConnectionStatsReady(final StatsReport[] reports);
+    void onPeerConnectionError(final String description);
 
     /**
-     * Callback fired once peer connection error happened.
+     * Callback fired when the audio-only fallback suspends the local video
+     * because of a poor connection, or resumes it.
      */
-    void onPeerConnectionError(final String description);
+    void onAudioOnlyFallback(final boolean audioOnly);
   }
 
   public PeerConnectionClient() {
-    rootEglBase = EglBase.create();
+    synchronized (PeerConnectionClient.class) {
+      rootEglBase = warmEglBase != null ? warmEglBase : EglBase.create();
+    }
   }
 
   public void setPeerConnectionFactoryOptions(PeerConnectionFactory.Options options) {
     this.options = options;
   }
 
+  /**
+   * Sends video as |layerCount| simulcast layers, up to 3, from the next
+   * offer or answer on. Only used with the VP8 codec; 0 or 1 disables it.
+   * Layers are numbered from the lowest resolution, and can be capped and
+   * paused at runtime with setSimulcastLayerMaxBitrate() and
+   * setSimulcastLayerActive().
+   *
+   * <p>Simulcast is set up by munging the SDP with an SSRC SIM group. With
+   * org.webrtc 1.0.22672, the RtpSender of such a track may still report a
+   * single encoding in getParameters(), in which case only the total video
+   * bitrate limit is applied and per-layer limits are ignored.
+   */
+  public void setSimulcastLayers(int layerCount) {
+    simulcastLayers = Math.min(layerCount, MAX_SIMULCAST_LAYERS);
+  }
+
   public void createPeerConnectionFactory(final Context context, final PeerConnectionParameters peerConnectionParameters, final PeerConnectionEvents events) {
     this.peerConnectionParameters = peerConnectionParameters;
     this.events = events;
@@ -306,21 +352,18 @@ public class PeerConnectionClient {
     dataChannelEnabled = peerConnectionParameters.dataChannelParameters != null;
     // Reset variables to initial states.
     factory = null;
-    peerConnection = null;
+    defaultPeer = null;
     preferIsac = false;
     videoCapturerStopped = false;
+    videoSourceStopped = false;
+    videoSuspended = false;
     isError = false;
-    queuedRemoteCandidates = null;
-    localSdp = null; // either offer or answer SDP
     mediaStream = null;
     videoCapturer = null;
     renderVideo = true;
     localVideoTrack = null;
-    remoteVideoTrack = null;
-    localVideoSender = null;
     enableAudio = true;
     localAudioTrack = null;
-    statsTimer = new Timer();
 
     executor.execute(() -> createPeerConnectionFactoryInternal(context));
   }
@@ -340,90 +383,172 @@ public class PeerConnectionClient {
       return;
     }
     this.localRender = localRender;
-    this.remoteRenders = remoteRenders;
     this.videoCapturer = videoCapturer;
-    this.signalingParameters = signalingParameters;
+    defaultPeer = createPeer(
+        DEFAULT_PEER_ID, remoteRenders, signalingParameters, events, peerConnectionStats);
+  }
+
+  /**
+   * Creates a peer connection to |peerId| in addition to the one created by
+   * createPeerConnection(), which must be called first. All peers share the
+   * factory, the capturer and the local tracks; each has its own remote
+   * renderers, SDP state and queued candidates and reports to its own
+   * |events|. Calls for different peers run in parallel.
+   */
+  public Peer createPeer(String peerId, List<VideoRenderer.Callbacks> remoteRenders,
+      SignalingParameters signalingParameters, PeerConnectionEvents events) {
+    if (defaultPeer == null) {
+      Log.e(TAG, "Creating peer " + peerId + " before createPeerConnection().");
+      return null;
+    }
+    return createPeer(
+        peerId, remoteRenders, signalingParameters, events, new PeerConnectionStats());
+  }
+
+  private Peer createPeer(String peerId, List<VideoRenderer.Callbacks> remoteRenders,
+      SignalingParameters signalingParameters, PeerConnectionEvents events,
+      PeerConnectionStats stats) {
+    final Peer peer = new Peer(peerId, remoteRenders, signalingParameters, events, stats);
     executor.execute(() -> {
       try {
-        createMediaConstraintsInternal();
-        createPeerConnectionInternal();
+        if (factory == null || isError) {
+          Log.e(TAG, "Peerconnection factory is not created");
+          return;
+        }
+        if (mediaStream == null) {
+          createMediaConstraintsInternal();
+          createLocalMediaInternal();
+        }
+        peers.add(peer);
+        peer.createPeerConnectionInternal();
       } catch (Exception e) {
         reportError("Failed to create peer connection: " + e.getMessage());
         throw e;
+      } finally {
+        // Calls queued for the peer while it was being created can run now.
+        peer.resumeLanes();
       }
     });
+    return peer;
   }
 
+  /** Closes all peer connections, then the local media and the factory. */
   public void close() {
-    executor.execute(() -> closeInternal());
+    executor.execute(() -> {
+      final List<Peer> closingPeers = new ArrayList<>(peers);
+      peers.clear();
+      if (closingPeers.isEmpty()) {
+        closeInternal();
+        return;
+      }
+      // The factory may only be disposed once every peer connection is.
+      final AtomicInteger remainingPeers = new AtomicInteger(closingPeers.size());
+      for (Peer peer : closingPeers) {
+        peer.closeLanes(() -> {
+          if (remainingPeers.decrementAndGet() == 0) {
+            executor.execute(this::closeInternal);
+          }
+        });
+      }
+    });
+  }
+
+  /**
+   * Returns the time tasks waited in the executors of all clients of the
+   * process, per lane: "media", "negotiation", "control", "stats" and "data".
+   */
+  public static QueueWaitStats getQueueWaitStats() {
+    return queueWaitStats;
   }
 
   public boolean isVideoCallEnabled() {
     return videoCallEnabled;
   }
 
-  private void createPeerConnectionFactoryInternal(Context context) {
-    isError = false;
+  /**
+   * Creates the EGL context and the peer connection factory for |parameters|
+   * ahead of the first call, e.g. at application start. The next client
+   * created with matching parameters reuses them instead of creating its own,
+   * and hands them back here when it is closed, so only the first call of the
+   * process pays for loading and initializing WebRTC.
+   */
+  public static void prewarm(final Context context, final PeerConnectionParameters parameters) {
+    final EglBase eglBase = getWarmEglBase();
+    executor.execute(() -> {
+      String fieldTrials = getFieldTrials(parameters);
+      String factoryKey = getFactoryKey(parameters, fieldTrials, null /* options */);
+      if (warmFactory != null) {
+        if (factoryKey.equals(warmFactoryKey)) {
+          return;
+        }
+        warmFactory.dispose();
+      }
+      long startTimeMs = SystemClock.elapsedRealtime();
+      warmFactory = createFactory(context, parameters, fieldTrials, eglBase, null /* options */);
+      warmFactoryKey = factoryKey;
+      Log.d(TAG, "Pre-warmed peer connection factory in "
+              + (SystemClock.elapsedRealtime() - startTimeMs) + " ms.");
+    });
+  }
+
+  // Returns the process wide EGL context, creating it if needed.
+  private static synchronized EglBase getWarmEglBase() {
+    if (warmEglBase == null) {
+      warmEglBase = EglBase.create();
+    }
+    return warmEglBase;
+  }
 
-    // Initialize field trials.
+  private static synchronized boolean isWarmEglBase(EglBase eglBase) {
+    return eglBase == warmEglBase;
+  }
+
+  private static String getFieldTrials(PeerConnectionParameters parameters) {
     String fieldTrials = "";
-    if (peerConnectionParameters.videoFlexfecEnabled) {
+    if (parameters.videoFlexfecEnabled) {
       fieldTrials += VIDEO_FLEXFEC_FIELDTRIAL;
       Log.d(TAG, "Enable FlexFEC field trial.");
     }
     fieldTrials += VIDEO_VP8_INTEL_HW_ENCODER_FIELDTRIAL;
-    if (peerConnectionParameters.disableWebRtcAGCAndHPF) {
+    if (parameters.disableWebRtcAGCAndHPF) {
       fieldTrials += DISABLE_WEBRTC_AGC_FIELDTRIAL;
       Log.d(TAG, "Disable WebRTC AGC field trial.");
     }
     fieldTrials += VIDEO_FRAME_EMIT_FIELDTRIAL;
-
-    // Check preferred video codec.
-    preferredVideoCodec = VIDEO_CODEC_VP8;
-    if (videoCallEnabled && peerConnectionParameters.videoCodec != null) {
-      switch (peerConnectionParameters.videoCodec) {
-        case VIDEO_CODEC_VP8:
-          preferredVideoCodec = VIDEO_CODEC_VP8;
-          break;
-        case VIDEO_CODEC_VP9:
-          preferredVideoCodec = VIDEO_CODEC_VP9;
-          break;
-        case VIDEO_CODEC_H264_BASELINE:
-          preferredVideoCodec = VIDEO_CODEC_H264;
-          break;
-        case VIDEO_CODEC_H264_HIGH:
-          // TODO(magjed): Strip High from SDP when selecting Baseline instead of using field trial.
-          fieldTrials += VIDEO_H264_HIGH_PROFILE_FIELDTRIAL;
-          preferredVideoCodec = VIDEO_CODEC_H264;
-          break;
-        default:
-          preferredVideoCodec = VIDEO_CODEC_VP8;
-      }
+    if (parameters.videoCallEnabled && VIDEO_CODEC_H264_HIGH.equals(parameters.videoCodec)) {
+      // TODO(magjed): Strip High from SDP when selecting Baseline instead of using field trial.
+      fieldTrials += VIDEO_H264_HIGH_PROFILE_FIELDTRIAL;
     }
-    Log.d(TAG, "Preferred video codec: " + preferredVideoCodec);
+    return fieldTrials;
+  }
+
+  // Returns a key identifying everything that is fixed once a factory is
+  // created: field trials, codec factories and the audio device settings.
+  private static String getFactoryKey(PeerConnectionParameters parameters, String fieldTrials,
+      PeerConnectionFactory.Options options) {
+    return fieldTrials + "|" + parameters.videoCodecHwAcceleration + "|"
+        + VIDEO_CODEC_H264_HIGH.equals(parameters.videoCodec) + "|" + parameters.useOpenSLES
+        + "|" + parameters.disableBuiltInAEC + "|" + parameters.disableBuiltInAGC + "|"
+        + parameters.disableBuiltInNS + "|"
+        + (options == null ? "" : Integer.toString(options.networkIgnoreMask));
+  }
 
+  private static PeerConnectionFactory createFactory(Context context,
+      PeerConnectionParameters parameters, String fieldTrials, EglBase eglBase,
+      PeerConnectionFactory.Options options) {
     // Initialize WebRTC
     Log.d(TAG,
         "Initialize WebRTC. Field trials: " + fieldTrials + " Enable video HW acceleration: "
-            + peerConnectionParameters.videoCodecHwAcceleration);
+            + parameters.videoCodecHwAcceleration);
     PeerConnectionFactory.initialize(
         PeerConnectionFactory.InitializationOptions.builder(context)
             .setFieldTrials(fieldTrials)
-            .setEnableVideoHwAcceleration(peerConnectionParameters.videoCodecHwAcceleration)
+            .setEnableVideoHwAcceleration(parameters.videoCodecHwAcceleration)
             .setEnableInternalTracer(true)
             .createInitializationOptions());
-    if (peerConnectionParameters.tracing) {
-      PeerConnectionFactory.startInternalTracingCapture(
-          Environment.getExternalStorageDirectory().getAbsolutePath() + File.separator
-          + "webrtc-trace.txt");
-    }
-
-    // Check if ISAC is used by default.
-    preferIsac = peerConnectionParameters.audioCodec != null
-        && peerConnectionParameters.audioCodec.equals(AUDIO_CODEC_ISAC);
 
     // Enable/disable OpenSL ES playback.
-    if (!peerConnectionParameters.useOpenSLES) {
+    if (!parameters.useOpenSLES) {
       Log.d(TAG, "Disable OpenSL ES audio even if device supports it");
       WebRtcAudioManager.setBlacklistDeviceForOpenSLESUsage(true /* enable */);
     } else {
@@ -431,7 +556,7 @@ public class PeerConnectionClient {
       WebRtcAudioManager.setBlacklistDeviceForOpenSLESUsage(false);
     }
 
-    if (peerConnectionParameters.disableBuiltInAEC) {
+    if (parameters.disableBuiltInAEC) {
       Log.d(TAG, "Disable built-in AEC even if device supports it");
       WebRtcAudioUtils.setWebRtcBasedAcousticEchoCanceler(true);
     } else {
@@ -439,7 +564,7 @@ public class PeerConnectionClient {
       WebRtcAudioUtils.setWebRtcBasedAcousticEchoCanceler(false);
     }
 
-    if (peerConnectionParameters.disableBuiltInAGC) {
+    if (parameters.disableBuiltInAGC) {
       Log.d(TAG, "Disable built-in AGC even if device supports it");
       WebRtcAudioUtils.setWebRtcBasedAutomaticGainControl(true);
     } else {
@@ -447,7 +572,7 @@ public class PeerConnectionClient {
       WebRtcAudioUtils.setWebRtcBasedAutomaticGainControl(false);
     }
 
-    if (peerConnectionParameters.disableBuiltInNS) {
+    if (parameters.disableBuiltInNS) {
       Log.d(TAG, "Disable built-in NS even if device supports it");
       WebRtcAudioUtils.setWebRtcBasedNoiseSuppressor(true);
     } else {
@@ -455,6 +580,53 @@ public class PeerConnectionClient {
       WebRtcAudioUtils.setWebRtcBasedNoiseSuppressor(false);
     }
 
+    // Create peer connection factory.
+    if (options != null) {
+      Log.d(TAG, "Factory networkIgnoreMask option: " + options.networkIgnoreMask);
+    }
+    final boolean enableH264HighProfile = VIDEO_CODEC_H264_HIGH.equals(parameters.videoCodec);
+    final VideoEncoderFactory encoderFactory;
+    final VideoDecoderFactory decoderFactory;
+
+    if (parameters.videoCodecHwAcceleration) {
+      encoderFactory = new DefaultVideoEncoderFactory(
+          eglBase.getEglBaseContext(), true /* enableIntelVp8Encoder */, enableH264HighProfile);
+      decoderFactory = new DefaultVideoDecoderFactory(eglBase.getEglBaseContext());
+    } else {
+      encoderFactory = new SoftwareVideoEncoderFactory();
+      decoderFactory = new SoftwareVideoDecoderFactory();
+    }
+
+    return new PeerConnectionFactory(options, encoderFactory, decoderFactory);
+  }
+
+  private void createPeerConnectionFactoryInternal(Context context) {
+    isError = false;
+
+    // Check preferred video codec.
+    preferredVideoCodec = VIDEO_CODEC_VP8;
+    if (videoCallEnabled && peerConnectionParameters.videoCodec != null) {
+      switch (peerConnectionParameters.videoCodec) {
+        case VIDEO_CODEC_VP8:
+          preferredVideoCodec = VIDEO_CODEC_VP8;
+          break;
+        case VIDEO_CODEC_VP9:
+          preferredVideoCodec = VIDEO_CODEC_VP9;
+          break;
+        case VIDEO_CODEC_H264_BASELINE:
+        case VIDEO_CODEC_H264_HIGH:
+          preferredVideoCodec = VIDEO_CODEC_H264;
+          break;
+        default:
+          preferredVideoCodec = VIDEO_CODEC_VP8;
+      }
+    }
+    Log.d(TAG, "Preferred video codec: " + preferredVideoCodec);
+
+    // Check if ISAC is used by default.
+    preferIsac = peerConnectionParameters.audioCodec != null
+        && peerConnectionParameters.audioCodec.equals(AUDIO_CODEC_ISAC);
+
     // Set audio record error callbacks.
     WebRtcAudioRecord.setErrorCallback(new WebRtcAudioRecordErrorCallback() {
       @Override
@@ -498,25 +670,25 @@ public class PeerConnectionClient {
       }
     });
 
-    // Create peer connection factory.
-    if (options != null) {
-      Log.d(TAG, "Factory networkIgnoreMask option: " + options.networkIgnoreMask);
-    }
-    final boolean enableH264HighProfile =
-        VIDEO_CODEC_H264_HIGH.equals(peerConnectionParameters.videoCodec);
-    final VideoEncoderFactory encoderFactory;
-    final VideoDecoderFactory decoderFactory;
-
-    if (peerConnectionParameters.videoCodecHwAcceleration) {
-      encoderFactory = new DefaultVideoEncoderFactory(
-          rootEglBase.getEglBaseContext(), true /* enableIntelVp8Encoder */, enableH264HighProfile);
-      decoderFactory = new DefaultVideoDecoderFactory(rootEglBase.getEglBaseContext());
+    String fieldTrials = getFieldTrials(peerConnectionParameters);
+    factoryKey = getFactoryKey(peerConnectionParameters, fieldTrials, options);
+    if (warmFactory != null && factoryKey.equals(warmFactoryKey) && isWarmEglBase(rootEglBase)) {
+      Log.d(TAG, "Reusing pre-warmed peer connection factory.");
+      factory = warmFactory;
+      warmFactory = null;
     } else {
-      encoderFactory = new SoftwareVideoEncoderFactory();
-      decoderFactory = new SoftwareVideoDecoderFactory();
+      if (warmFactory != null) {
+        Log.d(TAG, "Pre-warmed peer connection factory does not match, disposing it.");
+        warmFactory.dispose();
+        warmFactory = null;
+      }
+      factory = createFactory(context, peerConnectionParameters, fieldTrials, rootEglBase, options);
+    }
+    if (peerConnectionParameters.tracing) {
+      PeerConnectionFactory.startInternalTracingCapture(
+          Environment.getExternalStorageDirectory().getAbsolutePath() + File.separator
+          + "webrtc-trace.txt");
     }
-
-    factory = new PeerConnectionFactory(options, encoderFactory, decoderFactory);
     Log.d(TAG, "Peer connection factory created.");
   }
 
@@ -577,47 +749,13 @@ public class PeerConnectionClient {
     }
   }
 
-  private void createPeerConnectionInternal() {
-    if (factory == null || isError) {
-      Log.e(TAG, "Peerconnection factory is not created");
-      return;
-    }
-    Log.d(TAG, "Create peer connection.");
-
-    queuedRemoteCandidates = new ArrayList<>();
-
+  // Creates the local media stream shared by all peers.
+  private void createLocalMediaInternal() {
     if (videoCallEnabled) {
       factory.setVideoHwAccelerationOptions(
           rootEglBase.getEglBaseContext(), rootEglBase.getEglBaseContext());
     }
 
-    PeerConnection.RTCConfiguration rtcConfig =
-        new PeerConnection.RTCConfiguration(signalingParameters.iceServers);
-    // TCP candidates are only useful when connecting to a server that supports
-    // ICE-TCP.
-    rtcConfig.tcpCandidatePolicy = PeerConnection.TcpCandidatePolicy.DISABLED;
-    rtcConfig.bundlePolicy = PeerConnection.BundlePolicy.MAXBUNDLE;
-    rtcConfig.rtcpMuxPolicy = PeerConnection.RtcpMuxPolicy.REQUIRE;
-    rtcConfig.continualGatheringPolicy = PeerConnection.ContinualGatheringPolicy.GATHER_CONTINUALLY;
-    // Use ECDSA encryption.
-    rtcConfig.keyType = PeerConnection.KeyType.ECDSA;
-    // Enable DTLS for normal calls and disable for loopback calls.
-    rtcConfig.enableDtlsSrtp = !peerConnectionParameters.loopback;
-
-    peerConnection = factory.createPeerConnection(rtcConfig, pcObserver);
-
-    if (dataChannelEnabled) {
-      DataChannel.Init init = new DataChannel.Init();
-      init.ordered = peerConnectionParameters.dataChannelParameters.ordered;
-      init.negotiated = peerConnectionParameters.dataChannelParameters.negotiated;
-      init.maxRetransmits = peerConnectionParameters.dataChannelParameters.maxRetransmits;
-      init.maxRetransmitTimeMs = peerConnectionParameters.dataChannelParameters.maxRetransmitTimeMs;
-      init.id = peerConnectionParameters.dataChannelParameters.id;
-      init.protocol = peerConnectionParameters.dataChannelParameters.protocol;
-      dataChannel = peerConnection.createDataChannel("ApprtcDemo data", init);
-    }
-    isInitiator = false;
-
     // Set INFO libjingle logging.
     // NOTE: this _must_ happen while |factory| is alive!
     Logging.enableLogToDebugOutput(Logging.Severity.LS_INFO);
@@ -626,12 +764,7 @@ public class PeerConnectionClient {
     if (videoCallEnabled) {
       mediaStream.addTrack(createVideoTrack(videoCapturer));
     }
-
     mediaStream.addTrack(createAudioTrack());
-    peerConnection.addStream(mediaStream);
-    if (videoCallEnabled) {
-      findVideoSender();
-    }
 
     if (peerConnectionParameters.aecDump) {
       try {
@@ -645,23 +778,18 @@ public class PeerConnectionClient {
         Log.e(TAG, "Can not open aecdump file", e);
       }
     }
-
-    Log.d(TAG, "Peer connection created.");
+    Log.d(TAG, "Local media created.");
   }
 
+  // Closes the local media and the factory. All peers must be closed first.
   private void closeInternal() {
     if (factory != null && peerConnectionParameters.aecDump) {
       factory.stopAecDump();
     }
-    Log.d(TAG, "Closing peer connection.");
-    statsTimer.cancel();
-    if (dataChannel != null) {
-      dataChannel.dispose();
-      dataChannel = null;
-    }
-    if (peerConnection != null) {
-      peerConnection.dispose();
-      peerConnection = null;
+    Log.d(TAG, "Closing local media stream.");
+    if (mediaStream != null) {
+      mediaStream.dispose();
+      mediaStream = null;
     }
     Log.d(TAG, "Closing audio source.");
     if (audioSource != null) {
@@ -685,18 +813,31 @@ public class PeerConnectionClient {
       videoSource = null;
     }
     localRender = null;
-    remoteRenders = null;
-    Log.d(TAG, "Closing peer connection factory.");
+    defaultPeer = null;
+    PeerConnectionFactory.stopInternalTracingCapture();
+    // Keep the factory for the next call if it was created on the warm EGL
+    // context, unless another one was pre-warmed in the meantime.
+    final boolean keepWarm = isWarmEglBase(rootEglBase);
     if (factory != null) {
-      factory.dispose();
+      if (keepWarm && !isError && warmFactory == null) {
+        Log.d(TAG, "Keeping peer connection factory warm.");
+        warmFactory = factory;
+        warmFactoryKey = factoryKey;
+      } else {
+        Log.d(TAG, "Closing peer connection factory.");
+        factory.dispose();
+      }
       factory = null;
     }
     options = null;
-    rootEglBase.release();
-    Log.d(TAG, "Closing peer connection done.");
+    if (!keepWarm) {
+      rootEglBase.release();
+    }
+    Log.d(TAG, "Closing peer connection done. Queue wait: " + queueWaitStats);
     events.onPeerConnectionClosed();
-    PeerConnectionFactory.stopInternalTracingCapture();
-    PeerConnectionFactory.shutdownInternalTracer();
+    if (warmFactory == null) {
+      PeerConnectionFactory.shutdownInternalTracer();
+    }
     events = null;
   }
 
@@ -708,36 +849,29 @@ public class PeerConnectionClient {
     return rootEglBase.getEglBaseContext();
   }
 
-  @SuppressWarnings("deprecation") // TODO(sakal): getStats is deprecated.
-  private void getStats() {
-    if (peerConnection == null || isError) {
-      return;
-    }
-    boolean success = peerConnection.getStats(new StatsObserver() {
-      @Override
-      public void onComplete(final StatsReport[] reports) {
-        events.onPeerConnectionStatsReady(reports);
-      }
-    }, null);
-    if (!success) {
-      Log.e(TAG, "getStats() returns false!");
-    }
+  /** Returns the peer created by createPeerConnection(), or null. */
+  public Peer getDefaultPeer() {
+    return defaultPeer;
   }
 
-  public void enableStatsEvents(boolean enable, int periodMs) {
-    if (enable) {
-      try {
-        statsTimer.schedule(new TimerTask() {
-          @Override
-          public void run() {
-            executor.execute(() -> getStats());
-          }
-        }, 0, periodMs);
-      } catch (Exception e) {
-        Log.e(TAG, "Can not schedule statistics timer", e);
-      }
-    } else {
-      statsTimer.cancel();
+  /**
+   * Returns the statistics of the default peer connection. Subscribe to the
+   * metrics of interest and enable polling with enableStatsEvents().
+   */
+  public PeerConnectionStats getPeerConnectionStats() {
+    return peerConnectionStats;
+  }
+
+  /** Returns the data channel of the default peer, see Peer.getDataChannel(). */
+  public DataChannelClient getDataChannel() {
+    final Peer peer = defaultPeer;
+    return peer != null ? peer.getDataChannel() : null;
+  }
+
+  public void enableStatsEvents(final boolean enable, final int periodMs) {
+    final Peer peer = defaultPeer;
+    if (peer != null) {
+      peer.enableStatsEvents(enable, periodMs);
     }
   }
 
@@ -754,318 +888,197 @@ public class PeerConnectionClient {
     executor.execute(() -> {
       renderVideo = enable;
       if (localVideoTrack != null) {
-        localVideoTrack.setEnabled(renderVideo);
+        localVideoTrack.setEnabled(renderVideo && !videoSuspended);
       }
-      if (remoteVideoTrack != null) {
-        remoteVideoTrack.setEnabled(renderVideo);
+      for (final Peer peer : peers) {
+        peer.negotiationExecutor.execute(() -> {
+          if (peer.remoteVideoTrack != null) {
+            peer.remoteVideoTrack.setEnabled(renderVideo);
+          }
+        });
       }
     });
   }
 
   public void createOffer() {
-    executor.execute(() -> {
-      if (peerConnection != null && !isError) {
-        isInitiator = true;
-        peerConnection.createOffer(sdpObserver, sdpMediaConstraints);
-      }
-    });
+    final Peer peer = defaultPeer;
+    if (peer != null) {
+      peer.createOffer();
+    }
   }
 
   public void createAnswer() {
-    executor.execute(() -> {
-      if (peerConnection != null && !isError) {
-        isInitiator = false;
-        peerConnection.createAnswer(sdpObserver, sdpMediaConstraints);
-      }
-    });
+    final Peer peer = defaultPeer;
+    if (peer != null) {
+      peer.createAnswer();
+    }
   }
 
   public void addRemoteIceCandidate(final IceCandidate candidate) {
-    executor.execute(() -> {
-      if (peerConnection != null && !isError) {
-        if (queuedRemoteCandidates != null) {
-          queuedRemoteCandidates.add(candidate);
-        } else {
-          peerConnection.addIceCandidate(candidate);
-        }
-      }
-    });
+    final Peer peer = defaultPeer;
+    if (peer != null) {
+      peer.addRemoteIceCandidate(candidate);
+    }
   }
 
   public void removeRemoteIceCandidates(final IceCandidate[] candidates) {
-    executor.execute(() -> {
-      if (peerConnection == null || isError) {
-        return;
-      }
-      // Drain the queued remote candidates if there is any so that
-      // they are processed in the proper order.
-      drainCandidates();
-      peerConnection.removeIceCandidates(candidates);
-    });
+    final Peer peer = defaultPeer;
+    if (peer != null) {
+      peer.removeRemoteIceCandidates(candidates);
+    }
   }
 
   public void setRemoteDescription(final SessionDescription sdp) {
-    executor.execute(() -> {
-      if (peerConnection == null || isError) {
-        return;
-      }
-      String sdpDescription = sdp.description;
-      if (preferIsac) {
-        sdpDescription = preferCodec(sdpDescription, AUDIO_CODEC_ISAC, true);
-      }
-      if (videoCallEnabled) {
-        sdpDescription = preferCodec(sdpDescription, preferredVideoCodec, false);
-      }
-      if (peerConnectionParameters.audioStartBitrate > 0) {
-        sdpDescription = setStartBitrate(
-            AUDIO_CODEC_OPUS, false, sdpDescription, peerConnectionParameters.audioStartBitrate);
-      }
-      Log.d(TAG, "Set remote SDP.");
-      SessionDescription sdpRemote = new SessionDescription(sdp.type, sdpDescription);
-      peerConnection.setRemoteDescription(sdpObserver, sdpRemote);
-    });
+    final Peer peer = defaultPeer;
+    if (peer != null) {
+      peer.setRemoteDescription(sdp);
+    }
   }
 
   public void stopVideoSource() {
     executor.execute(() -> {
-      if (videoCapturer != null && !videoCapturerStopped) {
-        Log.d(TAG, "Stop video source.");
-        try {
-          videoCapturer.stopCapture();
-        } catch (InterruptedException e) {
-        }
-        videoCapturerStopped = true;
-      }
+      videoSourceStopped = true;
+      updateVideoCapture();
     });
   }
 
   public void startVideoSource() {
     executor.execute(() -> {
-      if (videoCapturer != null && videoCapturerStopped) {
-        Log.d(TAG, "Restart video source.");
-        videoCapturer.startCapture(videoWidth, videoHeight, videoFps);
-        videoCapturerStopped = false;
-      }
+      videoSourceStopped = false;
+      updateVideoCapture();
     });
   }
 
-  public void setVideoMaxBitrate(final Integer maxBitrateKbps) {
-    executor.execute(() -> {
-      if (peerConnection == null || localVideoSender == null || isError) {
-        return;
-      }
-      Log.d(TAG, "Requested max video bitrate: " + maxBitrateKbps);
-      if (localVideoSender == null) {
-        Log.w(TAG, "Sender is not ready.");
-        return;
-      }
-
-      RtpParameters parameters = localVideoSender.getParameters();
-      if (parameters.encodings.size() == 0) {
-        Log.w(TAG, "RtpParameters are not ready.");
-        return;
-      }
-
-      for (RtpParameters.Encoding encoding : parameters.encodings) {
-        // Null value means no limit.
-        encoding.maxBitrateBps = maxBitrateKbps == null ? null : maxBitrateKbps * BPS_IN_KBPS;
-      }
-      if (!localVideoSender.setParameters(parameters)) {
-        Log.e(TAG, "RtpSender.setParameters failed.");
+  // Starts or stops the capturer, which only runs while neither
+  // stopVideoSource() nor the audio-only fallback stopped it.
+  private void updateVideoCapture() {
+    if (videoCapturer == null) {
+      return;
+    }
+    final boolean stop = videoSourceStopped || videoSuspended;
+    if (stop && !videoCapturerStopped) {
+      Log.d(TAG, "Stop video source.");
+      try {
+        videoCapturer.stopCapture();
+      } catch (InterruptedException e) {
       }
-      Log.d(TAG, "Configured max video bitrate to: " + maxBitrateKbps);
-    });
+      videoCapturerStopped = true;
+    } else if (!stop && videoCapturerStopped) {
+      Log.d(TAG, "Restart video source.");
+      videoCapturer.startCapture(videoWidth, videoHeight, videoFps);
+      videoCapturerStopped = false;
+    }
   }
 
-  private void reportError(final String errorMessage) {
-    Log.e(TAG, "Peerconnection error: " + errorMessage);
+  // Disables the local video track and stops the capturer while |suspended|.
+  private void setVideoSuspended(final boolean suspended) {
     executor.execute(() -> {
-      if (!isError) {
-        events.onPeerConnectionError(errorMessage);
-        isError = true;
+      if (videoSuspended == suspended || events == null) {
+        return;
+      }
+      Log.d(TAG, (suspended ? "Suspend" : "Resume") + " local video.");
+      videoSuspended = suspended;
+      if (localVideoTrack != null) {
+        localVideoTrack.setEnabled(renderVideo && !videoSuspended);
       }
+      updateVideoCapture();
+      events.onAudioOnlyFallback(suspended);
     });
   }
 
-  private AudioTrack createAudioTrack() {
-    audioSource = factory.createAudioSource(audioConstraints);
-    localAudioTrack = factory.createAudioTrack(AUDIO_TRACK_ID, audioSource);
-    localAudioTrack.setEnabled(enableAudio);
-    return localAudioTrack;
+  public void setVideoMaxBitrate(final Integer maxBitrateKbps) {
+    final Peer peer = defaultPeer;
+    if (peer != null) {
+      peer.setVideoMaxBitrate(maxBitrateKbps);
+    }
   }
 
-  private VideoTrack createVideoTrack(VideoCapturer capturer) {
-    videoSource = factory.createVideoSource(capturer);
-    capturer.startCapture(videoWidth, videoHeight, videoFps);
-
-    localVideoTrack = factory.createVideoTrack(VIDEO_TRACK_ID, videoSource);
-    localVideoTrack.setEnabled(renderVideo);
-    localVideoTrack.addSink(localRender);
-    return localVideoTrack;
+  /**
+   * Continuously adapts the video send bitrate between |minBitrateKbps| and
+   * |maxBitrateKbps|, and the capture format when the bitrate gets too low
+   * for it, based on the bandwidth estimate, RTT and loss statistics. Stats
+   * events must be enabled with enableStatsEvents().
+   */
+  public void enableAdaptiveBitrate(final int minBitrateKbps, final int maxBitrateKbps) {
+    enableAdaptiveBitrate(minBitrateKbps, maxBitrateKbps, new BitrateController.LossBasedPolicy());
   }
 
-  private void findVideoSender() {
-    for (RtpSender sender : peerConnection.getSenders()) {
-      if (sender.track() != null) {
-        String trackType = sender.track().kind();
-        if (trackType.equals(VIDEO_TRACK_TYPE)) {
-          Log.d(TAG, "Found video sender.");
-          localVideoSender = sender;
-        }
-      }
+  public void enableAdaptiveBitrate(final int minBitrateKbps, final int maxBitrateKbps,
+      final BitrateController.Policy policy) {
+    final Peer peer = defaultPeer;
+    if (peer != null) {
+      peer.enableAdaptiveBitrate(minBitrateKbps, maxBitrateKbps, policy);
     }
   }
 
-  private static String setStartBitrate(
-      String codec, boolean isVideoCodec, String sdpDescription, int bitrateKbps) {
-    String[] lines = sdpDescription.split("\r\n");
-    int rtpmapLineIndex = -1;
-    boolean sdpFormatUpdated = false;
-    String codecRtpMap = null;
-    // Search for codec rtpmap in format
-    // a=rtpmap:<payload type> <encoding name>/<clock rate> [/<encoding parameters>]
-    String regex = "^a=rtpmap:(\\d+) " + codec + "(/\\d+)+[\r]?$";
-    Pattern codecPattern = Pattern.compile(regex);
-    for (int i = 0; i < lines.length; i++) {
-      Matcher codecMatcher = codecPattern.matcher(lines[i]);
-      if (codecMatcher.matches()) {
-        codecRtpMap = codecMatcher.group(1);
-        rtpmapLineIndex = i;
-        break;
-      }
-    }
-    if (codecRtpMap == null) {
-      Log.w(TAG, "No rtpmap for " + codec + " codec");
-      return sdpDescription;
-    }
-    Log.d(TAG, "Found " + codec + " rtpmap " + codecRtpMap + " at " + lines[rtpmapLineIndex]);
-
-    // Check if a=fmtp string already exist in remote SDP for this codec and
-    // update it with new bitrate parameter.
-    regex = "^a=fmtp:" + codecRtpMap + " \\w+=\\d+.*[\r]?$";
-    codecPattern = Pattern.compile(regex);
-    for (int i = 0; i < lines.length; i++) {
-      Matcher codecMatcher = codecPattern.matcher(lines[i]);
-      if (codecMatcher.matches()) {
-        Log.d(TAG, "Found " + codec + " " + lines[i]);
-        if (isVideoCodec) {
-          lines[i] += "; " + VIDEO_CODEC_PARAM_START_BITRATE + "=" + bitrateKbps;
-        } else {
-          lines[i] += "; " + AUDIO_CODEC_PARAM_BITRATE + "=" + (bitrateKbps * 1000);
-        }
-        Log.d(TAG, "Update remote SDP line: " + lines[i]);
-        sdpFormatUpdated = true;
-        break;
-      }
+  public void disableAdaptiveBitrate() {
+    final Peer peer = defaultPeer;
+    if (peer != null) {
+      peer.disableAdaptiveBitrate();
     }
+  }
 
-    StringBuilder newSdpDescription = new StringBuilder();
-    for (int i = 0; i < lines.length; i++) {
-      newSdpDescription.append(lines[i]).append("\r\n");
-      // Append new a=fmtp line if no such line exist for a codec.
-      if (!sdpFormatUpdated && i == rtpmapLineIndex) {
-        String bitrateSet;
-        if (isVideoCodec) {
-          bitrateSet =
-              "a=fmtp:" + codecRtpMap + " " + VIDEO_CODEC_PARAM_START_BITRATE + "=" + bitrateKbps;
-        } else {
-          bitrateSet = "a=fmtp:" + codecRtpMap + " " + AUDIO_CODEC_PARAM_BITRATE + "="
-              + (bitrateKbps * 1000);
-        }
-        Log.d(TAG, "Add remote SDP line: " + bitrateSet);
-        newSdpDescription.append(bitrateSet).append("\r\n");
-      }
+  /**
+   * Suspends the local video while the send bandwidth estimate of the default
+   * peer is below |suspendBelowKbps| or the connection otherwise degrades, and
+   * resumes it once the estimate reaches |resumeAboveKbps|. Suspending
+   * disables the local video track and stops the capturer, transitions are
+   * reported with PeerConnectionEvents.onAudioOnlyFallback(). Stats events
+   * must be enabled with enableStatsEvents().
+   */
+  public void enableAudioOnlyFallback(final int suspendBelowKbps, final int resumeAboveKbps) {
+    final Peer peer = defaultPeer;
+    if (peer != null) {
+      peer.enableAudioOnlyFallback(suspendBelowKbps, resumeAboveKbps);
     }
-    return newSdpDescription.toString();
   }
 
-  /** Returns the line number containing "m=audio|video", or -1 if no such line exists. */
-  private static int findMediaDescriptionLine(boolean isAudio, String[] sdpLines) {
-    final String mediaDescription = isAudio ? "m=audio " : "m=video ";
-    for (int i = 0; i < sdpLines.length; ++i) {
-      if (sdpLines[i].startsWith(mediaDescription)) {
-        return i;
-      }
+  public void disableAudioOnlyFallback() {
+    final Peer peer = defaultPeer;
+    if (peer != null) {
+      peer.disableAudioOnlyFallback();
     }
-    return -1;
   }
 
-  private static String joinString(
-      Iterable<? extends CharSequence> s, String delimiter, boolean delimiterAtEnd) {
-    Iterator<? extends CharSequence> iter = s.iterator();
-    if (!iter.hasNext()) {
-      return "";
-    }
-    StringBuilder buffer = new StringBuilder(iter.next());
-    while (iter.hasNext()) {
-      buffer.append(delimiter).append(iter.next());
+  public void setSimulcastLayerActive(final int layer, final boolean active) {
+    final Peer peer = defaultPeer;
+    if (peer != null) {
+      peer.setSimulcastLayerActive(layer, active);
     }
-    if (delimiterAtEnd) {
-      buffer.append(delimiter);
-    }
-    return buffer.toString();
   }
 
-  private static String movePayloadTypesToFront(List<String> preferredPayloadTypes, String mLine) {
-    // The format of the media description line should be: m=<media> <port> <proto> <fmt> ...
-    final List<String> origLineParts = Arrays.asList(mLine.split(" "));
-    if (origLineParts.size() <= 3) {
-      Log.e(TAG, "Wrong SDP media description format: " + mLine);
-      return null;
+  public void setSimulcastLayerMaxBitrate(final int layer, final Integer maxBitrateKbps) {
+    final Peer peer = defaultPeer;
+    if (peer != null) {
+      peer.setSimulcastLayerMaxBitrate(layer, maxBitrateKbps);
     }
-    final List<String> header = origLineParts.subList(0, 3);
-    final List<String> unpreferredPayloadTypes =
-        new ArrayList<>(origLineParts.subList(3, origLineParts.size()));
-    unpreferredPayloadTypes.removeAll(preferredPayloadTypes);
-    // Reconstruct the line with |preferredPayloadTypes| moved to the beginning of the payload
-    // types.
-    final List<String> newLineParts = new ArrayList<>();
-    newLineParts.addAll(header);
-    newLineParts.addAll(preferredPayloadTypes);
-    newLineParts.addAll(unpreferredPayloadTypes);
-    return joinString(newLineParts, " ", false /* delimiterAtEnd */);
   }
 
-  private static String preferCodec(String sdpDescription, String codec, boolean isAudio) {
-    final String[] lines = sdpDescription.split("\r\n");
-    final int mLineIndex = findMediaDescriptionLine(isAudio, lines);
-    if (mLineIndex == -1) {
-      Log.w(TAG, "No mediaDescription line, so can't prefer " + codec);
-      return sdpDescription;
-    }
-    // A list with all the payload types with name |codec|. The payload types are integers in the
-    // range 96-127, but they are stored as strings here.
-    final List<String> codecPayloadTypes = new ArrayList<>();
-    // a=rtpmap:<payload type> <encoding name>/<clock rate> [/<encoding parameters>]
-    final Pattern codecPattern = Pattern.compile("^a=rtpmap:(\\d+) " + codec + "(/\\d+)+[\r]?$");
-    for (String line : lines) {
-      Matcher codecMatcher = codecPattern.matcher(line);
-      if (codecMatcher.matches()) {
-        codecPayloadTypes.add(codecMatcher.group(1));
+  private void reportError(final String errorMessage) {
+    Log.e(TAG, "Peerconnection error: " + errorMessage);
+    executor.execute(() -> {
+      if (!isError) {
+        events.onPeerConnectionError(errorMessage);
+        isError = true;
       }
-    }
-    if (codecPayloadTypes.isEmpty()) {
-      Log.w(TAG, "No payload types with name " + codec);
-      return sdpDescription;
-    }
+    });
+  }
 
-    final String newMLine = movePayloadTypesToFront(codecPayloadTypes, lines[mLineIndex]);
-    if (newMLine == null) {
-      return sdpDescription;
-    }
-    Log.d(TAG, "Change media description from: " + lines[mLineIndex] + " to " + newMLine);
-    lines[mLineIndex] = newMLine;
-    return joinString(Arrays.asList(lines), "\r\n", true /* delimiterAtEnd */);
+  private AudioTrack createAudioTrack() {
+    audioSource = factory.createAudioSource(audioConstraints);
+    localAudioTrack = factory.createAudioTrack(AUDIO_TRACK_ID, audioSource);
+    localAudioTrack.setEnabled(enableAudio);
+    return localAudioTrack;
   }
 
-  private void drainCandidates() {
-    if (queuedRemoteCandidates != null) {
-      Log.d(TAG, "Add " + queuedRemoteCandidates.size() + " remote candidates");
-      for (IceCandidate candidate : queuedRemoteCandidates) {
-        peerConnection.addIceCandidate(candidate);
-      }
-      queuedRemoteCandidates = null;
-    }
+  private VideoTrack createVideoTrack(VideoCapturer capturer) {
+    videoSource = factory.createVideoSource(capturer);
+    capturer.startCapture(videoWidth, videoHeight, videoFps);
+
+    localVideoTrack = factory.createVideoTrack(VIDEO_TRACK_ID, videoSource);
+    localVideoTrack.setEnabled(renderVideo);
+    localVideoTrack.addSink(localRender);
+    return localVideoTrack;
   }
 
   public void switchCamera() {
@@ -1098,186 +1111,665 @@ public class PeerConnectionClient {
     videoSource.adaptOutputFormat(width, height, framerate);
   }
 
-  // Implementation detail: observe ICE & stream changes and react accordingly.
-  private class PCObserver implements PeerConnection.Observer {
-    @Override
-    public void onIceCandidate(final IceCandidate candidate) {
-      executor.execute(() -> events.onIceCandidate(candidate));
+  /**
+   * One remote peer of the call. Calls and PeerConnectionEvents callbacks of a
+   * peer run on its own lanes, so peers negotiate and report independently of
+   * each other while sharing the factory and local media.
+   */
+  public class Peer {
+    private final String id;
+    private final List<VideoRenderer.Callbacks> remoteRenders;
+    private final SignalingParameters signalingParameters;
+    private final PeerConnectionEvents events;
+    private final PeerConnectionStats stats;
+    // Lanes of this peer. Suspended until the peer connection is created so
+    // that calls made right after createPeer() are kept in order, and again
+    // once it is closed.
+    // Offer/answer, ICE candidates, observer callbacks and events.
+    private final SerialExecutor negotiationExecutor =
+        new SerialExecutor(peerThreadPool, queueWaitStats, LANE_NEGOTIATION);
+    // Video sender parameters.
+    private final SerialExecutor controlExecutor =
+        new SerialExecutor(peerThreadPool, queueWaitStats, LANE_CONTROL);
+    // Stats polling and updates, and the bitrate controller they feed.
+    private final SerialExecutor statsExecutor =
+        new SerialExecutor(peerThreadPool, queueWaitStats, LANE_STATS);
+    // Data channel sends.
+    private final SerialExecutor dataExecutor =
+        new SerialExecutor(peerThreadPool, queueWaitStats, LANE_DATA);
+    private final PCObserver pcObserver = new PCObserver();
+    private final SDPObserver sdpObserver = new SDPObserver();
+    // Used on all lanes. Only set while the lanes are suspended.
+    private PeerConnection peerConnection;
+    private RtpSender localVideoSender;
+    // Send limits requested for the video, accessed on the control lane. The
+    // total bitrate is null when unlimited, and so are layer bitrates with
+    // the default limit.
+    private Integer videoMaxBitrateKbps;
+    private final boolean[] simulcastLayerActive = new boolean[MAX_SIMULCAST_LAYERS];
+    private final Integer[] simulcastLayerMaxBitrateKbps = new Integer[MAX_SIMULCAST_LAYERS];
+    // Queued remote ICE candidates are consumed only after both local and
+    // remote descriptions are set. Similarly local ICE candidates are sent to
+    // remote peer after both local and remote description are set.
+    private List<IceCandidate> queuedRemoteCandidates;
+    private boolean isInitiator;
+    private SessionDescription localSdp; // either offer or answer SDP
+    private VideoTrack remoteVideoTrack;
+    // Set while the lanes are suspended, null if data channels are disabled.
+    private volatile DataChannelClient dataChannel;
+    // Accessed on the stats lane.
+    private ScheduledFuture<?> statsFuture;
+    private BitrateController bitrateController;
+    private AudioOnlyFallback audioOnlyFallback;
+    // Set on the negotiation lane, read on all lanes.
+    private volatile boolean isError;
+
+    private Peer(String id, List<VideoRenderer.Callbacks> remoteRenders,
+        SignalingParameters signalingParameters, PeerConnectionEvents events,
+        PeerConnectionStats stats) {
+      this.id = id;
+      this.remoteRenders = remoteRenders;
+      this.signalingParameters = signalingParameters;
+      this.events = events;
+      this.stats = stats;
+      Arrays.fill(simulcastLayerActive, true);
+      negotiationExecutor.suspend();
+      controlExecutor.suspend();
+      statsExecutor.suspend();
+      dataExecutor.suspend();
+    }
+
+    public String getId() {
+      return id;
     }
 
-    @Override
-    public void onIceCandidatesRemoved(final IceCandidate[] candidates) {
-      executor.execute(() -> events.onIceCandidatesRemoved(candidates));
+    public PeerConnectionStats getStats() {
+      return stats;
     }
 
-    @Override
-    public void onSignalingChange(PeerConnection.SignalingState newState) {
-      Log.d(TAG, "SignalingState: " + newState);
+    /**
+     * Returns the data channel of this peer, or null if data channels are
+     * disabled or the peer connection is not created yet.
+     */
+    public DataChannelClient getDataChannel() {
+      return dataChannel;
+    }
+
+    // Returns true if this peer or the shared factory failed.
+    private boolean isFailed() {
+      return peerConnection == null || isError || PeerConnectionClient.this.isError;
+    }
+
+    private void resumeLanes() {
+      negotiationExecutor.resume();
+      controlExecutor.resume();
+      statsExecutor.resume();
+      dataExecutor.resume();
+    }
+
+    // Runs closeInternal() on the negotiation lane once the tasks queued on
+    // the other lanes ran, then |onClosed|. The other lanes stay suspended so
+    // that they never use the disposed peer connection.
+    private void closeLanes(final Runnable onClosed) {
+      final SerialExecutor[] lanes = {controlExecutor, statsExecutor, dataExecutor};
+      final AtomicInteger remainingLanes = new AtomicInteger(lanes.length);
+      for (final SerialExecutor lane : lanes) {
+        lane.execute(() -> {
+          lane.suspend();
+          if (remainingLanes.decrementAndGet() == 0) {
+            negotiationExecutor.execute(() -> {
+              closeInternal();
+              onClosed.run();
+            });
+          }
+        });
+      }
+    }
+
+    // Called on the executor thread; the lanes are still suspended.
+    private void createPeerConnectionInternal() {
+      Log.d(TAG, "Create peer connection " + id + ".");
+
+      queuedRemoteCandidates = new ArrayList<>();
+
+      PeerConnection.RTCConfiguration rtcConfig =
+          new PeerConnection.RTCConfiguration(signalingParameters.iceServers);
+      // TCP candidates are only useful when connecting to a server that supports
+      // ICE-TCP.
+      rtcConfig.tcpCandidatePolicy = PeerConnection.TcpCandidatePolicy.DISABLED;
+      rtcConfig.bundlePolicy = PeerConnection.BundlePolicy.MAXBUNDLE;
+      rtcConfig.rtcpMuxPolicy = PeerConnection.RtcpMuxPolicy.REQUIRE;
+      rtcConfig.continualGatheringPolicy =
+          PeerConnection.ContinualGatheringPolicy.GATHER_CONTINUALLY;
+      // Use ECDSA encryption.
+      rtcConfig.keyType = PeerConnection.KeyType.ECDSA;
+      // Enable DTLS for normal calls and disable for loopback calls.
+      rtcConfig.enableDtlsSrtp = !peerConnectionParameters.loopback;
+
+      peerConnection = factory.createPeerConnection(rtcConfig, pcObserver);
+
+      if (dataChannelEnabled) {
+        DataChannel.Init init = new DataChannel.Init();
+        init.ordered = peerConnectionParameters.dataChannelParameters.ordered;
+        init.negotiated = peerConnectionParameters.dataChannelParameters.negotiated;
+        init.maxRetransmits = peerConnectionParameters.dataChannelParameters.maxRetransmits;
+        init.maxRetransmitTimeMs =
+            peerConnectionParameters.dataChannelParameters.maxRetransmitTimeMs;
+        init.id = peerConnectionParameters.dataChannelParameters.id;
+        init.protocol = peerConnectionParameters.dataChannelParameters.protocol;
+        dataChannel = new DataChannelClient(
+            peerConnection.createDataChannel("ApprtcDemo data", init), init.ordered, dataExecutor);
+      }
+      isInitiator = false;
+
+      peerConnection.addStream(mediaStream);
+      if (videoCallEnabled) {
+        findVideoSender();
+      }
+      Log.d(TAG, "Peer connection " + id + " created.");
+    }
+
+    // Called on the negotiation lane with the other lanes stopped.
+    private void closeInternal() {
+      Log.d(TAG, "Closing peer connection " + id + ".");
+      cancelStatsEvents();
+      disableAdaptiveBitrateInternal();
+      disableAudioOnlyFallbackInternal(false /* resumeVideo */);
+      if (dataChannel != null) {
+        dataChannel.close();
+        dataChannel = null;
+      }
+      if (peerConnection != null) {
+        // The local stream is shared and disposed by the client, detach it
+        // so that dispose() does not release it.
+        peerConnection.removeStream(mediaStream);
+        peerConnection.dispose();
+        peerConnection = null;
+      }
+      remoteVideoTrack = null;
+      localVideoSender = null;
     }
 
-    @Override
-    public void onIceConnectionChange(final PeerConnection.IceConnectionState newState) {
+    /**
+     * Closes this peer connection only. The default peer is closed with
+     * PeerConnectionClient.close().
+     */
+    public void close() {
       executor.execute(() -> {
-        Log.d(TAG, "IceConnectionState: " + newState);
-        if (newState == IceConnectionState.CONNECTED) {
-          events.onIceConnected();
-        } else if (newState == IceConnectionState.DISCONNECTED) {
-          events.onIceDisconnected();
-        } else if (newState == IceConnectionState.FAILED) {
-          reportError("ICE connection failed.");
+        if (this == defaultPeer || !peers.remove(this)) {
+          return;
         }
+        closeLanes(events::onPeerConnectionClosed);
       });
     }
 
-    @Override
-    public void onIceGatheringChange(PeerConnection.IceGatheringState newState) {
-      Log.d(TAG, "IceGatheringState: " + newState);
+    @SuppressWarnings("deprecation") // TODO(sakal): getStats is deprecated.
+    private void pollStats() {
+      if (isFailed()) {
+        return;
+      }
+      boolean success = peerConnection.getStats(new StatsObserver() {
+        @Override
+        public void onComplete(final StatsReport[] reports) {
+          final long timeMs = SystemClock.elapsedRealtime();
+          statsExecutor.execute(() -> stats.update(reports, timeMs));
+        }
+      }, null);
+      if (!success) {
+        Log.e(TAG, "getStats() returns false!");
+      }
     }
 
-    @Override
-    public void onIceConnectionReceivingChange(boolean receiving) {
-      Log.d(TAG, "IceConnectionReceiving changed to " + receiving);
+    public void enableStatsEvents(final boolean enable, final int periodMs) {
+      statsExecutor.execute(() -> {
+        cancelStatsEvents();
+        if (enable) {
+          statsFuture = statsTimer.scheduleAtFixedRate(
+              () -> statsExecutor.execute(this::pollStats), 0, periodMs, TimeUnit.MILLISECONDS);
+        }
+      });
     }
 
-    @Override
-    public void onAddStream(final MediaStream stream) {
-      executor.execute(() -> {
-        if (peerConnection == null || isError) {
-          return;
+    private void cancelStatsEvents() {
+      if (statsFuture != null) {
+        statsFuture.cancel(false);
+        statsFuture = null;
+      }
+    }
+
+    public void createOffer() {
+      negotiationExecutor.execute(() -> {
+        if (!isFailed()) {
+          isInitiator = true;
+          peerConnection.createOffer(sdpObserver, sdpMediaConstraints);
         }
-        if (stream.audioTracks.size() > 1 || stream.videoTracks.size() > 1) {
-          reportError("Weird-looking stream: " + stream);
-          return;
+      });
+    }
+
+    public void createAnswer() {
+      negotiationExecutor.execute(() -> {
+        if (!isFailed()) {
+          isInitiator = false;
+          peerConnection.createAnswer(sdpObserver, sdpMediaConstraints);
         }
-        if (stream.videoTracks.size() == 1) {
-          remoteVideoTrack = stream.videoTracks.get(0);
-          remoteVideoTrack.setEnabled(renderVideo);
-          for (VideoRenderer.Callbacks remoteRender : remoteRenders) {
-            remoteVideoTrack.addRenderer(new VideoRenderer(remoteRender));
+      });
+    }
+
+    public void addRemoteIceCandidate(final IceCandidate candidate) {
+      negotiationExecutor.execute(() -> {
+        if (!isFailed()) {
+          if (queuedRemoteCandidates != null) {
+            queuedRemoteCandidates.add(candidate);
+          } else {
+            peerConnection.addIceCandidate(candidate);
           }
         }
       });
     }
 
-    @Override
-    public void onRemoveStream(final MediaStream stream) {
-      executor.execute(() -> remoteVideoTrack = null);
+    public void removeRemoteIceCandidates(final IceCandidate[] candidates) {
+      negotiationExecutor.execute(() -> {
+        if (isFailed()) {
+          return;
+        }
+        // Drain the queued remote candidates if there is any so that
+        // they are processed in the proper order.
+        drainCandidates();
+        peerConnection.removeIceCandidates(candidates);
+      });
     }
 
-    @Override
-    public void onDataChannel(final DataChannel dc) {
-      Log.d(TAG, "New Data channel " + dc.label());
+    public void setRemoteDescription(final SessionDescription sdp) {
+      negotiationExecutor.execute(() -> {
+        if (isFailed()) {
+          return;
+        }
+        SdpRewriter sdpRewriter = SdpRewriter.parse(sdp.description);
+        if (preferIsac) {
+          sdpRewriter.preferCodec(AUDIO_CODEC_ISAC, true);
+        }
+        if (videoCallEnabled) {
+          sdpRewriter.preferCodec(preferredVideoCodec, false);
+        }
+        if (peerConnectionParameters.audioStartBitrate > 0) {
+          sdpRewriter.setStartBitrate(
+              AUDIO_CODEC_OPUS, false, peerConnectionParameters.audioStartBitrate);
+        }
+        String sdpDescription = sdpRewriter.toString();
+        Log.d(TAG, "Set remote SDP.");
+        SessionDescription sdpRemote = new SessionDescription(sdp.type, sdpDescription);
+        peerConnection.setRemoteDescription(sdpObserver, sdpRemote);
+      });
+    }
 
-      if (!dataChannelEnabled)
-        return;
+    public void setVideoMaxBitrate(final Integer maxBitrateKbps) {
+      controlExecutor.execute(() -> setVideoMaxBitrateInternal(maxBitrateKbps));
+    }
 
-      dc.registerObserver(new DataChannel.Observer() {
-        @Override
-        public void onBufferedAmountChange(long previousAmount) {
-          Log.d(TAG, "Data channel buffered amount changed: " + dc.label() + ": " + dc.state());
+    public void enableAdaptiveBitrate(final int minBitrateKbps, final int maxBitrateKbps,
+        final BitrateController.Policy policy) {
+      statsExecutor.execute(() -> {
+        if (!videoCallEnabled || isFailed()) {
+          Log.e(TAG, "Failed to enable adaptive bitrate. Video: " + videoCallEnabled);
+          return;
         }
+        disableAdaptiveBitrateInternal();
+        Log.d(TAG, "Enable adaptive bitrate: " + minBitrateKbps + " - " + maxBitrateKbps + " kbps");
+        bitrateController = new BitrateController(policy, new BitrateController.Actuator() {
+          @Override
+          public void setVideoMaxBitrate(final int maxBitrateKbps) {
+            controlExecutor.execute(() -> setVideoMaxBitrateInternal(maxBitrateKbps));
+          }
 
-        @Override
-        public void onStateChange() {
-          Log.d(TAG, "Data channel state changed: " + dc.label() + ": " + dc.state());
+          @Override
+          public void changeCaptureFormat(int width, int height, int fps) {
+            // The capturer is shared by all peers.
+            PeerConnectionClient.this.changeCaptureFormat(width, height, fps);
+          }
+        }, minBitrateKbps, maxBitrateKbps,
+            BitrateController.formatLadder(videoWidth, videoHeight, videoFps));
+        stats.subscribeToUpdates(BitrateController.STATS_METRICS, bitrateController);
+      });
+    }
+
+    public void disableAdaptiveBitrate() {
+      statsExecutor.execute(this::disableAdaptiveBitrateInternal);
+    }
+
+    public void enableAudioOnlyFallback(final int suspendBelowKbps, final int resumeAboveKbps) {
+      statsExecutor.execute(() -> {
+        if (!videoCallEnabled || isFailed()) {
+          Log.e(TAG, "Failed to enable audio-only fallback. Video: " + videoCallEnabled);
+          return;
         }
+        disableAudioOnlyFallbackInternal(true /* resumeVideo */);
+        Log.d(TAG, "Enable audio-only fallback: " + suspendBelowKbps + " - " + resumeAboveKbps
+                + " kbps");
+        audioOnlyFallback = new AudioOnlyFallback(
+            PeerConnectionClient.this::setVideoSuspended, suspendBelowKbps, resumeAboveKbps);
+        stats.subscribeToUpdates(AudioOnlyFallback.STATS_METRICS, audioOnlyFallback);
+      });
+    }
 
-        @Override
-        public void onMessage(final DataChannel.Buffer buffer) {
-          if (buffer.binary) {
-            Log.d(TAG, "Received binary msg over " + dc);
-            return;
-          }
-          ByteBuffer data = buffer.data;
-          final byte[] bytes = new byte[data.capacity()];
-          data.get(bytes);
-          String strData = new String(bytes, Charset.forName("UTF-8"));
-          Log.d(TAG, "Got msg: " + strData + " over " + dc);
+    public void disableAudioOnlyFallback() {
+      statsExecutor.execute(() -> disableAudioOnlyFallbackInternal(true /* resumeVideo */));
+    }
+
+    private void disableAudioOnlyFallbackInternal(boolean resumeVideo) {
+      if (audioOnlyFallback != null) {
+        stats.unsubscribe(audioOnlyFallback);
+        if (resumeVideo && audioOnlyFallback.isVideoSuspended()) {
+          setVideoSuspended(false);
         }
+        audioOnlyFallback = null;
+      }
+    }
+
+    /**
+     * Pauses or resumes sending simulcast layer |layer|, e.g. when no
+     * receiver needs it. Pausing a layer also stops encoding it.
+     */
+    public void setSimulcastLayerActive(final int layer, final boolean active) {
+      checkSimulcastLayer(layer);
+      controlExecutor.execute(() -> {
+        simulcastLayerActive[layer] = active;
+        applyVideoEncodings();
       });
     }
 
-    @Override
-    public void onRenegotiationNeeded() {
-      // No need to do anything; AppRTC follows a pre-agreed-upon
-      // signaling/negotiation protocol.
+    /**
+     * Caps the bitrate of simulcast layer |layer|. Null restores the default
+     * limit of the layer.
+     */
+    public void setSimulcastLayerMaxBitrate(final int layer, final Integer maxBitrateKbps) {
+      checkSimulcastLayer(layer);
+      controlExecutor.execute(() -> {
+        simulcastLayerMaxBitrateKbps[layer] = maxBitrateKbps;
+        applyVideoEncodings();
+      });
     }
 
-    @Override
-    public void onAddTrack(final RtpReceiver receiver, final MediaStream[] mediaStreams) {}
-  }
+    // Layers are checked against the configured layer count, as the encodings
+    // of the sender are only known once the description is applied.
+    private void checkSimulcastLayer(int layer) {
+      final int layerCount = simulcastLayers;
+      if (layer < 0 || layer >= layerCount) {
+        throw new IllegalArgumentException(
+            "Invalid simulcast layer: " + layer + ", " + layerCount + " layers configured");
+      }
+    }
 
-  // Implementation detail: handle offer creation/signaling and answer setting,
-  // as well as adding remote ICE candidates once the answer SDP is set.
-  private class SDPObserver implements SdpObserver {
-    @Override
-    public void onCreateSuccess(final SessionDescription origSdp) {
-      if (localSdp != null) {
-        reportError("Multiple SDP create.");
-        return;
+    private void disableAdaptiveBitrateInternal() {
+      if (bitrateController != null) {
+        stats.unsubscribe(bitrateController);
+        bitrateController = null;
       }
-      String sdpDescription = origSdp.description;
-      if (preferIsac) {
-        sdpDescription = preferCodec(sdpDescription, AUDIO_CODEC_ISAC, true);
+    }
+
+    private void setVideoMaxBitrateInternal(Integer maxBitrateKbps) {
+      Log.d(TAG, "Requested max video bitrate: " + maxBitrateKbps);
+      videoMaxBitrateKbps = maxBitrateKbps;
+      if (applyVideoEncodings()) {
+        Log.d(TAG, "Configured max video bitrate to: " + maxBitrateKbps);
       }
-      if (videoCallEnabled) {
-        sdpDescription = preferCodec(sdpDescription, preferredVideoCodec, false);
+    }
+
+    // Applies the requested limits to the video encodings. With simulcast,
+    // the total bitrate is shared from the lowest layer up, and layers that
+    // do not get their minimum bitrate are paused.
+    private boolean applyVideoEncodings() {
+      if (isFailed() || localVideoSender == null) {
+        return false;
       }
-      final SessionDescription sdp = new SessionDescription(origSdp.type, sdpDescription);
-      localSdp = sdp;
-      executor.execute(() -> {
-        if (peerConnection != null && !isError) {
-          Log.d(TAG, "Set local SDP from " + sdp.type);
-          peerConnection.setLocalDescription(sdpObserver, sdp);
+      RtpParameters parameters = localVideoSender.getParameters();
+      final int layerCount = parameters.encodings.size();
+      if (layerCount == 0) {
+        Log.w(TAG, "RtpParameters are not ready.");
+        return false;
+      }
+      if (layerCount == 1) {
+        if (simulcastLayers > 1) {
+          Log.w(TAG, "Sender reports one encoding for " + simulcastLayers
+                  + " simulcast layers, layer limits are not applied.");
+        }
+        // Null value means no limit.
+        parameters.encodings.get(0).maxBitrateBps =
+            videoMaxBitrateKbps == null ? null : videoMaxBitrateKbps * BPS_IN_KBPS;
+      } else {
+        Integer remainingKbps = videoMaxBitrateKbps;
+        final StringBuilder layers = new StringBuilder();
+        for (int i = 0; i < Math.min(layerCount, MAX_SIMULCAST_LAYERS); i++) {
+          final RtpParameters.Encoding encoding = parameters.encodings.get(i);
+          final int tableIndex = Math.max(0, MAX_SIMULCAST_LAYERS - layerCount) + i;
+          boolean active = simulcastLayerActive[i];
+          Integer layerKbps = simulcastLayerMaxBitrateKbps[i];
+          if (remainingKbps != null) {
+            if (layerKbps == null) {
+              layerKbps = SIMULCAST_LAYER_MAX_BITRATES_KBPS[tableIndex];
+            }
+            layerKbps = Math.min(layerKbps, remainingKbps);
+            if (layerKbps < SIMULCAST_LAYER_MIN_BITRATES_KBPS[tableIndex]) {
+              active = false;
+            } else if (active) {
+              remainingKbps -= layerKbps;
+            }
+          }
+          encoding.active = active;
+          encoding.maxBitrateBps = layerKbps == null ? null : layerKbps * BPS_IN_KBPS;
+          layers.append(i == 0 ? "" : ", ").append(active ? layerKbps : "off");
+        }
+        Log.d(TAG, "Simulcast layers: " + layers);
+      }
+      if (!localVideoSender.setParameters(parameters)) {
+        Log.e(TAG, "RtpSender.setParameters failed.");
+        return false;
+      }
+      return true;
+    }
+
+    private void reportError(final String errorMessage) {
+      Log.e(TAG, "Peerconnection " + id + " error: " + errorMessage);
+      negotiationExecutor.execute(() -> {
+        if (!isError) {
+          events.onPeerConnectionError(errorMessage);
+          isError = true;
         }
       });
     }
 
-    @Override
-    public void onSetSuccess() {
-      executor.execute(() -> {
-        if (peerConnection == null || isError) {
-          return;
+    private void findVideoSender() {
+      for (RtpSender sender : peerConnection.getSenders()) {
+        if (sender.track() != null) {
+          String trackType = sender.track().kind();
+          if (trackType.equals(VIDEO_TRACK_TYPE)) {
+            Log.d(TAG, "Found video sender.");
+            localVideoSender = sender;
+          }
         }
-        if (isInitiator) {
-          // For offering peer connection we first create offer and set
-          // local SDP, then after receiving answer set remote SDP.
-          if (peerConnection.getRemoteDescription() == null) {
-            // We've just set our local SDP so time to send it.
-            Log.d(TAG, "Local SDP set succesfully");
-            events.onLocalDescription(localSdp);
-          } else {
-            // We've just set remote description, so drain remote
-            // and send local ICE candidates.
-            Log.d(TAG, "Remote SDP set succesfully");
-            drainCandidates();
+      }
+    }
+
+    private void drainCandidates() {
+      if (queuedRemoteCandidates != null) {
+        Log.d(TAG, "Add " + queuedRemoteCandidates.size() + " remote candidates");
+        for (IceCandidate candidate : queuedRemoteCandidates) {
+          peerConnection.addIceCandidate(candidate);
+        }
+        queuedRemoteCandidates = null;
+      }
+    }
+
+    // Implementation detail: observe ICE & stream changes and react accordingly.
+    private class PCObserver implements PeerConnection.Observer {
+      @Override
+      public void onIceCandidate(final IceCandidate candidate) {
+        negotiationExecutor.execute(() -> events.onIceCandidate(candidate));
+      }
+
+      @Override
+      public void onIceCandidatesRemoved(final IceCandidate[] candidates) {
+        negotiationExecutor.execute(() -> events.onIceCandidatesRemoved(candidates));
+      }
+
+      @Override
+      public void onSignalingChange(PeerConnection.SignalingState newState) {
+        Log.d(TAG, "SignalingState: " + newState);
+      }
+
+      @Override
+      public void onIceConnectionChange(final PeerConnection.IceConnectionState newState) {
+        negotiationExecutor.execute(() -> {
+          Log.d(TAG, "IceConnectionState " + id + ": " + newState);
+          if (newState == IceConnectionState.CONNECTED) {
+            events.onIceConnected();
+          } else if (newState == IceConnectionState.DISCONNECTED) {
+            events.onIceDisconnected();
+          } else if (newState == IceConnectionState.FAILED) {
+            reportError("ICE connection failed.");
+          }
+        });
+      }
+
+      @Override
+      public void onIceGatheringChange(PeerConnection.IceGatheringState newState) {
+        Log.d(TAG, "IceGatheringState: " + newState);
+      }
+
+      @Override
+      public void onIceConnectionReceivingChange(boolean receiving) {
+        Log.d(TAG, "IceConnectionReceiving changed to " + receiving);
+      }
+
+      @Override
+      public void onAddStream(final MediaStream stream) {
+        negotiationExecutor.execute(() -> {
+          if (isFailed()) {
+            return;
+          }
+          if (stream.audioTracks.size() > 1 || stream.videoTracks.size() > 1) {
+            reportError("Weird-looking stream: " + stream);
+            return;
+          }
+          if (stream.videoTracks.size() == 1) {
+            remoteVideoTrack = stream.videoTracks.get(0);
+            remoteVideoTrack.setEnabled(renderVideo);
+            for (VideoRenderer.Callbacks remoteRender : remoteRenders) {
+              remoteVideoTrack.addRenderer(new VideoRenderer(remoteRender));
+            }
           }
-        } else {
-          // For answering peer connection we set remote SDP and then
-          // create answer and set local SDP.
-          if (peerConnection.getLocalDescription() != null) {
-            // We've just set our local SDP so time to send it, drain
-            // remote and send local ICE candidates.
-            Log.d(TAG, "Local SDP set succesfully");
-            events.onLocalDescription(localSdp);
-            drainCandidates();
+        });
+      }
+
+      @Override
+      public void onRemoveStream(final MediaStream stream) {
+        negotiationExecutor.execute(() -> remoteVideoTrack = null);
+      }
+
+      @Override
+      public void onDataChannel(final DataChannel dc) {
+        Log.d(TAG, "New Data channel " + dc.label());
+
+        if (!dataChannelEnabled)
+          return;
+
+        negotiationExecutor.execute(() -> {
+          if (dataChannel != null) {
+            dataChannel.addRemoteChannel(dc);
           } else {
-            // We've just set remote SDP - do nothing for now -
-            // answer will be created soon.
-            Log.d(TAG, "Remote SDP set succesfully");
+            dc.dispose();
           }
-        }
-      });
-    }
+        });
+      }
 
-    @Override
-    public void onCreateFailure(final String error) {
-      reportError("createSDP error: " + error);
+      @Override
+      public void onRenegotiationNeeded() {
+        // No need to do anything; AppRTC follows a pre-agreed-upon
+        // signaling/negotiation protocol.
+      }
+
+      @Override
+      public void onAddTrack(final RtpReceiver receiver, final MediaStream[] mediaStreams) {}
     }
 
-    @Override
-    public void onSetFailure(final String error) {
-      reportError("setSDP error: " + error);
+    // Implementation detail: handle offer creation/signaling and answer setting,
+    // as well as adding remote ICE candidates once the answer SDP is set.
+    private class SDPObserver implements SdpObserver {
+      @Override
+      public void onCreateSuccess(final SessionDescription origSdp) {
+        if (localSdp != null) {
+          reportError("Multiple SDP create.");
+          return;
+        }
+        SdpRewriter sdpRewriter = SdpRewriter.parse(origSdp.description);
+        if (preferIsac) {
+          sdpRewriter.preferCodec(AUDIO_CODEC_ISAC, true);
+        }
+        if (videoCallEnabled) {
+          sdpRewriter.preferCodec(preferredVideoCodec, false);
+          if (simulcastLayers > 1) {
+            if (VIDEO_CODEC_VP8.equals(preferredVideoCodec)) {
+              sdpRewriter.addSimulcast(simulcastLayers);
+            } else {
+              Log.w(TAG, "Simulcast is not supported with " + preferredVideoCodec);
+            }
+          }
+        }
+        final SessionDescription sdp = new SessionDescription(origSdp.type, sdpRewriter.toString());
+        localSdp = sdp;
+        negotiationExecutor.execute(() -> {
+          if (!isFailed()) {
+            Log.d(TAG, "Set local SDP from " + sdp.type);
+            peerConnection.setLocalDescription(sdpObserver, sdp);
+          }
+        });
+      }
+
+      @Override
+      public void onSetSuccess() {
+        negotiationExecutor.execute(() -> {
+          if (isFailed()) {
+            return;
+          }
+          if (isInitiator) {
+            // For offering peer connection we first create offer and set
+            // local SDP, then after receiving answer set remote SDP.
+            if (peerConnection.getRemoteDescription() == null) {
+              // We've just set our local SDP so time to send it.
+              Log.d(TAG, "Local SDP set succesfully");
+              events.onLocalDescription(localSdp);
+            } else {
+              // We've just set remote description, so drain remote
+              // and send local ICE candidates.
+              Log.d(TAG, "Remote SDP set succesfully");
+              drainCandidates();
+            }
+          } else {
+            // For answering peer connection we set remote SDP and then
+            // create answer and set local SDP.
+            if (peerConnection.getLocalDescription() != null) {
+              // We've just set our local SDP so time to send it, drain
+              // remote and send local ICE candidates.
+              Log.d(TAG, "Local SDP set succesfully");
+              events.onLocalDescription(localSdp);
+              drainCandidates();
+            } else {
+              // We've just set remote SDP - do nothing for now -
+              // answer will be created soon.
+              Log.d(TAG, "Remote SDP set succesfully");
+            }
+          }
+        });
+      }
+
+      @Override
+      public void onCreateFailure(final String error) {
+        reportError("createSDP error: " + error);
+      }
+
+      @Override
+      public void onSetFailure(final String error) {
+        reportError("setSDP error: " + error);
+      }
     }
   }
 }
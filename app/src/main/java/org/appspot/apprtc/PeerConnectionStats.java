@@ -0,0 +1,353 @@
+/*
+ *  Copyright 2014 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import org.webrtc.StatsReport;
+
+/**
+ * Compact view of the peer connection statistics.
+ *
+ * <p>Each polled StatsReport[] is reduced to a fixed set of integer metrics
+ * addressed by the constants below. A metric is only available while the
+ * latest reports have it, e.g. the RTT is gone once no candidate pair is
+ * active. Listeners subscribe to a mask of metrics and are only notified when
+ * at least one of them changed, or became unavailable, with the mask of the
+ * metrics that did. Listeners that act on elapsed time, like the bitrate
+ * controllers, can instead be notified of every update that reported one of
+ * their metrics with subscribeToUpdates(). Updates and notifications run on
+ * the stats lane of the peer the stats belong to; values should be read from
+ * within a listener.
+ */
+public class PeerConnectionStats {
+  /** Estimated available send bandwidth, bps. */
+  public static final int AVAILABLE_SEND_BANDWIDTH = 0;
+  /** Estimated available receive bandwidth, bps. */
+  public static final int AVAILABLE_RECEIVE_BANDWIDTH = 1;
+  /** Bitrate produced by the video encoder, bps. */
+  public static final int VIDEO_ENCODE_BITRATE = 2;
+  /** Total bitrate sent including retransmissions and FEC, bps. */
+  public static final int TRANSMIT_BITRATE = 3;
+  /** Round trip time of the active candidate pair, ms. */
+  public static final int RTT_MS = 4;
+  /** Frame rate of the sent video, fps. */
+  public static final int VIDEO_SEND_FPS = 5;
+  /** Frame rate of the received video, fps. */
+  public static final int VIDEO_RECEIVE_FPS = 6;
+  /** Width of the sent video, pixels. */
+  public static final int VIDEO_SEND_WIDTH = 7;
+  /** Height of the sent video, pixels. */
+  public static final int VIDEO_SEND_HEIGHT = 8;
+  /** Sent video packets lost since the previous report, percent. */
+  public static final int VIDEO_SEND_LOSS_PERCENT = 9;
+  /** Received video packets lost since the previous report, percent. */
+  public static final int VIDEO_RECEIVE_LOSS_PERCENT = 10;
+  /** Received audio packets lost since the previous report, percent. */
+  public static final int AUDIO_RECEIVE_LOSS_PERCENT = 11;
+  public static final int METRIC_COUNT = 12;
+
+  public static final int ALL_METRICS = (1 << METRIC_COUNT) - 1;
+
+  /**
+   * Listener for metric changes. |changedMetrics| is the mask of subscribed
+   * metrics whose values changed since the previous update, or which the
+   * update did not report anymore, and may be 0 for listeners subscribed
+   * with subscribeToUpdates().
+   */
+  public interface Listener {
+    void onStatsChanged(PeerConnectionStats stats, int changedMetrics);
+  }
+
+  private static class Subscription {
+    final int metrics;
+    final Listener listener;
+    final boolean everyUpdate;
+
+    Subscription(int metrics, Listener listener, boolean everyUpdate) {
+      this.metrics = metrics;
+      this.listener = listener;
+      this.everyUpdate = everyUpdate;
+    }
+  }
+
+  private final CopyOnWriteArrayList<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+  private final long[] values = new long[METRIC_COUNT];
+  private final long[] nextValues = new long[METRIC_COUNT];
+  private int validMetrics;
+  private long updateTimeMs;
+
+  // Cumulative packet counters of the previous report, used for loss rates.
+  // Summed over the reports of each kind, e.g. the simulcast layers.
+  private final PacketCounter videoSendPackets = new PacketCounter();
+  private final PacketCounter videoReceivePackets = new PacketCounter();
+  private final PacketCounter audioReceivePackets = new PacketCounter();
+
+  private static class PacketCounter {
+    long packets;
+    long lost;
+    long previousPackets = -1;
+    long previousLost;
+    boolean updated;
+
+    void reset() {
+      packets = 0;
+      lost = 0;
+      updated = false;
+    }
+
+    void add(long packets, long lost) {
+      this.packets += packets;
+      this.lost += lost;
+      updated = true;
+    }
+
+    // Returns the loss in percent since the previous update, or -1 if unknown.
+    long lossPercent() {
+      if (!updated) {
+        return -1;
+      }
+      updated = false;
+      long result = -1;
+      if (previousPackets >= 0) {
+        long deltaLost = Math.max(0, lost - previousLost);
+        long deltaPackets = Math.max(0, packets - previousPackets) + deltaLost;
+        result = deltaPackets == 0 ? 0 : deltaLost * 100 / deltaPackets;
+      }
+      previousPackets = packets;
+      previousLost = lost;
+      return result;
+    }
+  }
+
+  public static int mask(int metric) {
+    return 1 << metric;
+  }
+
+  /** Subscribes |listener| to the metrics in |metricsMask|. */
+  public void subscribe(int metricsMask, Listener listener) {
+    subscriptions.add(new Subscription(metricsMask, listener, false /* everyUpdate */));
+  }
+
+  /**
+   * Subscribes |listener| to every update that reports one of the metrics in
+   * |metricsMask|, whether their values changed or not.
+   */
+  public void subscribeToUpdates(int metricsMask, Listener listener) {
+    subscriptions.add(new Subscription(metricsMask, listener, true /* everyUpdate */));
+  }
+
+  public void unsubscribe(Listener listener) {
+    for (Subscription subscription : subscriptions) {
+      if (subscription.listener == listener) {
+        subscriptions.remove(subscription);
+      }
+    }
+  }
+
+  /** Returns true if |metric| was present in the latest update. */
+  public boolean has(int metric) {
+    return (validMetrics & mask(metric)) != 0;
+  }
+
+  /**
+   * Returns the value of |metric| in the latest update that had it, or 0 if
+   * it was never reported. Only current if has(metric).
+   */
+  public long get(int metric) {
+    return values[metric];
+  }
+
+  /** Time of the latest update, in the SystemClock.elapsedRealtime() base. */
+  public long getUpdateTimeMs() {
+    return updateTimeMs;
+  }
+
+  // Reduces |reports|, polled at |timeMs|, to metrics and notifies listeners
+  // of the changed ones.
+  void update(StatsReport[] reports, long timeMs) {
+    updateTimeMs = timeMs;
+    videoSendPackets.reset();
+    videoReceivePackets.reset();
+    audioReceivePackets.reset();
+    int reported = 0;
+    for (StatsReport report : reports) {
+      switch (report.type) {
+        case "VideoBwe":
+          reported |= parseBandwidthEstimate(report);
+          break;
+        case "googCandidatePair":
+          reported |= parseCandidatePair(report);
+          break;
+        case "ssrc":
+          reported |= parseSsrc(report, reported);
+          break;
+        default:
+          break;
+      }
+    }
+    reported |= updateLoss(VIDEO_SEND_LOSS_PERCENT, videoSendPackets);
+    reported |= updateLoss(VIDEO_RECEIVE_LOSS_PERCENT, videoReceivePackets);
+    reported |= updateLoss(AUDIO_RECEIVE_LOSS_PERCENT, audioReceivePackets);
+
+    // Metrics not reported anymore changed to unknown.
+    int changed = validMetrics & ~reported;
+    for (int metric = 0; metric < METRIC_COUNT; metric++) {
+      int bit = mask(metric);
+      if ((reported & bit) != 0 && (!has(metric) || values[metric] != nextValues[metric])) {
+        values[metric] = nextValues[metric];
+        changed |= bit;
+      }
+    }
+    validMetrics = reported;
+    for (Subscription subscription : subscriptions) {
+      int subscriptionChanges = subscription.metrics & changed;
+      if (subscriptionChanges != 0
+          || (subscription.everyUpdate && (subscription.metrics & reported) != 0)) {
+        subscription.listener.onStatsChanged(this, subscriptionChanges);
+      }
+    }
+  }
+
+  private int parseBandwidthEstimate(StatsReport report) {
+    int reported = 0;
+    for (StatsReport.Value value : report.values) {
+      switch (value.name) {
+        case "googAvailableSendBandwidth":
+          reported |= set(AVAILABLE_SEND_BANDWIDTH, value.value);
+          break;
+        case "googAvailableReceiveBandwidth":
+          reported |= set(AVAILABLE_RECEIVE_BANDWIDTH, value.value);
+          break;
+        case "googActualEncBitrate":
+          reported |= set(VIDEO_ENCODE_BITRATE, value.value);
+          break;
+        case "googTransmitBitrate":
+          reported |= set(TRANSMIT_BITRATE, value.value);
+          break;
+        default:
+          break;
+      }
+    }
+    return reported;
+  }
+
+  private int parseCandidatePair(StatsReport report) {
+    String rtt = null;
+    boolean active = false;
+    for (StatsReport.Value value : report.values) {
+      if (value.name.equals("googActiveConnection")) {
+        active = value.value.equals("true");
+      } else if (value.name.equals("googRtt")) {
+        rtt = value.value;
+      }
+    }
+    return active && rtt != null ? set(RTT_MS, rtt) : 0;
+  }
+
+  // With simulcast there is one video send report per layer: the send
+  // format metrics are those of the largest layer, and the packet counters
+  // are summed.
+  private int parseSsrc(StatsReport report, int reportedBefore) {
+    final boolean send = report.id.contains("send");
+    String mediaType = null;
+    long packets = -1;
+    long lost = -1;
+    int reported = 0;
+    for (StatsReport.Value value : report.values) {
+      switch (value.name) {
+        case "mediaType":
+          mediaType = value.value;
+          break;
+        case "packetsSent":
+        case "packetsReceived":
+          packets = parseLong(value.value);
+          break;
+        case "packetsLost":
+          lost = parseLong(value.value);
+          break;
+        case "googFrameRateSent":
+          reported |= setMax(VIDEO_SEND_FPS, value.value, reportedBefore);
+          break;
+        case "googFrameRateReceived":
+          reported |= set(VIDEO_RECEIVE_FPS, value.value);
+          break;
+        case "googFrameWidthSent":
+          reported |= setMax(VIDEO_SEND_WIDTH, value.value, reportedBefore);
+          break;
+        case "googFrameHeightSent":
+          reported |= setMax(VIDEO_SEND_HEIGHT, value.value, reportedBefore);
+          break;
+        default:
+          break;
+      }
+    }
+    if (mediaType != null && packets >= 0 && lost >= 0) {
+      PacketCounter counter = null;
+      if (mediaType.equals("video")) {
+        counter = send ? videoSendPackets : videoReceivePackets;
+      } else if (mediaType.equals("audio") && !send) {
+        counter = audioReceivePackets;
+      }
+      if (counter != null) {
+        counter.add(packets, lost);
+      }
+    }
+    return reported;
+  }
+
+  private int updateLoss(int metric, PacketCounter counter) {
+    long lossPercent = counter.lossPercent();
+    if (lossPercent < 0) {
+      return 0;
+    }
+    nextValues[metric] = lossPercent;
+    return mask(metric);
+  }
+
+  private int set(int metric, String value) {
+    long parsed = parseLong(value);
+    if (parsed < 0) {
+      return 0;
+    }
+    nextValues[metric] = parsed;
+    return mask(metric);
+  }
+
+  // Like set(), but keeps the largest value if |metric| is in |reportedBefore|.
+  private int setMax(int metric, String value, int reportedBefore) {
+    long previous = nextValues[metric];
+    int reported = set(metric, value);
+    if (reported != 0 && (reportedBefore & reported) != 0) {
+      nextValues[metric] = Math.max(previous, nextValues[metric]);
+    }
+    return reported;
+  }
+
+  // Parses a non-negative integer or decimal value, returns -1 on failure.
+  private static long parseLong(String value) {
+    long result = 0;
+    int length = value.length();
+    if (length == 0) {
+      return -1;
+    }
+    for (int i = 0; i < length; i++) {
+      char c = value.charAt(i);
+      if (c == '.') {
+        return i == 0 ? -1 : result;
+      }
+      if (c < '0' || c > '9') {
+        return -1;
+      }
+      result = result * 10 + (c - '0');
+    }
+    return result;
+  }
+}
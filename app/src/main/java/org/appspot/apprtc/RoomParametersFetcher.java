@@ -10,20 +10,22 @@
 
 package org.appspot.apprtc;
 
+import android.os.SystemClock;
 import android.util.Log;
 import java.io.IOException;
-import java.io.InputStream;
-import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.ArrayList;
-import java.util.Scanner;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 import org.appspot.apprtc.AppRTCClient.SignalingParameters;
 import org.appspot.apprtc.util.AsyncHttpURLConnection;
 import org.appspot.apprtc.util.AsyncHttpURLConnection.AsyncHttpEvents;
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
+import org.appspot.apprtc.util.HttpRequestExecutor;
 import org.webrtc.IceCandidate;
 import org.webrtc.PeerConnection;
 import org.webrtc.SessionDescription;
@@ -34,10 +36,59 @@ import org.webrtc.SessionDescription;
  */
 public class RoomParametersFetcher {
   private static final String TAG = "RoomRTCClient";
-  private static final int TURN_HTTP_TIMEOUT_MS = 5000;
+  // TURN server request URL last returned by each room server, used to
+  // request TURN servers while the room request is still in flight.
+  private static final Map<String, String> iceServerUrls = new HashMap<>();
   private final RoomParametersFetcherEvents events;
   private final String roomUrl;
   private final String roomMessage;
+  private volatile TurnRequest turnRequest;
+  // Join phase timings, see JoinTimings.
+  private volatile long roomRequestMs = -1;
+  private volatile long roomParseMs = -1;
+  private volatile long turnWaitMs = -1;
+
+  // TURN servers requested from |url| on the HTTP executor.
+  private class TurnRequest {
+    final String url;
+    final FutureTask<List<PeerConnection.IceServer>> task;
+    volatile long durationMs = -1;
+
+    TurnRequest(final String url) {
+      this.url = url;
+      task = new FutureTask<>(() -> {
+        long startTimeMs = SystemClock.elapsedRealtime();
+        try {
+          return IceServerCache.getInstance().getIceServers(url);
+        } finally {
+          durationMs = SystemClock.elapsedRealtime() - startTimeMs;
+        }
+      });
+    }
+
+    void start() {
+      if (!HttpRequestExecutor.getInstance().submit(url, "TURN " + url, task)) {
+        // The executor is saturated, request the servers when they are needed.
+        Log.w(TAG, "TURN request not queued, will request on demand.");
+      }
+    }
+
+    List<PeerConnection.IceServer> get() throws IOException {
+      // Runs the request on this thread if the executor did not pick it up yet.
+      task.run();
+      try {
+        return task.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while requesting TURN servers");
+      } catch (ExecutionException e) {
+        if (e.getCause() instanceof IOException) {
+          throw (IOException) e.getCause();
+        }
+        throw new RuntimeException(e.getCause());
+      }
+    }
+  }
 
   /**
    * Room parameters fetcher callbacks.
@@ -62,68 +113,88 @@ public class RoomParametersFetcher {
   }
 
   public void makeRequest() {
+    // The TURN server URL rarely changes, so request TURN servers from the
+    // previous one in parallel with the room request.
+    String iceServerUrl;
+    synchronized (iceServerUrls) {
+      iceServerUrl = iceServerUrls.get(serverOf(roomUrl));
+    }
+    if (iceServerUrl != null) {
+      Log.d(TAG, "Speculative TURN request to: " + iceServerUrl);
+      turnRequest = new TurnRequest(iceServerUrl);
+      turnRequest.start();
+    }
+
+    final long startTimeMs = SystemClock.elapsedRealtime();
     AsyncHttpURLConnection httpConnection = new AsyncHttpURLConnection("POST", roomUrl, roomMessage, new AsyncHttpEvents() {
       @Override
       public void onHttpError(String errorMessage) {
         Log.e(TAG, "Room connection error: " + errorMessage);
+        cancelTurnRequest();
         events.onSignalingParametersError(errorMessage);
       }
 
       @Override
       public void onHttpComplete(String response) {
+        roomRequestMs = SystemClock.elapsedRealtime() - startTimeMs;
         roomHttpResponseParse(response);
       }
     });
     httpConnection.send();
   }
 
+  public long getRoomRequestMs() {
+    return roomRequestMs;
+  }
+
+  public long getRoomParseMs() {
+    return roomParseMs;
+  }
+
+  public long getTurnRequestMs() {
+    TurnRequest request = turnRequest;
+    return request == null ? -1 : request.durationMs;
+  }
+
+  public long getTurnWaitMs() {
+    return turnWaitMs;
+  }
+
   private void roomHttpResponseParse(String response) {
     Log.d(TAG, "Room response: " + response);
+    long startTimeMs = SystemClock.elapsedRealtime();
     try {
       List<IceCandidate> iceCandidates = null;
       SessionDescription offerSdp = null;
-      JSONObject roomJson = new JSONObject(response);
-
-      String result = roomJson.getString("result");
-      if (!result.equals("SUCCESS")) {
-        events.onSignalingParametersError("Room response error: " + result);
+      // Start the TURN request as soon as its URL is decoded so it runs while
+      // the rest is decoded.
+      SignalingMessageDecoder.RoomResponse room =
+          SignalingMessageDecoder.decodeRoomResponse(response, this::startTurnRequest);
+      if (!room.result.equals("SUCCESS")) {
+        cancelTurnRequest();
+        events.onSignalingParametersError("Room response error: " + room.result);
         return;
       }
-      response = roomJson.getString("params");
-      roomJson = new JSONObject(response);
-      String roomId = roomJson.getString("room_id");
-      String clientId = roomJson.getString("client_id");
-      String wssUrl = roomJson.getString("wss_url");
-      String wssPostUrl = roomJson.getString("wss_post_url");
-      boolean initiator = (roomJson.getBoolean("is_initiator"));
-      if (!initiator) {
+      if (!room.initiator) {
         iceCandidates = new ArrayList<>();
-        String messagesString = roomJson.getString("messages");
-        JSONArray messages = new JSONArray(messagesString);
-        for (int i = 0; i < messages.length(); ++i) {
-          String messageString = messages.getString(i);
-          JSONObject message = new JSONObject(messageString);
-          String messageType = message.getString("type");
-          Log.d(TAG, "GAE->C #" + i + " : " + messageString);
-          if (messageType.equals("offer")) {
-            offerSdp = new SessionDescription(
-                SessionDescription.Type.fromCanonicalForm(messageType), message.getString("sdp"));
-          } else if (messageType.equals("candidate")) {
-            IceCandidate candidate = new IceCandidate(
-                message.getString("id"), message.getInt("label"), message.getString("candidate"));
-            iceCandidates.add(candidate);
+        for (int i = 0; i < room.messages.size(); ++i) {
+          SignalingMessageDecoder.SignalingMessage message = room.messages.get(i);
+          Log.d(TAG, "GAE->C #" + i + " : " + message.typeName);
+          if (message.type == SignalingMessageDecoder.Type.OFFER) {
+            offerSdp = message.sdp;
+          } else if (message.type == SignalingMessageDecoder.Type.CANDIDATE) {
+            Collections.addAll(iceCandidates, message.candidates);
           } else {
-            Log.e(TAG, "Unknown message: " + messageString);
+            Log.e(TAG, "Unknown message: " + message.typeName);
           }
         }
       }
-      Log.d(TAG, "RoomId: " + roomId + ". ClientId: " + clientId);
-      Log.d(TAG, "Initiator: " + initiator);
-      Log.d(TAG, "WSS url: " + wssUrl);
-      Log.d(TAG, "WSS POST url: " + wssPostUrl);
+      Log.d(TAG, "RoomId: " + room.roomId + ". ClientId: " + room.clientId);
+      Log.d(TAG, "Initiator: " + room.initiator);
+      Log.d(TAG, "WSS url: " + room.wssUrl);
+      Log.d(TAG, "WSS POST url: " + room.wssPostUrl);
 
-      List<PeerConnection.IceServer> iceServers =
-          iceServersFromPCConfigJSON(roomJson.getString("pc_config"));
+      List<PeerConnection.IceServer> iceServers = new ArrayList<>(room.iceServers);
       boolean isTurnPresent = false;
       for (PeerConnection.IceServer server : iceServers) {
         Log.d(TAG, "IceServer: " + server);
@@ -134,88 +205,61 @@ public class RoomParametersFetcher {
           }
         }
       }
-      // Request TURN servers.
-      if (!isTurnPresent && !roomJson.optString("ice_server_url").isEmpty()) {
-        List<PeerConnection.IceServer> turnServers =
-            requestTurnServers(roomJson.getString("ice_server_url"));
+      roomParseMs = SystemClock.elapsedRealtime() - startTimeMs;
+      // Wait for the TURN servers.
+      if (!isTurnPresent && turnRequest != null) {
+        long turnStartTimeMs = SystemClock.elapsedRealtime();
+        List<PeerConnection.IceServer> turnServers = turnRequest.get();
+        turnWaitMs = SystemClock.elapsedRealtime() - turnStartTimeMs;
         for (PeerConnection.IceServer turnServer : turnServers) {
           Log.d(TAG, "TurnServer: " + turnServer);
           iceServers.add(turnServer);
         }
+      } else {
+        cancelTurnRequest();
       }
 
-      SignalingParameters params = new SignalingParameters(iceServers, initiator, clientId, wssUrl, wssPostUrl, offerSdp, iceCandidates);
+      SignalingParameters params = new SignalingParameters(iceServers, room.initiator,
+          room.clientId, room.wssUrl, room.wssPostUrl, offerSdp, iceCandidates);
       events.onSignalingParametersReady(params);
-    } catch (JSONException e) {
-      events.onSignalingParametersError("Room JSON parsing error: " + e.toString());
     } catch (IOException e) {
-      events.onSignalingParametersError("Room IO error: " + e.toString());
+      cancelTurnRequest();
+      events.onSignalingParametersError("Room response error: " + e.toString());
     }
   }
 
-  // Requests & returns a TURN ICE Server based on a request URL.  Must be run
-  // off the main thread!
-  private List<PeerConnection.IceServer> requestTurnServers(String url)
-      throws IOException, JSONException {
-    List<PeerConnection.IceServer> turnServers = new ArrayList<>();
-    Log.d(TAG, "Request TURN from: " + url);
-    HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
-    connection.setDoOutput(true);
-    connection.setRequestProperty("REFERER", "https://appr.tc");
-    connection.setConnectTimeout(TURN_HTTP_TIMEOUT_MS);
-    connection.setReadTimeout(TURN_HTTP_TIMEOUT_MS);
-    int responseCode = connection.getResponseCode();
-    if (responseCode != 200) {
-      throw new IOException("Non-200 response when requesting TURN server from " + url + " : "
-          + connection.getHeaderField(null));
+  // Makes sure TURN servers are being requested from |iceServerUrl|, reusing
+  // the speculative request if it went to the same URL.
+  private void startTurnRequest(String iceServerUrl) {
+    if (turnRequest != null && turnRequest.url.equals(iceServerUrl)) {
+      return;
     }
-    InputStream responseStream = connection.getInputStream();
-    String response = drainStream(responseStream);
-    connection.disconnect();
-    Log.d(TAG, "TURN response: " + response);
-    JSONObject responseJSON = new JSONObject(response);
-    JSONArray iceServers = responseJSON.getJSONArray("iceServers");
-    for (int i = 0; i < iceServers.length(); ++i) {
-      JSONObject server = iceServers.getJSONObject(i);
-      JSONArray turnUrls = server.getJSONArray("urls");
-      String username = server.has("username") ? server.getString("username") : "";
-      String credential = server.has("credential") ? server.getString("credential") : "";
-      for (int j = 0; j < turnUrls.length(); j++) {
-        String turnUrl = turnUrls.getString(j);
-        PeerConnection.IceServer turnServer =
-            PeerConnection.IceServer.builder(turnUrl)
-              .setUsername(username)
-              .setPassword(credential)
-              .createIceServer();
-        turnServers.add(turnServer);
+    cancelTurnRequest();
+    synchronized (iceServerUrls) {
+      if (iceServerUrl.isEmpty()) {
+        iceServerUrls.remove(serverOf(roomUrl));
+      } else {
+        iceServerUrls.put(serverOf(roomUrl), iceServerUrl);
       }
     }
-    return turnServers;
+    if (!iceServerUrl.isEmpty()) {
+      turnRequest = new TurnRequest(iceServerUrl);
+      turnRequest.start();
+    }
   }
 
-  // Return the list of ICE servers described by a WebRTCPeerConnection
-  // configuration string.
-  private List<PeerConnection.IceServer> iceServersFromPCConfigJSON(String pcConfig)
-      throws JSONException {
-    JSONObject json = new JSONObject(pcConfig);
-    JSONArray servers = json.getJSONArray("iceServers");
-    List<PeerConnection.IceServer> ret = new ArrayList<>();
-    for (int i = 0; i < servers.length(); ++i) {
-      JSONObject server = servers.getJSONObject(i);
-      String url = server.getString("urls");
-      String credential = server.has("credential") ? server.getString("credential") : "";
-        PeerConnection.IceServer turnServer =
-            PeerConnection.IceServer.builder(url)
-              .setPassword(credential)
-              .createIceServer();
-      ret.add(turnServer);
+  private void cancelTurnRequest() {
+    if (turnRequest != null) {
+      turnRequest.task.cancel(false);
+      turnRequest = null;
     }
-    return ret;
   }
 
-  // Return the contents of an InputStream as a String.
-  private static String drainStream(InputStream in) {
-    Scanner s = new Scanner(in, "UTF-8").useDelimiter("\\A");
-    return s.hasNext() ? s.next() : "";
+  private static String serverOf(String url) {
+    try {
+      return new URL(url).getAuthority();
+    } catch (MalformedURLException e) {
+      return url;
+    }
   }
 }
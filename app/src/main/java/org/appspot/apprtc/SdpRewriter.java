@@ -0,0 +1,491 @@
+/*
+ *  Copyright 2014 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import android.util.Log;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Mutable model of a session description used to munge offer/answer SDP.
+ *
+ * <p>The description is split into lines once, media sections and the
+ * a=rtpmap/a=fmtp attributes are indexed during that single pass, and all
+ * requested transforms are applied to the model before it is serialized
+ * once by {@link #toString()}. Unmodified descriptions are returned as is.
+ * This class is not thread safe.
+ */
+public class SdpRewriter {
+  private static final String TAG = "SdpRewriter";
+  private static final String LINE_SEPARATOR = "\r\n";
+  private static final String RTPMAP_PREFIX = "a=rtpmap:";
+  private static final String FMTP_PREFIX = "a=fmtp:";
+  private static final String SSRC_PREFIX = "a=ssrc:";
+  private static final String SSRC_GROUP_PREFIX = "a=ssrc-group:";
+  private static final String SSRC_GROUP_FID = "FID";
+  private static final String SSRC_GROUP_SIM = "SIM";
+  private static final String VIDEO_CODEC_PARAM_START_BITRATE = "x-google-start-bitrate";
+  private static final String AUDIO_CODEC_PARAM_BITRATE = "maxaveragebitrate";
+  private static final int MAX_PAYLOAD_TYPE = 127;
+
+  private final String originalDescription;
+  private String[] lines;
+  // Lines to emit right after lines[i], or null. Keeps indices stable while
+  // transforms add new attributes.
+  private String[] insertions;
+  private int lineCount;
+  private boolean modified;
+
+  // Index of the first "m=audio" and "m=video" lines, -1 if absent.
+  private int audioMediaLine = -1;
+  private int videoMediaLine = -1;
+  // Index of the first media line after the first video section, or -1 if
+  // the video section is the last one.
+  private int videoMediaEnd = -1;
+
+  // a=rtpmap table in SDP order: payload type, encoding name and line index.
+  private int[] rtpmapPayloadTypes = new int[16];
+  private String[] rtpmapNames = new String[16];
+  private int[] rtpmapLines = new int[16];
+  private int rtpmapCount;
+
+  // Line index of the a=fmtp attribute for each payload type, -1 if absent.
+  private final int[] fmtpLines = new int[MAX_PAYLOAD_TYPE + 1];
+  // a=fmtp attributes added by setStartBitrate() after the a=rtpmap attribute
+  // at the same line index, or null.
+  private String[] addedFmtpLines;
+
+  private SdpRewriter(String description) {
+    originalDescription = description;
+    Arrays.fill(fmtpLines, -1);
+    parse();
+  }
+
+  public static SdpRewriter parse(String description) {
+    return new SdpRewriter(description);
+  }
+
+  /**
+   * Moves all payload types named |codec| to the front of the first audio or
+   * video media description line.
+   */
+  public SdpRewriter preferCodec(String codec, boolean isAudio) {
+    final int mLineIndex = isAudio ? audioMediaLine : videoMediaLine;
+    if (mLineIndex == -1) {
+      Log.w(TAG, "No mediaDescription line, so can't prefer " + codec);
+      return this;
+    }
+    int[] codecPayloadTypes = new int[rtpmapCount];
+    int codecPayloadTypeCount = 0;
+    for (int i = 0; i < rtpmapCount; i++) {
+      if (rtpmapNames[i].equals(codec)) {
+        codecPayloadTypes[codecPayloadTypeCount++] = rtpmapPayloadTypes[i];
+      }
+    }
+    if (codecPayloadTypeCount == 0) {
+      Log.w(TAG, "No payload types with name " + codec);
+      return this;
+    }
+    final String mLine = lines[mLineIndex];
+    final String newMLine =
+        movePayloadTypesToFront(codecPayloadTypes, codecPayloadTypeCount, mLine);
+    if (newMLine == null) {
+      return this;
+    }
+    Log.d(TAG, "Change media description from: " + mLine + " to " + newMLine);
+    setLine(mLineIndex, newMLine);
+    return this;
+  }
+
+  /**
+   * Sets the start bitrate of |codec|, either by extending its existing a=fmtp
+   * attribute or by adding a new one right after its a=rtpmap attribute. A
+   * bitrate parameter already in the attribute gets the new value.
+   */
+  public SdpRewriter setStartBitrate(String codec, boolean isVideoCodec, int bitrateKbps) {
+    int rtpmapIndex = -1;
+    for (int i = 0; i < rtpmapCount; i++) {
+      if (rtpmapNames[i].equals(codec)) {
+        rtpmapIndex = i;
+        break;
+      }
+    }
+    if (rtpmapIndex == -1) {
+      Log.w(TAG, "No rtpmap for " + codec + " codec");
+      return this;
+    }
+    final int payloadType = rtpmapPayloadTypes[rtpmapIndex];
+    final int rtpmapLine = rtpmapLines[rtpmapIndex];
+    Log.d(TAG, "Found " + codec + " rtpmap " + payloadType + " at " + lines[rtpmapLine]);
+
+    final String bitrateKey =
+        isVideoCodec ? VIDEO_CODEC_PARAM_START_BITRATE : AUDIO_CODEC_PARAM_BITRATE;
+    final String bitrateParam =
+        bitrateKey + "=" + (isVideoCodec ? bitrateKbps : bitrateKbps * 1000);
+    final int fmtpLine = fmtpLines[payloadType];
+    if (fmtpLine != -1 && hasFmtpParameter(lines[fmtpLine], payloadType)) {
+      Log.d(TAG, "Found " + codec + " " + lines[fmtpLine]);
+      setLine(fmtpLine, setFmtpParameter(lines[fmtpLine], bitrateKey, bitrateParam));
+      Log.d(TAG, "Update remote SDP line: " + lines[fmtpLine]);
+    } else if (addedFmtpLines != null && addedFmtpLines[rtpmapLine] != null) {
+      // Added by an earlier call, updated like an existing attribute.
+      addedFmtpLines[rtpmapLine] =
+          setFmtpParameter(addedFmtpLines[rtpmapLine], bitrateKey, bitrateParam);
+      Log.d(TAG, "Update remote SDP line: " + addedFmtpLines[rtpmapLine]);
+    } else {
+      String bitrateSet = FMTP_PREFIX + payloadType + " " + bitrateParam;
+      Log.d(TAG, "Add remote SDP line: " + bitrateSet);
+      if (addedFmtpLines == null) {
+        addedFmtpLines = new String[lineCount];
+      }
+      addedFmtpLines[rtpmapLine] = bitrateSet;
+      modified = true;
+    }
+    return this;
+  }
+
+  /**
+   * Sends the first video track as |layerCount| simulcast layers, by giving
+   * it one SSRC per layer in an a=ssrc-group:SIM attribute, lowest resolution
+   * first. Each layer gets its own RTX SSRC if the track has one. Does
+   * nothing if the track is already simulcast or has no SSRC.
+   */
+  public SdpRewriter addSimulcast(int layerCount) {
+    if (videoMediaLine == -1 || layerCount < 2) {
+      return this;
+    }
+    final int end = videoMediaEnd == -1 ? lineCount : videoMediaEnd;
+    String primarySsrc = null;
+    String rtxSsrc = null;
+    int lastSsrcLine = -1;
+    final Set<String> usedSsrcs = new HashSet<>();
+    for (int i = videoMediaLine + 1; i < end; i++) {
+      final String line = lines[i];
+      if (line.startsWith(SSRC_GROUP_PREFIX + SSRC_GROUP_SIM + " ")) {
+        Log.w(TAG, "Video is already simulcast.");
+        return this;
+      }
+      if (rtxSsrc == null && line.startsWith(SSRC_GROUP_PREFIX + SSRC_GROUP_FID + " ")) {
+        String[] ssrcs = line.substring(
+            SSRC_GROUP_PREFIX.length() + SSRC_GROUP_FID.length() + 1).split(" ");
+        if (ssrcs.length == 2) {
+          primarySsrc = ssrcs[0];
+          rtxSsrc = ssrcs[1];
+        }
+      } else if (line.startsWith(SSRC_PREFIX)) {
+        String ssrc = getSsrc(line);
+        usedSsrcs.add(ssrc);
+        if (primarySsrc == null) {
+          primarySsrc = ssrc;
+        }
+        lastSsrcLine = i;
+      }
+    }
+    if (primarySsrc == null || lastSsrcLine == -1) {
+      Log.w(TAG, "No video SSRC, so can't add simulcast.");
+      return this;
+    }
+    // Attributes of the track, e.g. cname and msid, copied to the new SSRCs.
+    final List<String> primaryAttributes = new ArrayList<>();
+    final List<String> rtxAttributes = new ArrayList<>();
+    for (int i = videoMediaLine + 1; i < end; i++) {
+      if (lines[i].startsWith(SSRC_PREFIX)) {
+        String ssrc = getSsrc(lines[i]);
+        String attribute = lines[i].substring(SSRC_PREFIX.length() + ssrc.length());
+        if (ssrc.equals(primarySsrc)) {
+          primaryAttributes.add(attribute);
+        } else if (ssrc.equals(rtxSsrc)) {
+          rtxAttributes.add(attribute);
+        }
+      }
+    }
+
+    final Random random = new Random();
+    final StringBuilder simGroup =
+        new StringBuilder(SSRC_GROUP_PREFIX).append(SSRC_GROUP_SIM).append(' ').append(primarySsrc);
+    for (int layer = 1; layer < layerCount; layer++) {
+      String layerSsrc = newSsrc(random, usedSsrcs);
+      simGroup.append(' ').append(layerSsrc);
+      addSsrcLines(lastSsrcLine, layerSsrc, primaryAttributes);
+      if (rtxSsrc != null) {
+        String layerRtxSsrc = newSsrc(random, usedSsrcs);
+        addSsrcLines(lastSsrcLine, layerRtxSsrc, rtxAttributes);
+        insertAfter(lastSsrcLine,
+            SSRC_GROUP_PREFIX + SSRC_GROUP_FID + " " + layerSsrc + " " + layerRtxSsrc);
+      }
+    }
+    insertAfter(lastSsrcLine, simGroup.toString());
+    Log.d(TAG, "Add simulcast: " + simGroup);
+    return this;
+  }
+
+  /** Returns the munged description, or the original one if nothing changed. */
+  @Override
+  public String toString() {
+    if (!modified) {
+      return originalDescription;
+    }
+    StringBuilder builder = new StringBuilder(originalDescription.length() + 128);
+    for (int i = 0; i < lineCount; i++) {
+      builder.append(lines[i]).append(LINE_SEPARATOR);
+      if (addedFmtpLines != null && addedFmtpLines[i] != null) {
+        builder.append(addedFmtpLines[i]).append(LINE_SEPARATOR);
+      }
+      if (insertions != null && insertions[i] != null) {
+        builder.append(insertions[i]).append(LINE_SEPARATOR);
+      }
+    }
+    return builder.toString();
+  }
+
+  private void setLine(int index, String line) {
+    lines[index] = line;
+    modified = true;
+  }
+
+  private void addSsrcLines(int index, String ssrc, List<String> attributes) {
+    for (String attribute : attributes) {
+      insertAfter(index, SSRC_PREFIX + ssrc + attribute);
+    }
+  }
+
+  private static String newSsrc(Random random, Set<String> usedSsrcs) {
+    String ssrc;
+    do {
+      ssrc = Integer.toString(1 + random.nextInt(Integer.MAX_VALUE - 1));
+    } while (!usedSsrcs.add(ssrc));
+    return ssrc;
+  }
+
+  // a=ssrc:<ssrc> <attribute>
+  private static String getSsrc(String line) {
+    int end = line.indexOf(' ', SSRC_PREFIX.length());
+    return line.substring(SSRC_PREFIX.length(), end == -1 ? line.length() : end);
+  }
+
+  private void insertAfter(int index, String line) {
+    if (insertions == null) {
+      insertions = new String[lineCount];
+    }
+    insertions[index] =
+        insertions[index] == null ? line : insertions[index] + LINE_SEPARATOR + line;
+    modified = true;
+  }
+
+  // Splits the description into lines and indexes media sections and codec
+  // attributes in a single pass.
+  private void parse() {
+    final String sdp = originalDescription;
+    final int length = sdp.length();
+    lines = new String[Math.max(16, length / 32)];
+    int start = 0;
+    while (start < length) {
+      int end = sdp.indexOf('\n', start);
+      int next;
+      if (end == -1) {
+        end = length;
+        next = length;
+      } else {
+        next = end + 1;
+      }
+      if (end > start && sdp.charAt(end - 1) == '\r') {
+        end--;
+      }
+      if (end > start || next < length) {
+        addLine(sdp.substring(start, end));
+      }
+      start = next;
+    }
+  }
+
+  private void addLine(String line) {
+    if (lineCount == lines.length) {
+      lines = Arrays.copyOf(lines, lineCount * 2);
+    }
+    final int index = lineCount++;
+    lines[index] = line;
+    if (line.startsWith("m=")) {
+      if (videoMediaLine != -1 && videoMediaEnd == -1) {
+        videoMediaEnd = index;
+      }
+      if (audioMediaLine == -1 && line.startsWith("m=audio ")) {
+        audioMediaLine = index;
+      } else if (videoMediaLine == -1 && line.startsWith("m=video ")) {
+        videoMediaLine = index;
+      }
+    } else if (line.startsWith(RTPMAP_PREFIX)) {
+      indexRtpmap(line, index);
+    } else if (line.startsWith(FMTP_PREFIX)) {
+      int payloadType = parsePayloadType(line, FMTP_PREFIX.length());
+      if (payloadType != -1 && fmtpLines[payloadType] == -1) {
+        fmtpLines[payloadType] = index;
+      }
+    }
+  }
+
+  // a=rtpmap:<payload type> <encoding name>/<clock rate> [/<encoding parameters>]
+  private void indexRtpmap(String line, int index) {
+    final int payloadType = parsePayloadType(line, RTPMAP_PREFIX.length());
+    if (payloadType == -1) {
+      return;
+    }
+    final int nameStart = line.indexOf(' ', RTPMAP_PREFIX.length()) + 1;
+    final int nameEnd = line.indexOf('/', nameStart);
+    if (nameEnd <= nameStart || !isClockRate(line, nameEnd)) {
+      return;
+    }
+    if (rtpmapCount == rtpmapPayloadTypes.length) {
+      rtpmapPayloadTypes = Arrays.copyOf(rtpmapPayloadTypes, rtpmapCount * 2);
+      rtpmapNames = Arrays.copyOf(rtpmapNames, rtpmapCount * 2);
+      rtpmapLines = Arrays.copyOf(rtpmapLines, rtpmapCount * 2);
+    }
+    rtpmapPayloadTypes[rtpmapCount] = payloadType;
+    rtpmapNames[rtpmapCount] = line.substring(nameStart, nameEnd);
+    rtpmapLines[rtpmapCount] = index;
+    rtpmapCount++;
+  }
+
+  // Checks that |line| continues with one or more "/<digits>" groups from
+  // |index| to its end.
+  private static boolean isClockRate(String line, int index) {
+    final int length = line.length();
+    while (index < length) {
+      if (line.charAt(index) != '/') {
+        return false;
+      }
+      int digitsStart = ++index;
+      while (index < length && Character.isDigit(line.charAt(index))) {
+        index++;
+      }
+      if (index == digitsStart) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  // Parses the payload type that starts at |index| and is followed by a space.
+  private static int parsePayloadType(String line, int index) {
+    int payloadType = 0;
+    int i = index;
+    for (; i < line.length(); i++) {
+      char c = line.charAt(i);
+      if (c == ' ') {
+        break;
+      }
+      if (c < '0' || c > '9') {
+        return -1;
+      }
+      payloadType = payloadType * 10 + (c - '0');
+      if (payloadType > MAX_PAYLOAD_TYPE) {
+        return -1;
+      }
+    }
+    return (i == index || i == line.length()) ? -1 : payloadType;
+  }
+
+  // Checks that an a=fmtp line carries at least one "<key>=<number>" parameter.
+  private static boolean hasFmtpParameter(String line, int payloadType) {
+    int index = FMTP_PREFIX.length() + Integer.toString(payloadType).length() + 1;
+    int keyStart = index;
+    while (index < line.length() && isWordChar(line.charAt(index))) {
+      index++;
+    }
+    if (index == keyStart || index >= line.length() || line.charAt(index) != '=') {
+      return false;
+    }
+    index++;
+    return index < line.length() && Character.isDigit(line.charAt(index));
+  }
+
+  // Replaces the |key| parameter of an a=fmtp line by |param|, or appends
+  // |param| if there is none.
+  private static String setFmtpParameter(String line, String key, String param) {
+    int start = line.indexOf(' ') + 1;
+    while (start > 0 && start < line.length()) {
+      int end = line.indexOf(';', start);
+      if (end == -1) {
+        end = line.length();
+      }
+      int keyStart = start;
+      while (keyStart < end && line.charAt(keyStart) == ' ') {
+        keyStart++;
+      }
+      if (line.startsWith(key + "=", keyStart)) {
+        return line.substring(0, keyStart) + param + line.substring(end);
+      }
+      start = end + 1;
+    }
+    return line + "; " + param;
+  }
+
+  private static boolean isWordChar(char c) {
+    return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_';
+  }
+
+  private static String movePayloadTypesToFront(
+      int[] preferredPayloadTypes, int preferredCount, String mLine) {
+    // The format of the media description line should be: m=<media> <port> <proto> <fmt> ...
+    int headerEnd = -1;
+    for (int i = 0, spaces = 0; i < mLine.length(); i++) {
+      if (mLine.charAt(i) == ' ' && ++spaces == 3) {
+        headerEnd = i;
+        break;
+      }
+    }
+    if (headerEnd == -1 || headerEnd == mLine.length() - 1) {
+      Log.e(TAG, "Wrong SDP media description format: " + mLine);
+      return null;
+    }
+    final StringBuilder newMLine = new StringBuilder(mLine.length() + 8);
+    newMLine.append(mLine, 0, headerEnd);
+    for (int i = 0; i < preferredCount; i++) {
+      newMLine.append(' ').append(preferredPayloadTypes[i]);
+    }
+    int start = headerEnd + 1;
+    while (start <= mLine.length()) {
+      int end = mLine.indexOf(' ', start);
+      if (end == -1) {
+        end = mLine.length();
+      }
+      if (!containsPayloadType(mLine, start, end, preferredPayloadTypes, preferredCount)) {
+        newMLine.append(' ').append(mLine, start, end);
+      }
+      start = end + 1;
+    }
+    return newMLine.toString();
+  }
+
+  private static boolean containsPayloadType(
+      String mLine, int start, int end, int[] payloadTypes, int count) {
+    int value = 0;
+    if (end == start || end - start > 3) {
+      return false;
+    }
+    for (int i = start; i < end; i++) {
+      char c = mLine.charAt(i);
+      if (c < '0' || c > '9') {
+        return false;
+      }
+      value = value * 10 + (c - '0');
+    }
+    for (int i = 0; i < count; i++) {
+      if (payloadTypes[i] == value) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
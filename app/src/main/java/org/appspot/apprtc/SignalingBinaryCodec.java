@@ -0,0 +1,235 @@
+/*
+ *  Copyright 2014 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import org.webrtc.IceCandidate;
+import org.webrtc.SessionDescription;
+
+/**
+ * Compact binary encoding of signaling messages, used on the WebSocket when
+ * both ends support it instead of JSON.
+ *
+ * <p>A frame is a version byte, a type byte and a flags byte, followed by the
+ * type specific fields. Strings are UTF-8, prefixed by their length as an
+ * unsigned short, except SDP which is prefixed by an int:
+ * <ul>
+ * <li>OFFER, ANSWER: SDP. If the DEFLATED flag is set, the uncompressed
+ * SDP length as an int, then the deflated SDP prefixed by its length.
+ * <li>CANDIDATE, REMOVE_CANDIDATES: candidate count as an unsigned short,
+ * then for each candidate its label as an unsigned short, its id and its SDP.
+ * <li>BYE: no fields.
+ * </ul>
+ * All numbers are big endian.
+ */
+public class SignalingBinaryCodec {
+  private static final byte VERSION = 1;
+  private static final byte TYPE_OFFER = 1;
+  private static final byte TYPE_ANSWER = 2;
+  private static final byte TYPE_CANDIDATES = 3;
+  private static final byte TYPE_REMOVE_CANDIDATES = 4;
+  private static final byte TYPE_BYE = 5;
+  private static final byte FLAG_DEFLATED = 1;
+  private static final int HEADER_SIZE = 3;
+  // SDP shorter than this is not worth deflating.
+  private static final int DEFLATE_MIN_LENGTH = 256;
+  // Limit on the inflated SDP size, against corrupt frames.
+  private static final int MAX_SDP_LENGTH = 1024 * 1024;
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  private SignalingBinaryCodec() {}
+
+  /** Returns the frame of |message|, which must not be of type UNKNOWN. */
+  public static byte[] encode(SignalingMessageDecoder.SignalingMessage message) {
+    switch (message.type) {
+      case OFFER:
+        return encodeSdp(TYPE_OFFER, message.sdp.description);
+      case ANSWER:
+        return encodeSdp(TYPE_ANSWER, message.sdp.description);
+      case CANDIDATE:
+        return encodeCandidates(TYPE_CANDIDATES, message.candidates);
+      case REMOVE_CANDIDATES:
+        return encodeCandidates(TYPE_REMOVE_CANDIDATES, message.candidates);
+      case BYE:
+        return new byte[] {VERSION, TYPE_BYE, 0};
+      default:
+        throw new IllegalArgumentException("Cannot encode message: " + message.typeName);
+    }
+  }
+
+  /** Decodes a frame. All errors are reported as IOException. */
+  public static SignalingMessageDecoder.SignalingMessage decode(byte[] frame)
+      throws IOException {
+    try {
+      ByteBuffer buffer = ByteBuffer.wrap(frame);
+      byte version = buffer.get();
+      if (version != VERSION) {
+        throw new IOException("Unsupported frame version: " + version);
+      }
+      byte type = buffer.get();
+      byte flags = buffer.get();
+      switch (type) {
+        case TYPE_OFFER:
+          return new SignalingMessageDecoder.SignalingMessage(SignalingMessageDecoder.Type.OFFER,
+              "offer", new SessionDescription(SessionDescription.Type.OFFER,
+                           readSdp(buffer, (flags & FLAG_DEFLATED) != 0)),
+              null);
+        case TYPE_ANSWER:
+          return new SignalingMessageDecoder.SignalingMessage(SignalingMessageDecoder.Type.ANSWER,
+              "answer", new SessionDescription(SessionDescription.Type.ANSWER,
+                            readSdp(buffer, (flags & FLAG_DEFLATED) != 0)),
+              null);
+        case TYPE_CANDIDATES:
+          return new SignalingMessageDecoder.SignalingMessage(
+              SignalingMessageDecoder.Type.CANDIDATE, "candidates", null, readCandidates(buffer));
+        case TYPE_REMOVE_CANDIDATES:
+          return new SignalingMessageDecoder.SignalingMessage(
+              SignalingMessageDecoder.Type.REMOVE_CANDIDATES, "remove-candidates", null,
+              readCandidates(buffer));
+        case TYPE_BYE:
+          return new SignalingMessageDecoder.SignalingMessage(
+              SignalingMessageDecoder.Type.BYE, "bye", null, null);
+        default:
+          throw new IOException("Unknown frame type: " + type);
+      }
+    } catch (BufferUnderflowException e) {
+      throw new IOException("Truncated frame", e);
+    }
+  }
+
+  private static byte[] encodeSdp(byte type, String sdp) {
+    byte[] bytes = sdp.getBytes(UTF_8);
+    byte flags = 0;
+    byte[] payload = bytes;
+    if (bytes.length >= DEFLATE_MIN_LENGTH) {
+      byte[] deflated = deflate(bytes);
+      // Also counts the uncompressed length field.
+      if (deflated.length + 4 < bytes.length) {
+        flags = FLAG_DEFLATED;
+        payload = deflated;
+      }
+    }
+    ByteBuffer buffer = ByteBuffer.allocate(
+        HEADER_SIZE + 4 + (flags == FLAG_DEFLATED ? 4 : 0) + payload.length);
+    buffer.put(VERSION).put(type).put(flags);
+    if (flags == FLAG_DEFLATED) {
+      buffer.putInt(bytes.length);
+    }
+    buffer.putInt(payload.length).put(payload);
+    return buffer.array();
+  }
+
+  private static byte[] encodeCandidates(byte type, IceCandidate[] candidates) {
+    byte[][] ids = new byte[candidates.length][];
+    byte[][] sdps = new byte[candidates.length][];
+    int size = HEADER_SIZE + 2;
+    for (int i = 0; i < candidates.length; ++i) {
+      ids[i] = candidates[i].sdpMid.getBytes(UTF_8);
+      sdps[i] = candidates[i].sdp.getBytes(UTF_8);
+      size += 2 + 2 + ids[i].length + 2 + sdps[i].length;
+    }
+    ByteBuffer buffer = ByteBuffer.allocate(size);
+    buffer.put(VERSION).put(type).put((byte) 0);
+    buffer.putShort(checkUnsignedShort(candidates.length));
+    for (int i = 0; i < candidates.length; ++i) {
+      buffer.putShort(checkUnsignedShort(candidates[i].sdpMLineIndex));
+      buffer.putShort(checkUnsignedShort(ids[i].length)).put(ids[i]);
+      buffer.putShort(checkUnsignedShort(sdps[i].length)).put(sdps[i]);
+    }
+    return buffer.array();
+  }
+
+  private static String readSdp(ByteBuffer buffer, boolean deflated) throws IOException {
+    int inflatedLength = deflated ? buffer.getInt() : 0;
+    int length = buffer.getInt();
+    if (length < 0 || length > buffer.remaining()) {
+      throw new IOException("Invalid SDP length: " + length);
+    }
+    if (!deflated) {
+      String sdp = new String(buffer.array(), buffer.position(), length, UTF_8);
+      buffer.position(buffer.position() + length);
+      return sdp;
+    }
+    if (inflatedLength < 0 || inflatedLength > MAX_SDP_LENGTH) {
+      throw new IOException("Invalid SDP length: " + inflatedLength);
+    }
+    byte[] sdp = new byte[inflatedLength];
+    Inflater inflater = new Inflater();
+    try {
+      inflater.setInput(buffer.array(), buffer.position(), length);
+      if (inflater.inflate(sdp) != inflatedLength || !inflater.finished()) {
+        throw new IOException("Invalid deflated SDP");
+      }
+    } catch (DataFormatException e) {
+      throw new IOException("Invalid deflated SDP", e);
+    } finally {
+      inflater.end();
+    }
+    buffer.position(buffer.position() + length);
+    return new String(sdp, UTF_8);
+  }
+
+  private static IceCandidate[] readCandidates(ByteBuffer buffer) throws IOException {
+    IceCandidate[] candidates = new IceCandidate[buffer.getShort() & 0xffff];
+    for (int i = 0; i < candidates.length; ++i) {
+      int label = buffer.getShort() & 0xffff;
+      String id = readString(buffer);
+      String sdp = readString(buffer);
+      candidates[i] = new IceCandidate(id, label, sdp);
+    }
+    return candidates;
+  }
+
+  private static String readString(ByteBuffer buffer) throws IOException {
+    int length = buffer.getShort() & 0xffff;
+    if (length > buffer.remaining()) {
+      throw new IOException("Invalid string length: " + length);
+    }
+    String value = new String(buffer.array(), buffer.position(), length, UTF_8);
+    buffer.position(buffer.position() + length);
+    return value;
+  }
+
+  private static byte[] deflate(byte[] input) {
+    Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    try {
+      deflater.setInput(input);
+      deflater.finish();
+      // Deflated SDP larger than the input is not used, so stop there.
+      byte[] output = new byte[input.length];
+      int length = 0;
+      while (!deflater.finished() && length < output.length) {
+        length += deflater.deflate(output, length, output.length - length);
+      }
+      if (!deflater.finished()) {
+        return input;
+      }
+      byte[] result = new byte[length];
+      System.arraycopy(output, 0, result, 0, length);
+      return result;
+    } finally {
+      deflater.end();
+    }
+  }
+
+  private static short checkUnsignedShort(int value) {
+    if (value < 0 || value > 0xffff) {
+      throw new IllegalArgumentException("Value out of range: " + value);
+    }
+    return (short) value;
+  }
+}
@@ -0,0 +1,597 @@
+/*
+ *  Copyright 2014 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.webrtc.IceCandidate;
+import org.webrtc.PeerConnection;
+import org.webrtc.SessionDescription;
+
+/**
+ * Streaming decoder for the JSON messages of the AppRTC room, WebSocket and
+ * TURN servers.
+ *
+ * <p>Messages are read token by token straight into SessionDescription,
+ * IceCandidate and IceServer objects, without building intermediate JSON
+ * objects. Fields that the servers send as JSON encoded strings ("msg",
+ * "messages", "pc_config") are decoded in place, and are accepted as plain
+ * nested JSON as well. Unknown fields are skipped. All errors, including
+ * missing fields, are reported as IOException.
+ */
+public class SignalingMessageDecoder {
+  /** Signaling message types. Batched "candidates" are decoded as CANDIDATE. */
+  public enum Type { OFFER, ANSWER, CANDIDATE, REMOVE_CANDIDATES, BYE, UNKNOWN }
+
+  /** Message exchanged with the other party. */
+  public static class SignalingMessage {
+    public final Type type;
+    // Type as sent, for logging unknown messages.
+    public final String typeName;
+    // Description of OFFER and ANSWER messages.
+    public final SessionDescription sdp;
+    // Candidates of CANDIDATE and REMOVE_CANDIDATES messages.
+    public final IceCandidate[] candidates;
+
+    SignalingMessage(
+        Type type, String typeName, SessionDescription sdp, IceCandidate[] candidates) {
+      this.type = type;
+      this.typeName = typeName;
+      this.sdp = sdp;
+      this.candidates = candidates;
+    }
+  }
+
+  /** Message from the WebSocket server: a signaling message or an error. */
+  public static class WebSocketMessage {
+    // Null if the server sent no message.
+    public final SignalingMessage message;
+    public final String error;
+    // Framing the server accepted in reply to register, empty if none.
+    public final String framing;
+
+    WebSocketMessage(SignalingMessage message, String error, String framing) {
+      this.message = message;
+      this.error = error;
+      this.framing = framing;
+    }
+  }
+
+  /** Response to a room join request. */
+  public static class RoomResponse {
+    public final String result;
+    public final String roomId;
+    public final String clientId;
+    public final String wssUrl;
+    public final String wssPostUrl;
+    public final boolean initiator;
+    public final List<SignalingMessage> messages;
+    public final List<PeerConnection.IceServer> iceServers;
+    // Empty if TURN servers do not have to be requested.
+    public final String iceServerUrl;
+
+    RoomResponse(String result, String roomId, String clientId, String wssUrl, String wssPostUrl,
+        boolean initiator, List<SignalingMessage> messages,
+        List<PeerConnection.IceServer> iceServers, String iceServerUrl) {
+      this.result = result;
+      this.roomId = roomId;
+      this.clientId = clientId;
+      this.wssUrl = wssUrl;
+      this.wssPostUrl = wssPostUrl;
+      this.initiator = initiator;
+      this.messages = messages;
+      this.iceServers = iceServers;
+      this.iceServerUrl = iceServerUrl;
+    }
+  }
+
+  /** Response of a TURN server request. */
+  public static class TurnResponse {
+    public final List<PeerConnection.IceServer> iceServers;
+    // Credential lifetime, or -1 if the server did not send it.
+    public final long lifetimeMs;
+
+    TurnResponse(List<PeerConnection.IceServer> iceServers, long lifetimeMs) {
+      this.iceServers = iceServers;
+      this.lifetimeMs = lifetimeMs;
+    }
+  }
+
+  /** Notified while a room response is decoded. */
+  public interface RoomResponseEvents {
+    /**
+     * Called as soon as the TURN server request URL is decoded, with an empty
+     * URL if the response has none.
+     */
+    void onIceServerUrl(String iceServerUrl);
+  }
+
+  private SignalingMessageDecoder() {}
+
+  /** Decodes a message sent to the other party, e.g. {"type": "offer", "sdp": ...}. */
+  public static SignalingMessage decodeSignalingMessage(String json) throws IOException {
+    try (JsonReader reader = new JsonReader(new StringReader(json))) {
+      return readSignalingMessage(reader);
+    } catch (IllegalStateException | NumberFormatException e) {
+      throw new IOException(e.getMessage(), e);
+    }
+  }
+
+  /** Decodes a WebSocket server message, {"msg": ..., "error": ...}. */
+  public static WebSocketMessage decodeWebSocketMessage(String json) throws IOException {
+    try (JsonReader reader = new JsonReader(new StringReader(json))) {
+      SignalingMessage message = null;
+      boolean hasMessage = false;
+      String error = "";
+      String framing = "";
+      reader.beginObject();
+      while (reader.hasNext()) {
+        switch (reader.nextName()) {
+          case "msg":
+            hasMessage = true;
+            if (reader.peek() == JsonToken.STRING) {
+              String msg = reader.nextString();
+              if (!msg.isEmpty()) {
+                message = decodeSignalingMessage(msg);
+              }
+            } else {
+              message = readSignalingMessage(reader);
+            }
+            break;
+          case "error":
+            error = readString(reader);
+            break;
+          case "framing":
+            framing = readString(reader);
+            break;
+          default:
+            reader.skipValue();
+        }
+      }
+      reader.endObject();
+      if (!hasMessage) {
+        throw new IOException("Missing msg");
+      }
+      return new WebSocketMessage(message, error, framing);
+    } catch (IllegalStateException | NumberFormatException e) {
+      throw new IOException(e.getMessage(), e);
+    }
+  }
+
+  /** Decodes the "result" of a room server response. */
+  public static String decodeResult(String json) throws IOException {
+    try (JsonReader reader = new JsonReader(new StringReader(json))) {
+      String result = null;
+      reader.beginObject();
+      while (reader.hasNext()) {
+        if (reader.nextName().equals("result")) {
+          result = readString(reader);
+        } else {
+          reader.skipValue();
+        }
+      }
+      reader.endObject();
+      return checkPresent(result, "result");
+    } catch (IllegalStateException | NumberFormatException e) {
+      throw new IOException(e.getMessage(), e);
+    }
+  }
+
+  /**
+   * Decodes a room join response. The "params" are only required if the
+   * result is SUCCESS.
+   */
+  public static RoomResponse decodeRoomResponse(String json, RoomResponseEvents events)
+      throws IOException {
+    try (JsonReader reader = new JsonReader(new StringReader(json))) {
+      String result = null;
+      RoomResponse params = null;
+      String paramsJson = null;
+      IOException paramsError = null;
+      reader.beginObject();
+      while (reader.hasNext()) {
+        switch (reader.nextName()) {
+          case "result":
+            result = readString(reader);
+            break;
+          case "params":
+            // The server sends the params as a JSON encoded string. Only
+            // decode it once the result is known to be SUCCESS.
+            if (reader.peek() == JsonToken.STRING) {
+              paramsJson = reader.nextString();
+            } else if (result != null && !result.equals("SUCCESS")) {
+              reader.skipValue();
+            } else {
+              // The result may follow, incomplete params are only an error
+              // if it is SUCCESS.
+              try {
+                params = readRoomParams(reader, events);
+              } catch (IOException e) {
+                paramsError = e;
+              }
+            }
+            break;
+          default:
+            reader.skipValue();
+        }
+      }
+      reader.endObject();
+      checkPresent(result, "result");
+      if (!result.equals("SUCCESS")) {
+        return new RoomResponse(result, null, null, null, null, false,
+            Collections.<SignalingMessage>emptyList(),
+            Collections.<PeerConnection.IceServer>emptyList(), "");
+      }
+      if (paramsError != null) {
+        throw paramsError;
+      }
+      if (paramsJson != null) {
+        try (JsonReader paramsReader = new JsonReader(new StringReader(paramsJson))) {
+          params = readRoomParams(paramsReader, events);
+        }
+      }
+      checkPresent(params, "params");
+      return new RoomResponse(result, params.roomId, params.clientId, params.wssUrl,
+          params.wssPostUrl, params.initiator, params.messages,
+          params.iceServers, params.iceServerUrl);
+    } catch (IllegalStateException | NumberFormatException e) {
+      throw new IOException(e.getMessage(), e);
+    }
+  }
+
+  /** Decodes a TURN server response, {"lifetimeDuration": "86400s", "iceServers": [...]}. */
+  public static TurnResponse decodeTurnResponse(String json) throws IOException {
+    try (JsonReader reader = new JsonReader(new StringReader(json))) {
+      List<PeerConnection.IceServer> iceServers = null;
+      long lifetimeMs = -1;
+      reader.beginObject();
+      while (reader.hasNext()) {
+        switch (reader.nextName()) {
+          case "iceServers":
+            iceServers = new ArrayList<>();
+            reader.beginArray();
+            while (reader.hasNext()) {
+              readTurnServer(reader, iceServers);
+            }
+            reader.endArray();
+            break;
+          case "lifetimeDuration":
+            lifetimeMs = parseDurationMs(readString(reader));
+            break;
+          default:
+            reader.skipValue();
+        }
+      }
+      reader.endObject();
+      return new TurnResponse(checkPresent(iceServers, "iceServers"), lifetimeMs);
+    } catch (IllegalStateException | NumberFormatException e) {
+      throw new IOException(e.getMessage(), e);
+    }
+  }
+
+  private static RoomResponse readRoomParams(JsonReader reader, RoomResponseEvents events)
+      throws IOException {
+    String roomId = null;
+    String clientId = null;
+    String wssUrl = null;
+    String wssPostUrl = null;
+    Boolean initiator = null;
+    List<SignalingMessage> messages = new ArrayList<>();
+    List<PeerConnection.IceServer> iceServers = null;
+    String iceServerUrl = null;
+    reader.beginObject();
+    while (reader.hasNext()) {
+      switch (reader.nextName()) {
+        case "room_id":
+          roomId = readString(reader);
+          break;
+        case "client_id":
+          clientId = readString(reader);
+          break;
+        case "wss_url":
+          wssUrl = readString(reader);
+          break;
+        case "wss_post_url":
+          wssPostUrl = readString(reader);
+          break;
+        case "is_initiator":
+          initiator = readBoolean(reader);
+          break;
+        case "messages":
+          if (reader.peek() == JsonToken.STRING) {
+            try (JsonReader messagesReader = new JsonReader(new StringReader(reader.nextString()))) {
+              readMessages(messagesReader, messages);
+            }
+          } else {
+            readMessages(reader, messages);
+          }
+          break;
+        case "pc_config":
+          if (reader.peek() == JsonToken.STRING) {
+            try (JsonReader configReader = new JsonReader(new StringReader(reader.nextString()))) {
+              iceServers = readPeerConnectionConfig(configReader);
+            }
+          } else {
+            iceServers = readPeerConnectionConfig(reader);
+          }
+          break;
+        case "ice_server_url":
+          if (reader.peek() == JsonToken.NULL) {
+            reader.nextNull();
+            iceServerUrl = "";
+          } else {
+            iceServerUrl = readString(reader);
+          }
+          if (events != null) {
+            events.onIceServerUrl(iceServerUrl);
+          }
+          break;
+        default:
+          reader.skipValue();
+      }
+    }
+    reader.endObject();
+    if (iceServerUrl == null) {
+      iceServerUrl = "";
+      if (events != null) {
+        events.onIceServerUrl(iceServerUrl);
+      }
+    }
+    return new RoomResponse(null, checkPresent(roomId, "room_id"),
+        checkPresent(clientId, "client_id"), checkPresent(wssUrl, "wss_url"),
+        checkPresent(wssPostUrl, "wss_post_url"), checkPresent(initiator, "is_initiator"),
+        messages, checkPresent(iceServers, "pc_config"), iceServerUrl);
+  }
+
+  // Reads an array of messages, each one a JSON encoded string or an object.
+  private static void readMessages(JsonReader reader, List<SignalingMessage> messages)
+      throws IOException {
+    reader.beginArray();
+    while (reader.hasNext()) {
+      if (reader.peek() == JsonToken.STRING) {
+        messages.add(decodeSignalingMessage(reader.nextString()));
+      } else {
+        messages.add(readSignalingMessage(reader));
+      }
+    }
+    reader.endArray();
+  }
+
+  private static SignalingMessage readSignalingMessage(JsonReader reader) throws IOException {
+    String typeName = null;
+    String sdp = null;
+    String id = null;
+    int label = -1;
+    String candidate = null;
+    List<IceCandidate> candidates = null;
+    reader.beginObject();
+    while (reader.hasNext()) {
+      switch (reader.nextName()) {
+        case "type":
+          typeName = readString(reader);
+          break;
+        case "sdp":
+          sdp = readString(reader);
+          break;
+        case "id":
+          id = readString(reader);
+          break;
+        case "label":
+          label = reader.nextInt();
+          break;
+        case "candidate":
+          candidate = readString(reader);
+          break;
+        case "candidates":
+          candidates = new ArrayList<>();
+          reader.beginArray();
+          while (reader.hasNext()) {
+            candidates.add(readCandidate(reader));
+          }
+          reader.endArray();
+          break;
+        default:
+          reader.skipValue();
+      }
+    }
+    reader.endObject();
+    checkPresent(typeName, "type");
+    switch (typeName) {
+      case "offer":
+      case "answer":
+        return new SignalingMessage(typeName.equals("offer") ? Type.OFFER : Type.ANSWER, typeName,
+            new SessionDescription(SessionDescription.Type.fromCanonicalForm(typeName),
+                checkPresent(sdp, "sdp")),
+            null);
+      case "candidate":
+        if (label < 0) {
+          throw new IOException("Missing label");
+        }
+        return new SignalingMessage(Type.CANDIDATE, typeName, null,
+            new IceCandidate[] {new IceCandidate(
+                checkPresent(id, "id"), label, checkPresent(candidate, "candidate"))});
+      case "candidates":
+      case "remove-candidates":
+        checkPresent(candidates, "candidates");
+        return new SignalingMessage(
+            typeName.equals("candidates") ? Type.CANDIDATE : Type.REMOVE_CANDIDATES, typeName,
+            null, candidates.toArray(new IceCandidate[candidates.size()]));
+      case "bye":
+        return new SignalingMessage(Type.BYE, typeName, null, null);
+      default:
+        return new SignalingMessage(Type.UNKNOWN, typeName, null, null);
+    }
+  }
+
+  private static IceCandidate readCandidate(JsonReader reader) throws IOException {
+    String id = null;
+    int label = -1;
+    String candidate = null;
+    reader.beginObject();
+    while (reader.hasNext()) {
+      switch (reader.nextName()) {
+        case "id":
+          id = readString(reader);
+          break;
+        case "label":
+          label = reader.nextInt();
+          break;
+        case "candidate":
+          candidate = readString(reader);
+          break;
+        default:
+          reader.skipValue();
+      }
+    }
+    reader.endObject();
+    if (label < 0) {
+      throw new IOException("Missing label");
+    }
+    return new IceCandidate(checkPresent(id, "id"), label, checkPresent(candidate, "candidate"));
+  }
+
+  // Reads the ICE servers of a peer connection configuration.
+  private static List<PeerConnection.IceServer> readPeerConnectionConfig(JsonReader reader)
+      throws IOException {
+    List<PeerConnection.IceServer> iceServers = null;
+    reader.beginObject();
+    while (reader.hasNext()) {
+      if (reader.nextName().equals("iceServers")) {
+        iceServers = new ArrayList<>();
+        reader.beginArray();
+        while (reader.hasNext()) {
+          iceServers.add(readConfigIceServer(reader));
+        }
+        reader.endArray();
+      } else {
+        reader.skipValue();
+      }
+    }
+    reader.endObject();
+    return checkPresent(iceServers, "iceServers");
+  }
+
+  private static PeerConnection.IceServer readConfigIceServer(JsonReader reader)
+      throws IOException {
+    List<String> urls = null;
+    String credential = "";
+    reader.beginObject();
+    while (reader.hasNext()) {
+      switch (reader.nextName()) {
+        case "urls":
+          urls = readUrls(reader);
+          break;
+        case "credential":
+          credential = readString(reader);
+          break;
+        default:
+          reader.skipValue();
+      }
+    }
+    reader.endObject();
+    return PeerConnection.IceServer.builder(checkPresent(urls, "urls"))
+        .setPassword(credential)
+        .createIceServer();
+  }
+
+  // Reads a TURN server entry, adding one IceServer per URL.
+  private static void readTurnServer(JsonReader reader, List<PeerConnection.IceServer> iceServers)
+      throws IOException {
+    List<String> urls = null;
+    String username = "";
+    String credential = "";
+    reader.beginObject();
+    while (reader.hasNext()) {
+      switch (reader.nextName()) {
+        case "urls":
+          urls = readUrls(reader);
+          break;
+        case "username":
+          username = readString(reader);
+          break;
+        case "credential":
+          credential = readString(reader);
+          break;
+        default:
+          reader.skipValue();
+      }
+    }
+    reader.endObject();
+    for (String url : checkPresent(urls, "urls")) {
+      iceServers.add(PeerConnection.IceServer.builder(url)
+                         .setUsername(username)
+                         .setPassword(credential)
+                         .createIceServer());
+    }
+  }
+
+  // Reads a single URL or an array of URLs.
+  private static List<String> readUrls(JsonReader reader) throws IOException {
+    if (reader.peek() != JsonToken.BEGIN_ARRAY) {
+      return Collections.singletonList(readString(reader));
+    }
+    List<String> urls = new ArrayList<>();
+    reader.beginArray();
+    while (reader.hasNext()) {
+      urls.add(readString(reader));
+    }
+    reader.endArray();
+    return urls;
+  }
+
+  // Reads a string, number or boolean as a string.
+  private static String readString(JsonReader reader) throws IOException {
+    if (reader.peek() == JsonToken.BOOLEAN) {
+      return Boolean.toString(reader.nextBoolean());
+    }
+    return reader.nextString();
+  }
+
+  // Reads a boolean, also accepting "true" and "false" strings.
+  private static boolean readBoolean(JsonReader reader) throws IOException {
+    if (reader.peek() == JsonToken.STRING) {
+      String value = reader.nextString();
+      if (value.equalsIgnoreCase("true")) {
+        return true;
+      }
+      if (value.equalsIgnoreCase("false")) {
+        return false;
+      }
+      throw new IOException("Not a boolean: " + value);
+    }
+    return reader.nextBoolean();
+  }
+
+  // Parses a protobuf JSON duration, e.g. "86400s" or "1.5s". Returns -1 if
+  // invalid, as the lifetime is optional.
+  private static long parseDurationMs(String duration) {
+    if (!duration.endsWith("s")) {
+      return -1;
+    }
+    try {
+      return (long) (Double.parseDouble(duration.substring(0, duration.length() - 1)) * 1000);
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  private static <T> T checkPresent(T value, String name) throws IOException {
+    if (value == null) {
+      throw new IOException("Missing " + name);
+    }
+    return value;
+  }
+}
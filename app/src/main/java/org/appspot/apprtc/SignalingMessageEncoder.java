@@ -0,0 +1,172 @@
+/*
+ *  Copyright 2014 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import java.util.Arrays;
+import java.util.List;
+import org.webrtc.IceCandidate;
+import org.webrtc.SessionDescription;
+
+/**
+ * Encoder for the outgoing JSON messages of the AppRTC room and WebSocket
+ * servers.
+ *
+ * <p>Messages are written into a reused buffer in a single pass, escaping
+ * each string once. The output is the same as the one of org.json: no
+ * whitespace, keys in insertion order, and '/' escaped.
+ *
+ * <p>Not thread safe. Each owner must use its instance from a single thread.
+ */
+public class SignalingMessageEncoder {
+  private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+  private static final int INITIAL_CAPACITY = 4096;
+
+  private final StringBuilder buffer = new StringBuilder(INITIAL_CAPACITY);
+
+  /**
+   * Encodes the WebSocket register command, offering binary frames if
+   * |binaryFraming| is true.
+   */
+  public String encodeRegister(String roomId, String clientId, boolean binaryFraming) {
+    buffer.setLength(0);
+    buffer.append("{\"cmd\":\"register\",\"roomid\":");
+    appendString(roomId);
+    buffer.append(",\"clientid\":");
+    appendString(clientId);
+    if (binaryFraming) {
+      buffer.append(",\"framing\":\"binary\"");
+    }
+    buffer.append('}');
+    return buffer.toString();
+  }
+
+  /** Encodes the WebSocket send command wrapping the JSON |message|. */
+  public String encodeSend(String message) {
+    buffer.setLength(0);
+    buffer.append("{\"cmd\":\"send\",\"msg\":");
+    appendString(message);
+    buffer.append('}');
+    return buffer.toString();
+  }
+
+  /** Encodes an offer or answer. */
+  public String encodeSessionDescription(SessionDescription sdp) {
+    buffer.setLength(0);
+    buffer.append("{\"sdp\":");
+    appendString(sdp.description);
+    buffer.append(",\"type\":");
+    appendString(sdp.type.canonicalForm());
+    buffer.append('}');
+    return buffer.toString();
+  }
+
+  /** Encodes a single candidate message. */
+  public String encodeCandidate(IceCandidate candidate) {
+    buffer.setLength(0);
+    buffer.append("{\"type\":\"candidate\",");
+    appendCandidateFields(candidate);
+    buffer.append('}');
+    return buffer.toString();
+  }
+
+  /**
+   * Encodes a message with a list of candidates, of type "candidates" or
+   * "remove-candidates".
+   */
+  public String encodeCandidates(String type, List<IceCandidate> candidates) {
+    buffer.setLength(0);
+    buffer.append("{\"type\":");
+    appendString(type);
+    buffer.append(",\"candidates\":[");
+    for (int i = 0; i < candidates.size(); ++i) {
+      if (i > 0) {
+        buffer.append(',');
+      }
+      buffer.append('{');
+      appendCandidateFields(candidates.get(i));
+      buffer.append('}');
+    }
+    buffer.append("]}");
+    return buffer.toString();
+  }
+
+  /**
+   * Encodes |message| as the JSON message it was decoded from. Messages of
+   * type UNKNOWN cannot be encoded.
+   */
+  public String encodeSignalingMessage(SignalingMessageDecoder.SignalingMessage message) {
+    switch (message.type) {
+      case OFFER:
+      case ANSWER:
+        return encodeSessionDescription(message.sdp);
+      case CANDIDATE:
+        if (message.candidates.length == 1) {
+          return encodeCandidate(message.candidates[0]);
+        }
+        return encodeCandidates("candidates", Arrays.asList(message.candidates));
+      case REMOVE_CANDIDATES:
+        return encodeCandidates("remove-candidates", Arrays.asList(message.candidates));
+      case BYE:
+        return "{\"type\":\"bye\"}";
+      default:
+        throw new IllegalArgumentException("Cannot encode message: " + message.typeName);
+    }
+  }
+
+  private void appendCandidateFields(IceCandidate candidate) {
+    buffer.append("\"label\":").append(candidate.sdpMLineIndex).append(",\"id\":");
+    appendString(candidate.sdpMid);
+    buffer.append(",\"candidate\":");
+    appendString(candidate.sdp);
+  }
+
+  // Appends |value| as a quoted JSON string, escaped like org.json does.
+  private void appendString(String value) {
+    buffer.append('"');
+    int length = value.length();
+    // Copy unescaped runs in bulk.
+    int runStart = 0;
+    for (int i = 0; i < length; ++i) {
+      char c = value.charAt(i);
+      if (c >= 0x20 && c != '"' && c != '\\' && c != '/') {
+        continue;
+      }
+      buffer.append(value, runStart, i);
+      runStart = i + 1;
+      switch (c) {
+        case '"':
+        case '\\':
+        case '/':
+          buffer.append('\\').append(c);
+          break;
+        case '\t':
+          buffer.append("\\t");
+          break;
+        case '\b':
+          buffer.append("\\b");
+          break;
+        case '\n':
+          buffer.append("\\n");
+          break;
+        case '\r':
+          buffer.append("\\r");
+          break;
+        case '\f':
+          buffer.append("\\f");
+          break;
+        default:
+          buffer.append("\\u00").append(HEX_DIGITS[c >> 4]).append(HEX_DIGITS[c & 0xf]);
+      }
+    }
+    buffer.append(value, runStart, length);
+    buffer.append('"');
+  }
+}
@@ -0,0 +1,231 @@
+/*
+ *  Copyright 2014 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import android.util.Log;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import org.webrtc.IceCandidate;
+
+/**
+ * Bounded queue of the signaling messages sent before the WebSocket is
+ * registered.
+ *
+ * <p>Messages are drained in arrival order, one message per candidate.
+ * Duplicate candidates are queued once, and removals cancel the queued
+ * candidates they refer to. With candidate batching, which both peers must
+ * support, consecutive candidates are drained as one "candidates" message and
+ * consecutive removals as one "remove-candidates" message. When full, the
+ * oldest candidates are dropped first; ICE recovers from them with later
+ * candidates, while SDP cannot be recovered.
+ *
+ * <p>Not thread safe. Used on the WebSocket handler thread only.
+ */
+class SignalingSendQueue {
+  private static final String TAG = "SignalingSendQueue";
+  private static final int MAX_QUEUED_MESSAGES = 128;
+
+  // A queued message, candidate, or removal of an already sent candidate.
+  private static class Item {
+    final SignalingMessageDecoder.Type type;
+    // For SDP and other messages, the JSON message if it was queued as JSON,
+    // and the decoded message unless it could not be decoded.
+    final String message;
+    final SignalingMessageDecoder.SignalingMessage signalingMessage;
+    // Set for candidates and removals.
+    final IceCandidate candidate;
+
+    Item(SignalingMessageDecoder.Type type, String message,
+        SignalingMessageDecoder.SignalingMessage signalingMessage, IceCandidate candidate) {
+      this.type = type;
+      this.message = message;
+      this.signalingMessage = signalingMessage;
+      this.candidate = candidate;
+    }
+  }
+
+  // Items in arrival order.
+  private final LinkedList<Item> items = new LinkedList<>();
+  // Queued candidates and removals by candidate key.
+  private final HashMap<String, Item> candidates = new HashMap<>();
+  private final HashMap<String, Item> removedCandidates = new HashMap<>();
+  private int highWaterMark;
+  private int droppedCount;
+
+  /** Queues the JSON signaling |message|. */
+  void add(String message) {
+    SignalingMessageDecoder.SignalingMessage decoded;
+    try {
+      decoded = SignalingMessageDecoder.decodeSignalingMessage(message);
+    } catch (IOException e) {
+      decoded = null;
+    }
+    if (decoded == null) {
+      items.add(new Item(SignalingMessageDecoder.Type.UNKNOWN, message, null, null));
+    } else {
+      addItems(decoded, message);
+    }
+    trim();
+    highWaterMark = Math.max(highWaterMark, size());
+  }
+
+  /** Queues |message|, which is encoded when drained. */
+  void add(SignalingMessageDecoder.SignalingMessage message) {
+    addItems(message, null);
+    trim();
+    highWaterMark = Math.max(highWaterMark, size());
+  }
+
+  // Adds the items of |decoded|, which was decoded from the JSON |message| if
+  // not null.
+  private void addItems(SignalingMessageDecoder.SignalingMessage decoded, String message) {
+    switch (decoded.type) {
+      case CANDIDATE:
+        for (IceCandidate candidate : decoded.candidates) {
+          String key = keyOf(candidate);
+          Item removal = removedCandidates.remove(key);
+          if (removal != null) {
+            items.remove(removal);
+          }
+          if (!candidates.containsKey(key)) {
+            Item item = new Item(decoded.type, null, null, candidate);
+            candidates.put(key, item);
+            items.add(item);
+          }
+        }
+        break;
+      case REMOVE_CANDIDATES:
+        for (IceCandidate candidate : decoded.candidates) {
+          String key = keyOf(candidate);
+          Item queued = candidates.remove(key);
+          if (queued != null) {
+            // Never sent, so there is nothing to remove on the other side.
+            items.remove(queued);
+          } else if (!removedCandidates.containsKey(key)) {
+            Item item = new Item(decoded.type, null, null, candidate);
+            removedCandidates.put(key, item);
+            items.add(item);
+          }
+        }
+        break;
+      default:
+        items.add(new Item(decoded.type, message, decoded, null));
+    }
+  }
+
+  /** Number of queued items, counting each candidate and removal separately. */
+  int size() {
+    return items.size();
+  }
+
+  /** Largest number of items queued at once. */
+  int getHighWaterMark() {
+    return highWaterMark;
+  }
+
+  /** Number of items dropped because the queue was full. */
+  int getDroppedCount() {
+    return droppedCount;
+  }
+
+  /**
+   * Returns the queued messages in sending order and empties the queue.
+   * Consecutive candidates and removals are merged if |batchCandidates|.
+   */
+  List<String> drain(SignalingMessageEncoder encoder, boolean batchCandidates) {
+    List<String> messages = new ArrayList<>();
+    List<IceCandidate> run = new ArrayList<>();
+    SignalingMessageDecoder.Type runType = null;
+    for (Item item : items) {
+      if (item.candidate == null) {
+        messages.add(item.message != null ? item.message
+                                          : encoder.encodeSignalingMessage(item.signalingMessage));
+        continue;
+      }
+      if (!batchCandidates) {
+        messages.add(item.type == SignalingMessageDecoder.Type.CANDIDATE
+                ? encoder.encodeCandidate(item.candidate)
+                : encoder.encodeCandidates(
+                      "remove-candidates", Collections.singletonList(item.candidate)));
+        continue;
+      }
+      if (runType != item.type) {
+        addRun(encoder, runType, run, messages);
+        runType = item.type;
+      }
+      run.add(item.candidate);
+    }
+    addRun(encoder, runType, run, messages);
+    items.clear();
+    candidates.clear();
+    removedCandidates.clear();
+    return messages;
+  }
+
+  // Adds the batched candidates or removals of |run| to |messages|.
+  private static void addRun(SignalingMessageEncoder encoder, SignalingMessageDecoder.Type type,
+      List<IceCandidate> run, List<String> messages) {
+    if (run.isEmpty()) {
+      return;
+    }
+    if (type == SignalingMessageDecoder.Type.REMOVE_CANDIDATES) {
+      messages.add(encoder.encodeCandidates("remove-candidates", run));
+    } else if (run.size() == 1) {
+      messages.add(encoder.encodeCandidate(run.get(0)));
+    } else {
+      messages.add(encoder.encodeCandidates("candidates", run));
+    }
+    run.clear();
+  }
+
+  // Drops the oldest candidates, then the oldest removals and other
+  // messages, until the queue fits.
+  private void trim() {
+    int excess = size() - MAX_QUEUED_MESSAGES;
+    excess = dropOldest(SignalingMessageDecoder.Type.CANDIDATE, candidates, excess);
+    excess = dropOldest(SignalingMessageDecoder.Type.REMOVE_CANDIDATES, removedCandidates, excess);
+    excess = dropOldest(null, null, excess);
+    if (excess > 0) {
+      Log.w(TAG, "Send queue holds " + size() + " SDP messages.");
+    }
+  }
+
+  // Drops the oldest items of |type|, or messages other than SDP if null,
+  // also removing them from |byKey|.
+  private int dropOldest(SignalingMessageDecoder.Type type, Map<String, Item> byKey, int excess) {
+    Iterator<Item> it = items.iterator();
+    while (excess > 0 && it.hasNext()) {
+      Item item = it.next();
+      boolean matches = type != null ? item.type == type
+                                     : item.type != SignalingMessageDecoder.Type.OFFER
+              && item.type != SignalingMessageDecoder.Type.ANSWER;
+      if (matches) {
+        it.remove();
+        if (byKey != null) {
+          byKey.remove(keyOf(item.candidate));
+        }
+        droppedCount++;
+        excess--;
+      }
+    }
+    return excess;
+  }
+
+  private static String keyOf(IceCandidate candidate) {
+    return candidate.sdpMid + "," + candidate.sdpMLineIndex + "," + candidate.sdp;
+  }
+}
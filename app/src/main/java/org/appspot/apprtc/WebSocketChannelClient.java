@@ -1,25 +1,41 @@
 package org.appspot.apprtc;
 
-import android.os.Handler;
+import android.os.SystemClock;
 import android.util.Log;
+import de.tavendo.autobahn.WebSocket;
 import de.tavendo.autobahn.WebSocket.WebSocketConnectionObserver;
 import de.tavendo.autobahn.WebSocketConnection;
 import de.tavendo.autobahn.WebSocketException;
+import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.util.ArrayList;
+import java.util.ArrayDeque;
 import java.util.List;
+import java.util.Random;
 import org.appspot.apprtc.util.AsyncHttpURLConnection;
 import org.appspot.apprtc.util.AsyncHttpURLConnection.AsyncHttpEvents;
-import org.json.JSONException;
-import org.json.JSONObject;
+import org.appspot.apprtc.util.SignalingLane;
 
 public class WebSocketChannelClient {
   private static final String TAG = "WSChannelRTCClient";
   private static final int CLOSE_TIMEOUT = 1000;
+  // Reconnect backoff: the delay doubles from the initial one up to the max
+  // one, half of it randomized so that clients dropped together do not
+  // reconnect together.
+  private static final int RECONNECT_INITIAL_DELAY_MS = 500;
+  private static final int RECONNECT_MAX_DELAY_MS = 8000;
+  private static final int RECONNECT_MAX_ATTEMPTS = 8;
+  // The WebSocket protocol has no acknowledgements, so candidates sent this
+  // long before a drop are assumed lost and are sent again after
+  // reconnecting. Duplicate candidates are ignored by the other party, while
+  // a duplicate offer or answer would fail its negotiation, so descriptions
+  // are never replayed.
+  private static final int REPLAY_WINDOW_MS = 3000;
+  private static final int REPLAY_QUEUE_SIZE = 64;
   private final WebSocketChannelEvents events;
-  private final Handler handler;
-  private WebSocketConnection ws;
+  private final SignalingLane lane;
+  private final WebSocketFactory webSocketFactory;
+  private WebSocket ws;
   private String wsServerUrl;
   private String postServerUrl;
   private String roomID;
@@ -28,11 +44,54 @@ public class WebSocketChannelClient {
   // Do not remove this member variable. If this is removed, the observer gets garbage collected and
   // this causes test breakages.
   private WebSocketObserver wsObserver;
-  private final Object closeEventLock = new Object();
-  private boolean closeEvent;
+  // Set while disconnect() waits for the close event. |closeCallback| runs
+  // once the connection closed, or on timeout.
+  private boolean closePending;
+  private Runnable closeCallback;
+  private long closeStartTimeMs;
+  private final Runnable closeTimeoutRunnable = () -> completeClose("timed out");
+  private long connectStartTimeMs;
+  private long connectDurationMs = -1;
   // WebSocket send queue. Messages are added to the queue when WebSocket
   // client is not registered and are consumed in register() call.
-  private final List<String> wsSendQueue = new ArrayList<>();
+  private final SignalingSendQueue wsSendQueue = new SignalingSendQueue();
+  // Used on the lane only.
+  private final SignalingMessageEncoder encoder = new SignalingMessageEncoder();
+  // Candidate messages recently sent while registered, oldest first, for
+  // replay.
+  private final ArrayDeque<SentMessage> replayQueue = new ArrayDeque<>();
+  private final Random random = new Random();
+  private final Runnable reconnectRunnable = this::reconnect;
+  // Reconnect attempts since the connection dropped, 0 if connected.
+  private int reconnectAttempt;
+  private long dropTimeMs;
+  private int reconnectCount;
+  private long lastReconnectLatencyMs = -1;
+  // Whether binary frames are offered at register, and whether the server
+  // replied to register accepting them on the current connection.
+  private boolean binaryFramingEnabled;
+  private boolean binaryFraming;
+  // Whether candidates queued while not registered may be sent as one
+  // "candidates" message.
+  private boolean candidateBatchingEnabled;
+
+  private static class SentMessage {
+    final SignalingMessageDecoder.SignalingMessage message;
+    final long sentTimeMs;
+
+    SentMessage(SignalingMessageDecoder.SignalingMessage message, long sentTimeMs) {
+      this.message = message;
+      this.sentTimeMs = sentTimeMs;
+    }
+  }
+
+  /**
+   * Creates the connection of each connect and reconnect attempt, on the lane
+   * of the client.
+   */
+  public interface WebSocketFactory {
+    WebSocket create();
+  }
 
   /**
    * Possible WebSocket connection states.
@@ -41,17 +100,38 @@ public class WebSocketChannelClient {
 
   /**
    * Callback interface for messages delivered on WebSocket.
-   * All events are dispatched from a looper executor thread.
+   * All events are dispatched on the lane of the client.
    */
   public interface WebSocketChannelEvents {
+    void onWebSocketRegistered();
+    /** Called once registered again after the connection dropped. */
+    void onWebSocketReconnected(long latencyMs);
     void onWebSocketMessage(final String message);
+    /** Called for messages of the other party received as binary frames. */
+    void onWebSocketSignalingMessage(SignalingMessageDecoder.SignalingMessage message);
     void onWebSocketClose();
     void onWebSocketError(final String description);
   }
 
-  public WebSocketChannelClient(Handler handler, WebSocketChannelEvents events) {
-    this.handler = handler;
+  /**
+   * Creates a client using autobahn WebSocketConnections, which post to a
+   * Handler of the thread creating them, so |lane| must run on a looper
+   * thread, such as the lanes of SignalingEventLoop.
+   */
+  public WebSocketChannelClient(SignalingLane lane, WebSocketChannelEvents events) {
+    this(lane, events, WebSocketConnection::new);
+  }
+
+  /**
+   * Creates a client whose connections come from |webSocketFactory|. With a
+   * WebSocket implementation that does not need a looper, |lane| can be a
+   * lane of SignalingExecutor.
+   */
+  public WebSocketChannelClient(
+      SignalingLane lane, WebSocketChannelEvents events, WebSocketFactory webSocketFactory) {
+    this.lane = lane;
     this.events = events;
+    this.webSocketFactory = webSocketFactory;
     roomID = null;
     clientID = null;
     state = WebSocketConnectionState.NEW;
@@ -61,6 +141,52 @@ public class WebSocketChannelClient {
     return state;
   }
 
+  /** Time from connect() to the WebSocket being open, or -1 if it is not open yet. */
+  public long getConnectDurationMs() {
+    return connectDurationMs;
+  }
+
+  /** Largest number of items queued while not registered. */
+  public int getSendQueueHighWaterMark() {
+    return wsSendQueue.getHighWaterMark();
+  }
+
+  /** Number of items dropped from the full send queue. */
+  public int getSendQueueDroppedCount() {
+    return wsSendQueue.getDroppedCount();
+  }
+
+  /** Number of times the connection dropped and was registered again. */
+  public int getReconnectCount() {
+    return reconnectCount;
+  }
+
+  /** Time from the last drop to being registered again, or -1 if none. */
+  public long getLastReconnectLatencyMs() {
+    return lastReconnectLatencyMs;
+  }
+
+  /**
+   * Offers binary signaling frames when registering. The server accepts with
+   * a text message whose "framing" is "binary", after which messages passed
+   * to send(SignalingMessage) are sent as binary frames. Until then, and with
+   * servers that ignore the offer, they are sent as JSON. Off by default.
+   * Must be called before connect().
+   */
+  public void setBinaryFramingEnabled(boolean enabled) {
+    binaryFramingEnabled = enabled;
+  }
+
+  /**
+   * Sets whether candidates queued while not registered are sent as one
+   * "candidates" message, which the other party must understand. Off by
+   * default: every candidate is sent on its own.
+   */
+  public void setCandidateBatchingEnabled(boolean enabled) {
+    checkIfCalledOnValidThread();
+    candidateBatchingEnabled = enabled;
+  }
+
   public void connect(final String wsUrl, final String postUrl) {
     checkIfCalledOnValidThread();
     if (state != WebSocketConnectionState.NEW) {
@@ -69,10 +195,15 @@ public class WebSocketChannelClient {
     }
     wsServerUrl = wsUrl;
     postServerUrl = postUrl;
-    closeEvent = false;
+    connectStartTimeMs = SystemClock.elapsedRealtime();
 
     Log.d(TAG, "Connecting WebSocket to: " + wsUrl + ". Post URL: " + postUrl);
-    ws = new WebSocketConnection();
+    openWebSocket();
+  }
+
+  private void openWebSocket() {
+    binaryFraming = false;
+    ws = webSocketFactory.create();
     wsObserver = new WebSocketObserver();
     try {
       ws.connect(new URI(wsServerUrl), wsObserver);
@@ -92,24 +223,31 @@ public class WebSocketChannelClient {
       return;
     }
     Log.d(TAG, "Registering WebSocket for room " + roomID + ". ClientID: " + clientID);
-    JSONObject json = new JSONObject();
-    try {
-      json.put("cmd", "register");
-      json.put("roomid", roomID);
-      json.put("clientid", clientID);
-      Log.d(TAG, "C->WSS: " + json.toString());
-      ws.sendTextMessage(json.toString());
-      state = WebSocketConnectionState.REGISTERED;
-      // Send any previously accumulated messages.
-      for (String sendMessage : wsSendQueue) {
-        send(sendMessage);
-      }
-      wsSendQueue.clear();
-    } catch (JSONException e) {
-      reportError("WebSocket register JSON error: " + e.getMessage());
+    String message = encoder.encodeRegister(roomID, clientID, binaryFramingEnabled);
+    Log.d(TAG, "C->WSS: " + message);
+    ws.sendTextMessage(message);
+    state = WebSocketConnectionState.REGISTERED;
+    // Send any previously accumulated messages, in order.
+    List<String> queuedMessages = wsSendQueue.drain(encoder, candidateBatchingEnabled);
+    for (String sendMessage : queuedMessages) {
+      send(sendMessage);
+    }
+    if (reconnectAttempt > 0) {
+      reconnectAttempt = 0;
+      reconnectCount++;
+      lastReconnectLatencyMs = SystemClock.elapsedRealtime() - dropTimeMs;
+      Log.d(TAG, "WebSocket reconnected in " + lastReconnectLatencyMs + " ms. Replayed "
+              + queuedMessages.size() + " messages.");
+      events.onWebSocketReconnected(lastReconnectLatencyMs);
+    } else {
+      events.onWebSocketRegistered();
     }
   }
 
+  /**
+   * Sends the JSON |message| as text. It is not replayed after a reconnect,
+   * send candidates with send(SignalingMessage) for that.
+   */
   public void send(String message) {
     checkIfCalledOnValidThread();
     switch (state) {
@@ -125,20 +263,46 @@ public class WebSocketChannelClient {
         Log.e(TAG, "WebSocket send() in error or closed state : " + message);
         return;
       case REGISTERED:
-        JSONObject json = new JSONObject();
-        try {
-          json.put("cmd", "send");
-          json.put("msg", message);
-          message = json.toString();
-          Log.d(TAG, "C->WSS: " + message);
-          ws.sendTextMessage(message);
-        } catch (JSONException e) {
-          reportError("WebSocket send JSON error: " + e.getMessage());
+        sendText(message);
+        break;
+    }
+  }
+
+  /**
+   * Sends |message|, as a binary frame if the server accepted binary framing
+   * and as JSON otherwise. Messages of type UNKNOWN cannot be sent.
+   */
+  public void send(SignalingMessageDecoder.SignalingMessage message) {
+    checkIfCalledOnValidThread();
+    switch (state) {
+      case NEW:
+      case CONNECTED:
+        Log.d(TAG, "WS ACC: " + message.typeName);
+        wsSendQueue.add(message);
+        return;
+      case ERROR:
+      case CLOSED:
+        Log.e(TAG, "WebSocket send() in error or closed state : " + message.typeName);
+        return;
+      case REGISTERED:
+        rememberForReplay(message);
+        if (binaryFraming) {
+          byte[] frame = SignalingBinaryCodec.encode(message);
+          Log.d(TAG, "C->WSS: binary " + message.typeName + ", " + frame.length + " bytes");
+          ws.sendBinaryMessage(frame);
+        } else {
+          sendText(encoder.encodeSignalingMessage(message));
         }
         break;
     }
   }
 
+  private void sendText(String message) {
+    message = encoder.encodeSend(message);
+    Log.d(TAG, "C->WSS: " + message);
+    ws.sendTextMessage(message);
+  }
+
   // This call can be used to send WebSocket messages before WebSocket
   // connection is opened.
   public void post(String message) {
@@ -146,42 +310,138 @@ public class WebSocketChannelClient {
     sendWSSMessage("POST", message);
   }
 
-  public void disconnect(boolean waitForComplete) {
+  /**
+   * Leaves the room and closes the connection without blocking. The "bye"
+   * message, the HTTP DELETE and the close handshake proceed concurrently.
+   * |onClosed|, if not null, runs on the lane once the server closed the
+   * connection, or after CLOSE_TIMEOUT; no events are delivered after that.
+   */
+  public void disconnect(final Runnable onClosed) {
     checkIfCalledOnValidThread();
     Log.d(TAG, "Disconnect WebSocket. State: " + state);
+    lane.cancel(reconnectRunnable);
+    if (reconnectAttempt > 0) {
+      // Waiting for the next reconnect attempt, or connecting. Leave the room
+      // over HTTP as the "bye" cannot be sent.
+      reconnectAttempt = 0;
+      sendWSSMessage("DELETE", "");
+      if (ws == null) {
+        state = WebSocketConnectionState.CLOSED;
+      }
+    }
     if (state == WebSocketConnectionState.REGISTERED) {
       // Send "bye" to WebSocket server.
-      send("{\"type\": \"bye\"}");
+      send(new SignalingMessageDecoder.SignalingMessage(
+          SignalingMessageDecoder.Type.BYE, "bye", null, null));
       state = WebSocketConnectionState.CONNECTED;
       // Send http DELETE to http WebSocket server.
       sendWSSMessage("DELETE", "");
     }
-    // Close WebSocket in CONNECTED or ERROR states only.
-    if (state == WebSocketConnectionState.CONNECTED || state == WebSocketConnectionState.ERROR) {
+    // Close WebSocket in CONNECTED or ERROR states, or while it is connecting.
+    if (state == WebSocketConnectionState.CONNECTED || state == WebSocketConnectionState.ERROR
+        || (state == WebSocketConnectionState.NEW && ws != null)) {
       ws.disconnect();
       state = WebSocketConnectionState.CLOSED;
-
-      // Wait for websocket close event to prevent websocket library from
-      // sending any pending messages to deleted looper thread.
-      if (waitForComplete) {
-        synchronized (closeEventLock) {
-          while (!closeEvent) {
-            try {
-              closeEventLock.wait(CLOSE_TIMEOUT);
-              break;
-            } catch (InterruptedException e) {
-              Log.e(TAG, "Wait error: " + e.toString());
-            }
-          }
-        }
-      }
+      // Wait for the close event before letting the owner release the
+      // lane, so that the WebSocket library does not post to it after.
+      closePending = true;
+      closeCallback = onClosed;
+      closeStartTimeMs = SystemClock.elapsedRealtime();
+      lane.executeDelayed(closeTimeoutRunnable, CLOSE_TIMEOUT);
+      return;
     }
+    state = WebSocketConnectionState.CLOSED;
     Log.d(TAG, "Disconnecting WebSocket done.");
+    if (onClosed != null) {
+      onClosed.run();
+    }
+  }
+
+  // Ends a disconnect() waiting for the close event.
+  private void completeClose(String result) {
+    if (!closePending) {
+      return;
+    }
+    lane.cancel(closeTimeoutRunnable);
+    closePending = false;
+    Runnable callback = closeCallback;
+    closeCallback = null;
+    Log.d(TAG, "Disconnecting WebSocket done. Close " + result + " after "
+            + (SystemClock.elapsedRealtime() - closeStartTimeMs) + " ms.");
+    if (callback != null) {
+      callback.run();
+    }
+  }
+
+  // Keeps |message| for replay if it carries candidates or candidate
+  // removals, which can safely be sent twice.
+  private void rememberForReplay(SignalingMessageDecoder.SignalingMessage message) {
+    if (message.type != SignalingMessageDecoder.Type.CANDIDATE
+        && message.type != SignalingMessageDecoder.Type.REMOVE_CANDIDATES) {
+      return;
+    }
+    long nowMs = SystemClock.elapsedRealtime();
+    replayQueue.add(new SentMessage(message, nowMs));
+    trimReplayQueue(nowMs);
+  }
+
+  // Drops replay queue messages older than the replay window.
+  private void trimReplayQueue(long nowMs) {
+    while (!replayQueue.isEmpty()
+        && (replayQueue.size() > REPLAY_QUEUE_SIZE
+               || replayQueue.peek().sentTimeMs < nowMs - REPLAY_WINDOW_MS)) {
+      replayQueue.poll();
+    }
+  }
+
+  // Called when the registered connection dropped. Keeps the room and client
+  // IDs and queues the possibly lost candidates with the messages sent while
+  // reconnecting. Returns false if the drop cannot be recovered from.
+  private boolean startReconnect() {
+    if (roomID == null || clientID == null) {
+      return false;
+    }
+    dropTimeMs = SystemClock.elapsedRealtime();
+    trimReplayQueue(dropTimeMs);
+    int lostCount = replayQueue.size();
+    for (SentMessage sentMessage : replayQueue) {
+      wsSendQueue.add(sentMessage.message);
+    }
+    replayQueue.clear();
+    Log.w(TAG, "WebSocket connection dropped. " + lostCount + " messages will be replayed.");
+    scheduleReconnect();
+    return true;
+  }
+
+  // Schedules the next reconnect attempt. Returns false once out of attempts.
+  private boolean scheduleReconnect() {
+    if (reconnectAttempt >= RECONNECT_MAX_ATTEMPTS) {
+      Log.e(TAG, "WebSocket reconnect failed after " + reconnectAttempt + " attempts.");
+      reconnectAttempt = 0;
+      return false;
+    }
+    int delayMs = Math.min(
+        RECONNECT_MAX_DELAY_MS, RECONNECT_INITIAL_DELAY_MS << Math.min(reconnectAttempt, 16));
+    delayMs = delayMs / 2 + random.nextInt(delayMs / 2 + 1);
+    reconnectAttempt++;
+    state = WebSocketConnectionState.NEW;
+    ws = null;
+    Log.d(TAG, "WebSocket reconnect attempt " + reconnectAttempt + " in " + delayMs + " ms.");
+    lane.executeDelayed(reconnectRunnable, delayMs);
+    return true;
+  }
+
+  private void reconnect() {
+    if (state != WebSocketConnectionState.NEW || reconnectAttempt == 0) {
+      return;
+    }
+    Log.d(TAG, "Reconnecting WebSocket to: " + wsServerUrl);
+    openWebSocket();
   }
 
   private void reportError(final String errorMessage) {
     Log.e(TAG, errorMessage);
-    handler.post(new Runnable() {
+    lane.execute(new Runnable() {
       @Override
       public void run() {
         if (state != WebSocketConnectionState.ERROR) {
@@ -210,19 +470,41 @@ public class WebSocketChannelClient {
   }
 
   // Helper method for debugging purposes. Ensures that WebSocket method is
-  // called on a looper thread.
+  // called on the lane.
   private void checkIfCalledOnValidThread() {
-    if (Thread.currentThread() != handler.getLooper().getThread()) {
+    if (!lane.isCurrentThread()) {
       throw new IllegalStateException("WebSocket method is not called on valid thread");
     }
   }
 
+  // Returns true if |message| is the reply of the server to register
+  // accepting binary framing, which carries no signaling message.
+  private static boolean isBinaryFramingAccepted(String message) {
+    if (!message.contains("\"framing\"")) {
+      return false;
+    }
+    try {
+      SignalingMessageDecoder.WebSocketMessage wsMessage =
+          SignalingMessageDecoder.decodeWebSocketMessage(message);
+      return wsMessage.message == null && wsMessage.framing.equals("binary");
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
   private class WebSocketObserver implements WebSocketConnectionObserver {
     @Override
     public void onOpen() {
       Log.d(TAG, "WebSocket connection opened to: " + wsServerUrl);
-      handler.post(() -> {
+      lane.execute(() -> {
+        if (this != wsObserver || state == WebSocketConnectionState.CLOSED) {
+          // Disconnected while connecting, or replaced by a reconnect.
+          return;
+        }
         state = WebSocketConnectionState.CONNECTED;
+        if (connectDurationMs < 0) {
+          connectDurationMs = SystemClock.elapsedRealtime() - connectStartTimeMs;
+        }
         // Check if we have pending register request.
         if (roomID != null && clientID != null) {
           register(roomID, clientID);
@@ -234,12 +516,25 @@ public class WebSocketChannelClient {
     public void onClose(WebSocketCloseNotification code, String reason) {
       Log.d(TAG, "WebSocket connection closed. Code: " + code + ". Reason: " + reason + ". State: "
               + state);
-      synchronized (closeEventLock) {
-        closeEvent = true;
-        closeEventLock.notify();
-      }
-      handler.post(() -> {
-        if (state != WebSocketConnectionState.CLOSED) {
+      lane.execute(() -> {
+        if (this != wsObserver) {
+          return;
+        }
+        if (state == WebSocketConnectionState.CLOSED) {
+          completeClose("completed");
+          return;
+        }
+        // Keep the call going over a new connection if it dropped after
+        // registering, or while reconnecting.
+        boolean recovering;
+        if (reconnectAttempt > 0) {
+          recovering = scheduleReconnect();
+        } else if (state == WebSocketConnectionState.REGISTERED) {
+          recovering = startReconnect();
+        } else {
+          recovering = false;
+        }
+        if (!recovering) {
           state = WebSocketConnectionState.CLOSED;
           events.onWebSocketClose();
         }
@@ -250,7 +545,16 @@ public class WebSocketChannelClient {
     public void onTextMessage(String payload) {
       Log.d(TAG, "WSS->C: " + payload);
       final String message = payload;
-      handler.post(() -> {
+      lane.execute(() -> {
+        if (this != wsObserver) {
+          return;
+        }
+        if (state == WebSocketConnectionState.REGISTERED && binaryFramingEnabled
+            && !binaryFraming && isBinaryFramingAccepted(message)) {
+          binaryFraming = true;
+          Log.d(TAG, "WebSocket server accepted binary framing.");
+          return;
+        }
         if (state == WebSocketConnectionState.CONNECTED
             || state == WebSocketConnectionState.REGISTERED) {
           events.onWebSocketMessage(message);
@@ -262,6 +566,25 @@ public class WebSocketChannelClient {
     public void onRawTextMessage(byte[] payload) {}
 
     @Override
-    public void onBinaryMessage(byte[] payload) {}
+    public void onBinaryMessage(final byte[] payload) {
+      Log.d(TAG, "WSS->C: binary, " + payload.length + " bytes");
+      lane.execute(() -> {
+        if (this != wsObserver || state != WebSocketConnectionState.REGISTERED) {
+          return;
+        }
+        if (!binaryFraming) {
+          reportError("Unexpected binary WebSocket message.");
+          return;
+        }
+        SignalingMessageDecoder.SignalingMessage message;
+        try {
+          message = SignalingBinaryCodec.decode(payload);
+        } catch (IOException e) {
+          reportError("WebSocket binary message error: " + e.getMessage());
+          return;
+        }
+        events.onWebSocketSignalingMessage(message);
+      });
+    }
   }
 }
@@ -15,14 +15,20 @@ import org.appspot.apprtc.WebSocketChannelClient.WebSocketChannelEvents;
 import org.appspot.apprtc.WebSocketChannelClient.WebSocketConnectionState;
 import org.appspot.apprtc.util.AsyncHttpURLConnection;
 import org.appspot.apprtc.util.AsyncHttpURLConnection.AsyncHttpEvents;
+import org.appspot.apprtc.util.HttpRequestExecutor;
+import org.appspot.apprtc.util.SignalingEventLoop;
+import org.appspot.apprtc.util.SignalingLane;
 
-import android.os.Handler;
-import android.os.HandlerThread;
+import android.os.SystemClock;
 import android.util.Log;
+import de.tavendo.autobahn.WebSocketConnection;
 
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import org.webrtc.IceCandidate;
 import org.webrtc.SessionDescription;
 
@@ -46,7 +52,29 @@ public class WebSocketRTCClient implements AppRTCClient, WebSocketChannelEvents
 
   private enum MessageType { MESSAGE, LEAVE }
 
-  private final Handler handler;
+  /**
+   * Receives the join phase timings once the WebSocket is registered.
+   */
+  public interface JoinTimingsListener {
+    void onJoinTimings(JoinTimings timings);
+  }
+
+  // WebSocket URLs last returned by each room server, used to open the
+  // WebSocket while the room request is still in flight.
+  private static final Map<String, WebSocketUrls> webSocketUrls = new HashMap<>();
+
+  private static class WebSocketUrls {
+    final String wssUrl;
+    final String wssPostUrl;
+
+    WebSocketUrls(String wssUrl, String wssPostUrl) {
+      this.wssUrl = wssUrl;
+      this.wssPostUrl = wssPostUrl;
+    }
+  }
+
+  private final SignalingLane lane;
+  private final WebSocketChannelClient.WebSocketFactory webSocketFactory;
   private boolean initiator;
   private SignalingEvents events;
   private WebSocketChannelClient wsClient;
@@ -54,12 +82,70 @@ public class WebSocketRTCClient implements AppRTCClient, WebSocketChannelEvents
   private RoomConnectionParameters connectionParameters;
   private String messageUrl;
   private String leaveUrl;
+  // Local candidates of the call initiator waiting to be posted to the room
+  // server as a single "candidates" message.
+  private final List<IceCandidate> pendingCandidates = new ArrayList<>();
+  private final Runnable flushCandidatesRunnable = this::flushPendingCandidates;
+  // Used on the lane only.
+  private final SignalingMessageEncoder encoder = new SignalingMessageEncoder();
+  private int iceCandidateBatchWindowMs;
+  private int postRequestsSaved;
+  private RoomParametersFetcher roomParametersFetcher;
+  // WebSocket URLs the WebSocket was opened to before the room response, or
+  // null if it was not.
+  private WebSocketUrls speculativeUrls;
+  private long joinStartTimeMs;
+  private JoinTimingsListener joinTimingsListener;
+  private boolean binaryFramingEnabled;
 
+  /**
+   * Creates a client running on a lane of SignalingEventLoop, using autobahn
+   * WebSocketConnections.
+   */
   public WebSocketRTCClient(SignalingEvents events) {
+    this(events, SignalingEventLoop.getInstance().acquire(), WebSocketConnection::new);
+  }
+
+  /**
+   * Creates a client running on |lane|, e.g. a lane of SignalingExecutor
+   * for load tests without Android loopers, whose WebSocket connections come
+   * from |webSocketFactory|. The lane is released once disconnected.
+   */
+  public WebSocketRTCClient(SignalingEvents events, SignalingLane lane,
+      WebSocketChannelClient.WebSocketFactory webSocketFactory) {
     this.events = events;
-    final HandlerThread handlerThread = new HandlerThread(TAG);
-    handlerThread.start();
-    handler = new Handler(handlerThread.getLooper());
+    this.lane = lane;
+    this.webSocketFactory = webSocketFactory;
+  }
+
+  /**
+   * Coalesces the initiator's local ICE candidates produced within |windowMs|
+   * into one room server message. Zero, the default, posts every candidate on
+   * its own, which is what the appr.tc web client expects. Both peers must
+   * understand "candidates" messages for batching to be enabled. Also
+   * batches the receiver's candidates queued before the WebSocket registers.
+   */
+  public void setIceCandidateBatchWindowMs(final int windowMs) {
+    lane.execute(() -> {
+      iceCandidateBatchWindowMs = windowMs;
+      if (wsClient != null) {
+        wsClient.setCandidateBatchingEnabled(windowMs > 0);
+      }
+    });
+  }
+
+  public void setJoinTimingsListener(final JoinTimingsListener listener) {
+    lane.execute(() -> joinTimingsListener = listener);
+  }
+
+  /**
+   * Sets whether to offer binary signaling frames to the WebSocket server
+   * when registering. Disabled by default; JSON is used unless the server
+   * replies to register accepting them. Takes effect on the next room
+   * connection.
+   */
+  public void setBinaryFramingEnabled(final boolean enabled) {
+    lane.execute(() -> binaryFramingEnabled = enabled);
   }
 
   // --------------------------------------------------------------------
@@ -69,15 +155,16 @@ public class WebSocketRTCClient implements AppRTCClient, WebSocketChannelEvents
   @Override
   public void connectToRoom(RoomConnectionParameters connectionParameters) {
     this.connectionParameters = connectionParameters;
-    handler.post(() -> {
+    lane.execute(() -> {
       String connectionUrl = connectionParameters.roomUrl + "/" + ROOM_JOIN + "/" + connectionParameters.roomId;
       roomState = ConnectionState.NEW;
-      wsClient = new WebSocketChannelClient(handler, this);
+      joinStartTimeMs = SystemClock.elapsedRealtime();
+      wsClient = createWebSocketChannelClient();
 
       RoomParametersFetcherEvents callbacks = new RoomParametersFetcherEvents() {
         @Override
         public void onSignalingParametersReady(final SignalingParameters params) {
-          WebSocketRTCClient.this.handler.post(() -> WebSocketRTCClient.this.signalingParametersReady(params));
+          WebSocketRTCClient.this.lane.execute(() -> WebSocketRTCClient.this.signalingParametersReady(params));
         }
 
         @Override
@@ -86,35 +173,64 @@ public class WebSocketRTCClient implements AppRTCClient, WebSocketChannelEvents
         }
       };
 
-      new RoomParametersFetcher(connectionUrl, null, callbacks).makeRequest();
+      roomParametersFetcher = new RoomParametersFetcher(connectionUrl, null, callbacks);
+      roomParametersFetcher.makeRequest();
+
+      // The WebSocket server rarely changes, so connect to the previous one
+      // while the room request is in flight. Registration waits for the room
+      // response.
+      synchronized (webSocketUrls) {
+        speculativeUrls = webSocketUrls.get(connectionParameters.roomUrl);
+      }
+      if (speculativeUrls != null) {
+        Log.d(TAG, "Speculative WebSocket connect to: " + speculativeUrls.wssUrl);
+        wsClient.connect(speculativeUrls.wssUrl, speculativeUrls.wssPostUrl);
+      }
     });
   }
 
   @Override
   public void disconnectFromRoom() {
-    handler.post(new Runnable() {
-      @Override
-      public void run() {
-        disconnectFromRoomInternal();
-        handler.getLooper().quit();
-      }
-    });
+    lane.execute(() -> disconnectFromRoomInternal(lane::release));
   }
 
-  // Disconnect from room and send bye messages - runs on a local looper thread.
-  private void disconnectFromRoomInternal() {
+  // Disconnect from room and send bye messages - runs on the signaling lane.
+  // Does not block: |onDisconnected| runs on the lane once the WebSocket is
+  // closed.
+  private void disconnectFromRoomInternal(final Runnable onDisconnected) {
     Log.d(TAG, "Disconnect. Room state: " + roomState);
+    lane.cancel(flushCandidatesRunnable);
+    if (!pendingCandidates.isEmpty()) {
+      Log.d(TAG, "Dropping " + pendingCandidates.size() + " unsent ICE candidates.");
+      pendingCandidates.clear();
+    }
+    Log.d(TAG, "Room POST requests saved by candidate batching: " + postRequestsSaved);
     if (roomState == ConnectionState.CONNECTED) {
       Log.d(TAG, "Closing room.");
       sendPostMessage(MessageType.LEAVE, leaveUrl, null);
     }
     roomState = ConnectionState.CLOSED;
     if (wsClient != null) {
-      wsClient.disconnect(true);
+      Log.d(TAG, "WebSocket reconnects: " + wsClient.getReconnectCount()
+              + ". Last reconnect latency: " + wsClient.getLastReconnectLatencyMs() + " ms"
+              + ". Send queue high-water mark: " + wsClient.getSendQueueHighWaterMark()
+              + ". Dropped: " + wsClient.getSendQueueDroppedCount());
+      wsClient.disconnect(onDisconnected);
+    } else {
+      onDisconnected.run();
     }
+    HttpRequestExecutor httpExecutor = HttpRequestExecutor.getInstance();
+    Log.d(TAG, "HTTP requests: " + httpExecutor.getCompletedRequestCount()
+            + ". Average latency: " + httpExecutor.getAverageLatencyMs() + " ms"
+            + ". Average queue wait: " + httpExecutor.getAverageQueueWaitMs() + " ms"
+            + ". Max queue depth: " + httpExecutor.getMaxQueueDepth());
+    IceServerCache iceServerCache = IceServerCache.getInstance();
+    Log.d(TAG, "TURN server cache hits: " + iceServerCache.getHitCount()
+            + ". Misses: " + iceServerCache.getMissCount()
+            + ". Background refreshes: " + iceServerCache.getRefreshCount());
   }
 
-  // Callback issued when room parameters are extracted. Runs on local looper thread
+  // Callback issued when room parameters are extracted. Runs on the lane.
   private void signalingParametersReady(final SignalingParameters signalingParameters) {
     if (connectionParameters.loopback && (!signalingParameters.initiator || signalingParameters.offerSdp != null)) {
       reportError("Loopback room is busy.");
@@ -131,23 +247,36 @@ public class WebSocketRTCClient implements AppRTCClient, WebSocketChannelEvents
     // Fire connection and signaling parameters events.
     events.onConnectedToRoom(signalingParameters);
 
-    // Connect and register WebSocket client.
-    wsClient.connect(signalingParameters.wssUrl, signalingParameters.wssPostUrl);
+    // Connect and register WebSocket client, reusing the speculative
+    // connection if it went to the right server and is still usable.
+    synchronized (webSocketUrls) {
+      webSocketUrls.put(connectionParameters.roomUrl,
+          new WebSocketUrls(signalingParameters.wssUrl, signalingParameters.wssPostUrl));
+    }
+    WebSocketConnectionState wsState = wsClient.getState();
+    if (speculativeUrls == null || !speculativeUrls.wssUrl.equals(signalingParameters.wssUrl)
+        || !speculativeUrls.wssPostUrl.equals(signalingParameters.wssPostUrl)
+        || wsState == WebSocketConnectionState.ERROR || wsState == WebSocketConnectionState.CLOSED) {
+      if (speculativeUrls != null) {
+        Log.d(TAG, "Speculative WebSocket not usable. State: " + wsState);
+        wsClient.disconnect(null);
+        wsClient = createWebSocketChannelClient();
+        speculativeUrls = null;
+      }
+      wsClient.connect(signalingParameters.wssUrl, signalingParameters.wssPostUrl);
+    }
     wsClient.register(connectionParameters.roomId, signalingParameters.clientId);
   }
 
   // Send local offer SDP to the other participant.
   @Override
   public void sendOfferSdp(final SessionDescription sdp) {
-    handler.post(() -> {
+    lane.execute(() -> {
       if (roomState != ConnectionState.CONNECTED) {
         reportError("Sending offer SDP in non connected state.");
         return;
       }
-      JSONObject json = new JSONObject();
-      jsonPut(json, "sdp", sdp.description);
-      jsonPut(json, "type", "offer");
-      sendPostMessage(MessageType.MESSAGE, messageUrl, json.toString());
+      sendPostMessage(MessageType.MESSAGE, messageUrl, encoder.encodeSessionDescription(sdp));
       if (connectionParameters.loopback) {
         // In loopback mode rename this offer to answer and route it back.
         SessionDescription sdpAnswer = new SessionDescription(
@@ -160,17 +289,15 @@ public class WebSocketRTCClient implements AppRTCClient, WebSocketChannelEvents
   // Send local answer SDP to the other participant.
   @Override
   public void sendAnswerSdp(final SessionDescription sdp) {
-    handler.post(new Runnable() {
+    lane.execute(new Runnable() {
       @Override
       public void run() {
         if (connectionParameters.loopback) {
           Log.e(TAG, "Sending answer in loopback mode.");
           return;
         }
-        JSONObject json = new JSONObject();
-        jsonPut(json, "sdp", sdp.description);
-        jsonPut(json, "type", "answer");
-        wsClient.send(json.toString());
+        wsClient.send(new SignalingMessageDecoder.SignalingMessage(
+            SignalingMessageDecoder.Type.ANSWER, "answer", sdp, null));
       }
     });
   }
@@ -178,27 +305,31 @@ public class WebSocketRTCClient implements AppRTCClient, WebSocketChannelEvents
   // Send Ice candidate to the other participant.
   @Override
   public void sendLocalIceCandidate(final IceCandidate candidate) {
-    handler.post(new Runnable() {
+    lane.execute(new Runnable() {
       @Override
       public void run() {
-        JSONObject json = new JSONObject();
-        jsonPut(json, "type", "candidate");
-        jsonPut(json, "label", candidate.sdpMLineIndex);
-        jsonPut(json, "id", candidate.sdpMid);
-        jsonPut(json, "candidate", candidate.sdp);
         if (initiator) {
           // Call initiator sends ice candidates to GAE server.
           if (roomState != ConnectionState.CONNECTED) {
             reportError("Sending ICE candidate in non connected state.");
             return;
           }
-          sendPostMessage(MessageType.MESSAGE, messageUrl, json.toString());
+          if (iceCandidateBatchWindowMs > 0) {
+            pendingCandidates.add(candidate);
+            if (pendingCandidates.size() == 1) {
+              lane.executeDelayed(flushCandidatesRunnable, iceCandidateBatchWindowMs);
+            }
+          } else {
+            sendPostMessage(MessageType.MESSAGE, messageUrl, encoder.encodeCandidate(candidate));
+          }
           if (connectionParameters.loopback) {
             events.onRemoteIceCandidate(candidate);
           }
         } else {
           // Call receiver sends ice candidates to websocket server.
-          wsClient.send(json.toString());
+          wsClient.send(new SignalingMessageDecoder.SignalingMessage(
+              SignalingMessageDecoder.Type.CANDIDATE, "candidate", null,
+              new IceCandidate[] {candidate}));
         }
       }
     });
@@ -207,29 +338,27 @@ public class WebSocketRTCClient implements AppRTCClient, WebSocketChannelEvents
   // Send removed Ice candidates to the other participant.
   @Override
   public void sendLocalIceCandidateRemovals(final IceCandidate[] candidates) {
-    handler.post(new Runnable() {
+    lane.execute(new Runnable() {
       @Override
       public void run() {
-        JSONObject json = new JSONObject();
-        jsonPut(json, "type", "remove-candidates");
-        JSONArray jsonArray = new JSONArray();
-        for (final IceCandidate candidate : candidates) {
-          jsonArray.put(toJsonCandidate(candidate));
-        }
-        jsonPut(json, "candidates", jsonArray);
         if (initiator) {
           // Call initiator sends ice candidates to GAE server.
           if (roomState != ConnectionState.CONNECTED) {
             reportError("Sending ICE candidate removals in non connected state.");
             return;
           }
-          sendPostMessage(MessageType.MESSAGE, messageUrl, json.toString());
+          // Removals must not overtake the candidates they refer to.
+          flushPendingCandidates();
+          sendPostMessage(MessageType.MESSAGE, messageUrl,
+              encoder.encodeCandidates("remove-candidates", Arrays.asList(candidates)));
           if (connectionParameters.loopback) {
             events.onRemoteIceCandidatesRemoved(candidates);
           }
         } else {
           // Call receiver sends ice candidates to websocket server.
-          wsClient.send(json.toString());
+          wsClient.send(new SignalingMessageDecoder.SignalingMessage(
+              SignalingMessageDecoder.Type.REMOVE_CANDIDATES, "remove-candidates", null,
+              candidates));
         }
       }
     });
@@ -237,8 +366,27 @@ public class WebSocketRTCClient implements AppRTCClient, WebSocketChannelEvents
 
   // --------------------------------------------------------------------
   // WebSocketChannelEvents interface implementation.
-  // All events are called by WebSocketChannelClient on a local looper thread
-  // (passed to WebSocket client constructor).
+  // All events are called by WebSocketChannelClient on the lane passed to its
+  // constructor.
+  @Override
+  public void onWebSocketRegistered() {
+    JoinTimings timings = new JoinTimings(roomParametersFetcher.getRoomRequestMs(),
+        roomParametersFetcher.getRoomParseMs(), roomParametersFetcher.getTurnRequestMs(),
+        roomParametersFetcher.getTurnWaitMs(), wsClient.getConnectDurationMs(),
+        speculativeUrls != null, SystemClock.elapsedRealtime() - joinStartTimeMs);
+    Log.d(TAG, "Joined room. " + timings);
+    if (joinTimingsListener != null) {
+      joinTimingsListener.onJoinTimings(timings);
+    }
+  }
+
+  @Override
+  public void onWebSocketReconnected(long latencyMs) {
+    // The peer connection does not depend on the signaling channel, so the
+    // call went on while reconnecting.
+    Log.d(TAG, "Signaling channel restored in " + latencyMs + " ms.");
+  }
+
   @Override
   public void onWebSocketMessage(final String msg) {
     if (wsClient.getState() != WebSocketConnectionState.REGISTERED) {
@@ -246,72 +394,107 @@ public class WebSocketRTCClient implements AppRTCClient, WebSocketChannelEvents
       return;
     }
     try {
-      JSONObject json = new JSONObject(msg);
-      String msgText = json.getString("msg");
-      String errorText = json.optString("error");
-      if (msgText.length() > 0) {
-        json = new JSONObject(msgText);
-        String type = json.optString("type");
-        if (type.equals("candidate")) {
-          events.onRemoteIceCandidate(toJavaCandidate(json));
-        } else if (type.equals("remove-candidates")) {
-          JSONArray candidateArray = json.getJSONArray("candidates");
-          IceCandidate[] candidates = new IceCandidate[candidateArray.length()];
-          for (int i = 0; i < candidateArray.length(); ++i) {
-            candidates[i] = toJavaCandidate(candidateArray.getJSONObject(i));
-          }
-          events.onRemoteIceCandidatesRemoved(candidates);
-        } else if (type.equals("answer")) {
-          if (initiator) {
-            SessionDescription sdp = new SessionDescription(
-                SessionDescription.Type.fromCanonicalForm(type), json.getString("sdp"));
-            events.onRemoteDescription(sdp);
-          } else {
-            reportError("Received answer for call initiator: " + msg);
-          }
-        } else if (type.equals("offer")) {
-          if (!initiator) {
-            SessionDescription sdp = new SessionDescription(
-                SessionDescription.Type.fromCanonicalForm(type), json.getString("sdp"));
-            events.onRemoteDescription(sdp);
-          } else {
-            reportError("Received offer for call receiver: " + msg);
-          }
-        } else if (type.equals("bye")) {
-          events.onChannelClose();
-        } else {
-          reportError("Unexpected WebSocket message: " + msg);
-        }
+      SignalingMessageDecoder.WebSocketMessage wsMessage =
+          SignalingMessageDecoder.decodeWebSocketMessage(msg);
+      if (wsMessage.message != null) {
+        onSignalingMessage(wsMessage.message, msg);
       } else {
-        if (errorText != null && errorText.length() > 0) {
-          reportError("WebSocket error message: " + errorText);
+        if (wsMessage.error.length() > 0) {
+          reportError("WebSocket error message: " + wsMessage.error);
         } else {
           reportError("Unexpected WebSocket message: " + msg);
         }
       }
-    } catch (JSONException e) {
+    } catch (IOException e) {
       reportError("WebSocket message JSON parsing error: " + e.toString());
     }
   }
 
+  @Override
+  public void onWebSocketSignalingMessage(SignalingMessageDecoder.SignalingMessage message) {
+    if (wsClient.getState() != WebSocketConnectionState.REGISTERED) {
+      Log.e(TAG, "Got WebSocket message in non registered state.");
+      return;
+    }
+    onSignalingMessage(message, "binary " + message.typeName);
+  }
+
+  // Handles a message of the other participant. |description| identifies the
+  // message in errors.
+  private void onSignalingMessage(
+      SignalingMessageDecoder.SignalingMessage message, String description) {
+    switch (message.type) {
+      case CANDIDATE:
+        for (IceCandidate candidate : message.candidates) {
+          events.onRemoteIceCandidate(candidate);
+        }
+        break;
+      case REMOVE_CANDIDATES:
+        events.onRemoteIceCandidatesRemoved(message.candidates);
+        break;
+      case ANSWER:
+        if (initiator) {
+          events.onRemoteDescription(message.sdp);
+        } else {
+          reportError("Received answer for call initiator: " + description);
+        }
+        break;
+      case OFFER:
+        if (!initiator) {
+          events.onRemoteDescription(message.sdp);
+        } else {
+          reportError("Received offer for call receiver: " + description);
+        }
+        break;
+      case BYE:
+        events.onChannelClose();
+        break;
+      default:
+        reportError("Unexpected WebSocket message: " + description);
+    }
+  }
+
   @Override
   public void onWebSocketClose() {
+    if (isSpeculativeWebSocketPending()) {
+      Log.w(TAG, "Speculative WebSocket closed.");
+      return;
+    }
     events.onChannelClose();
   }
 
   @Override
   public void onWebSocketError(String description) {
+    if (isSpeculativeWebSocketPending()) {
+      // The WebSocket is reconnected once the room response arrives.
+      Log.w(TAG, "Speculative WebSocket error: " + description);
+      return;
+    }
     reportError("WebSocket error: " + description);
   }
 
+  private WebSocketChannelClient createWebSocketChannelClient() {
+    WebSocketChannelClient client = new WebSocketChannelClient(lane, this, webSocketFactory);
+    client.setBinaryFramingEnabled(binaryFramingEnabled);
+    client.setCandidateBatchingEnabled(iceCandidateBatchWindowMs > 0);
+    return client;
+  }
+
+  // Returns true while the speculatively opened WebSocket waits for the room
+  // response; its failures are not reported to the app.
+  private boolean isSpeculativeWebSocketPending() {
+    return speculativeUrls != null && roomState == ConnectionState.NEW;
+  }
+
   // --------------------------------------------------------------------
   // Helper functions.
   private void reportError(final String errorMessage) {
     Log.e(TAG, errorMessage);
-    handler.post(new Runnable() {
+    lane.execute(new Runnable() {
       @Override
       public void run() {
-        if (roomState != ConnectionState.ERROR) {
+        // The lane outlives the client, so ignore errors after disconnecting.
+        if (roomState != ConnectionState.ERROR && roomState != ConnectionState.CLOSED) {
           roomState = ConnectionState.ERROR;
           events.onChannelError(errorMessage);
         }
@@ -319,13 +502,23 @@ public class WebSocketRTCClient implements AppRTCClient, WebSocketChannelEvents
     });
   }
 
-  // Put a |key|->|value| mapping in |json|.
-  private static void jsonPut(JSONObject json, String key, Object value) {
-    try {
-      json.put(key, value);
-    } catch (JSONException e) {
-      throw new RuntimeException(e);
+  // Posts the batched local candidates of the call initiator in one message.
+  private void flushPendingCandidates() {
+    lane.cancel(flushCandidatesRunnable);
+    if (pendingCandidates.isEmpty() || roomState != ConnectionState.CONNECTED) {
+      pendingCandidates.clear();
+      return;
+    }
+    String message;
+    if (pendingCandidates.size() == 1) {
+      message = encoder.encodeCandidate(pendingCandidates.get(0));
+    } else {
+      message = encoder.encodeCandidates("candidates", pendingCandidates);
+      postRequestsSaved += pendingCandidates.size() - 1;
     }
+    Log.d(TAG, "Posting " + pendingCandidates.size() + " batched ICE candidates.");
+    pendingCandidates.clear();
+    sendPostMessage(MessageType.MESSAGE, messageUrl, message);
   }
 
   // Send SDP or ICE candidate to a room server.
@@ -347,12 +540,11 @@ public class WebSocketRTCClient implements AppRTCClient, WebSocketChannelEvents
           public void onHttpComplete(String response) {
             if (messageType == MessageType.MESSAGE) {
               try {
-                JSONObject roomJson = new JSONObject(response);
-                String result = roomJson.getString("result");
+                String result = SignalingMessageDecoder.decodeResult(response);
                 if (!result.equals("SUCCESS")) {
                   reportError("GAE POST error: " + result);
                 }
-              } catch (JSONException e) {
+              } catch (IOException e) {
                 reportError("GAE POST JSON error: " + e.toString());
               }
             }
@@ -360,19 +552,4 @@ public class WebSocketRTCClient implements AppRTCClient, WebSocketChannelEvents
         });
     httpConnection.send();
   }
-
-  // Converts a Java candidate to a JSONObject.
-  private JSONObject toJsonCandidate(final IceCandidate candidate) {
-    JSONObject json = new JSONObject();
-    jsonPut(json, "label", candidate.sdpMLineIndex);
-    jsonPut(json, "id", candidate.sdpMid);
-    jsonPut(json, "candidate", candidate.sdp);
-    return json;
-  }
-
-  // Converts a JSON candidate to a Java object.
-  IceCandidate toJavaCandidate(JSONObject json) throws JSONException {
-    return new IceCandidate(
-        json.getString("id"), json.getInt("label"), json.getString("candidate"));
-  }
 }
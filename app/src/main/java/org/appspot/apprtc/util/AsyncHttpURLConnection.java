@@ -20,6 +20,9 @@ import java.util.Scanner;
 
 /**
  * Asynchronous http requests implementation.
+ *
+ * <p>Requests run on the shared HttpRequestExecutor. Requests to the same URL
+ * complete in the order they were sent.
  */
 public class AsyncHttpURLConnection {
   private static final int HTTP_TIMEOUT_MS = 8000;
@@ -50,7 +53,9 @@ public class AsyncHttpURLConnection {
   }
 
   public void send() {
-    new Thread(this ::sendHttpMessage).start();
+    if (!HttpRequestExecutor.getInstance().submit(url, method + " " + url, this::sendHttpMessage)) {
+      events.onHttpError("HTTP " + method + " to " + url + " rejected: too many pending requests");
+    }
   }
 
   private void sendHttpMessage() {
@@ -94,10 +99,11 @@ public class AsyncHttpURLConnection {
         connection.disconnect();
         return;
       }
+      // Fully read and close the response but keep the connection so that it
+      // can be reused by the next request to the same host.
       InputStream responseStream = connection.getInputStream();
       String response = drainStream(responseStream);
       responseStream.close();
-      connection.disconnect();
       events.onHttpComplete(response);
     } catch (SocketTimeoutException e) {
       events.onHttpError("HTTP " + method + " to " + url + " timeout");
@@ -0,0 +1,65 @@
+/*
+ *  Copyright 2015 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc.util;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Pool of ByteBuffers of a fixed size, direct unless created otherwise, e.g.
+ * when callers need their backing array. Buffers are allocated on demand
+ * and up to |maxPooled| released buffers are kept for reuse, the others are
+ * left to the garbage collector. Thread safe.
+ */
+public class ByteBufferPool {
+  private final int bufferSize;
+  private final int maxPooled;
+  private final boolean direct;
+  private final ArrayDeque<ByteBuffer> buffers = new ArrayDeque<>();
+  private long allocatedCount;
+
+  public ByteBufferPool(int bufferSize, int maxPooled) {
+    this(bufferSize, maxPooled, true /* direct */);
+  }
+
+  public ByteBufferPool(int bufferSize, int maxPooled, boolean direct) {
+    this.bufferSize = bufferSize;
+    this.maxPooled = maxPooled;
+    this.direct = direct;
+  }
+
+  public int getBufferSize() {
+    return bufferSize;
+  }
+
+  /** Returns a cleared buffer of getBufferSize() bytes. */
+  public synchronized ByteBuffer acquire() {
+    ByteBuffer buffer = buffers.poll();
+    if (buffer == null) {
+      allocatedCount++;
+      return direct ? ByteBuffer.allocateDirect(bufferSize) : ByteBuffer.allocate(bufferSize);
+    }
+    buffer.clear();
+    return buffer;
+  }
+
+  /** Returns |buffer|, which must come from acquire(), to the pool. */
+  public synchronized void release(ByteBuffer buffer) {
+    if (buffers.size() < maxPooled) {
+      buffers.add(buffer);
+    }
+  }
+
+  /** Number of buffers allocated since the pool was created. */
+  public synchronized long getAllocatedCount() {
+    return allocatedCount;
+  }
+}
@@ -0,0 +1,237 @@
+/*
+ *  Copyright 2015 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc.util;
+
+import android.os.SystemClock;
+import android.util.Log;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounded, process-wide executor for AsyncHttpURLConnection requests.
+ *
+ * <p>Requests are grouped into lanes keyed by request URL. Requests in the same
+ * lane run one at a time in submission order, so messages posted to the same
+ * room or client URL are delivered in order. At most MAX_REQUESTS_PER_HOST lanes
+ * of the same host run concurrently, which lets HttpURLConnection reuse its
+ * keep-alive connections instead of opening a new one per request. Once
+ * MAX_PENDING_REQUESTS are queued, new requests are rejected.
+ */
+public class HttpRequestExecutor {
+  private static final String TAG = "HttpRequestExecutor";
+  private static final int MAX_THREADS = 4;
+  static final int MAX_REQUESTS_PER_HOST = 2;
+  static final int MAX_PENDING_REQUESTS = 128;
+  private static final int THREAD_KEEP_ALIVE_SECONDS = 30;
+
+  private static HttpRequestExecutor instance;
+
+  private final Clock clock;
+  private final ThreadPoolExecutor executor;
+  private final Map<String, Lane> lanes = new HashMap<>();
+  private final Map<String, Host> hosts = new HashMap<>();
+  private int pendingRequests;
+  private int maxPendingRequests;
+  private long completedRequests;
+  private long totalQueueWaitMs;
+  private long totalLatencyMs;
+
+  // Requests sharing the same URL, executed one at a time.
+  private static class Lane {
+    final String key;
+    final Host host;
+    final ArrayDeque<Request> requests = new ArrayDeque<>();
+    boolean running;
+    boolean waitingForHost;
+
+    Lane(String key, Host host) {
+      this.key = key;
+      this.host = host;
+    }
+  }
+
+  // Per-host concurrency state.
+  private static class Host {
+    final String name;
+    final ArrayDeque<Lane> waitingLanes = new ArrayDeque<>();
+    int runningLanes;
+
+    Host(String name) {
+      this.name = name;
+    }
+  }
+
+  private static class Request {
+    final String description;
+    final Runnable task;
+    final long enqueueTimeMs;
+
+    Request(String description, Runnable task, long enqueueTimeMs) {
+      this.description = description;
+      this.task = task;
+      this.enqueueTimeMs = enqueueTimeMs;
+    }
+  }
+
+  /** Time base of the queue wait and latency stats, in milliseconds. */
+  interface Clock {
+    long elapsedRealtime();
+  }
+
+  public static synchronized HttpRequestExecutor getInstance() {
+    if (instance == null) {
+      instance = new HttpRequestExecutor(SystemClock::elapsedRealtime);
+    }
+    return instance;
+  }
+
+  HttpRequestExecutor(Clock clock) {
+    this.clock = clock;
+    final AtomicInteger threadCount = new AtomicInteger();
+    ThreadFactory threadFactory = runnable -> {
+      Thread thread = new Thread(runnable, TAG + "-" + threadCount.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    };
+    executor = new ThreadPoolExecutor(MAX_THREADS, MAX_THREADS, THREAD_KEEP_ALIVE_SECONDS,
+        TimeUnit.SECONDS, new LinkedBlockingQueue<>(), threadFactory);
+    executor.allowCoreThreadTimeOut(true);
+  }
+
+  /**
+   * Queues |task| behind all previously submitted tasks for |url|. Returns
+   * false if the executor is saturated and the task was not queued.
+   */
+  public synchronized boolean submit(String url, String description, Runnable task) {
+    if (pendingRequests >= MAX_PENDING_REQUESTS) {
+      Log.e(TAG, "Rejecting " + description + ". Pending requests: " + pendingRequests);
+      return false;
+    }
+    Lane lane = lanes.get(url);
+    if (lane == null) {
+      String hostName = hostOf(url);
+      Host host = hosts.get(hostName);
+      if (host == null) {
+        host = new Host(hostName);
+        hosts.put(hostName, host);
+      }
+      lane = new Lane(url, host);
+      lanes.put(url, lane);
+    }
+    lane.requests.add(new Request(description, task, clock.elapsedRealtime()));
+    pendingRequests++;
+    maxPendingRequests = Math.max(maxPendingRequests, pendingRequests);
+    if (!lane.running && !lane.waitingForHost) {
+      startLane(lane);
+    }
+    return true;
+  }
+
+  /** Number of requests queued or running. */
+  public synchronized int getQueueDepth() {
+    return pendingRequests;
+  }
+
+  /** Highest number of requests queued or running at the same time. */
+  public synchronized int getMaxQueueDepth() {
+    return maxPendingRequests;
+  }
+
+  public synchronized long getCompletedRequestCount() {
+    return completedRequests;
+  }
+
+  /** Average time requests spent queued before running, in milliseconds. */
+  public synchronized long getAverageQueueWaitMs() {
+    return completedRequests == 0 ? 0 : totalQueueWaitMs / completedRequests;
+  }
+
+  /** Average time from submission to completion, in milliseconds. */
+  public synchronized long getAverageLatencyMs() {
+    return completedRequests == 0 ? 0 : totalLatencyMs / completedRequests;
+  }
+
+  // Must be called with |this| locked.
+  private void startLane(final Lane lane) {
+    Host host = lane.host;
+    if (host.runningLanes >= MAX_REQUESTS_PER_HOST) {
+      lane.waitingForHost = true;
+      host.waitingLanes.add(lane);
+      return;
+    }
+    host.runningLanes++;
+    lane.running = true;
+    lane.waitingForHost = false;
+    executor.execute(() -> runNext(lane));
+  }
+
+  private void runNext(Lane lane) {
+    final Request request;
+    final long queueWaitMs;
+    synchronized (this) {
+      request = lane.requests.poll();
+      queueWaitMs = clock.elapsedRealtime() - request.enqueueTimeMs;
+    }
+    try {
+      request.task.run();
+    } finally {
+      long latencyMs = clock.elapsedRealtime() - request.enqueueTimeMs;
+      int queueDepth;
+      synchronized (this) {
+        pendingRequests--;
+        completedRequests++;
+        totalQueueWaitMs += queueWaitMs;
+        totalLatencyMs += latencyMs;
+        queueDepth = pendingRequests;
+        finishLane(lane);
+      }
+      Log.d(TAG, request.description + " done in " + latencyMs + " ms (queued " + queueWaitMs
+              + " ms). Queue depth: " + queueDepth);
+    }
+  }
+
+  // Must be called with |this| locked.
+  private void finishLane(Lane lane) {
+    Host host = lane.host;
+    lane.running = false;
+    host.runningLanes--;
+    // Hand the host slot to a waiting lane first so one busy URL can not
+    // starve the other URLs of the same host.
+    Lane waitingLane = host.waitingLanes.poll();
+    if (waitingLane != null) {
+      startLane(waitingLane);
+    }
+    if (!lane.requests.isEmpty()) {
+      startLane(lane);
+    } else {
+      lanes.remove(lane.key);
+    }
+    if (host.runningLanes == 0 && host.waitingLanes.isEmpty()) {
+      hosts.remove(host.name);
+    }
+  }
+
+  private static String hostOf(String url) {
+    try {
+      return new URL(url).getAuthority();
+    } catch (MalformedURLException e) {
+      return url;
+    }
+  }
+}
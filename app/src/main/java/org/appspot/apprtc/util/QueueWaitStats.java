@@ -0,0 +1,123 @@
+/*
+ *  Copyright 2015 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc.util;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Time tasks spent queued before they started running, per task type.
+ * SerialExecutors created with a QueueWaitStats record into it. Thread safe.
+ *
+ * <p>Recording takes no lock: each task type has its own counters, which
+ * SerialExecutor looks up once, so lanes running on different threads do
+ * not contend with each other.
+ */
+public class QueueWaitStats {
+  /** Counters of one task type. */
+  public static class Counter {
+    private final LongAdder count = new LongAdder();
+    private final LongAdder totalWaitNs = new LongAdder();
+    private final AtomicLong maxWaitNs = new AtomicLong();
+
+    public void record(long waitNs) {
+      count.increment();
+      totalWaitNs.add(waitNs);
+      long max = maxWaitNs.get();
+      while (waitNs > max && !maxWaitNs.compareAndSet(max, waitNs)) {
+        max = maxWaitNs.get();
+      }
+    }
+
+    private long getAverageWaitNs() {
+      // The sums are read one after the other, so a concurrent record may be
+      // counted in one only.
+      long tasks = count.sum();
+      return tasks == 0 ? 0 : totalWaitNs.sum() / tasks;
+    }
+
+    private void reset() {
+      count.reset();
+      totalWaitNs.reset();
+      maxWaitNs.set(0);
+    }
+  }
+
+  private final ConcurrentHashMap<String, Counter> counters = new ConcurrentHashMap<>();
+
+  /** Returns the counters of |taskType|, to record into without a lookup. */
+  public Counter getCounter(String taskType) {
+    Counter counter = counters.get(taskType);
+    if (counter == null) {
+      counter = counters.computeIfAbsent(taskType, type -> new Counter());
+    }
+    return counter;
+  }
+
+  public void record(String taskType, long waitNs) {
+    getCounter(taskType).record(waitNs);
+  }
+
+  /** Number of tasks of |taskType| that were started. */
+  public long getCount(String taskType) {
+    Counter counter = counters.get(taskType);
+    return counter == null ? 0 : counter.count.sum();
+  }
+
+  /** Average queue wait of the tasks of |taskType|, or 0 if none ran. */
+  public long getAverageWaitUs(String taskType) {
+    Counter counter = counters.get(taskType);
+    return counter == null ? 0 : TimeUnit.NANOSECONDS.toMicros(counter.getAverageWaitNs());
+  }
+
+  /** Longest queue wait of the tasks of |taskType|, or 0 if none ran. */
+  public long getMaxWaitUs(String taskType) {
+    Counter counter = counters.get(taskType);
+    return counter == null ? 0 : TimeUnit.NANOSECONDS.toMicros(counter.maxWaitNs.get());
+  }
+
+  /**
+   * Clears all counters. Tasks starting concurrently may be partly counted.
+   */
+  public void reset() {
+    for (Counter counter : counters.values()) {
+      counter.reset();
+    }
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder builder = new StringBuilder();
+    for (Map.Entry<String, Counter> entry : new TreeMap<>(counters).entrySet()) {
+      Counter counter = entry.getValue();
+      long tasks = counter.count.sum();
+      if (tasks == 0) {
+        continue;
+      }
+      if (builder.length() > 0) {
+        builder.append(", ");
+      }
+      builder.append(entry.getKey())
+          .append(": ")
+          .append(tasks)
+          .append(" tasks, avg ")
+          .append(TimeUnit.NANOSECONDS.toMicros(counter.getAverageWaitNs()))
+          .append(" us, max ")
+          .append(TimeUnit.NANOSECONDS.toMicros(counter.maxWaitNs.get()))
+          .append(" us");
+    }
+    return builder.toString();
+  }
+}
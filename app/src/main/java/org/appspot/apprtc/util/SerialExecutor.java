@@ -0,0 +1,93 @@
+/*
+ *  Copyright 2015 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc.util;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+
+/**
+ * Executor that runs its tasks one at a time, in submission order, on top of
+ * a possibly multi-threaded executor. Several SerialExecutors can share one
+ * thread pool and still run in parallel with each other.
+ *
+ * <p>A suspended SerialExecutor queues tasks without running them until
+ * resume() is called.
+ *
+ * <p>If created with a QueueWaitStats, the time each task waited between
+ * execute() and the start of its run is recorded under the task type of the
+ * executor.
+ */
+public class SerialExecutor implements Executor {
+  private final Executor executor;
+  // Null if waits are not recorded.
+  private final QueueWaitStats.Counter waitCounter;
+  private final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+  private boolean running;
+  private boolean suspended;
+
+  public SerialExecutor(Executor executor) {
+    this(executor, null /* waitStats */, null /* taskType */);
+  }
+
+  public SerialExecutor(Executor executor, QueueWaitStats waitStats, String taskType) {
+    this.executor = executor;
+    this.waitCounter = waitStats == null ? null : waitStats.getCounter(taskType);
+  }
+
+  @Override
+  public synchronized void execute(final Runnable task) {
+    if (waitCounter == null) {
+      tasks.add(task);
+    } else {
+      final long enqueueTimeNs = System.nanoTime();
+      tasks.add(() -> {
+        waitCounter.record(System.nanoTime() - enqueueTimeNs);
+        task.run();
+      });
+    }
+    if (!running && !suspended) {
+      scheduleNext();
+    }
+  }
+
+  /** Stops running queued tasks after the current one completes. */
+  public synchronized void suspend() {
+    suspended = true;
+  }
+
+  public synchronized void resume() {
+    suspended = false;
+    if (!running) {
+      scheduleNext();
+    }
+  }
+
+  // Must be called with |this| locked.
+  private void scheduleNext() {
+    final Runnable task = tasks.poll();
+    if (task == null) {
+      return;
+    }
+    running = true;
+    executor.execute(() -> {
+      try {
+        task.run();
+      } finally {
+        synchronized (SerialExecutor.this) {
+          running = false;
+          if (!suspended) {
+            scheduleNext();
+          }
+        }
+      }
+    });
+  }
+}
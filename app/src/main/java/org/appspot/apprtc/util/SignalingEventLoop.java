@@ -0,0 +1,120 @@
+/*
+ *  Copyright 2015 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc.util;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Process-wide, bounded set of looper threads shared by the signaling
+ * clients, instead of one HandlerThread per client.
+ *
+ * <p>Each client gets its own SignalingLane, backed by a Handler on one of
+ * the loopers, so its tasks still run one at a time in posting order, while
+ * clients on different loopers run in parallel. Loopers are started on first
+ * use and kept for the life of the process. Clients are assigned to the
+ * looper with the fewest clients.
+ *
+ * <p>See SignalingExecutor for the equivalent without Android loopers.
+ */
+public class SignalingEventLoop {
+  private static final String TAG = "SignalingEventLoop";
+  private static final int MAX_LOOPERS =
+      Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+
+  private static SignalingEventLoop instance;
+
+  private final Looper[] loopers = new Looper[MAX_LOOPERS];
+  private final int[] clientCounts = new int[MAX_LOOPERS];
+  private final Map<HandlerLane, Integer> laneLoopers = new HashMap<>();
+
+  private class HandlerLane implements SignalingLane {
+    private final Handler handler;
+
+    HandlerLane(Looper looper) {
+      handler = new Handler(looper);
+    }
+
+    @Override
+    public void execute(Runnable task) {
+      handler.post(task);
+    }
+
+    @Override
+    public void executeDelayed(Runnable task, long delayMs) {
+      handler.postDelayed(task, delayMs);
+    }
+
+    @Override
+    public void cancel(Runnable task) {
+      handler.removeCallbacks(task);
+    }
+
+    @Override
+    public boolean isCurrentThread() {
+      return Thread.currentThread() == handler.getLooper().getThread();
+    }
+
+    @Override
+    public void release() {
+      SignalingEventLoop.this.release(this);
+    }
+  }
+
+  public static synchronized SignalingEventLoop getInstance() {
+    if (instance == null) {
+      instance = new SignalingEventLoop();
+    }
+    return instance;
+  }
+
+  private SignalingEventLoop() {}
+
+  /**
+   * Returns a new lane for a client, on a looper thread. Must be released
+   * with SignalingLane.release(), which also drops its pending tasks.
+   */
+  public synchronized SignalingLane acquire() {
+    int index = 0;
+    for (int i = 1; i < MAX_LOOPERS; ++i) {
+      if (clientCounts[i] < clientCounts[index]) {
+        index = i;
+      }
+    }
+    if (loopers[index] == null) {
+      HandlerThread thread = new HandlerThread(TAG + index);
+      thread.start();
+      loopers[index] = thread.getLooper();
+    }
+    clientCounts[index]++;
+    HandlerLane lane = new HandlerLane(loopers[index]);
+    laneLoopers.put(lane, index);
+    return lane;
+  }
+
+  // Drops the tasks still pending on |lane| and frees its slot.
+  private synchronized void release(HandlerLane lane) {
+    Integer index = laneLoopers.remove(lane);
+    if (index == null) {
+      return;
+    }
+    lane.handler.removeCallbacksAndMessages(null);
+    clientCounts[index]--;
+  }
+
+  /** Number of clients holding a lane. */
+  public synchronized int getClientCount() {
+    return laneLoopers.size();
+  }
+}
@@ -0,0 +1,144 @@
+/*
+ *  Copyright 2015 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc.util;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Shared signaling event loop that does not depend on Android, so that
+ * signaling clients can run on a desktop JVM, e.g. for headless load tests.
+ *
+ * <p>Clients get their own SignalingLane on a bounded, process-wide thread
+ * pool: tasks of a client run one at a time in submission order, and many
+ * clients share the threads. Delayed tasks wait on one shared timer thread.
+ * The threads are daemons, so idle clients do not keep the JVM alive.
+ */
+public class SignalingExecutor {
+  private static final int MAX_THREADS = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+  private static final ExecutorService executor =
+      Executors.newFixedThreadPool(MAX_THREADS, newThreadFactory("SignalingExecutor"));
+  private static final ScheduledExecutorService timer =
+      Executors.newSingleThreadScheduledExecutor(newThreadFactory("SignalingExecutorTimer"));
+
+  private static ThreadFactory newThreadFactory(final String name) {
+    return new ThreadFactory() {
+      private final AtomicInteger threadCount = new AtomicInteger();
+
+      @Override
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, name + threadCount.getAndIncrement());
+        thread.setDaemon(true);
+        return thread;
+      }
+    };
+  }
+
+  private static class Lane implements SignalingLane {
+    private final SerialExecutor serialExecutor = new SerialExecutor(executor);
+    // Thread running the current task of the lane, if any.
+    private volatile Thread currentThread;
+    // Delayed tasks that were neither run nor cancelled yet.
+    private final List<DelayedTask> delayedTasks = new ArrayList<>();
+
+    private static class DelayedTask {
+      final Runnable task;
+      volatile ScheduledFuture<?> future;
+
+      DelayedTask(Runnable task) {
+        this.task = task;
+      }
+    }
+
+    @Override
+    public void execute(final Runnable task) {
+      serialExecutor.execute(() -> {
+        currentThread = Thread.currentThread();
+        try {
+          task.run();
+        } finally {
+          currentThread = null;
+        }
+      });
+    }
+
+    @Override
+    public void executeDelayed(final Runnable task, long delayMs) {
+      final DelayedTask delayedTask = new DelayedTask(task);
+      synchronized (this) {
+        delayedTasks.add(delayedTask);
+      }
+      delayedTask.future = timer.schedule(() -> execute(() -> {
+        // Cancelled while queued on the lane otherwise.
+        if (remove(delayedTask)) {
+          task.run();
+        }
+      }), delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized boolean remove(DelayedTask delayedTask) {
+      return delayedTasks.remove(delayedTask);
+    }
+
+    @Override
+    public synchronized void cancel(Runnable task) {
+      Iterator<DelayedTask> it = delayedTasks.iterator();
+      while (it.hasNext()) {
+        DelayedTask delayedTask = it.next();
+        if (delayedTask.task == task) {
+          it.remove();
+          cancelFuture(delayedTask);
+        }
+      }
+    }
+
+    @Override
+    public boolean isCurrentThread() {
+      return currentThread == Thread.currentThread();
+    }
+
+    @Override
+    public synchronized void release() {
+      for (DelayedTask delayedTask : delayedTasks) {
+        cancelFuture(delayedTask);
+      }
+      delayedTasks.clear();
+    }
+
+    // The future is set after the task is listed, so may still be null, in
+    // which case the task finds itself unlisted when it runs.
+    private static void cancelFuture(DelayedTask delayedTask) {
+      ScheduledFuture<?> future = delayedTask.future;
+      if (future != null) {
+        future.cancel(false /* mayInterruptIfRunning */);
+      }
+    }
+  }
+
+  private SignalingExecutor() {}
+
+  /**
+   * Returns a new lane for a client. Lanes without delayed tasks need no
+   * release.
+   */
+  public static SignalingLane newLane() {
+    return new Lane();
+  }
+}
@@ -0,0 +1,36 @@
+/*
+ *  Copyright 2015 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc.util;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Task queue of one signaling client: tasks run one at a time, in the order
+ * they become due. Backed by a looper of SignalingEventLoop on Android, and
+ * by a lane of SignalingExecutor elsewhere.
+ */
+public interface SignalingLane extends Executor {
+  /** Runs |task| after |delayMs|, unless it is cancelled first. */
+  void executeDelayed(Runnable task, long delayMs);
+
+  /** Cancels the runs of |task| passed to executeDelayed() that did not start yet. */
+  void cancel(Runnable task);
+
+  /** Returns true if called from a task of this lane. */
+  boolean isCurrentThread();
+
+  /**
+   * Drops the delayed tasks still pending and frees the resources of the
+   * lane. Tasks executed afterwards still run, so clients must ignore late
+   * callbacks.
+   */
+  void release();
+}
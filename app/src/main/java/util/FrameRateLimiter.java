@@ -0,0 +1,38 @@
+package util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Non-blocking frame rate cap shared by the video proxies.
+ *
+ * Frames are accepted on a schedule of one frame interval per accepted frame. A frame up to half
+ * an interval early is accepted too, so that input jitter, e.g. a 30 fps source that is a little
+ * early every other frame, does not halve a 15 fps cap; the schedule still only advances by one
+ * interval per frame, so the average rate stays capped.
+ * Safe to call from any thread; concurrent callers never wait on each other.
+ */
+public class FrameRateLimiter {
+    private final long frameIntervalNs;
+    private final long toleranceNs;
+    private final AtomicLong nextFrameTimeNs = new AtomicLong(Long.MIN_VALUE);
+
+    public FrameRateLimiter(int maxFps) {
+        if (maxFps <= 0) {
+            throw new IllegalArgumentException("maxFps must be positive: " + maxFps);
+        }
+        frameIntervalNs = TimeUnit.SECONDS.toNanos(1) / maxFps;
+        toleranceNs = frameIntervalNs / 2;
+    }
+
+    public boolean tryAcquire(long nowNs) {
+        long next = nextFrameTimeNs.get();
+        if (next != Long.MIN_VALUE && nowNs - (next - toleranceNs) < 0) {
+            return false;
+        }
+        // Advance from the scheduled slot instead of |nowNs| so that input jitter does not
+        // lower the output rate, but never let the schedule fall more than one frame behind.
+        long base = (next == Long.MIN_VALUE || nowNs - next > frameIntervalNs) ? nowNs : next;
+        return nextFrameTimeNs.compareAndSet(next, base + frameIntervalNs);
+    }
+}
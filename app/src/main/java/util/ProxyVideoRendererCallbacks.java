@@ -3,21 +3,87 @@ package util;
 import org.webrtc.Logging;
 import org.webrtc.VideoRenderer;
 
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Forwards frames to target callbacks that can be swapped from any thread.
+ *
+ * The target is read once per frame and owns the frame from then on: it is responsible for
+ * calling VideoRenderer.renderFrameDone() even if it is swapped out before rendering. Frames
+ * that arrive without a target or over the target's frame rate cap are released here, so every
+ * frame is released exactly once.
+ */
 public class ProxyVideoRendererCallbacks implements VideoRenderer.Callbacks {
-    private VideoRenderer.Callbacks target;
+    private final AtomicReference<Target> target = new AtomicReference<>();
+    private final AtomicLong forwardedFrames = new AtomicLong();
+    private final AtomicLong droppedFrames = new AtomicLong();
+    private final AtomicReference<Runnable> firstFrameListener = new AtomicReference<>();
+
+    private static class Target {
+        final VideoRenderer.Callbacks callbacks;
+        final FrameRateLimiter frameRateLimiter;
+
+        Target(VideoRenderer.Callbacks callbacks, FrameRateLimiter frameRateLimiter) {
+            this.callbacks = callbacks;
+            this.frameRateLimiter = frameRateLimiter;
+        }
+    }
 
     @Override
-    synchronized public void renderFrame(VideoRenderer.I420Frame frame) {
-        if (target == null) {
+    public void renderFrame(VideoRenderer.I420Frame frame) {
+        Target current = target.get();
+        if (current == null) {
             Logging.d("ProxyVideoRendererCallbacks", "Dropping frame in proxy because target is null.");
-            VideoRenderer.renderFrameDone(frame);
+            droppedFrames.incrementAndGet();
+            releaseFrame(frame);
             return;
         }
+        if (current.frameRateLimiter != null
+                && !current.frameRateLimiter.tryAcquire(System.nanoTime())) {
+            droppedFrames.incrementAndGet();
+            releaseFrame(frame);
+            return;
+        }
+
+        current.callbacks.renderFrame(frame);
+        forwardedFrames.incrementAndGet();
+        if (firstFrameListener.get() != null) {
+            Runnable listener = firstFrameListener.getAndSet(null);
+            if (listener != null) {
+                listener.run();
+            }
+        }
+    }
+
+    public void setTarget(VideoRenderer.Callbacks target) {
+        setTarget(target, 0);
+    }
+
+    /** Forwards frames to |target| at no more than |maxFps|. Zero means no limit. */
+    public void setTarget(VideoRenderer.Callbacks target, int maxFps) {
+        this.target.set(target == null
+                ? null : new Target(target, maxFps > 0 ? new FrameRateLimiter(maxFps) : null));
+    }
+
+    /**
+     * Runs |listener| on the frame thread once the first frame has been forwarded to a target,
+     * e.g. to measure the time to first frame.
+     */
+    public void setFirstFrameListener(Runnable listener) {
+        firstFrameListener.set(listener);
+    }
+
+    public long getForwardedFrames() {
+        return forwardedFrames.get();
+    }
 
-        target.renderFrame(frame);
+    public long getDroppedFrames() {
+        return droppedFrames.get();
     }
 
-    synchronized public void setTarget(VideoRenderer.Callbacks target) {
-        this.target = target;
+    // Releases a frame that is not forwarded. Package-private so tests can count releases.
+    void releaseFrame(VideoRenderer.I420Frame frame) {
+        VideoRenderer.renderFrameDone(frame);
     }
 }
@@ -4,20 +4,83 @@ import org.webrtc.Logging;
 import org.webrtc.VideoFrame;
 import org.webrtc.VideoSink;
 
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Forwards frames to a target sink that can be swapped from any thread.
+ *
+ * The target is read once per frame, so a frame is delivered either to the old or to the new
+ * target and never blocks the capture thread behind setTarget(). Frames are reference counted
+ * and a sink retains the frame itself if it needs it after onFrame() returns, so no release is
+ * needed when the target changes mid-frame.
+ *
+ * Each target can have its own frame rate cap, e.g. to render a picture-in-picture view at a
+ * lower rate than the fullscreen one. Frames over the cap are dropped in the proxy.
+ */
 public class ProxyVideoSink implements VideoSink {
-    private VideoSink target;
+    private final AtomicReference<Target> target = new AtomicReference<>();
+    private final AtomicLong forwardedFrames = new AtomicLong();
+    private final AtomicLong droppedFrames = new AtomicLong();
+    private final AtomicReference<Runnable> firstFrameListener = new AtomicReference<>();
+
+    private static class Target {
+        final VideoSink sink;
+        final FrameRateLimiter frameRateLimiter;
+
+        Target(VideoSink sink, FrameRateLimiter frameRateLimiter) {
+            this.sink = sink;
+            this.frameRateLimiter = frameRateLimiter;
+        }
+    }
 
     @Override
-    synchronized public void onFrame(VideoFrame frame) {
-        if (target == null) {
+    public void onFrame(VideoFrame frame) {
+        Target current = target.get();
+        if (current == null) {
             Logging.d("ProxyVideoSink", "Dropping frame in proxy because target is null.");
+            droppedFrames.incrementAndGet();
+            return;
+        }
+        if (current.frameRateLimiter != null
+                && !current.frameRateLimiter.tryAcquire(System.nanoTime())) {
+            droppedFrames.incrementAndGet();
             return;
         }
 
-        target.onFrame(frame);
+        current.sink.onFrame(frame);
+        forwardedFrames.incrementAndGet();
+        if (firstFrameListener.get() != null) {
+            Runnable listener = firstFrameListener.getAndSet(null);
+            if (listener != null) {
+                listener.run();
+            }
+        }
+    }
+
+    public void setTarget(VideoSink target) {
+        setTarget(target, 0);
+    }
+
+    /** Forwards frames to |target| at no more than |maxFps|. Zero means no limit. */
+    public void setTarget(VideoSink target, int maxFps) {
+        this.target.set(target == null
+                ? null : new Target(target, maxFps > 0 ? new FrameRateLimiter(maxFps) : null));
+    }
+
+    /**
+     * Runs |listener| on the frame thread once the first frame has been forwarded to a target,
+     * e.g. to measure the time to first frame.
+     */
+    public void setFirstFrameListener(Runnable listener) {
+        firstFrameListener.set(listener);
+    }
+
+    public long getForwardedFrames() {
+        return forwardedFrames.get();
     }
 
-    synchronized public void setTarget(VideoSink target) {
-        this.target = target;
+    public long getDroppedFrames() {
+        return droppedFrames.get();
     }
 }
@@ -0,0 +1,130 @@
+/*
+ *  Copyright 2017 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import org.webrtc.StatsReport;
+
+/** Feeds synthetic stats streams to AudioOnlyFallback. */
+public class AudioOnlyFallbackTest {
+  private static final int SUSPEND_BELOW_KBPS = 150;
+  private static final int RESUME_ABOVE_KBPS = 300;
+  private static final long POOR_BPS = 100000;
+  private static final long GOOD_BPS = 500000;
+
+  // Transitions of the controller, with the time of the sample that made them.
+  private static class RecordingActuator implements AudioOnlyFallback.Actuator {
+    final List<long[]> transitions = new ArrayList<>();
+    long timeMs;
+
+    @Override
+    public void setVideoSuspended(boolean suspended) {
+      transitions.add(new long[] {timeMs, suspended ? 1 : 0});
+    }
+  }
+
+  private final RecordingActuator actuator = new RecordingActuator();
+  private final AudioOnlyFallback fallback =
+      new AudioOnlyFallback(actuator, SUSPEND_BELOW_KBPS, RESUME_ABOVE_KBPS);
+
+  // Feeds samples every |intervalMs| from |startMs| until before |endMs|.
+  private void feed(long startMs, long endMs, long intervalMs, long bandwidthBps, long rttMs) {
+    for (long timeMs = startMs; timeMs < endMs; timeMs += intervalMs) {
+      actuator.timeMs = timeMs;
+      fallback.onSample(new BitrateController.Sample(timeMs, bandwidthBps, rttMs, 0));
+    }
+  }
+
+  @Test
+  public void suspendDoesNotDependOnSampleRate() {
+    for (long intervalMs : new long[] {250, 500, 1000}) {
+      RecordingActuator actuator = new RecordingActuator();
+      AudioOnlyFallback fallback =
+          new AudioOnlyFallback(actuator, SUSPEND_BELOW_KBPS, RESUME_ABOVE_KBPS);
+      for (long timeMs = 0; timeMs < 5000; timeMs += intervalMs) {
+        actuator.timeMs = timeMs;
+        fallback.onSample(new BitrateController.Sample(timeMs, POOR_BPS, 100, 0));
+      }
+      assertEquals(1, actuator.transitions.size());
+      assertEquals(2000, actuator.transitions.get(0)[0]);
+    }
+  }
+
+  @Test
+  public void goodSampleRestartsTheSuspendHold() {
+    feed(0, 1500, 500, POOR_BPS, 100);
+    feed(1500, 2000, 500, GOOD_BPS, 100);
+    feed(2000, 4000, 500, POOR_BPS, 100);
+    assertTrue(actuator.transitions.isEmpty());
+    feed(4000, 4500, 500, POOR_BPS, 100);
+    assertTrue(fallback.isVideoSuspended());
+  }
+
+  @Test
+  public void resumesAfterGoodSamplesForTheHoldTime() {
+    feed(0, 3000, 1000, POOR_BPS, 100);
+    assertTrue(fallback.isVideoSuspended());
+    feed(3000, 7000, 1000, GOOD_BPS, 100);
+    assertTrue(fallback.isVideoSuspended());
+    feed(7000, 8000, 1000, GOOD_BPS, 100);
+    assertFalse(fallback.isVideoSuspended());
+    assertEquals(7000, actuator.transitions.get(1)[0]);
+  }
+
+  @Test
+  public void unknownRttNeverResumes() {
+    feed(0, 3000, 1000, POOR_BPS, 100);
+    assertTrue(fallback.isVideoSuspended());
+    // Neither resumed on bandwidth nor probed without a RTT.
+    feed(3000, 120000, 1000, GOOD_BPS, -1);
+    assertTrue(fallback.isVideoSuspended());
+    assertEquals(1, actuator.transitions.size());
+  }
+
+  @Test
+  public void failedProbesBackOff() {
+    feed(0, 3000, 1000, POOR_BPS, 100);
+    assertEquals(2000, actuator.transitions.get(0)[0]);
+    // Probes after 15 s in audio-only mode, fails on the poor samples of the
+    // 2 s after it and waits twice as long for the next probe.
+    feed(3000, 17000, 1000, POOR_BPS, 100);
+    assertEquals(1, actuator.transitions.size());
+    feed(17000, 21000, 1000, POOR_BPS, 100);
+    assertEquals(3, actuator.transitions.size());
+    assertEquals(17000, actuator.transitions.get(1)[0]);
+    assertEquals(20000, actuator.transitions.get(2)[0]);
+    feed(21000, 50000, 1000, POOR_BPS, 100);
+    assertEquals(3, actuator.transitions.size());
+    feed(50000, 51000, 1000, POOR_BPS, 100);
+    assertEquals(50000, actuator.transitions.get(3)[0]);
+  }
+
+  @Test
+  public void unchangedStatsStillSuspend() {
+    PeerConnectionStats stats = new PeerConnectionStats();
+    stats.subscribeToUpdates(AudioOnlyFallback.STATS_METRICS, fallback);
+    StatsReport[] reports = {new StatsReport("bweforvideo", "VideoBwe", 0,
+        new StatsReport.Value[] {
+            new StatsReport.Value("googAvailableSendBandwidth", Long.toString(POOR_BPS))})};
+    for (long timeMs = 0; timeMs <= 2000; timeMs += 1000) {
+      actuator.timeMs = timeMs;
+      stats.update(reports, timeMs);
+    }
+    assertTrue(fallback.isVideoSuspended());
+    assertEquals(2000, actuator.transitions.get(0)[0]);
+  }
+}
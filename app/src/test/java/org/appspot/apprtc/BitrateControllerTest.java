@@ -0,0 +1,242 @@
+/*
+ *  Copyright 2017 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Test;
+import org.webrtc.StatsReport;
+
+/** Replays the recorded stats traces and synthetic streams against BitrateController. */
+public class BitrateControllerTest {
+  private static final int MIN_KBPS = 100;
+  private static final int MAX_KBPS = 2000;
+
+  // Decisions of the controller, with the time of the sample that made them.
+  private static class RecordingActuator implements BitrateController.Actuator {
+    final List<long[]> bitrates = new ArrayList<>();
+    final List<long[]> formats = new ArrayList<>();
+    long timeMs;
+
+    @Override
+    public void setVideoMaxBitrate(int maxBitrateKbps) {
+      bitrates.add(new long[] {timeMs, maxBitrateKbps});
+    }
+
+    @Override
+    public void changeCaptureFormat(int width, int height, int fps) {
+      formats.add(new long[] {timeMs, width * height * fps});
+    }
+
+    void replay(BitrateController controller, List<BitrateController.Sample> samples) {
+      for (BitrateController.Sample sample : samples) {
+        timeMs = sample.timeMs;
+        controller.onSample(sample);
+      }
+    }
+  }
+
+  private static BitrateController createController(
+      RecordingActuator actuator, List<BitrateController.CaptureFormat> formats) {
+    return new BitrateController(
+        new BitrateController.LossBasedPolicy(), actuator, MIN_KBPS, MAX_KBPS, formats);
+  }
+
+  private static List<BitrateController.Sample> everyOther(List<BitrateController.Sample> samples) {
+    List<BitrateController.Sample> decimated = new ArrayList<>();
+    for (int i = 0; i < samples.size(); i += 2) {
+      decimated.add(samples.get(i));
+    }
+    return decimated;
+  }
+
+  @Test
+  public void tracesRespectHoldTimes() {
+    for (String name : TestCorpus.STATS_TRACE_FILES) {
+      RecordingActuator actuator = new RecordingActuator();
+      BitrateController controller =
+          createController(actuator, BitrateController.formatLadder(1280, 720, 30));
+      actuator.replay(controller, TestCorpus.loadStatsTrace(name));
+
+      long lastDecreaseMs = 0;
+      long previousKbps = MAX_KBPS;
+      for (long[] bitrate : actuator.bitrates) {
+        if (bitrate[1] < previousKbps) {
+          lastDecreaseMs = bitrate[0];
+        } else {
+          assertTrue(name + " increase at " + bitrate[0], bitrate[0] - lastDecreaseMs >= 3000);
+        }
+        previousKbps = bitrate[1];
+      }
+      for (int i = 1; i < actuator.formats.size(); i++) {
+        assertTrue(name + " format change at " + actuator.formats.get(i)[0],
+            actuator.formats.get(i)[0] - actuator.formats.get(i - 1)[0] >= 2000);
+      }
+      assertTrue(name, !actuator.formats.isEmpty());
+    }
+  }
+
+  @Test
+  public void congestionTraceStepsDownAndRecovers() {
+    List<BitrateController.CaptureFormat> ladder = BitrateController.formatLadder(1280, 720, 30);
+    RecordingActuator actuator = new RecordingActuator();
+    BitrateController controller = createController(actuator, ladder);
+    List<BitrateController.Sample> samples = TestCorpus.loadStatsTrace("congestion.csv");
+    List<BitrateController.Sample> congested = new ArrayList<>();
+    for (BitrateController.Sample sample : samples) {
+      if (sample.timeMs < 30000) {
+        congested.add(sample);
+      }
+    }
+    actuator.replay(controller, congested);
+    assertTrue(controller.getCurrentBitrateKbps() < 400);
+    final int congestedIndex = ladder.indexOf(controller.getCurrentFormat());
+    assertTrue(congestedIndex > 1);
+
+    actuator.replay(controller, samples.subList(congested.size(), samples.size()));
+    assertTrue(controller.getCurrentBitrateKbps() > 1000);
+    assertTrue(ladder.indexOf(controller.getCurrentFormat()) < congestedIndex);
+  }
+
+  @Test
+  public void formatChangesDoNotDependOnPollRate() {
+    for (String name : TestCorpus.STATS_TRACE_FILES) {
+      List<BitrateController.Sample> samples = TestCorpus.loadStatsTrace(name);
+      RecordingActuator everySecond = new RecordingActuator();
+      everySecond.replay(
+          createController(everySecond, BitrateController.formatLadder(1280, 720, 30)), samples);
+      RecordingActuator everyTwoSeconds = new RecordingActuator();
+      everyTwoSeconds.replay(
+          createController(everyTwoSeconds, BitrateController.formatLadder(1280, 720, 30)),
+          everyOther(samples));
+
+      // Halving the poll rate delays seeing the congestion by up to one poll
+      // and the end of the hold by up to another, it does not double the
+      // hold times.
+      long firstChangeMs = everySecond.formats.get(0)[0];
+      long decimatedFirstChangeMs = everyTwoSeconds.formats.get(0)[0];
+      assertTrue(name + ": " + firstChangeMs + " vs " + decimatedFirstChangeMs,
+          Math.abs(decimatedFirstChangeMs - firstChangeMs) <= 3100);
+    }
+  }
+
+  @Test
+  public void increaseWaitsForElapsedTimeNotSampleCount() {
+    RecordingActuator actuator = new RecordingActuator();
+    BitrateController controller =
+        createController(actuator, Collections.<BitrateController.CaptureFormat>emptyList());
+    // Falls to 90% of the estimate, from where an increase is significant.
+    actuator.replay(controller,
+        Collections.singletonList(new BitrateController.Sample(0, 1000000, 50, 0)));
+    assertEquals(1, actuator.bitrates.size());
+    final int decreasedKbps = controller.getCurrentBitrateKbps();
+    assertTrue(decreasedKbps < MAX_KBPS);
+
+    List<BitrateController.Sample> good = new ArrayList<>();
+    for (long timeMs = 100; timeMs < 3000; timeMs += 100) {
+      good.add(new BitrateController.Sample(timeMs, 0, 50, 0));
+    }
+    actuator.replay(controller, good);
+    assertEquals(decreasedKbps, controller.getCurrentBitrateKbps());
+
+    actuator.replay(controller,
+        Collections.singletonList(new BitrateController.Sample(3000, 0, 50, 0)));
+    assertTrue(controller.getCurrentBitrateKbps() > decreasedKbps);
+  }
+
+  @Test
+  public void sparseSamplesIncreaseOnceHoldElapsed() {
+    RecordingActuator actuator = new RecordingActuator();
+    BitrateController controller =
+        createController(actuator, Collections.<BitrateController.CaptureFormat>emptyList());
+    List<BitrateController.Sample> samples = new ArrayList<>();
+    samples.add(new BitrateController.Sample(0, 1000000, 50, 0));
+    samples.add(new BitrateController.Sample(10000, 0, 50, 0));
+    actuator.replay(controller, samples);
+    assertEquals(2, actuator.bitrates.size());
+    assertEquals(10000, actuator.bitrates.get(1)[0]);
+  }
+
+  @Test
+  public void formatStepsDownAfterHoldTime() {
+    for (long intervalMs : new long[] {250, 500, 1000}) {
+      RecordingActuator actuator = new RecordingActuator();
+      BitrateController controller =
+          createController(actuator, BitrateController.formatLadder(1280, 720, 30));
+      List<BitrateController.Sample> samples = new ArrayList<>();
+      for (long timeMs = 0; timeMs <= 5000; timeMs += intervalMs) {
+        samples.add(new BitrateController.Sample(timeMs, 200000, 50, 0));
+      }
+      actuator.replay(controller, samples);
+      // The bitrate falls under the estimate on the first sample, so the
+      // format is too large and steps down 2 s later. The next format is
+      // found too large on the following sample and held from there.
+      assertEquals(2, actuator.formats.size());
+      assertEquals(2000, actuator.formats.get(0)[0]);
+      assertEquals(4000 + intervalMs, actuator.formats.get(1)[0]);
+    }
+  }
+
+  @Test
+  public void unknownLossHoldsBitrate() {
+    BitrateController.Policy policy = new BitrateController.LossBasedPolicy();
+    assertEquals(500,
+        policy.targetBitrateKbps(new BitrateController.Sample(0, 0, 50, -1), 500, MIN_KBPS,
+            MAX_KBPS));
+    assertTrue(policy.targetBitrateKbps(new BitrateController.Sample(0, 0, 500, -1), 500,
+        MIN_KBPS, MAX_KBPS) < 500);
+
+    RecordingActuator actuator = new RecordingActuator();
+    BitrateController controller =
+        createController(actuator, Collections.<BitrateController.CaptureFormat>emptyList());
+    List<BitrateController.Sample> samples = new ArrayList<>();
+    samples.add(new BitrateController.Sample(0, 1000000, 50, 0));
+    for (long timeMs = 1000; timeMs <= 10000; timeMs += 1000) {
+      samples.add(new BitrateController.Sample(timeMs, 0, 50, -1));
+    }
+    actuator.replay(controller, samples);
+    assertEquals(1, actuator.bitrates.size());
+  }
+
+  @Test
+  public void missingRttAndLossAreUnknown() {
+    final List<BitrateController.Sample> samples = new ArrayList<>();
+    BitrateController controller = new BitrateController(
+        (sample, currentKbps, minKbps, maxKbps) -> {
+          samples.add(sample);
+          return currentKbps;
+        },
+        new RecordingActuator(), MIN_KBPS, MAX_KBPS,
+        Collections.<BitrateController.CaptureFormat>emptyList());
+    PeerConnectionStats stats = new PeerConnectionStats();
+    stats.subscribeToUpdates(BitrateController.STATS_METRICS, controller);
+    StatsReport[] reports = {new StatsReport("bweforvideo", "VideoBwe", 0,
+        new StatsReport.Value[] {
+            new StatsReport.Value("googAvailableSendBandwidth", "500000")})};
+
+    stats.update(reports, 1000);
+    // Unchanged values still reach controllers subscribed to every update.
+    stats.update(reports, 2000);
+
+    assertEquals(2, samples.size());
+    BitrateController.Sample sample = samples.get(1);
+    assertNotNull(sample);
+    assertEquals(2000, sample.timeMs);
+    assertEquals(500000, sample.availableSendBandwidthBps);
+    assertEquals(-1, sample.rttMs);
+    assertEquals(-1, sample.lossPercent);
+  }
+}
@@ -0,0 +1,151 @@
+/*
+ *  Copyright 2017 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+
+/** Sends DataChannelClient messages over a loopback FakeDataChannel pair. */
+public class DataChannelClientTest {
+  // Messages received by the listener, in order.
+  private static class RecordingListener implements DataChannelClient.Listener {
+    final List<Object> messages = new ArrayList<>();
+    int writableCount;
+
+    @Override
+    public void onTextMessage(String text) {
+      messages.add(text);
+    }
+
+    @Override
+    public void onBinaryMessage(ByteBuffer data) {
+      byte[] bytes = new byte[data.remaining()];
+      data.get(bytes);
+      messages.add(bytes);
+    }
+
+    @Override
+    public void onWritable() {
+      writableCount++;
+    }
+  }
+
+  private final FakeDataChannel localChannel = new FakeDataChannel("local");
+  private final FakeDataChannel remoteChannel = new FakeDataChannel("remote");
+  private final RecordingListener listener = new RecordingListener();
+
+  private DataChannelClient createClient(boolean ordered) {
+    localChannel.connect(remoteChannel);
+    DataChannelClient client = localChannel.createClient(ordered, Runnable::run, remoteChannel);
+    client.setListener(listener);
+    return client;
+  }
+
+  private static byte[] pattern(int length) {
+    byte[] bytes = new byte[length];
+    for (int i = 0; i < length; i++) {
+      bytes[i] = (byte) (i * 31 + 7);
+    }
+    return bytes;
+  }
+
+  // A binary chunk with |flags| and |length| payload bytes.
+  private static ByteBuffer chunk(byte flags, int length) {
+    ByteBuffer chunk = ByteBuffer.allocate(1 + length);
+    chunk.put(flags);
+    chunk.put(pattern(length));
+    chunk.flip();
+    return chunk;
+  }
+
+  @Test
+  public void chunkedMessagesArriveIntact() {
+    DataChannelClient client = createClient(true /* ordered */);
+    final byte[] binary = pattern(100 * 1024 + 3);
+    final String longText = new String(new char[40 * 1024]).replace('\0', 'x');
+    assertTrue(client.send("hello"));
+    assertTrue(client.send(ByteBuffer.wrap(binary)));
+    assertTrue(client.send(longText));
+
+    assertEquals(3, listener.messages.size());
+    assertEquals("hello", listener.messages.get(0));
+    assertTrue(Arrays.equals(binary, (byte[]) listener.messages.get(1)));
+    assertEquals(longText, listener.messages.get(2));
+    // One plain text message, then 7 and 3 chunks.
+    assertEquals(11, localChannel.getMessagesSent());
+    assertEquals(3, client.getMessagesSent());
+    assertEquals(3, client.getMessagesReceived());
+    assertEquals(0, client.getQueuedBytes());
+  }
+
+  @Test
+  public void restOfOversizedMessageIsDiscarded() {
+    createClient(true /* ordered */);
+    final int payload = DataChannelClient.CHUNK_SIZE - 1;
+    final int chunks = DataChannelClient.MAX_MESSAGE_SIZE / payload + 10;
+    for (int i = 0; i < chunks; i++) {
+      remoteChannel.receive(chunk((byte) 0, payload), true /* binary */);
+    }
+    remoteChannel.receive(chunk((byte) 2 /* FLAG_FINAL */, payload), true /* binary */);
+    remoteChannel.receive(chunk((byte) 2 /* FLAG_FINAL */, 2), true /* binary */);
+
+    // The tail of the dropped message is not taken for a new message.
+    assertEquals(1, listener.messages.size());
+    assertEquals(2, ((byte[]) listener.messages.get(0)).length);
+  }
+
+  @Test
+  public void fullQueueRejectsUntilWritable() {
+    DataChannelClient client = createClient(true /* ordered */);
+    localChannel.setBufferedAmount(2 * 1024 * 1024);
+    assertTrue(client.send(ByteBuffer.allocate(DataChannelClient.MAX_QUEUED_BYTES)));
+    assertFalse(client.send("more"));
+    assertEquals(0, listener.messages.size());
+
+    localChannel.setBufferedAmount(0);
+    assertEquals(1, listener.writableCount);
+    assertEquals(1, listener.messages.size());
+    assertTrue(client.send("more"));
+    assertEquals("more", listener.messages.get(1));
+  }
+
+  @Test
+  public void unsendableMessagesThrow() {
+    DataChannelClient client = createClient(false /* ordered */);
+    assertEquals(DataChannelClient.CHUNK_SIZE - 1, client.getMaxMessageSize());
+    assertTrue(client.send(ByteBuffer.allocate(client.getMaxMessageSize())));
+    try {
+      client.send(ByteBuffer.allocate(client.getMaxMessageSize() + 1));
+      fail("Sent a message larger than the channel allows");
+    } catch (IllegalArgumentException e) {
+      // Expected.
+    }
+    // Short text messages are not chunked.
+    assertTrue(client.send(new String(new char[DataChannelClient.CHUNK_SIZE])));
+
+    client.close();
+    assertTrue(client.isClosed());
+    try {
+      client.send("closed");
+      fail("Sent on a closed client");
+    } catch (IllegalStateException e) {
+      // Expected.
+    }
+  }
+}
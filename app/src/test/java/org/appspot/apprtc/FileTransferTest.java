@@ -0,0 +1,214 @@
+/*
+ *  Copyright 2017 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/** Transfers files between two FileTransfer engines over loopback FakeDataChannels. */
+public class FileTransferTest {
+  private static final long TIMEOUT_MS = 5000;
+  private static final long ACK_TIMEOUT_MS = 50;
+  private static final int MAGIC = 0x46545831;
+  private static final int FILE_SIZE = 3 * FileTransfer.CHUNK_SIZE + 123;
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  // Events of one engine, in the order they were delivered.
+  private static class RecordingListener implements FileTransfer.Listener {
+    private final LinkedBlockingQueue<Object[]> events = new LinkedBlockingQueue<>();
+
+    @Override
+    public void onTransferProgress(long transferId, boolean incoming, long bytes, long size) {
+      events.add(new Object[] {"progress", transferId, bytes});
+    }
+
+    @Override
+    public void onTransferCompleted(long transferId, boolean incoming, File file) {
+      events.add(new Object[] {"completed", transferId, file});
+    }
+
+    @Override
+    public void onTransferFailed(long transferId, boolean incoming, String error) {
+      events.add(new Object[] {"failed", transferId, error});
+    }
+
+    // Skips progress events until the next other event, which must be |name|,
+    // and returns its argument.
+    Object next(String name, long transferId) throws InterruptedException {
+      Object[] event;
+      do {
+        event = events.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        assertNotNull("Timed out waiting for " + name, event);
+      } while (event[0].equals("progress") && !name.equals("progress"));
+      assertEquals(name + ": " + event[2], name, event[0]);
+      assertEquals(transferId, event[1]);
+      return event[2];
+    }
+  }
+
+  private final FakeDataChannel senderChannel = new FakeDataChannel("sender");
+  private final FakeDataChannel receiverChannel = new FakeDataChannel("receiver");
+  private final RecordingListener senderEvents = new RecordingListener();
+  private final RecordingListener receiverEvents = new RecordingListener();
+  private File receiveDirectory;
+  private FileTransfer sender;
+  private FileTransfer receiver;
+
+  @Before
+  public void setUp() throws IOException {
+    receiveDirectory = folder.newFolder("received");
+    sender = new FileTransfer(folder.newFolder("sent"), senderEvents, ACK_TIMEOUT_MS);
+    receiver = new FileTransfer(receiveDirectory, receiverEvents, ACK_TIMEOUT_MS);
+    senderChannel.connect(receiverChannel);
+    receiverChannel.connect(senderChannel);
+  }
+
+  // Each client sends and receives on its own channel, like on a negotiated
+  // channel. The receiver listens before the sender offers.
+  private void attach(boolean ordered) {
+    receiver.attach(receiverChannel.createClient(ordered, Runnable::run, null /* remote */));
+    sender.attach(senderChannel.createClient(ordered, Runnable::run, null /* remote */));
+  }
+
+  private static byte[] pattern(int length) {
+    byte[] bytes = new byte[length];
+    for (int i = 0; i < length; i++) {
+      bytes[i] = (byte) (i * 31 + i / 4096);
+    }
+    return bytes;
+  }
+
+  private File writeFile(String name, byte[] content) throws IOException {
+    File file = new File(folder.getRoot(), name);
+    try (OutputStream out = new FileOutputStream(file)) {
+      out.write(content);
+    }
+    return file;
+  }
+
+  // Waits for both sides to complete |transferId| and checks the received file.
+  private void assertTransferred(long transferId, byte[] content) throws Exception {
+    File received = (File) receiverEvents.next("completed", transferId);
+    senderEvents.next("completed", transferId);
+    assertEquals(receiveDirectory, received.getParentFile());
+    assertArrayEquals(content, Files.readAllBytes(received.toPath()));
+  }
+
+  @Test
+  public void transfersOverOrderedChannel() throws Exception {
+    attach(true /* ordered */);
+    final byte[] content = pattern(FILE_SIZE);
+    long id = sender.send(writeFile("log.txt", content));
+    assertTransferred(id, content);
+    assertEquals(1, receiveDirectory.list().length);
+  }
+
+  @Test
+  public void transfersOverUnorderedChannelInSmallerChunks() throws Exception {
+    attach(false /* ordered */);
+    final byte[] content = pattern(FILE_SIZE);
+    long id = sender.send(writeFile("snapshot.jpg", content));
+    assertTransferred(id, content);
+  }
+
+  @Test
+  public void lostMessagesAreSentAgainAfterTimeout() throws Exception {
+    // Unordered, so that each file chunk is one channel message: the offer,
+    // then chunks 0 to 2, of which 1 is lost, and the acknowledgements of
+    // chunk 0 and of the resent chunk 1.
+    senderChannel.dropMessage(2);
+    receiverChannel.dropMessage(0);
+    receiverChannel.dropMessage(3);
+    attach(false /* ordered */);
+    final byte[] content = pattern(FILE_SIZE);
+    long id = sender.send(writeFile("log.txt", content));
+    assertTransferred(id, content);
+  }
+
+  @Test
+  public void resumesOnlyFromPartialFileOfSameTransfer() throws Exception {
+    final byte[] content = pattern(FILE_SIZE);
+    // Queued until a channel is attached.
+    long id = sender.send(writeFile("log.txt", content));
+    byte[] otherContent = new byte[FILE_SIZE];
+    Arrays.fill(otherContent, (byte) 0x55);
+    File otherPart =
+        new File(receiveDirectory, "log.txt." + Long.toHexString(id + 1) + ".part");
+    Files.write(otherPart.toPath(), otherContent);
+    // One complete chunk and part of the next from a previous attempt.
+    Files.write(new File(receiveDirectory, "log.txt." + Long.toHexString(id) + ".part").toPath(),
+        Arrays.copyOf(content, FileTransfer.CHUNK_SIZE + 100));
+
+    attach(true /* ordered */);
+    assertEquals(2L * FileTransfer.CHUNK_SIZE, receiverEvents.next("progress", id));
+    assertTransferred(id, content);
+    assertArrayEquals(otherContent, Files.readAllBytes(otherPart.toPath()));
+  }
+
+  @Test
+  public void changedFileIsNotResumed() throws Exception {
+    // Offered to a receiver that does not answer, then changed.
+    sender.attach(senderChannel.createClient(true /* ordered */, Runnable::run, null));
+    File file = writeFile("log.txt", pattern(FILE_SIZE));
+    long id = sender.send(file);
+    final long deadlineMs = System.currentTimeMillis() + TIMEOUT_MS;
+    while (senderChannel.getMessagesSent() == 0 && System.currentTimeMillis() < deadlineMs) {
+      Thread.sleep(5);
+    }
+    assertTrue(file.setLastModified(file.lastModified() - 60 * 1000));
+
+    attach(true /* ordered */);
+    senderEvents.next("failed", id);
+    assertEquals(0, receiveDirectory.list().length);
+  }
+
+  @Test
+  public void malformedMessagesAreIgnored() throws Exception {
+    attach(true /* ordered */);
+    final long id = 42;
+    ByteBuffer[] messages = {
+        // Offer without size, then with a name longer than the message.
+        ByteBuffer.allocate(13).putInt(MAGIC).put((byte) 1).putLong(id),
+        ByteBuffer.allocate(29).putInt(MAGIC).put((byte) 1).putLong(id)
+            .putLong(10).putInt(FileTransfer.CHUNK_SIZE).putShort((short) 100).put((byte) 'a'),
+        // Chunk without CRC, acknowledgement without index.
+        ByteBuffer.allocate(17).putInt(MAGIC).put((byte) 3).putLong(id).putInt(0),
+        ByteBuffer.allocate(13).putInt(MAGIC).put((byte) 4).putLong(id)};
+    for (ByteBuffer message : messages) {
+      message.flip();
+      receiver.onBinaryMessage(message);
+      sender.onBinaryMessage(message);
+    }
+
+    final byte[] content = pattern(FILE_SIZE);
+    long transferId = sender.send(writeFile("log.txt", content));
+    assertTransferred(transferId, content);
+    assertFalse(new File(receiveDirectory, "a").exists());
+  }
+}
@@ -0,0 +1,194 @@
+/*
+ *  Copyright 2017 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.appspot.apprtc.util.HttpRequestExecutor;
+import org.json.JSONObject;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.webrtc.PeerConnection;
+
+/**
+ * Checks the expiry and refresh of IceServerCache entries against a fake
+ * clock and server, and that it restores the entries persisted by a previous
+ * run.
+ */
+public class IceServerCacheTest {
+  private static final String GOOD_URL = "https://networktraversal.example.com/good";
+  private static final long LIFETIME_MS = 86400 * 1000;
+  private static final long START_TIME_MS = 1500000000000L;
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  private volatile long nowMs = START_TIME_MS;
+  private volatile String response = TestCorpus.loadSignaling("turn_response.json");
+  // Thrown by the fake server instead of responding, if not null.
+  private volatile IOException failure;
+  private final List<String> fetchedUrls = Collections.synchronizedList(new ArrayList<String>());
+  private final IceServerCache cache = new IceServerCache(() -> nowMs, url -> {
+    fetchedUrls.add(url);
+    if (failure != null) {
+      throw failure;
+    }
+    return response;
+  });
+
+  // Lanes run in order, so the background refresh of |url| is done once a
+  // later task of its lane runs.
+  private static void awaitRefresh(String url) throws InterruptedException {
+    final CountDownLatch done = new CountDownLatch(1);
+    assertTrue(HttpRequestExecutor.getInstance().submit(url, "test", done::countDown));
+    assertTrue(done.await(5, TimeUnit.SECONDS));
+  }
+
+  // Fetches |url| at the current time, then checks that its entry is used
+  // until |lifetimeMs| less the expiry margin has passed. Refreshes fail, so
+  // the first entry is kept.
+  private void assertEntryExpiresAfter(String url, long lifetimeMs) throws Exception {
+    final long fetchTimeMs = nowMs;
+    assertEquals(4, cache.getIceServers(url).size());
+    assertEquals(1, fetchedUrls.size());
+    failure = new IOException("Refresh failed");
+
+    nowMs = fetchTimeMs + lifetimeMs - IceServerCache.EXPIRY_MARGIN_MS - 1;
+    assertEquals(4, cache.getIceServers(url).size());
+    awaitRefresh(url);
+    assertEquals(2, fetchedUrls.size());
+    assertEquals(0, cache.getRefreshCount());
+
+    nowMs++;
+    try {
+      cache.getIceServers(url);
+      fail("Expired entry was used");
+    } catch (IOException e) {
+      assertSame(failure, e);
+    }
+    assertEquals(3, fetchedUrls.size());
+    assertEquals(1, cache.getHitCount());
+    assertEquals(2, cache.getMissCount());
+  }
+
+  @Test
+  public void entryExpiresAfterLifetimeDuration() throws Exception {
+    assertEntryExpiresAfter("https://networktraversal.example.com/lifetime", LIFETIME_MS);
+  }
+
+  @Test
+  public void entryWithoutLifetimeDurationExpiresAfterDefault() throws Exception {
+    response = response.replace("\"lifetimeDuration\": \"86400s\", ", "");
+    assertEntryExpiresAfter(
+        "https://networktraversal.example.com/default", IceServerCache.DEFAULT_LIFETIME_MS);
+  }
+
+  @Test
+  public void entryIsRefreshedInBackgroundAfterRefreshRatio() throws Exception {
+    final String url = "https://networktraversal.example.com/refresh";
+    cache.getIceServers(url);
+    final long refreshTimeMs = START_TIME_MS + (long) (LIFETIME_MS * IceServerCache.REFRESH_RATIO);
+    nowMs = refreshTimeMs - 1;
+    cache.getIceServers(url);
+    awaitRefresh(url);
+    assertEquals(1, fetchedUrls.size());
+
+    nowMs = refreshTimeMs;
+    cache.getIceServers(url);
+    awaitRefresh(url);
+    assertEquals(2, fetchedUrls.size());
+    assertEquals(1, cache.getRefreshCount());
+    assertEquals(2, cache.getHitCount());
+    assertEquals(1, cache.getMissCount());
+
+    // Used past the expiry of the first response.
+    nowMs = refreshTimeMs + LIFETIME_MS - IceServerCache.EXPIRY_MARGIN_MS - 1;
+    cache.getIceServers(url);
+    awaitRefresh(url);
+    assertEquals(3, cache.getHitCount());
+    assertEquals(1, cache.getMissCount());
+    assertEquals(2, cache.getRefreshCount());
+  }
+
+  @Test
+  public void oneRefreshIsInFlightAtATime() throws Exception {
+    final String url = "https://networktraversal.example.com/inflight";
+    cache.getIceServers(url);
+    // Holds the lane of |url|, so the refresh waits behind it.
+    final CountDownLatch release = new CountDownLatch(1);
+    assertTrue(HttpRequestExecutor.getInstance().submit(url, "test", () -> {
+      try {
+        release.await(5, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }));
+    nowMs = START_TIME_MS + (long) (LIFETIME_MS * IceServerCache.REFRESH_RATIO);
+    for (int i = 0; i < 3; i++) {
+      cache.getIceServers(url);
+    }
+    release.countDown();
+    awaitRefresh(url);
+    assertEquals(2, fetchedUrls.size());
+    assertEquals(1, cache.getRefreshCount());
+    assertEquals(3, cache.getHitCount());
+  }
+
+  @Test
+  public void loadSkipsCorruptEntries() throws Exception {
+    long nowMs = System.currentTimeMillis();
+    JSONObject good = new JSONObject();
+    good.put("response", TestCorpus.loadSignaling("turn_response.json"));
+    good.put("fetchTime", nowMs);
+    good.put("expiryTime", nowMs + 60 * 60 * 1000);
+    JSONObject badResponse = new JSONObject();
+    badResponse.put("response", "{\"iceServers\": 42}");
+    badResponse.put("fetchTime", nowMs);
+    badResponse.put("expiryTime", nowMs + 60 * 60 * 1000);
+    JSONObject missingFields = new JSONObject();
+    missingFields.put("response", TestCorpus.loadSignaling("turn_response.json"));
+    JSONObject cache = new JSONObject();
+    cache.put("https://networktraversal.example.com/bad", badResponse);
+    cache.put("https://networktraversal.example.com/incomplete", missingFields);
+    cache.put("https://networktraversal.example.com/string", "not an entry");
+    cache.put(GOOD_URL, good);
+
+    File cacheDir = folder.getRoot();
+    File cacheFile = new File(cacheDir, "ice_servers.json");
+    try (OutputStream out = new FileOutputStream(cacheFile)) {
+      out.write(cache.toString().getBytes("UTF-8"));
+    }
+    IceServerCache iceServerCache = IceServerCache.getInstance();
+    iceServerCache.init(cacheDir);
+    // Lanes run in order, so the load is done once a later task of its lane runs.
+    final CountDownLatch loaded = new CountDownLatch(1);
+    assertTrue(HttpRequestExecutor.getInstance().submit(
+        cacheFile.toURI().toString(), "test", loaded::countDown));
+    assertTrue(loaded.await(5, TimeUnit.SECONDS));
+
+    long hits = iceServerCache.getHitCount();
+    List<PeerConnection.IceServer> iceServers = iceServerCache.getIceServers(GOOD_URL);
+    assertEquals(hits + 1, iceServerCache.getHitCount());
+    assertEquals(4, iceServers.size());
+  }
+}
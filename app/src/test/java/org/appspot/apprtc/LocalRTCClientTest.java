@@ -0,0 +1,219 @@
+/*
+ *  Copyright 2017 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.appspot.apprtc.AppRTCClient.RoomConnectionParameters;
+import org.appspot.apprtc.AppRTCClient.SignalingParameters;
+import org.junit.Test;
+import org.webrtc.IceCandidate;
+import org.webrtc.SessionDescription;
+
+/** Sets up calls between LocalRTCClients through a LocalSignalingHub. */
+public class LocalRTCClientTest {
+  private static final String ROOM_ID = "827364";
+  private static final long TIMEOUT_MS = 5000;
+
+  private static final SessionDescription OFFER =
+      new SessionDescription(SessionDescription.Type.OFFER, "v=0\r\no=- 1 2 IN IP4 127.0.0.1\r\n");
+  private static final SessionDescription ANSWER =
+      new SessionDescription(SessionDescription.Type.ANSWER, "v=0\r\no=- 3 2 IN IP4 127.0.0.1\r\n");
+  private static final IceCandidate OFFER_CANDIDATE =
+      new IceCandidate("audio", 0, "candidate:1 1 udp 2122260223 192.168.1.37 46243 typ host");
+  private static final IceCandidate OTHER_OFFER_CANDIDATE =
+      new IceCandidate("video", 1, "candidate:2 1 udp 2122260223 192.168.1.37 46244 typ host");
+  private static final IceCandidate ANSWER_CANDIDATE =
+      new IceCandidate("audio", 0, "candidate:3 1 udp 2122260223 192.168.1.38 51000 typ host");
+
+  private final LocalSignalingHub hub = new LocalSignalingHub();
+
+  // Events of one client, in the order they were delivered.
+  private static class RecordingEvents implements AppRTCClient.SignalingEvents {
+    private final LinkedBlockingQueue<Object[]> events = new LinkedBlockingQueue<>();
+
+    @Override
+    public void onConnectedToRoom(SignalingParameters params) {
+      events.add(new Object[] {"connected", params});
+    }
+
+    @Override
+    public void onRemoteDescription(SessionDescription sdp) {
+      events.add(new Object[] {"description", sdp});
+    }
+
+    @Override
+    public void onRemoteIceCandidate(IceCandidate candidate) {
+      events.add(new Object[] {"candidate", candidate});
+    }
+
+    @Override
+    public void onRemoteIceCandidatesRemoved(IceCandidate[] candidates) {
+      events.add(new Object[] {"removed", candidates});
+    }
+
+    @Override
+    public void onChannelClose() {
+      events.add(new Object[] {"close", null});
+    }
+
+    @Override
+    public void onChannelError(String description) {
+      events.add(new Object[] {"error", description});
+    }
+
+    // Waits for the next event, which must be |name|, and returns its argument.
+    Object next(String name) throws InterruptedException {
+      Object[] event = events.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+      assertNotNull("Timed out waiting for " + name, event);
+      assertEquals(name, event[0]);
+      return event[1];
+    }
+
+    void assertNoEvents() throws InterruptedException {
+      Object[] event = events.poll(100, TimeUnit.MILLISECONDS);
+      assertNull(event == null ? null : "Unexpected event " + event[0], event);
+    }
+  }
+
+  private static RoomConnectionParameters room(boolean loopback) {
+    return new RoomConnectionParameters(LocalRTCClient.ROOM_URL, ROOM_ID, loopback);
+  }
+
+  // Clients send on their own lanes, so waits until the hub has seen them.
+  private void awaitMessageCount(long count) throws InterruptedException {
+    final long deadlineMs = System.currentTimeMillis() + TIMEOUT_MS;
+    while (hub.getMessageCount() < count && System.currentTimeMillis() < deadlineMs) {
+      Thread.sleep(5);
+    }
+    assertEquals(count, hub.getMessageCount());
+  }
+
+  @Test
+  public void callSetupWithReceiverJoiningLate() throws Exception {
+    RecordingEvents initiatorEvents = new RecordingEvents();
+    LocalRTCClient initiator = new LocalRTCClient(initiatorEvents, hub);
+    initiator.connectToRoom(room(false));
+    SignalingParameters initiatorParams = (SignalingParameters) initiatorEvents.next("connected");
+    assertTrue(initiatorParams.initiator);
+    assertTrue(initiatorParams.iceServers.isEmpty());
+
+    // Sent while alone, so kept by the room for the receiver.
+    initiator.sendOfferSdp(OFFER);
+    initiator.sendLocalIceCandidate(OFFER_CANDIDATE);
+    initiator.sendLocalIceCandidate(OTHER_OFFER_CANDIDATE);
+    initiator.sendLocalIceCandidateRemovals(new IceCandidate[] {OTHER_OFFER_CANDIDATE});
+    awaitMessageCount(4);
+
+    RecordingEvents receiverEvents = new RecordingEvents();
+    LocalRTCClient receiver = new LocalRTCClient(receiverEvents, hub);
+    receiver.connectToRoom(room(false));
+    SignalingParameters receiverParams = (SignalingParameters) receiverEvents.next("connected");
+    assertFalse(receiverParams.initiator);
+    assertFalse(receiverParams.clientId.equals(initiatorParams.clientId));
+    assertSame(OFFER, receiverParams.offerSdp);
+    assertEquals(1, receiverParams.iceCandidates.size());
+    assertSame(OFFER_CANDIDATE, receiverParams.iceCandidates.get(0));
+
+    receiver.sendAnswerSdp(ANSWER);
+    receiver.sendLocalIceCandidate(ANSWER_CANDIDATE);
+    assertSame(ANSWER, initiatorEvents.next("description"));
+    assertSame(ANSWER_CANDIDATE, initiatorEvents.next("candidate"));
+
+    // Once both joined, messages are delivered directly.
+    initiator.sendLocalIceCandidate(OTHER_OFFER_CANDIDATE);
+    initiator.sendLocalIceCandidateRemovals(new IceCandidate[] {OTHER_OFFER_CANDIDATE});
+    assertSame(OTHER_OFFER_CANDIDATE, receiverEvents.next("candidate"));
+    IceCandidate[] removed = (IceCandidate[]) receiverEvents.next("removed");
+    assertSame(OTHER_OFFER_CANDIDATE, removed[0]);
+
+    receiver.disconnectFromRoom();
+    initiatorEvents.next("close");
+    initiator.disconnectFromRoom();
+    initiatorEvents.assertNoEvents();
+    receiverEvents.assertNoEvents();
+    // Offer, two candidates and a removal before the receiver joined, answer,
+    // two candidates and a removal after.
+    assertEquals(8, hub.getMessageCount());
+  }
+
+  @Test
+  public void thirdClientIsRejected() throws Exception {
+    RecordingEvents[] events = new RecordingEvents[3];
+    LocalRTCClient[] clients = new LocalRTCClient[3];
+    for (int i = 0; i < 3; i++) {
+      events[i] = new RecordingEvents();
+      clients[i] = new LocalRTCClient(events[i], hub);
+      clients[i].connectToRoom(room(false));
+      if (i < 2) {
+        events[i].next("connected");
+      }
+    }
+    assertEquals("Room is full: " + ROOM_ID, events[2].next("error"));
+
+    // The room is free again once a client left.
+    clients[1].disconnectFromRoom();
+    events[0].next("close");
+    RecordingEvents lateEvents = new RecordingEvents();
+    new LocalRTCClient(lateEvents, hub).connectToRoom(room(false));
+    assertFalse(((SignalingParameters) lateEvents.next("connected")).initiator);
+  }
+
+  @Test
+  public void loopbackEchoesOfferAsAnswer() throws Exception {
+    RecordingEvents events = new RecordingEvents();
+    LocalRTCClient client = new LocalRTCClient(events, hub);
+    client.connectToRoom(room(true));
+    assertTrue(((SignalingParameters) events.next("connected")).initiator);
+
+    client.sendOfferSdp(OFFER);
+    SessionDescription answer = (SessionDescription) events.next("description");
+    assertEquals(SessionDescription.Type.ANSWER, answer.type);
+    assertEquals(OFFER.description, answer.description);
+    client.sendLocalIceCandidate(OFFER_CANDIDATE);
+    assertSame(OFFER_CANDIDATE, events.next("candidate"));
+    assertEquals(0, hub.getMessageCount());
+  }
+
+  @Test
+  public void sendingBeforeConnectingIsAnError() throws Exception {
+    RecordingEvents events = new RecordingEvents();
+    LocalRTCClient client = new LocalRTCClient(events, hub);
+    client.sendAnswerSdp(ANSWER);
+    assertEquals("Sending answer in non connected state.", events.next("error"));
+  }
+
+  @Test
+  public void noEventsAfterDisconnecting() throws Exception {
+    RecordingEvents initiatorEvents = new RecordingEvents();
+    LocalRTCClient initiator = new LocalRTCClient(initiatorEvents, hub);
+    initiator.connectToRoom(room(false));
+    initiatorEvents.next("connected");
+    RecordingEvents receiverEvents = new RecordingEvents();
+    LocalRTCClient receiver = new LocalRTCClient(receiverEvents, hub);
+    receiver.connectToRoom(room(false));
+    receiverEvents.next("connected");
+
+    initiator.disconnectFromRoom();
+    receiverEvents.next("close");
+    receiver.sendAnswerSdp(ANSWER);
+    initiator.sendOfferSdp(OFFER);
+    initiatorEvents.assertNoEvents();
+    receiverEvents.assertNoEvents();
+  }
+}
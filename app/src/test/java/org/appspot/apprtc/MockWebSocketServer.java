@@ -0,0 +1,140 @@
+/*
+ *  Copyright 2017 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import de.tavendo.autobahn.WebSocket;
+import de.tavendo.autobahn.WebSocket.WebSocketConnectionObserver.WebSocketCloseNotification;
+import de.tavendo.autobahn.WebSocketOptions;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * In-memory stand-in for the AppRTC WebSocket server. Every connection the
+ * client opens is a Connection that records the register and send commands
+ * it receives, and that the test can open, drop or send messages on. Like
+ * the autobahn library, connection events are delivered synchronously to the
+ * observer, which posts them to its lane.
+ */
+public class MockWebSocketServer implements WebSocketChannelClient.WebSocketFactory {
+  private final List<Connection> connections = new ArrayList<>();
+  private boolean accepting = true;
+
+  /** One client connection. */
+  public class Connection implements WebSocket {
+    // Commands of the client, in order.
+    public final List<JSONObject> commands = new ArrayList<>();
+    // The "msg" of the send commands, in order.
+    public final List<String> messages = new ArrayList<>();
+    public final List<byte[]> binaryMessages = new ArrayList<>();
+    private WebSocketConnectionObserver observer;
+    private boolean connected;
+
+    @Override
+    public void connect(URI uri, WebSocketConnectionObserver observer) {
+      this.observer = observer;
+      if (accepting) {
+        connected = true;
+        observer.onOpen();
+      } else {
+        observer.onClose(WebSocketCloseNotification.CANNOT_CONNECT, "Refused");
+      }
+    }
+
+    @Override
+    public void connect(URI uri, WebSocketConnectionObserver observer, WebSocketOptions options) {
+      connect(uri, observer);
+    }
+
+    @Override
+    public void disconnect() {
+      if (connected) {
+        connected = false;
+        observer.onClose(WebSocketCloseNotification.NORMAL, "Closed");
+      }
+    }
+
+    @Override
+    public boolean isConnected() {
+      return connected;
+    }
+
+    @Override
+    public void sendBinaryMessage(byte[] payload) {
+      binaryMessages.add(payload);
+    }
+
+    @Override
+    public void sendRawTextMessage(byte[] payload) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void sendTextMessage(String payload) {
+      try {
+        JSONObject command = new JSONObject(payload);
+        commands.add(command);
+        if (command.getString("cmd").equals("send")) {
+          messages.add(command.getString("msg"));
+        }
+      } catch (JSONException e) {
+        throw new AssertionError("Invalid command " + payload, e);
+      }
+    }
+
+    /** Returns the "cmd" of each command, in order. */
+    public List<String> commandNames() throws JSONException {
+      List<String> names = new ArrayList<>();
+      for (JSONObject command : commands) {
+        names.add(command.getString("cmd"));
+      }
+      return names;
+    }
+
+    /** Sends a text frame to the client. */
+    public void deliver(String payload) {
+      observer.onTextMessage(payload);
+    }
+
+    /** Sends a binary frame to the client. */
+    public void deliverBinary(byte[] payload) {
+      observer.onBinaryMessage(payload);
+    }
+
+    /** Drops the connection without a close handshake. */
+    public void drop() {
+      connected = false;
+      observer.onClose(WebSocketCloseNotification.CONNECTION_LOST, "Lost");
+    }
+  }
+
+  @Override
+  public WebSocket create() {
+    Connection connection = new Connection();
+    connections.add(connection);
+    return connection;
+  }
+
+  /** Whether new connections are opened, or refused. */
+  public void setAccepting(boolean accepting) {
+    this.accepting = accepting;
+  }
+
+  public List<Connection> getConnections() {
+    return connections;
+  }
+
+  public Connection getLastConnection() {
+    return connections.get(connections.size() - 1);
+  }
+}
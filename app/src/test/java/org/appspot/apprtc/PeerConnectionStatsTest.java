@@ -0,0 +1,102 @@
+/*
+ *  Copyright 2017 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import org.webrtc.StatsReport;
+
+/** Reduces synthetic StatsReports with PeerConnectionStats. */
+public class PeerConnectionStatsTest {
+  // Change masks the listener was notified with.
+  private final List<Integer> notifications = new ArrayList<>();
+  private final PeerConnectionStats stats = new PeerConnectionStats();
+
+  private static StatsReport report(String id, String type, String... namesAndValues) {
+    StatsReport.Value[] values = new StatsReport.Value[namesAndValues.length / 2];
+    for (int i = 0; i < values.length; i++) {
+      values[i] = new StatsReport.Value(namesAndValues[2 * i], namesAndValues[2 * i + 1]);
+    }
+    return new StatsReport(id, type, 0, values);
+  }
+
+  private static StatsReport activePair(String rttMs) {
+    return report("Conn-audio-1-0", "googCandidatePair", "googActiveConnection", "true",
+        "googRtt", rttMs);
+  }
+
+  private static StatsReport videoSend(String ssrc, long packets, long lost) {
+    return videoSend(ssrc, packets, lost, 640);
+  }
+
+  private static StatsReport videoSend(String ssrc, long packets, long lost, int width) {
+    return report("ssrc_" + ssrc + "_send", "ssrc", "mediaType", "video", "packetsSent",
+        Long.toString(packets), "packetsLost", Long.toString(lost), "googFrameWidthSent",
+        Integer.toString(width));
+  }
+
+  private void subscribe(int metric) {
+    stats.subscribe(PeerConnectionStats.mask(metric),
+        (stats, changedMetrics) -> notifications.add(changedMetrics));
+  }
+
+  @Test
+  public void metricsMissingFromUpdateAreUnknown() {
+    subscribe(PeerConnectionStats.RTT_MS);
+    stats.update(new StatsReport[] {activePair("50")}, 1000);
+    assertTrue(stats.has(PeerConnectionStats.RTT_MS));
+    assertEquals(50, stats.get(PeerConnectionStats.RTT_MS));
+
+    // The pair is not active anymore, e.g. after a network change.
+    stats.update(new StatsReport[] {report("Conn-audio-1-0", "googCandidatePair",
+        "googActiveConnection", "false", "googRtt", "50")}, 2000);
+    assertFalse(stats.has(PeerConnectionStats.RTT_MS));
+    assertEquals(2, notifications.size());
+    assertEquals(PeerConnectionStats.mask(PeerConnectionStats.RTT_MS),
+        (int) notifications.get(1));
+
+    // Reported again with the same value, which is a change from unknown.
+    stats.update(new StatsReport[] {activePair("50")}, 3000);
+    assertTrue(stats.has(PeerConnectionStats.RTT_MS));
+    assertEquals(3, notifications.size());
+    stats.update(new StatsReport[] {activePair("50")}, 4000);
+    assertEquals(3, notifications.size());
+  }
+
+  @Test
+  public void lossIsUnknownWithoutSendReport() {
+    stats.update(new StatsReport[] {videoSend("1", 100, 0)}, 1000);
+    assertFalse(stats.has(PeerConnectionStats.VIDEO_SEND_LOSS_PERCENT));
+    stats.update(new StatsReport[] {videoSend("1", 180, 20)}, 2000);
+    assertTrue(stats.has(PeerConnectionStats.VIDEO_SEND_LOSS_PERCENT));
+    assertEquals(20, stats.get(PeerConnectionStats.VIDEO_SEND_LOSS_PERCENT));
+
+    stats.update(new StatsReport[] {activePair("50")}, 3000);
+    assertFalse(stats.has(PeerConnectionStats.VIDEO_SEND_LOSS_PERCENT));
+  }
+
+  @Test
+  public void simulcastLayersAreCombined() {
+    stats.update(new StatsReport[] {videoSend("1", 100, 0, 320), videoSend("2", 100, 0, 1280),
+        videoSend("3", 100, 0, 640)}, 1000);
+    assertEquals(1280, stats.get(PeerConnectionStats.VIDEO_SEND_WIDTH));
+    // Only the middle layer loses packets: 30 of 300 sent since.
+    stats.update(new StatsReport[] {videoSend("1", 200, 0, 320), videoSend("2", 170, 30, 1280),
+        videoSend("3", 200, 0, 640)}, 2000);
+    assertEquals(10, stats.get(PeerConnectionStats.VIDEO_SEND_LOSS_PERCENT));
+    assertEquals(1280, stats.get(PeerConnectionStats.VIDEO_SEND_WIDTH));
+  }
+}
@@ -0,0 +1,172 @@
+/*
+ *  Copyright 2017 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.junit.Test;
+
+/** Checks SdpRewriter against the helpers it replaced on the SDP corpus. */
+public class SdpRewriterTest {
+  private static final String[] AUDIO_CODECS = {"opus", "ISAC", "G722", "PCMU", "missing"};
+  private static final String[] VIDEO_CODECS = {"VP8", "VP9", "H264", "red", "missing"};
+
+  @Test
+  public void preferCodecMatchesLegacy() {
+    for (String name : TestCorpus.SDP_FILES) {
+      String sdp = TestCorpus.loadSdp(name);
+      for (String codec : AUDIO_CODECS) {
+        assertEquals(name + " " + codec, LegacySdpMunger.preferCodec(sdp, codec, true),
+            SdpRewriter.parse(sdp).preferCodec(codec, true).toString());
+      }
+      for (String codec : VIDEO_CODECS) {
+        assertEquals(name + " " + codec, LegacySdpMunger.preferCodec(sdp, codec, false),
+            SdpRewriter.parse(sdp).preferCodec(codec, false).toString());
+      }
+    }
+  }
+
+  @Test
+  public void setStartBitrateMatchesLegacy() {
+    for (String name : TestCorpus.SDP_FILES) {
+      String sdp = TestCorpus.loadSdp(name);
+      for (String codec : AUDIO_CODECS) {
+        assertEquals(name + " " + codec, LegacySdpMunger.setStartBitrate(codec, false, sdp, 32),
+            SdpRewriter.parse(sdp).setStartBitrate(codec, false, 32).toString());
+      }
+      for (String codec : VIDEO_CODECS) {
+        assertEquals(name + " " + codec, LegacySdpMunger.setStartBitrate(codec, true, sdp, 1000),
+            SdpRewriter.parse(sdp).setStartBitrate(codec, true, 1000).toString());
+      }
+    }
+  }
+
+  // The transforms PeerConnectionClient applies to a local offer with ISAC
+  // preferred and start bitrates set.
+  @Test
+  public void chainedTransformsMatchLegacy() {
+    for (String name : TestCorpus.SDP_FILES) {
+      String sdp = TestCorpus.loadSdp(name);
+      String legacy = LegacySdpMunger.preferCodec(sdp, "ISAC", true);
+      legacy = LegacySdpMunger.preferCodec(legacy, "H264", false);
+      legacy = LegacySdpMunger.setStartBitrate("opus", false, legacy, 32);
+      legacy = LegacySdpMunger.setStartBitrate("H264", true, legacy, 1700);
+      String rewritten = SdpRewriter.parse(sdp)
+                             .preferCodec("ISAC", true)
+                             .preferCodec("H264", false)
+                             .setStartBitrate("opus", false, 32)
+                             .setStartBitrate("H264", true, 1700)
+                             .toString();
+      assertEquals(name, legacy, rewritten);
+    }
+  }
+
+  // The legacy helpers did not recognize their own x-google-start-bitrate
+  // attribute and added a second one for the same payload type.
+  @Test
+  public void setStartBitrateTwiceReplacesAddedParameter() {
+    for (String name : TestCorpus.SDP_FILES) {
+      String sdp = TestCorpus.loadSdp(name);
+      String once = SdpRewriter.parse(sdp).setStartBitrate("VP8", true, 500).toString();
+      String twice = SdpRewriter.parse(sdp)
+                         .setStartBitrate("VP8", true, 500)
+                         .setStartBitrate("VP8", true, 800)
+                         .toString();
+      assertEquals(name, countLines(once, "a=fmtp:"), countLines(twice, "a=fmtp:"));
+    }
+    String rewritten = SdpRewriter.parse(TestCorpus.loadSdp("android_offer.sdp"))
+                           .setStartBitrate("VP8", true, 500)
+                           .setStartBitrate("VP8", true, 800)
+                           .toString();
+    assertEquals(1, countLines(rewritten, "a=fmtp:96 "));
+    assertTrue(rewritten.contains("a=rtpmap:96 VP8/90000\r\n"
+        + "a=fmtp:96 x-google-start-bitrate=800\r\n"));
+  }
+
+  @Test
+  public void setStartBitrateTwiceReplacesExistingParameter() {
+    String rewritten = SdpRewriter.parse(TestCorpus.loadSdp("android_offer.sdp"))
+                           .setStartBitrate("opus", false, 32)
+                           .setStartBitrate("opus", false, 64)
+                           .toString();
+    List<String> fmtp = findLines(rewritten, "a=fmtp:111 ");
+    assertEquals(1, fmtp.size());
+    assertEquals("a=fmtp:111 minptime=10;useinbandfec=1; maxaveragebitrate=64000", fmtp.get(0));
+  }
+
+  @Test
+  public void unmodifiedDescriptionIsReturnedAsIs() {
+    String sdp = TestCorpus.loadSdp("audio_only_offer.sdp");
+    assertSame(sdp, SdpRewriter.parse(sdp).preferCodec("VP8", false).toString());
+    assertSame(sdp, SdpRewriter.parse(sdp).setStartBitrate("missing", true, 300).toString());
+  }
+
+  @Test
+  public void addSimulcastAddsLayerSsrcs() {
+    String sdp = TestCorpus.loadSdp("android_offer.sdp");
+    String simulcast = SdpRewriter.parse(sdp).addSimulcast(3).toString();
+
+    List<String> simGroups = findLines(simulcast, "a=ssrc-group:SIM ");
+    assertEquals(1, simGroups.size());
+    String[] layerSsrcs = simGroups.get(0).substring("a=ssrc-group:SIM ".length()).split(" ");
+    assertEquals(3, layerSsrcs.length);
+    assertEquals("1843529346", layerSsrcs[0]);
+    assertEquals(3, new HashSet<>(Arrays.asList(layerSsrcs)).size());
+
+    // One RTX SSRC per layer, each with the attributes of the original track.
+    List<String> fidGroups = findLines(simulcast, "a=ssrc-group:FID ");
+    assertEquals(3, fidGroups.size());
+    Set<String> ssrcs = new HashSet<>();
+    for (String line : findLines(simulcast, "a=ssrc:")) {
+      ssrcs.add(line.substring("a=ssrc:".length(), line.indexOf(' ')));
+    }
+    assertEquals(7, ssrcs.size());
+    for (String layerSsrc : layerSsrcs) {
+      assertEquals(1, countLines(simulcast, "a=ssrc:" + layerSsrc + " msid:ARDAMS ARDAMSv0"));
+    }
+    // Audio is left alone.
+    assertEquals(4, countLines(simulcast, "a=ssrc:2370658395 "));
+  }
+
+  @Test
+  public void addSimulcastIsIdempotent() {
+    String simulcast =
+        SdpRewriter.parse(TestCorpus.loadSdp("android_offer.sdp")).addSimulcast(2).toString();
+    assertSame(simulcast, SdpRewriter.parse(simulcast).addSimulcast(3).toString());
+  }
+
+  @Test
+  public void addSimulcastNeedsVideoSsrc() {
+    String sdp = TestCorpus.loadSdp("audio_only_offer.sdp");
+    assertSame(sdp, SdpRewriter.parse(sdp).addSimulcast(3).toString());
+  }
+
+  private static List<String> findLines(String sdp, String prefix) {
+    List<String> found = new ArrayList<>();
+    for (String line : sdp.split("\r\n")) {
+      if (line.startsWith(prefix)) {
+        found.add(line);
+      }
+    }
+    return found;
+  }
+
+  private static int countLines(String sdp, String prefix) {
+    return findLines(sdp, prefix).size();
+  }
+}
@@ -0,0 +1,145 @@
+/*
+ *  Copyright 2017 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import org.appspot.apprtc.SignalingMessageDecoder.SignalingMessage;
+import org.appspot.apprtc.SignalingMessageDecoder.Type;
+import org.junit.Test;
+import org.webrtc.IceCandidate;
+import org.webrtc.SessionDescription;
+
+/** Round-trips the message corpus through SignalingBinaryCodec and checks malformed frames. */
+public class SignalingBinaryCodecTest {
+  private static final IceCandidate[] CANDIDATES = {
+      new IceCandidate("audio", 0,
+          "candidate:1467250027 1 udp 2122260223 192.168.1.37 46243 typ host generation 0"),
+      new IceCandidate("video", 1,
+          "candidate:842163049 1 udp 1686052607 203.0.113.18 46243 typ srflx raddr 192.168.1.37"
+              + " rport 46243 generation 0 ufrag sLhX network-id 3 network-cost 10")};
+  // Offset of the inflated SDP length in a deflated description frame, after
+  // the version, type and flags bytes.
+  private static final int INFLATED_LENGTH_OFFSET = 3;
+
+  private final SignalingMessageEncoder encoder = new SignalingMessageEncoder();
+
+  private static SignalingMessage description(Type type, String sdp) {
+    return new SignalingMessage(type, type == Type.OFFER ? "offer" : "answer",
+        new SessionDescription(type == Type.OFFER ? SessionDescription.Type.OFFER
+                                                  : SessionDescription.Type.ANSWER,
+            sdp),
+        null);
+  }
+
+  private static byte[] deflatedOffer() {
+    byte[] frame = SignalingBinaryCodec.encode(
+        description(Type.OFFER, TestCorpus.loadSdp("android_offer.sdp")));
+    assertEquals(1, frame[2]); // Deflated.
+    return frame;
+  }
+
+  private static byte[] withInt(byte[] frame, int offset, int value) {
+    byte[] copy = frame.clone();
+    ByteBuffer.wrap(copy).putInt(offset, value);
+    return copy;
+  }
+
+  @Test
+  public void descriptionsRoundTripDeflated() throws Exception {
+    for (String name : TestCorpus.SDP_FILES) {
+      String sdp = TestCorpus.loadSdp(name);
+      for (Type type : new Type[] {Type.OFFER, Type.ANSWER}) {
+        SignalingMessage message = description(type, sdp);
+        byte[] frame = SignalingBinaryCodec.encode(message);
+        SignalingMessage decoded = SignalingBinaryCodec.decode(frame);
+        assertEquals(name, type, decoded.type);
+        assertEquals(name, message.sdp.type, decoded.sdp.type);
+        assertEquals(name, sdp, decoded.sdp.description);
+        assertNull(name, decoded.candidates);
+        // The corpus descriptions are all large enough to be deflated.
+        assertEquals(name, 1, frame[2]);
+        int jsonLength = encoder.encodeSessionDescription(message.sdp).length();
+        assertTrue(name + ": " + frame.length + " bytes, JSON " + jsonLength,
+            frame.length * 2 < jsonLength);
+      }
+    }
+  }
+
+  @Test
+  public void shortDescriptionIsNotDeflated() throws Exception {
+    byte[] frame = SignalingBinaryCodec.encode(description(Type.ANSWER, "v=0\r\n"));
+    assertEquals(0, frame[2]);
+    assertEquals("v=0\r\n", SignalingBinaryCodec.decode(frame).sdp.description);
+  }
+
+  @Test
+  public void candidatesRoundTrip() throws Exception {
+    for (Type type : new Type[] {Type.CANDIDATE, Type.REMOVE_CANDIDATES}) {
+      SignalingMessage decoded = SignalingBinaryCodec.decode(SignalingBinaryCodec.encode(
+          new SignalingMessage(type, "candidates", null, CANDIDATES)));
+      assertEquals(type, decoded.type);
+      assertEquals(CANDIDATES.length, decoded.candidates.length);
+      for (int i = 0; i < CANDIDATES.length; i++) {
+        assertEquals(CANDIDATES[i].sdpMid, decoded.candidates[i].sdpMid);
+        assertEquals(CANDIDATES[i].sdpMLineIndex, decoded.candidates[i].sdpMLineIndex);
+        assertEquals(CANDIDATES[i].sdp, decoded.candidates[i].sdp);
+      }
+    }
+    assertEquals(Type.BYE, SignalingBinaryCodec.decode(SignalingBinaryCodec.encode(
+        new SignalingMessage(Type.BYE, "bye", null, null))).type);
+  }
+
+  @Test
+  public void malformedFramesThrowIOException() {
+    final byte[] offer = deflatedOffer();
+    final int inflatedLength = ByteBuffer.wrap(offer).getInt(INFLATED_LENGTH_OFFSET);
+    final byte[] candidates = SignalingBinaryCodec.encode(
+        new SignalingMessage(Type.CANDIDATE, "candidates", null, CANDIDATES));
+    final byte[] corrupt = offer.clone();
+    for (int i = offer.length / 2; i < offer.length / 2 + 16; i++) {
+      corrupt[i] ^= 0x5a;
+    }
+    byte[][] frames = {
+        new byte[0],
+        // Version, type.
+        {2, 5, 0},
+        {1, 42, 0},
+        // Truncated frames.
+        Arrays.copyOf(offer, offer.length - 1),
+        Arrays.copyOf(offer, 5),
+        Arrays.copyOf(candidates, candidates.length - 1),
+        Arrays.copyOf(candidates, 4),
+        // Inflated lengths that do not match the deflated SDP.
+        withInt(offer, INFLATED_LENGTH_OFFSET, inflatedLength - 1),
+        withInt(offer, INFLATED_LENGTH_OFFSET, inflatedLength + 1),
+        withInt(offer, INFLATED_LENGTH_OFFSET, -1),
+        withInt(offer, INFLATED_LENGTH_OFFSET, 1024 * 1024 + 1),
+        // Deflated SDP length.
+        withInt(offer, INFLATED_LENGTH_OFFSET + 4, -1),
+        withInt(offer, INFLATED_LENGTH_OFFSET + 4, offer.length),
+        corrupt};
+    for (int i = 0; i < frames.length; i++) {
+      try {
+        SignalingBinaryCodec.decode(frames[i]);
+        fail("Decoded frame " + i);
+      } catch (IOException e) {
+        // Expected.
+      }
+    }
+  }
+}
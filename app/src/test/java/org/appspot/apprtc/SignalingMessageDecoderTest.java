@@ -0,0 +1,187 @@
+/*
+ *  Copyright 2017 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import org.appspot.apprtc.SignalingMessageDecoder.RoomResponse;
+import org.appspot.apprtc.SignalingMessageDecoder.SignalingMessage;
+import org.appspot.apprtc.SignalingMessageDecoder.Type;
+import org.appspot.apprtc.SignalingMessageDecoder.WebSocketMessage;
+import org.junit.Test;
+import org.webrtc.IceCandidate;
+import org.webrtc.PeerConnection;
+
+/** Checks SignalingMessageDecoder against the org.json code it replaced on the message corpus. */
+public class SignalingMessageDecoderTest {
+  private static final String[] MALFORMED_MESSAGES = {"", "{", "[]", "{\"msg\": 1",
+      "{\"error\": \"\"}", "{\"msg\": \"{\\\"type\\\": \\\"candidate\\\"}\"}",
+      "{\"msg\": {\"type\": \"candidate\", \"id\": \"audio\", \"candidate\": \"c\"}}",
+      "{\"msg\": {\"type\": \"candidate\", \"label\": \"x\", \"id\": \"audio\"}}",
+      "{\"msg\": {\"type\": \"offer\"}}", "{\"msg\": {\"type\": \"remove-candidates\"}}"};
+
+  private static void assertCandidateEquals(String name, IceCandidate expected, IceCandidate actual) {
+    assertEquals(name, expected.sdpMid, actual.sdpMid);
+    assertEquals(name, expected.sdpMLineIndex, actual.sdpMLineIndex);
+    assertEquals(name, expected.sdp, actual.sdp);
+  }
+
+  private static void assertMessageEquals(
+      String name, SignalingMessage expected, SignalingMessage actual) {
+    if (expected == null) {
+      assertNull(name, actual);
+      return;
+    }
+    assertNotNull(name, actual);
+    assertEquals(name, expected.type, actual.type);
+    assertEquals(name, expected.typeName, actual.typeName);
+    if (expected.sdp == null) {
+      assertNull(name, actual.sdp);
+    } else {
+      assertEquals(name, expected.sdp.type, actual.sdp.type);
+      assertEquals(name, expected.sdp.description, actual.sdp.description);
+    }
+    if (expected.candidates == null) {
+      assertNull(name, actual.candidates);
+    } else {
+      assertEquals(name, expected.candidates.length, actual.candidates.length);
+      for (int i = 0; i < expected.candidates.length; i++) {
+        assertCandidateEquals(name, expected.candidates[i], actual.candidates[i]);
+      }
+    }
+  }
+
+  private static void assertIceServersEqual(String name, List<PeerConnection.IceServer> expected,
+      List<PeerConnection.IceServer> actual) {
+    assertEquals(name, expected.size(), actual.size());
+    for (int i = 0; i < expected.size(); i++) {
+      assertEquals(name, expected.get(i).urls, actual.get(i).urls);
+      assertEquals(name, expected.get(i).username, actual.get(i).username);
+      assertEquals(name, expected.get(i).password, actual.get(i).password);
+    }
+  }
+
+  @Test
+  public void webSocketMessagesMatchOrgJson() throws Exception {
+    for (String name : TestCorpus.WEBSOCKET_MESSAGE_FILES) {
+      String json = TestCorpus.loadSignaling(name);
+      WebSocketMessage message = SignalingMessageDecoder.decodeWebSocketMessage(json);
+      assertMessageEquals(name, LegacySignalingJson.decodeWebSocketMessage(json), message.message);
+    }
+  }
+
+  @Test
+  public void webSocketErrorIsDecoded() throws Exception {
+    WebSocketMessage message =
+        SignalingMessageDecoder.decodeWebSocketMessage(TestCorpus.loadSignaling("ws_error.json"));
+    assertNull(message.message);
+    assertEquals("Invalid client id", message.error);
+  }
+
+  @Test
+  public void framingAcceptanceIsDecoded() throws Exception {
+    WebSocketMessage message = SignalingMessageDecoder.decodeWebSocketMessage(
+        "{\"msg\": \"\", \"error\": \"\", \"framing\": \"binary\"}");
+    assertNull(message.message);
+    assertEquals("binary", message.framing);
+    assertEquals("", SignalingMessageDecoder.decodeWebSocketMessage(
+        TestCorpus.loadSignaling("ws_error.json")).framing);
+  }
+
+  @Test
+  public void inlineMessageMatchesEncodedString() throws Exception {
+    // Messages relayed by the collider are JSON strings, loopback and local
+    // signaling may send them as objects.
+    String candidate = "{\"type\": \"candidate\", \"label\": 1, \"id\": \"video\","
+        + " \"candidate\": \"candidate:1 1 udp 2122260223 192.168.1.37 46243 typ host\"}";
+    SignalingMessage inline =
+        SignalingMessageDecoder.decodeWebSocketMessage("{\"msg\": " + candidate + "}").message;
+    assertMessageEquals("inline", LegacySignalingJson.decodeSignalingMessage(candidate), inline);
+  }
+
+  @Test
+  public void roomResponsesMatchOrgJson() throws Exception {
+    for (String name : TestCorpus.ROOM_RESPONSE_FILES) {
+      String json = TestCorpus.loadSignaling(name);
+      RoomResponse expected = LegacySignalingJson.decodeRoomResponse(json);
+      final List<String> iceServerUrls = new ArrayList<>();
+      RoomResponse actual = SignalingMessageDecoder.decodeRoomResponse(json, iceServerUrls::add);
+      assertEquals(name, expected.result, actual.result);
+      assertEquals(name, expected.roomId, actual.roomId);
+      assertEquals(name, expected.clientId, actual.clientId);
+      assertEquals(name, expected.wssUrl, actual.wssUrl);
+      assertEquals(name, expected.wssPostUrl, actual.wssPostUrl);
+      assertEquals(name, expected.initiator, actual.initiator);
+      assertEquals(name, expected.iceServerUrl, actual.iceServerUrl);
+      assertIceServersEqual(name, expected.iceServers, actual.iceServers);
+      assertEquals(name, expected.messages.size(), actual.messages.size());
+      for (int i = 0; i < expected.messages.size(); i++) {
+        assertMessageEquals(name, expected.messages.get(i), actual.messages.get(i));
+      }
+      if (expected.result.equals("SUCCESS")) {
+        assertEquals(name, 1, iceServerUrls.size());
+        assertEquals(name, expected.iceServerUrl, iceServerUrls.get(0));
+      }
+    }
+  }
+
+  @Test
+  public void batchedCandidatesAreDecodedInOrder() throws Exception {
+    SignalingMessage message = SignalingMessageDecoder.decodeSignalingMessage(
+        "{\"type\": \"candidates\", \"candidates\": ["
+        + "{\"label\": 0, \"id\": \"audio\", \"candidate\": \"candidate:1\"},"
+        + "{\"label\": 1, \"id\": \"video\", \"candidate\": \"candidate:2\"}]}");
+    assertEquals(Type.CANDIDATE, message.type);
+    assertEquals(2, message.candidates.length);
+    assertCandidateEquals("first", new IceCandidate("audio", 0, "candidate:1"),
+        message.candidates[0]);
+    assertCandidateEquals("second", new IceCandidate("video", 1, "candidate:2"),
+        message.candidates[1]);
+  }
+
+  @Test
+  public void unknownTypesAreKept() throws Exception {
+    SignalingMessage message =
+        SignalingMessageDecoder.decodeSignalingMessage("{\"type\": \"renegotiate\", \"x\": [1]}");
+    assertMessageEquals("unknown",
+        LegacySignalingJson.decodeSignalingMessage("{\"type\": \"renegotiate\"}"), message);
+  }
+
+  @Test
+  public void turnResponseIsDecoded() throws Exception {
+    SignalingMessageDecoder.TurnResponse response =
+        SignalingMessageDecoder.decodeTurnResponse(TestCorpus.loadSignaling("turn_response.json"));
+    assertEquals(86400 * 1000L, response.lifetimeMs);
+    // One server per URL, the STUN server without credentials.
+    assertEquals(4, response.iceServers.size());
+    assertEquals("CKjCuLwFEgahxNRjuTAYzc/s6OMTIICjBQ", response.iceServers.get(0).username);
+    assertEquals("+qDKB3Ho5vA/Z4lV8Tc3gRQu0Nc=", response.iceServers.get(2).password);
+    assertEquals("", response.iceServers.get(3).password);
+  }
+
+  @Test
+  public void malformedMessagesThrowIOException() {
+    for (String json : MALFORMED_MESSAGES) {
+      try {
+        SignalingMessageDecoder.decodeWebSocketMessage(json);
+        fail("Decoded " + json);
+      } catch (IOException e) {
+        // Expected.
+      }
+    }
+  }
+}
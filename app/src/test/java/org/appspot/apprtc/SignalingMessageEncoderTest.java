@@ -0,0 +1,146 @@
+/*
+ *  Copyright 2017 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.List;
+import org.json.JSONObject;
+import org.junit.Test;
+import org.webrtc.IceCandidate;
+import org.webrtc.SessionDescription;
+
+/**
+ * Checks SignalingMessageEncoder output byte for byte against golden files
+ * written by the framework org.json, which escapes '/' and keeps keys in
+ * insertion order, and that it only allocates the returned string.
+ */
+public class SignalingMessageEncoderTest {
+  private static final String SPECIAL = "quote\" backslash\\ slash/ </script> tab\t nl\n cr\r"
+      + " bs\b ff\f nul\0 us\u001f del\u007f \u00e9\u4e2d \ud83d\ude00 \u2028";
+  private static final IceCandidate CANDIDATE = new IceCandidate("video", 1,
+      "candidate:3993518542 1 udp 41885439 198.51.100.7 54132 typ relay raddr 203.0.113.18"
+          + " rport 46243 generation 0 ufrag sLhX network-id 3 network-cost 10");
+  private static final List<IceCandidate> REMOVED_CANDIDATES = Arrays.asList(
+      new IceCandidate("audio", 0,
+          "candidate:1467250027 1 udp 2122260223 192.168.1.37 46243 typ host generation 0"
+              + " ufrag sLhX network-id 3 network-cost 10"),
+      new IceCandidate("audio", 0,
+          "candidate:842163049 1 udp 1686052607 203.0.113.18 46243 typ srflx raddr 192.168.1.37"
+              + " rport 46243 generation 0 ufrag sLhX network-id 3 network-cost 10"));
+
+  private final SignalingMessageEncoder encoder = new SignalingMessageEncoder();
+
+  private static SessionDescription description(String type, String file) {
+    return new SessionDescription(
+        SessionDescription.Type.fromCanonicalForm(type), TestCorpus.loadSdp(file));
+  }
+
+  @Test
+  public void matchesGoldenFiles() {
+    assertEquals(TestCorpus.loadSignaling("encoded_register.json"),
+        encoder.encodeRegister("827364", "51843012", false /* binaryFraming */));
+    assertEquals(TestCorpus.loadSignaling("encoded_offer.json"),
+        encoder.encodeSessionDescription(description("offer", "android_offer.sdp")));
+    assertEquals(TestCorpus.loadSignaling("encoded_answer.json"),
+        encoder.encodeSessionDescription(description("answer", "chrome_answer.sdp")));
+    assertEquals(
+        TestCorpus.loadSignaling("encoded_candidate.json"), encoder.encodeCandidate(CANDIDATE));
+    assertEquals(TestCorpus.loadSignaling("encoded_remove_candidates.json"),
+        encoder.encodeCandidates("remove-candidates", REMOVED_CANDIDATES));
+    assertEquals(TestCorpus.loadSignaling("encoded_special.json"), encoder.encodeSend(SPECIAL));
+  }
+
+  @Test
+  public void nestedMessageMatchesGoldenFile() {
+    String offer = encoder.encodeSessionDescription(description("offer", "android_offer.sdp"));
+    assertEquals(
+        TestCorpus.loadSignaling("encoded_send_offer.json"), encoder.encodeSend(offer));
+  }
+
+  @Test
+  public void registerOffersBinaryFraming() throws Exception {
+    JSONObject json = new JSONObject(encoder.encodeRegister("827364", "51843012", true));
+    assertEquals("register", json.getString("cmd"));
+    assertEquals("binary", json.getString("framing"));
+  }
+
+  @Test
+  public void outputDecodesToInput() throws Exception {
+    // The reference org.json escapes differently, but must read back the
+    // same values.
+    assertEquals(SPECIAL, new JSONObject(encoder.encodeSend(SPECIAL)).getString("msg"));
+    JSONObject candidate = new JSONObject(encoder.encodeCandidate(CANDIDATE));
+    assertEquals(CANDIDATE.sdp, candidate.getString("candidate"));
+    assertEquals(CANDIDATE.sdpMLineIndex, candidate.getInt("label"));
+  }
+
+  @Test
+  public void onlyAllocatesTheResult() throws Exception {
+    java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+    com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) bean;
+    assumeTrue(threadBean.isThreadAllocatedMemorySupported());
+    threadBean.setThreadAllocatedMemoryEnabled(true);
+
+    final SessionDescription offer = description("offer", "android_offer.sdp");
+    final int iterations = 1000;
+    // Warm up, so that the buffer has grown and the code is compiled.
+    int length = 0;
+    for (int i = 0; i < iterations; i++) {
+      length += encoder.encodeSessionDescription(offer).length();
+      LegacySignalingJson.encodeSessionDescription(offer);
+    }
+    final long threadId = Thread.currentThread().getId();
+    long startBytes = threadBean.getThreadAllocatedBytes(threadId);
+    for (int i = 0; i < iterations; i++) {
+      length += encoder.encodeSessionDescription(offer).length();
+    }
+    long encoderBytes = (threadBean.getThreadAllocatedBytes(threadId) - startBytes) / iterations;
+    startBytes = threadBean.getThreadAllocatedBytes(threadId);
+    for (int i = 0; i < iterations; i++) {
+      length += LegacySignalingJson.encodeSessionDescription(offer).length();
+    }
+    long legacyBytes = (threadBean.getThreadAllocatedBytes(threadId) - startBytes) / iterations;
+
+    // The result takes at most two bytes per character, one with compact
+    // strings, plus the headers of the string and its array.
+    int resultLength = encoder.encodeSessionDescription(offer).length();
+    assertTrue(length > 0);
+    assertTrue("Encoder allocated " + encoderBytes + " bytes for " + resultLength + " chars",
+        encoderBytes <= 2 * resultLength + 128);
+    assertTrue("Encoder allocated " + encoderBytes + " bytes, org.json " + legacyBytes,
+        encoderBytes * 2 < legacyBytes);
+  }
+
+  @Test
+  public void signalingMessagesEncodeLikeTheirTypes() {
+    SessionDescription answer = description("answer", "chrome_answer.sdp");
+    assertEquals(encoder.encodeSessionDescription(answer),
+        encoder.encodeSignalingMessage(new SignalingMessageDecoder.SignalingMessage(
+            SignalingMessageDecoder.Type.ANSWER, "answer", answer, null)));
+    assertEquals(encoder.encodeCandidate(CANDIDATE),
+        encoder.encodeSignalingMessage(new SignalingMessageDecoder.SignalingMessage(
+            SignalingMessageDecoder.Type.CANDIDATE, "candidate", null,
+            new IceCandidate[] {CANDIDATE})));
+    assertEquals(TestCorpus.loadSignaling("encoded_remove_candidates.json"),
+        encoder.encodeSignalingMessage(new SignalingMessageDecoder.SignalingMessage(
+            SignalingMessageDecoder.Type.REMOVE_CANDIDATES, "remove-candidates", null,
+            REMOVED_CANDIDATES.toArray(new IceCandidate[0]))));
+    assertEquals("{\"type\":\"bye\"}",
+        encoder.encodeSignalingMessage(new SignalingMessageDecoder.SignalingMessage(
+            SignalingMessageDecoder.Type.BYE, "bye", null, null)));
+  }
+}
@@ -0,0 +1,130 @@
+/*
+ *  Copyright 2017 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Test;
+import org.webrtc.IceCandidate;
+import org.webrtc.SessionDescription;
+
+/** Checks the order, batching and bounds of SignalingSendQueue. */
+public class SignalingSendQueueTest {
+  private final SignalingMessageEncoder encoder = new SignalingMessageEncoder();
+  private final SignalingSendQueue queue = new SignalingSendQueue();
+  private final String offer = encoder.encodeSessionDescription(
+      new SessionDescription(SessionDescription.Type.OFFER, "v=0\r\n"));
+  private final String bye = "{\"type\": \"bye\"}";
+
+  private static IceCandidate candidate(int index) {
+    return new IceCandidate(
+        "audio", 0, "candidate:" + index + " 1 udp 2122260223 192.168.1.37 " + index + " typ host");
+  }
+
+  private String encode(IceCandidate candidate) {
+    return encoder.encodeCandidate(candidate);
+  }
+
+  private String encodeRemoval(IceCandidate... candidates) {
+    return encoder.encodeCandidates("remove-candidates", Arrays.asList(candidates));
+  }
+
+  @Test
+  public void drainsInArrivalOrderOneMessagePerCandidate() {
+    queue.add(encode(candidate(1)));
+    queue.add(offer);
+    queue.add(encode(candidate(2)));
+    queue.add(encodeRemoval(candidate(0)));
+    queue.add(bye);
+    assertEquals(Arrays.asList(encode(candidate(1)), offer, encode(candidate(2)),
+                     encodeRemoval(candidate(0)), bye),
+        queue.drain(encoder, false /* batchCandidates */));
+    assertEquals(0, queue.size());
+  }
+
+  @Test
+  public void messagesQueuedAsObjectsAreEncodedWhenDrained() {
+    SessionDescription answer = new SessionDescription(SessionDescription.Type.ANSWER, "v=0\r\n");
+    queue.add(new SignalingMessageDecoder.SignalingMessage(
+        SignalingMessageDecoder.Type.CANDIDATE, "candidate", null,
+        new IceCandidate[] {candidate(1)}));
+    queue.add(new SignalingMessageDecoder.SignalingMessage(
+        SignalingMessageDecoder.Type.ANSWER, "answer", answer, null));
+    // Cancels the candidate queued as JSON, like a JSON removal would.
+    queue.add(encode(candidate(2)));
+    queue.add(new SignalingMessageDecoder.SignalingMessage(
+        SignalingMessageDecoder.Type.REMOVE_CANDIDATES, "remove-candidates", null,
+        new IceCandidate[] {candidate(2)}));
+    assertEquals(Arrays.asList(encode(candidate(1)), encoder.encodeSessionDescription(answer)),
+        queue.drain(encoder, false /* batchCandidates */));
+  }
+
+  @Test
+  public void batchingMergesConsecutiveCandidatesOnly() {
+    queue.add(offer);
+    queue.add(encode(candidate(1)));
+    queue.add(encoder.encodeCandidates("candidates", Arrays.asList(candidate(2), candidate(3))));
+    queue.add(encodeRemoval(candidate(0)));
+    queue.add(encode(candidate(4)));
+    assertEquals(
+        Arrays.asList(offer,
+            encoder.encodeCandidates(
+                "candidates", Arrays.asList(candidate(1), candidate(2), candidate(3))),
+            encodeRemoval(candidate(0)), encode(candidate(4))),
+        queue.drain(encoder, true /* batchCandidates */));
+  }
+
+  @Test
+  public void duplicatesAreQueuedOnce() {
+    queue.add(encode(candidate(1)));
+    queue.add(encode(candidate(1)));
+    queue.add(encodeRemoval(candidate(0)));
+    queue.add(encodeRemoval(candidate(0)));
+    assertEquals(Arrays.asList(encode(candidate(1)), encodeRemoval(candidate(0))),
+        queue.drain(encoder, false /* batchCandidates */));
+  }
+
+  @Test
+  public void removalCancelsQueuedCandidate() {
+    queue.add(encode(candidate(1)));
+    queue.add(encode(candidate(2)));
+    queue.add(encodeRemoval(candidate(1)));
+    assertEquals(Collections.singletonList(encode(candidate(2))),
+        queue.drain(encoder, false /* batchCandidates */));
+  }
+
+  @Test
+  public void candidateCancelsQueuedRemoval() {
+    queue.add(encodeRemoval(candidate(1)));
+    queue.add(encode(candidate(1)));
+    assertEquals(Collections.singletonList(encode(candidate(1))),
+        queue.drain(encoder, false /* batchCandidates */));
+  }
+
+  @Test
+  public void fullQueueDropsOldestCandidatesFirst() {
+    queue.add(bye);
+    queue.add(offer);
+    for (int i = 0; i < 200; i++) {
+      queue.add(encode(candidate(i)));
+    }
+    assertEquals(128, queue.size());
+    assertEquals(74, queue.getDroppedCount());
+    List<String> messages = queue.drain(encoder, false /* batchCandidates */);
+    assertEquals(bye, messages.get(0));
+    assertEquals(offer, messages.get(1));
+    assertEquals(encode(candidate(74)), messages.get(2));
+    assertEquals(encode(candidate(199)), messages.get(127));
+  }
+}
@@ -0,0 +1,91 @@
+/*
+ *  Copyright 2017 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import org.appspot.apprtc.util.SignalingLane;
+
+/**
+ * SignalingLane whose tasks run on the test thread when the test advances
+ * its clock, so that code driven by a lane runs deterministically.
+ */
+public class TestLane implements SignalingLane {
+  private static class Task {
+    final Runnable runnable;
+    final long timeMs;
+
+    Task(Runnable runnable, long timeMs) {
+      this.runnable = runnable;
+      this.timeMs = timeMs;
+    }
+  }
+
+  private final Thread thread = Thread.currentThread();
+  private final List<Task> tasks = new ArrayList<>();
+  private long nowMs;
+
+  @Override
+  public void execute(Runnable runnable) {
+    tasks.add(new Task(runnable, nowMs));
+  }
+
+  @Override
+  public void executeDelayed(Runnable runnable, long delayMs) {
+    tasks.add(new Task(runnable, nowMs + delayMs));
+  }
+
+  @Override
+  public void cancel(Runnable runnable) {
+    Iterator<Task> it = tasks.iterator();
+    while (it.hasNext()) {
+      if (it.next().runnable == runnable) {
+        it.remove();
+      }
+    }
+  }
+
+  @Override
+  public boolean isCurrentThread() {
+    return Thread.currentThread() == thread;
+  }
+
+  @Override
+  public void release() {
+    tasks.clear();
+  }
+
+  /** Runs the tasks that are due, including the ones they post. */
+  public void runPending() {
+    advance(0);
+  }
+
+  /** Advances the clock by |ms|, running the tasks that become due in time order. */
+  public void advance(long ms) {
+    final long endMs = nowMs + ms;
+    while (true) {
+      Task next = null;
+      for (Task task : tasks) {
+        if (task.timeMs <= endMs && (next == null || task.timeMs < next.timeMs)) {
+          next = task;
+        }
+      }
+      if (next == null) {
+        break;
+      }
+      tasks.remove(next);
+      nowMs = Math.max(nowMs, next.timeMs);
+      next.runnable.run();
+    }
+    nowMs = endMs;
+  }
+}
@@ -0,0 +1,276 @@
+/*
+ *  Copyright 2017 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import java.util.Arrays;
+import org.appspot.apprtc.WebSocketChannelClient.WebSocketChannelEvents;
+import org.appspot.apprtc.WebSocketChannelClient.WebSocketConnectionState;
+import org.junit.Before;
+import org.junit.Test;
+import org.webrtc.IceCandidate;
+import org.webrtc.SessionDescription;
+
+/** Drives WebSocketChannelClient against MockWebSocketServer. */
+public class WebSocketChannelClientTest {
+  private static final String WSS_URL = "wss://apprtc-ws.example.com:443/ws";
+  private static final String POST_URL = "https://apprtc-ws.example.com:443";
+  // Longer than the largest reconnect delay.
+  private static final long RECONNECT_WAIT_MS = 10000;
+  private static final IceCandidate CANDIDATE =
+      new IceCandidate("audio", 0, "candidate:1 1 udp 2122260223 192.168.1.37 46243 typ host");
+  private static final IceCandidate OTHER_CANDIDATE =
+      new IceCandidate("video", 1, "candidate:2 1 udp 2122260223 192.168.1.37 46244 typ host");
+  private static final String BINARY_FRAMING_ACCEPTED =
+      "{\"msg\": \"\", \"error\": \"\", \"framing\": \"binary\"}";
+
+  private final SignalingMessageEncoder encoder = new SignalingMessageEncoder();
+  private final String offer = encoder.encodeSessionDescription(
+      new SessionDescription(SessionDescription.Type.OFFER, "v=0\r\n"));
+  private final String answer = encoder.encodeSessionDescription(
+      new SessionDescription(SessionDescription.Type.ANSWER, "v=0\r\n"));
+  private final String candidate = encoder.encodeCandidate(CANDIDATE);
+  private final String otherCandidate = encoder.encodeCandidate(OTHER_CANDIDATE);
+  private final SignalingMessageDecoder.SignalingMessage candidateMessage =
+      new SignalingMessageDecoder.SignalingMessage(SignalingMessageDecoder.Type.CANDIDATE,
+          "candidate", null, new IceCandidate[] {CANDIDATE});
+
+  private TestLane lane;
+  private MockWebSocketServer server;
+  private WebSocketChannelEvents events;
+  private WebSocketChannelClient client;
+
+  @Before
+  public void setUp() {
+    lane = new TestLane();
+    server = new MockWebSocketServer();
+    events = mock(WebSocketChannelEvents.class);
+    client = new WebSocketChannelClient(lane, events, server);
+  }
+
+  private void connectAndRegister() {
+    client.connect(WSS_URL, POST_URL);
+    lane.runPending();
+    client.register("827364", "51843012");
+    assertEquals(WebSocketConnectionState.REGISTERED, client.getState());
+  }
+
+  @Test
+  public void messagesQueuedBeforeRegisterAreSentAfterIt() throws Exception {
+    client.send(offer);
+    client.send(candidate);
+    client.send(otherCandidate);
+    connectAndRegister();
+    MockWebSocketServer.Connection connection = server.getLastConnection();
+    assertEquals(Arrays.asList("register", "send", "send", "send"), connection.commandNames());
+    assertEquals(Arrays.asList(offer, candidate, otherCandidate), connection.messages);
+    verify(events).onWebSocketRegistered();
+  }
+
+  @Test
+  public void queuedCandidatesAreBatchedWhenEnabled() throws Exception {
+    client.setCandidateBatchingEnabled(true);
+    client.send(offer);
+    client.send(candidate);
+    client.send(otherCandidate);
+    connectAndRegister();
+    assertEquals(Arrays.asList(offer,
+                     encoder.encodeCandidates("candidates",
+                         Arrays.asList(CANDIDATE, OTHER_CANDIDATE))),
+        server.getLastConnection().messages);
+  }
+
+  @Test
+  public void reconnectReplaysOnlyCandidates() throws Exception {
+    connectAndRegister();
+    client.send(offer);
+    client.send(candidateMessage);
+    // Text is not decoded to find out whether it could be replayed.
+    client.send(otherCandidate);
+    MockWebSocketServer.Connection first = server.getLastConnection();
+    assertEquals(Arrays.asList(offer, candidate, otherCandidate), first.messages);
+
+    first.drop();
+    lane.advance(RECONNECT_WAIT_MS);
+
+    assertEquals(2, server.getConnections().size());
+    MockWebSocketServer.Connection second = server.getLastConnection();
+    assertEquals(Arrays.asList("register", "send"), second.commandNames());
+    assertEquals(Arrays.asList(candidate), second.messages);
+    assertEquals(WebSocketConnectionState.REGISTERED, client.getState());
+    assertEquals(1, client.getReconnectCount());
+    verify(events).onWebSocketReconnected(anyLong());
+    verify(events, never()).onWebSocketClose();
+  }
+
+  @Test
+  public void messagesSentWhileReconnectingAreSentAfterIt() throws Exception {
+    connectAndRegister();
+    client.send(candidateMessage);
+    server.getLastConnection().drop();
+    lane.runPending();
+    client.send(answer);
+
+    // The candidate possibly lost in the drop was sent first.
+    lane.advance(RECONNECT_WAIT_MS);
+    assertEquals(Arrays.asList(candidate, answer), server.getLastConnection().messages);
+  }
+
+  @Test
+  public void reconnectRetriesWithBackoff() throws Exception {
+    connectAndRegister();
+    server.getLastConnection().drop();
+    server.setAccepting(false);
+    // The first attempt waits 250 to 500 ms, each next one twice as long.
+    lane.advance(249);
+    assertEquals(1, server.getConnections().size());
+    lane.advance(RECONNECT_WAIT_MS);
+    final int attempts = server.getConnections().size() - 1;
+    assertTrue("Attempts: " + attempts, attempts >= 4 && attempts <= 6);
+
+    server.setAccepting(true);
+    lane.advance(RECONNECT_WAIT_MS);
+    assertEquals(WebSocketConnectionState.REGISTERED, client.getState());
+    assertEquals(Arrays.asList("register"), server.getLastConnection().commandNames());
+    verify(events).onWebSocketReconnected(anyLong());
+  }
+
+  @Test
+  public void reconnectGivesUpAfterMaxAttempts() {
+    connectAndRegister();
+    server.getLastConnection().drop();
+    server.setAccepting(false);
+    for (int i = 0; i < 20; i++) {
+      lane.advance(RECONNECT_WAIT_MS);
+    }
+    // The original connection and 8 attempts.
+    assertEquals(9, server.getConnections().size());
+    assertEquals(WebSocketConnectionState.CLOSED, client.getState());
+    verify(events, times(1)).onWebSocketClose();
+    verify(events, never()).onWebSocketReconnected(anyLong());
+  }
+
+  @Test
+  public void dropBeforeRegisterClosesWithoutReconnect() {
+    client.connect(WSS_URL, POST_URL);
+    lane.runPending();
+    server.getLastConnection().drop();
+    lane.advance(RECONNECT_WAIT_MS);
+    assertEquals(1, server.getConnections().size());
+    assertEquals(WebSocketConnectionState.CLOSED, client.getState());
+    verify(events).onWebSocketClose();
+  }
+
+  @Test
+  public void messagesOfReplacedConnectionAreIgnored() {
+    connectAndRegister();
+    MockWebSocketServer.Connection first = server.getLastConnection();
+    first.drop();
+    lane.advance(RECONNECT_WAIT_MS);
+    first.deliver("{\"msg\": \"{\\\"type\\\": \\\"bye\\\"}\", \"error\": \"\"}");
+    server.getLastConnection().deliver("{\"msg\": \"\", \"error\": \"\"}");
+    lane.runPending();
+    verify(events).onWebSocketMessage("{\"msg\": \"\", \"error\": \"\"}");
+    verify(events, times(1)).onWebSocketMessage(anyString());
+  }
+
+  @Test
+  public void binaryFramingIsOffByDefault() throws Exception {
+    connectAndRegister();
+    MockWebSocketServer.Connection connection = server.getLastConnection();
+    assertFalse(connection.commands.get(0).has("framing"));
+    // Not offered, so an acceptance is just an unexpected message.
+    connection.deliver(BINARY_FRAMING_ACCEPTED);
+    lane.runPending();
+    verify(events).onWebSocketMessage(BINARY_FRAMING_ACCEPTED);
+    client.send(candidateMessage);
+    assertEquals(Arrays.asList(candidate), connection.messages);
+    assertTrue(connection.binaryMessages.isEmpty());
+
+    connection.deliverBinary(SignalingBinaryCodec.encode(candidateMessage));
+    lane.runPending();
+    lane.runPending();
+    verify(events).onWebSocketError("Unexpected binary WebSocket message.");
+    verify(events, never()).onWebSocketSignalingMessage(
+        any(SignalingMessageDecoder.SignalingMessage.class));
+  }
+
+  @Test
+  public void binaryFramesAreSentOnlyOnceAccepted() throws Exception {
+    client.setBinaryFramingEnabled(true);
+    connectAndRegister();
+    MockWebSocketServer.Connection connection = server.getLastConnection();
+    assertEquals("binary", connection.commands.get(0).getString("framing"));
+
+    // Other messages of the server are no acceptance.
+    connection.deliver("{\"msg\": \"\", \"error\": \"\"}");
+    lane.runPending();
+    client.send(candidateMessage);
+    assertEquals(Arrays.asList(candidate), connection.messages);
+    assertTrue(connection.binaryMessages.isEmpty());
+
+    connection.deliver(BINARY_FRAMING_ACCEPTED);
+    lane.runPending();
+    verify(events, times(1)).onWebSocketMessage(anyString());
+    client.send(candidateMessage);
+    assertEquals(1, connection.binaryMessages.size());
+    SignalingMessageDecoder.SignalingMessage sent =
+        SignalingBinaryCodec.decode(connection.binaryMessages.get(0));
+    assertEquals(SignalingMessageDecoder.Type.CANDIDATE, sent.type);
+    assertEquals(CANDIDATE.sdp, sent.candidates[0].sdp);
+    // JSON messages are still sent as text.
+    client.send(answer);
+    assertEquals(Arrays.asList(candidate, answer), connection.messages);
+
+    connection.deliverBinary(SignalingBinaryCodec.encode(candidateMessage));
+    lane.runPending();
+    verify(events).onWebSocketSignalingMessage(
+        any(SignalingMessageDecoder.SignalingMessage.class));
+  }
+
+  @Test
+  public void binaryFrameBeforeAcceptanceIsAnError() throws Exception {
+    client.setBinaryFramingEnabled(true);
+    connectAndRegister();
+    server.getLastConnection().deliverBinary(SignalingBinaryCodec.encode(candidateMessage));
+    lane.runPending();
+    lane.runPending();
+    verify(events).onWebSocketError("Unexpected binary WebSocket message.");
+  }
+
+  @Test
+  public void binaryFramingIsNegotiatedAgainAfterReconnect() throws Exception {
+    client.setBinaryFramingEnabled(true);
+    connectAndRegister();
+    server.getLastConnection().deliver(BINARY_FRAMING_ACCEPTED);
+    lane.runPending();
+    client.send(candidateMessage);
+    assertEquals(1, server.getLastConnection().binaryMessages.size());
+
+    server.getLastConnection().drop();
+    lane.advance(RECONNECT_WAIT_MS);
+    // Replayed as JSON, as the new connection did not accept binary frames.
+    MockWebSocketServer.Connection second = server.getLastConnection();
+    assertEquals("binary", second.commands.get(0).getString("framing"));
+    assertEquals(Arrays.asList(candidate), second.messages);
+    assertTrue(second.binaryMessages.isEmpty());
+  }
+}
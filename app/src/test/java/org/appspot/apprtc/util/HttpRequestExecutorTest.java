@@ -0,0 +1,190 @@
+/*
+ *  Copyright 2017 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Test;
+
+/** Checks the lanes, host limit, rejection and stats of HttpRequestExecutor. */
+public class HttpRequestExecutorTest {
+  private static final long TIMEOUT_MS = 5000;
+  // Time given to a task that must not start to do so anyway.
+  private static final long SETTLE_MS = 100;
+  private static final String HOST_URL = "https://apprtc.example.com/message/827364/";
+  private static final String OTHER_HOST_URL = "https://turn.example.com/turn";
+
+  private volatile long nowMs;
+  private final HttpRequestExecutor executor = new HttpRequestExecutor(() -> nowMs);
+  private final List<BlockingTask> blockingTasks = new ArrayList<>();
+
+  // Task that runs until the test releases it.
+  private static class BlockingTask implements Runnable {
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+
+    @Override
+    public void run() {
+      started.countDown();
+      try {
+        release.await(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+
+    boolean hasStarted() {
+      return started.getCount() == 0;
+    }
+
+    void awaitStarted() throws InterruptedException {
+      assertTrue("Not started", started.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+    }
+  }
+
+  @After
+  public void tearDown() {
+    for (BlockingTask task : blockingTasks) {
+      task.release.countDown();
+    }
+  }
+
+  private BlockingTask submitBlocking(String url) {
+    BlockingTask task = new BlockingTask();
+    blockingTasks.add(task);
+    assertTrue(executor.submit(url, "blocking", task));
+    return task;
+  }
+
+  // Waits for the requests submitted so far to complete.
+  private void awaitCompleted(long count) throws InterruptedException {
+    final long deadlineMs = System.currentTimeMillis() + TIMEOUT_MS;
+    while (executor.getCompletedRequestCount() < count
+        && System.currentTimeMillis() < deadlineMs) {
+      Thread.sleep(5);
+    }
+    assertEquals(count, executor.getCompletedRequestCount());
+  }
+
+  @Test
+  public void requestsOfSameUrlRunOneAtATimeInOrder() throws Exception {
+    final List<Integer> order = new CopyOnWriteArrayList<>();
+    final AtomicInteger running = new AtomicInteger();
+    final AtomicInteger maxRunning = new AtomicInteger();
+    for (int i = 0; i < 50; i++) {
+      final int index = i;
+      assertTrue(executor.submit(HOST_URL + "1", "message " + i, () -> {
+        maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+        order.add(index);
+        running.decrementAndGet();
+      }));
+    }
+    awaitCompleted(50);
+    assertEquals(1, maxRunning.get());
+    for (int i = 0; i < order.size(); i++) {
+      assertEquals(i, (int) order.get(i));
+    }
+    assertEquals(0, executor.getQueueDepth());
+  }
+
+  @Test
+  public void lanesOfOneHostAreLimited() throws Exception {
+    List<BlockingTask> tasks = new ArrayList<>();
+    for (int i = 0; i <= HttpRequestExecutor.MAX_REQUESTS_PER_HOST; i++) {
+      tasks.add(submitBlocking(HOST_URL + i));
+    }
+    BlockingTask otherHost = submitBlocking(OTHER_HOST_URL);
+    for (int i = 0; i < HttpRequestExecutor.MAX_REQUESTS_PER_HOST; i++) {
+      tasks.get(i).awaitStarted();
+    }
+    // Other hosts do not wait for the busy one.
+    otherHost.awaitStarted();
+    BlockingTask waiting = tasks.get(HttpRequestExecutor.MAX_REQUESTS_PER_HOST);
+    Thread.sleep(SETTLE_MS);
+    assertFalse(waiting.hasStarted());
+
+    tasks.get(0).release.countDown();
+    waiting.awaitStarted();
+  }
+
+  @Test
+  public void finishedLaneHandsItsHostSlotToWaitingLane() throws Exception {
+    List<BlockingTask> running = new ArrayList<>();
+    for (int i = 0; i < HttpRequestExecutor.MAX_REQUESTS_PER_HOST; i++) {
+      running.add(submitBlocking(HOST_URL + i));
+    }
+    for (BlockingTask task : running) {
+      task.awaitStarted();
+    }
+    BlockingTask waitingLane = submitBlocking(HOST_URL + "waiting");
+    // Queued behind the first request of its lane, which holds a host slot.
+    BlockingTask sameLane = submitBlocking(HOST_URL + 0);
+
+    running.get(0).release.countDown();
+    waitingLane.awaitStarted();
+    Thread.sleep(SETTLE_MS);
+    assertFalse(sameLane.hasStarted());
+
+    running.get(1).release.countDown();
+    sameLane.awaitStarted();
+  }
+
+  @Test
+  public void requestsAreRejectedOnceMaxPendingAreQueued() throws Exception {
+    BlockingTask first = submitBlocking(HOST_URL + 1);
+    first.awaitStarted();
+    for (int i = 1; i < HttpRequestExecutor.MAX_PENDING_REQUESTS; i++) {
+      assertTrue(executor.submit(HOST_URL + 1, "message " + i, () -> {}));
+    }
+    assertEquals(HttpRequestExecutor.MAX_PENDING_REQUESTS, executor.getQueueDepth());
+    assertFalse(executor.submit(OTHER_HOST_URL, "rejected", () -> {}));
+    assertEquals(HttpRequestExecutor.MAX_PENDING_REQUESTS, executor.getQueueDepth());
+
+    first.release.countDown();
+    awaitCompleted(HttpRequestExecutor.MAX_PENDING_REQUESTS);
+    assertEquals(0, executor.getQueueDepth());
+    assertEquals(HttpRequestExecutor.MAX_PENDING_REQUESTS, executor.getMaxQueueDepth());
+    assertTrue(executor.submit(OTHER_HOST_URL, "accepted", () -> {}));
+    awaitCompleted(HttpRequestExecutor.MAX_PENDING_REQUESTS + 1);
+  }
+
+  @Test
+  public void statsRecordQueueWaitAndLatency() throws Exception {
+    assertEquals(0, executor.getAverageQueueWaitMs());
+    assertEquals(0, executor.getAverageLatencyMs());
+    BlockingTask first = submitBlocking(HOST_URL + 1);
+    BlockingTask second = submitBlocking(HOST_URL + 1);
+    first.awaitStarted();
+    assertEquals(2, executor.getQueueDepth());
+
+    // The first request runs 100 ms, during which the second one waits.
+    nowMs = 100;
+    first.release.countDown();
+    second.awaitStarted();
+    nowMs = 150;
+    second.release.countDown();
+    awaitCompleted(2);
+
+    assertEquals(0, executor.getQueueDepth());
+    assertEquals(2, executor.getMaxQueueDepth());
+    assertEquals((0 + 100) / 2, executor.getAverageQueueWaitMs());
+    assertEquals((100 + 150) / 2, executor.getAverageLatencyMs());
+  }
+}
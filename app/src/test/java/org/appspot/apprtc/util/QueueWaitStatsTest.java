@@ -0,0 +1,100 @@
+/*
+ *  Copyright 2017 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+/** Checks QueueWaitStats under concurrent lanes. */
+public class QueueWaitStatsTest {
+  private static final int THREADS = 4;
+  private static final int RECORDS_PER_THREAD = 100000;
+
+  private final QueueWaitStats stats = new QueueWaitStats();
+
+  @Test
+  public void concurrentRecordsAreAllCounted() throws Exception {
+    final CountDownLatch start = new CountDownLatch(1);
+    List<Thread> threads = new ArrayList<>();
+    for (int i = 0; i < THREADS; i++) {
+      // Two threads per task type.
+      final String taskType = i % 2 == 0 ? "negotiation" : "stats";
+      final long maxWaitNs = (i + 1) * 1000000L;
+      Thread thread = new Thread(() -> {
+        try {
+          start.await();
+        } catch (InterruptedException e) {
+          return;
+        }
+        QueueWaitStats.Counter counter = stats.getCounter(taskType);
+        for (int j = 0; j < RECORDS_PER_THREAD; j++) {
+          counter.record(j == RECORDS_PER_THREAD / 2 ? maxWaitNs : 2000);
+        }
+      });
+      thread.start();
+      threads.add(thread);
+    }
+    start.countDown();
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    assertEquals(2 * RECORDS_PER_THREAD, stats.getCount("negotiation"));
+    assertEquals(2 * RECORDS_PER_THREAD, stats.getCount("stats"));
+    assertEquals(3000, stats.getMaxWaitUs("negotiation"));
+    assertEquals(4000, stats.getMaxWaitUs("stats"));
+    assertEquals(2, stats.getAverageWaitUs("negotiation"));
+    assertEquals(0, stats.getCount("control"));
+    assertEquals(0, stats.getAverageWaitUs("control"));
+  }
+
+  @Test
+  public void serialExecutorRecordsIntoItsTaskType() throws Exception {
+    ExecutorService pool = Executors.newFixedThreadPool(2);
+    SerialExecutor negotiation = new SerialExecutor(pool, stats, "negotiation");
+    SerialExecutor control = new SerialExecutor(pool, stats, "control");
+    final CountDownLatch done = new CountDownLatch(30);
+    for (int i = 0; i < 10; i++) {
+      negotiation.execute(done::countDown);
+      control.execute(done::countDown);
+      control.execute(done::countDown);
+    }
+    assertTrue(done.await(5, TimeUnit.SECONDS));
+    pool.shutdown();
+    assertTrue(pool.awaitTermination(5, TimeUnit.SECONDS));
+
+    assertEquals(10, stats.getCount("negotiation"));
+    assertEquals(20, stats.getCount("control"));
+    assertTrue(stats.toString(), stats.toString().startsWith("control: 20 tasks"));
+  }
+
+  @Test
+  public void resetKeepsCountersOfRunningExecutors() {
+    QueueWaitStats.Counter counter = stats.getCounter("data");
+    counter.record(5000000);
+    stats.reset();
+    assertEquals(0, stats.getCount("data"));
+    assertEquals(0, stats.getMaxWaitUs("data"));
+    assertEquals("", stats.toString());
+    assertSame(counter, stats.getCounter("data"));
+    counter.record(1000);
+    assertEquals(1, stats.getCount("data"));
+  }
+}
@@ -0,0 +1,105 @@
+/*
+ *  Copyright 2017 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.Test;
+
+/** Checks the ordering, delays and cancellation of SignalingExecutor lanes. */
+public class SignalingExecutorTest {
+  private static final long TIMEOUT_MS = 5000;
+
+  private final SignalingLane lane = SignalingExecutor.newLane();
+
+  // Waits for the tasks executed on |lane| so far to run.
+  private static void drain(SignalingLane lane) throws InterruptedException {
+    final CountDownLatch done = new CountDownLatch(1);
+    lane.execute(done::countDown);
+    assertTrue(done.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+  }
+
+  @Test
+  public void tasksRunInOrderOnTheLane() throws Exception {
+    final List<Integer> order = new CopyOnWriteArrayList<>();
+    final AtomicBoolean onLane = new AtomicBoolean(true);
+    for (int i = 0; i < 100; i++) {
+      final int index = i;
+      lane.execute(() -> {
+        onLane.compareAndSet(true, lane.isCurrentThread());
+        order.add(index);
+      });
+    }
+    drain(lane);
+    assertEquals(100, order.size());
+    for (int i = 0; i < order.size(); i++) {
+      assertEquals(i, (int) order.get(i));
+    }
+    assertTrue(onLane.get());
+    assertFalse(lane.isCurrentThread());
+    // Tasks of another lane are not on this one.
+    SignalingLane other = SignalingExecutor.newLane();
+    final AtomicBoolean onOtherLane = new AtomicBoolean(true);
+    other.execute(() -> onOtherLane.set(lane.isCurrentThread()));
+    drain(other);
+    assertFalse(onOtherLane.get());
+  }
+
+  @Test
+  public void delayedTaskRunsAfterDelay() throws Exception {
+    final CountDownLatch done = new CountDownLatch(1);
+    final long startNs = System.nanoTime();
+    final long[] delayMs = new long[1];
+    lane.executeDelayed(() -> {
+      delayMs[0] = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNs);
+      done.countDown();
+    }, 100);
+    assertTrue(done.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+    assertTrue("Ran after " + delayMs[0] + " ms", delayMs[0] >= 100);
+  }
+
+  @Test
+  public void cancelledAndReleasedTasksDoNotRun() throws Exception {
+    final AtomicBoolean ran = new AtomicBoolean();
+    final Runnable task = () -> ran.set(true);
+    lane.executeDelayed(task, 50);
+    lane.executeDelayed(task, 100);
+    lane.cancel(task);
+    final Runnable released = () -> ran.set(true);
+    lane.executeDelayed(released, 50);
+    lane.release();
+
+    // Cancelled while the lane is busy, after becoming due.
+    final CountDownLatch blocked = new CountDownLatch(1);
+    lane.execute(() -> {
+      try {
+        blocked.await(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    });
+    lane.executeDelayed(task, 0);
+    Thread.sleep(200);
+    lane.cancel(task);
+    blocked.countDown();
+
+    Thread.sleep(100);
+    drain(lane);
+    assertFalse(ran.get());
+  }
+}
@@ -0,0 +1,69 @@
+package util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+public class FrameRateLimiterTest {
+    private static final long SECOND_NS = TimeUnit.SECONDS.toNanos(1);
+
+    @Test
+    public void steadyInputAtTheCapIsNotReduced() {
+        FrameRateLimiter limiter = new FrameRateLimiter(30);
+        assertEquals(300, acceptedFrames(limiter, 30, 0 /* jitterNs */, 10));
+    }
+
+    @Test
+    public void jitteryInputAtTheCapIsNotReduced() {
+        // 30 fps camera frames up to 5 ms early or late.
+        FrameRateLimiter limiter = new FrameRateLimiter(30);
+        int accepted = acceptedFrames(limiter, 30, TimeUnit.MILLISECONDS.toNanos(5), 10);
+        assertEquals(300, accepted);
+    }
+
+    @Test
+    public void jitteryInputIsCappedOnAverage() {
+        // The same frames drawn in a 15 fps picture-in-picture.
+        FrameRateLimiter limiter = new FrameRateLimiter(15);
+        int accepted = acceptedFrames(limiter, 30, TimeUnit.MILLISECONDS.toNanos(5), 10);
+        assertTrue("Accepted " + accepted, accepted >= 148 && accepted <= 151);
+    }
+
+    @Test
+    public void fastInputIsCappedOnAverage() {
+        FrameRateLimiter limiter = new FrameRateLimiter(15);
+        int accepted = acceptedFrames(limiter, 60, TimeUnit.MILLISECONDS.toNanos(3), 10);
+        assertTrue("Accepted " + accepted, accepted >= 148 && accepted <= 151);
+    }
+
+    @Test
+    public void framesMoreThanHalfAnIntervalEarlyAreDropped() {
+        FrameRateLimiter limiter = new FrameRateLimiter(10);
+        long intervalNs = SECOND_NS / 10;
+        assertTrue(limiter.tryAcquire(0));
+        assertFalse(limiter.tryAcquire(intervalNs / 2 - 1));
+        assertTrue(limiter.tryAcquire(intervalNs / 2));
+        // The schedule advanced by a full interval from the missed slot.
+        assertFalse(limiter.tryAcquire(intervalNs + intervalNs / 2 - 1));
+        assertTrue(limiter.tryAcquire(2 * intervalNs));
+    }
+
+    // Feeds |seconds| of frames at |inputFps|, each shifted by up to |jitterNs|.
+    private static int acceptedFrames(
+            FrameRateLimiter limiter, int inputFps, long jitterNs, int seconds) {
+        Random random = new Random(42);
+        int accepted = 0;
+        for (int i = 0; i < inputFps * seconds; i++) {
+            long jitter = jitterNs == 0 ? 0 : (long) ((random.nextDouble() * 2 - 1) * jitterNs);
+            if (limiter.tryAcquire(i * SECOND_NS / inputFps + jitter)) {
+                accepted++;
+            }
+        }
+        return accepted;
+    }
+}
@@ -0,0 +1,116 @@
+package util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+import org.junit.Test;
+import org.webrtc.VideoRenderer;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class ProxyVideoRendererCallbacksTest {
+    private static final int FRAME_COUNT = 200000;
+
+    // Counts the frames released by the proxy instead of releasing them.
+    private static class CountingProxy extends ProxyVideoRendererCallbacks {
+        final AtomicLong releasedFrames = new AtomicLong();
+
+        @Override
+        void releaseFrame(VideoRenderer.I420Frame frame) {
+            releasedFrames.incrementAndGet();
+        }
+    }
+
+    // Target that owns and releases every frame it gets, counted in |releasedFrames|.
+    private static class CountingTarget implements VideoRenderer.Callbacks {
+        final AtomicLong releasedFrames;
+
+        CountingTarget(AtomicLong releasedFrames) {
+            this.releasedFrames = releasedFrames;
+        }
+
+        @Override
+        public void renderFrame(VideoRenderer.I420Frame frame) {
+            releasedFrames.incrementAndGet();
+        }
+    }
+
+    @Test
+    public void everyFrameIsReleasedOnceWhileTargetsAreSwapped() throws Exception {
+        final CountingProxy proxy = new CountingProxy();
+        final AtomicLong releasedByTargets = new AtomicLong();
+        final CountingTarget fullscreen = new CountingTarget(releasedByTargets);
+        final CountingTarget pip = new CountingTarget(releasedByTargets);
+        final VideoRenderer.I420Frame frame = mock(VideoRenderer.I420Frame.class);
+        final AtomicBoolean framesDone = new AtomicBoolean();
+
+        Thread swapper = new Thread(() -> {
+            int i = 0;
+            while (!framesDone.get()) {
+                switch (i++ % 4) {
+                    case 0:
+                        proxy.setTarget(fullscreen);
+                        break;
+                    case 1:
+                        proxy.setTarget(pip, 15);
+                        break;
+                    case 2:
+                        proxy.setTarget(null);
+                        break;
+                    default:
+                        proxy.setTarget(pip);
+                }
+            }
+        });
+        swapper.start();
+        Thread frameThread = new Thread(() -> {
+            for (int i = 0; i < FRAME_COUNT; i++) {
+                proxy.renderFrame(frame);
+            }
+            framesDone.set(true);
+        });
+        frameThread.start();
+        frameThread.join(TimeUnit.SECONDS.toMillis(30));
+        framesDone.set(true);
+        swapper.join();
+
+        assertTrue("Frame thread blocked", !frameThread.isAlive());
+        assertEquals(FRAME_COUNT, releasedByTargets.get() + proxy.releasedFrames.get());
+        assertEquals(releasedByTargets.get(), proxy.getForwardedFrames());
+        assertEquals(proxy.releasedFrames.get(), proxy.getDroppedFrames());
+    }
+
+    @Test
+    public void setTargetDoesNotWaitForTheFrameBeingRendered() throws Exception {
+        final CountingProxy proxy = new CountingProxy();
+        final CountDownLatch rendering = new CountDownLatch(1);
+        final CountDownLatch finishRendering = new CountDownLatch(1);
+        proxy.setTarget(frame -> {
+            rendering.countDown();
+            try {
+                finishRendering.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        Thread frameThread = new Thread(
+                () -> proxy.renderFrame(mock(VideoRenderer.I420Frame.class)));
+        frameThread.start();
+        assertTrue(rendering.await(5, TimeUnit.SECONDS));
+
+        // Swapping happens on the UI thread while the old target is still rendering.
+        AtomicLong releasedByNewTarget = new AtomicLong();
+        proxy.setTarget(new CountingTarget(releasedByNewTarget));
+        proxy.renderFrame(mock(VideoRenderer.I420Frame.class));
+        assertEquals(1, releasedByNewTarget.get());
+
+        finishRendering.countDown();
+        frameThread.join();
+        assertEquals(2, proxy.getForwardedFrames());
+        assertEquals(0, proxy.releasedFrames.get());
+    }
+}
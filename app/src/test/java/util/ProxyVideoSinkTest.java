@@ -0,0 +1,105 @@
+package util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verifyZeroInteractions;
+
+import org.junit.Test;
+import org.webrtc.VideoFrame;
+import org.webrtc.VideoSink;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class ProxyVideoSinkTest {
+    private static final int FRAME_COUNT = 200000;
+
+    @Test
+    public void everyFrameIsForwardedOrDroppedWhileTargetsAreSwapped() throws Exception {
+        final ProxyVideoSink proxy = new ProxyVideoSink();
+        final AtomicLong renderedFrames = new AtomicLong();
+        final VideoSink fullscreen = frame -> renderedFrames.incrementAndGet();
+        final VideoSink pip = frame -> renderedFrames.incrementAndGet();
+        final VideoFrame frame = mock(VideoFrame.class);
+        final AtomicBoolean framesDone = new AtomicBoolean();
+        final AtomicLong firstFrames = new AtomicLong();
+
+        Thread swapper = new Thread(() -> {
+            int i = 0;
+            while (!framesDone.get()) {
+                switch (i++ % 4) {
+                    case 0:
+                        proxy.setTarget(fullscreen);
+                        proxy.setFirstFrameListener(firstFrames::incrementAndGet);
+                        break;
+                    case 1:
+                        proxy.setTarget(pip, 15);
+                        break;
+                    case 2:
+                        proxy.setTarget(null);
+                        break;
+                    default:
+                        proxy.setTarget(pip);
+                }
+            }
+        });
+        swapper.start();
+        Thread frameThread = new Thread(() -> {
+            for (int i = 0; i < FRAME_COUNT; i++) {
+                proxy.onFrame(frame);
+            }
+            framesDone.set(true);
+        });
+        frameThread.start();
+        frameThread.join(TimeUnit.SECONDS.toMillis(30));
+        framesDone.set(true);
+        swapper.join();
+
+        assertTrue("Frame thread blocked", !frameThread.isAlive());
+        assertEquals(FRAME_COUNT, proxy.getForwardedFrames() + proxy.getDroppedFrames());
+        assertEquals(renderedFrames.get(), proxy.getForwardedFrames());
+        assertTrue(firstFrames.get() <= proxy.getForwardedFrames());
+        // The proxy leaves reference counting to the targets.
+        verifyZeroInteractions(frame);
+    }
+
+    @Test
+    public void setTargetDoesNotWaitForTheFrameBeingRendered() throws Exception {
+        final ProxyVideoSink proxy = new ProxyVideoSink();
+        final CountDownLatch rendering = new CountDownLatch(1);
+        final CountDownLatch finishRendering = new CountDownLatch(1);
+        proxy.setTarget(frame -> {
+            rendering.countDown();
+            try {
+                finishRendering.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        Thread frameThread = new Thread(() -> proxy.onFrame(mock(VideoFrame.class)));
+        frameThread.start();
+        assertTrue(rendering.await(5, TimeUnit.SECONDS));
+
+        // Swapping happens on the UI thread while the old target is still rendering.
+        AtomicLong newTargetFrames = new AtomicLong();
+        proxy.setTarget(frame -> newTargetFrames.incrementAndGet());
+        proxy.onFrame(mock(VideoFrame.class));
+        assertEquals(1, newTargetFrames.get());
+
+        finishRendering.countDown();
+        frameThread.join();
+        assertEquals(2, proxy.getForwardedFrames());
+        assertEquals(0, proxy.getDroppedFrames());
+    }
+
+    @Test
+    public void framesWithoutTargetAreDropped() {
+        ProxyVideoSink proxy = new ProxyVideoSink();
+        proxy.onFrame(mock(VideoFrame.class));
+        assertEquals(0, proxy.getForwardedFrames());
+        assertEquals(1, proxy.getDroppedFrames());
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ *  Copyright 2017 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc.benchmark;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.appspot.apprtc.AppRTCClient;
+import org.appspot.apprtc.LocalRTCClient;
+import org.appspot.apprtc.LocalSignalingHub;
+import org.appspot.apprtc.TestCorpus;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.webrtc.IceCandidate;
+import org.webrtc.SessionDescription;
+
+/**
+ * Call setup between two LocalRTCClients through a LocalSignalingHub, on the
+ * lanes of the shared SignalingExecutor: both clients join a new room, the
+ * initiator sends the offer, the other client answers, and each sends
+ * |candidateCount| candidates. An operation ends once both clients received
+ * all candidates of the other. callSetupLatency samples the time of one
+ * setup, callSetup reports setups and, in the "messages" counter, signaling
+ * messages per second.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class CallSetupBenchmark {
+  private static final long TIMEOUT_MS = 5000;
+
+  @Param({"4", "16"})
+  public int candidateCount;
+
+  private final LocalSignalingHub hub = new LocalSignalingHub();
+  private SessionDescription offer;
+  private SessionDescription answer;
+  private IceCandidate[] offerCandidates;
+  private IceCandidate[] answerCandidates;
+  private int roomCount;
+
+  /** Signaling messages passed through the hub, reported as a rate. */
+  @State(Scope.Thread)
+  @AuxCounters(AuxCounters.Type.OPERATIONS)
+  public static class Counters {
+    public long messages;
+
+    @Setup(Level.Iteration)
+    public void reset() {
+      messages = 0;
+    }
+  }
+
+  // Answers the offer and sends its candidates like CallActivity and
+  // PeerConnectionClient do, without a peer connection.
+  private class Peer implements AppRTCClient.SignalingEvents {
+    final LocalRTCClient client = new LocalRTCClient(this, hub);
+    final CountDownLatch done;
+    // Accessed on the lane of |client| only.
+    private boolean initiator;
+    private int receivedCandidates;
+    volatile String error;
+
+    Peer(CountDownLatch done) {
+      this.done = done;
+    }
+
+    private void sendCandidates() {
+      for (IceCandidate candidate : initiator ? offerCandidates : answerCandidates) {
+        client.sendLocalIceCandidate(candidate);
+      }
+    }
+
+    @Override
+    public void onConnectedToRoom(AppRTCClient.SignalingParameters params) {
+      initiator = params.initiator;
+      if (initiator) {
+        client.sendOfferSdp(offer);
+        sendCandidates();
+        return;
+      }
+      // The offer and candidates of an initiator that was alone.
+      if (params.offerSdp != null) {
+        onRemoteDescription(params.offerSdp);
+      }
+      if (params.iceCandidates != null) {
+        for (IceCandidate candidate : params.iceCandidates) {
+          onRemoteIceCandidate(candidate);
+        }
+      }
+    }
+
+    @Override
+    public void onRemoteDescription(SessionDescription sdp) {
+      if (!initiator) {
+        client.sendAnswerSdp(answer);
+        sendCandidates();
+      }
+    }
+
+    @Override
+    public void onRemoteIceCandidate(IceCandidate candidate) {
+      if (++receivedCandidates == candidateCount) {
+        done.countDown();
+      }
+    }
+
+    @Override
+    public void onRemoteIceCandidatesRemoved(IceCandidate[] candidates) {}
+
+    @Override
+    public void onChannelClose() {}
+
+    @Override
+    public void onChannelError(String description) {
+      error = description;
+      done.countDown();
+    }
+  }
+
+  private static IceCandidate[] candidates(String address, int count) {
+    IceCandidate[] candidates = new IceCandidate[count];
+    for (int i = 0; i < count; i++) {
+      candidates[i] = new IceCandidate(i % 2 == 0 ? "audio" : "video", i % 2,
+          "candidate:" + (1000 + i) + " 1 udp 2122260223 " + address + " " + (50000 + i)
+              + " typ host generation 0");
+    }
+    return candidates;
+  }
+
+  @Setup
+  public void setUp() {
+    offer = new SessionDescription(
+        SessionDescription.Type.OFFER, TestCorpus.loadSdp("android_offer.sdp"));
+    answer = new SessionDescription(
+        SessionDescription.Type.ANSWER, TestCorpus.loadSdp("chrome_answer.sdp"));
+    offerCandidates = candidates("192.168.1.37", candidateCount);
+    answerCandidates = candidates("192.168.1.38", candidateCount);
+  }
+
+  // Sets up one call and returns the number of messages the hub passed.
+  private long setUpCall() throws InterruptedException {
+    final long messageCount = hub.getMessageCount();
+    CountDownLatch done = new CountDownLatch(2);
+    Peer first = new Peer(done);
+    Peer second = new Peer(done);
+    AppRTCClient.RoomConnectionParameters room = new AppRTCClient.RoomConnectionParameters(
+        LocalRTCClient.ROOM_URL, Integer.toString(roomCount++), false /* loopback */);
+    first.client.connectToRoom(room);
+    second.client.connectToRoom(room);
+    final boolean completed = done.await(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    first.client.disconnectFromRoom();
+    second.client.disconnectFromRoom();
+    if (!completed || first.error != null || second.error != null) {
+      throw new IllegalStateException("Call setup failed: "
+          + (first.error != null ? first.error : second.error != null ? second.error : "timeout"));
+    }
+    return hub.getMessageCount() - messageCount;
+  }
+
+  @Benchmark
+  public long callSetup(Counters counters) throws InterruptedException {
+    long messages = setUpCall();
+    counters.messages += messages;
+    return messages;
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.SampleTime)
+  @OutputTimeUnit(TimeUnit.MICROSECONDS)
+  public long callSetupLatency() throws InterruptedException {
+    return setUpCall();
+  }
+}
@@ -0,0 +1,106 @@
+/*
+ *  Copyright 2017 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc.benchmark;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import org.appspot.apprtc.DataChannelClient;
+import org.appspot.apprtc.FakeDataChannel;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Messages sent by DataChannelClient over a loopback FakeDataChannel pair:
+ * copied into pooled chunks, written to the channel, and reassembled by the
+ * receiving side. The channel itself costs nothing, so this measures the
+ * client alone. The "bytes" counter is the payload rate in bytes per second,
+ * and gc.alloc.rate.norm the bytes allocated per message.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class DataChannelBenchmark {
+  @Param({"1024", "65536", "1048576"})
+  public int messageSize;
+
+  private DataChannelClient client;
+  private ByteBuffer binary;
+  private String text;
+
+  /** Payload bytes received, reported as a rate. */
+  @State(Scope.Thread)
+  @AuxCounters(AuxCounters.Type.EVENTS)
+  public static class Counters {
+    public long bytes;
+
+    @Setup(Level.Iteration)
+    public void reset() {
+      bytes = 0;
+    }
+  }
+
+  // Counts received messages without copying them.
+  private static class CountingListener implements DataChannelClient.Listener {
+    long receivedBytes;
+
+    @Override
+    public void onTextMessage(String text) {
+      receivedBytes += text.length();
+    }
+
+    @Override
+    public void onBinaryMessage(ByteBuffer data) {
+      receivedBytes += data.remaining();
+    }
+
+    @Override
+    public void onWritable() {}
+  }
+
+  private final CountingListener listener = new CountingListener();
+
+  @Setup
+  public void setUp() {
+    FakeDataChannel localChannel = new FakeDataChannel("local");
+    FakeDataChannel remoteChannel = new FakeDataChannel("remote");
+    localChannel.connect(remoteChannel);
+    client = localChannel.createClient(true /* ordered */, Runnable::run, remoteChannel);
+    client.setListener(listener);
+    binary = ByteBuffer.allocateDirect(messageSize);
+    text = new String(new char[messageSize]).replace('\0', 'x');
+  }
+
+  @Benchmark
+  public long sendBinary(Counters counters) {
+    if (!client.send(binary)) {
+      throw new IllegalStateException("Queue full");
+    }
+    counters.bytes += messageSize;
+    return listener.receivedBytes;
+  }
+
+  @Benchmark
+  public long sendText(Counters counters) {
+    if (!client.send(text)) {
+      throw new IllegalStateException("Queue full");
+    }
+    counters.bytes += messageSize;
+    return listener.receivedBytes;
+  }
+}
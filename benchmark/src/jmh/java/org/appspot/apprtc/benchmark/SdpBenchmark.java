@@ -0,0 +1,82 @@
+/*
+ *  Copyright 2017 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc.benchmark;
+
+import java.util.concurrent.TimeUnit;
+import org.appspot.apprtc.LegacySdpMunger;
+import org.appspot.apprtc.SdpRewriter;
+import org.appspot.apprtc.TestCorpus;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Munging of captured descriptions by SdpRewriter and by the split/regex
+ * helpers it replaced, as PeerConnectionClient does it for a local offer:
+ * ISAC and H264 preferred, and opus and H264 start bitrates set.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class SdpBenchmark {
+  @Param({"android_offer.sdp", "chrome_answer.sdp", "firefox_offer.sdp"})
+  public String sdpFile;
+
+  private String sdp;
+
+  @Setup
+  public void setUp() {
+    sdp = TestCorpus.loadSdp(sdpFile);
+  }
+
+  @Benchmark
+  public String legacyPreferCodec() {
+    return LegacySdpMunger.preferCodec(sdp, "H264", false);
+  }
+
+  @Benchmark
+  public String rewriterPreferCodec() {
+    return SdpRewriter.parse(sdp).preferCodec("H264", false).toString();
+  }
+
+  @Benchmark
+  public String legacySetStartBitrate() {
+    return LegacySdpMunger.setStartBitrate("H264", true, sdp, 1700);
+  }
+
+  @Benchmark
+  public String rewriterSetStartBitrate() {
+    return SdpRewriter.parse(sdp).setStartBitrate("H264", true, 1700).toString();
+  }
+
+  @Benchmark
+  public String legacyMungeOffer() {
+    String munged = LegacySdpMunger.preferCodec(sdp, "ISAC", true);
+    munged = LegacySdpMunger.preferCodec(munged, "H264", false);
+    munged = LegacySdpMunger.setStartBitrate("opus", false, munged, 32);
+    return LegacySdpMunger.setStartBitrate("H264", true, munged, 1700);
+  }
+
+  @Benchmark
+  public String rewriterMungeOffer() {
+    return SdpRewriter.parse(sdp)
+        .preferCodec("ISAC", true)
+        .preferCodec("H264", false)
+        .setStartBitrate("opus", false, 32)
+        .setStartBitrate("H264", true, 1700)
+        .toString();
+  }
+}
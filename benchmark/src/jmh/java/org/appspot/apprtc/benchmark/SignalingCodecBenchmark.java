@@ -0,0 +1,106 @@
+/*
+ *  Copyright 2017 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc.benchmark;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+import org.appspot.apprtc.SignalingBinaryCodec;
+import org.appspot.apprtc.SignalingMessageDecoder;
+import org.appspot.apprtc.SignalingMessageDecoder.SignalingMessage;
+import org.appspot.apprtc.SignalingMessageEncoder;
+import org.appspot.apprtc.TestCorpus;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.webrtc.IceCandidate;
+import org.webrtc.SessionDescription;
+
+/**
+ * Binary WebSocket frames of SignalingBinaryCodec against the JSON messages
+ * of SignalingMessageEncoder and SignalingMessageDecoder: time to encode and
+ * to parse an offer and a candidate. The bytes each takes on the wire are
+ * printed by the setup.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SignalingCodecBenchmark {
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  private final SignalingMessageEncoder encoder = new SignalingMessageEncoder();
+  private SignalingMessage offer;
+  private SignalingMessage candidate;
+  private String offerJson;
+  private String candidateJson;
+  private byte[] offerFrame;
+  private byte[] candidateFrame;
+
+  @Setup
+  public void setUp() throws IOException {
+    offerJson = encoder.encodeSessionDescription(new SessionDescription(
+        SessionDescription.Type.OFFER, TestCorpus.loadSdp("android_offer.sdp")));
+    candidateJson = encoder.encodeCandidate(new IceCandidate("video", 1,
+        "candidate:3993518542 1 udp 41885439 198.51.100.7 54132 typ relay raddr 203.0.113.18"
+            + " rport 46243 generation 0 ufrag sLhX network-id 3 network-cost 10"));
+    offer = SignalingMessageDecoder.decodeSignalingMessage(offerJson);
+    candidate = SignalingMessageDecoder.decodeSignalingMessage(candidateJson);
+    offerFrame = SignalingBinaryCodec.encode(offer);
+    candidateFrame = SignalingBinaryCodec.encode(candidate);
+    System.out.println("Offer: " + offerJson.getBytes(UTF_8).length + " bytes as JSON, "
+        + offerFrame.length + " bytes as a binary frame. Candidate: "
+        + candidateJson.getBytes(UTF_8).length + " and " + candidateFrame.length + " bytes.");
+  }
+
+  @Benchmark
+  public String jsonEncodeOffer() {
+    return encoder.encodeSessionDescription(offer.sdp);
+  }
+
+  @Benchmark
+  public byte[] binaryEncodeOffer() {
+    return SignalingBinaryCodec.encode(offer);
+  }
+
+  @Benchmark
+  public SignalingMessage jsonDecodeOffer() throws IOException {
+    return SignalingMessageDecoder.decodeSignalingMessage(offerJson);
+  }
+
+  @Benchmark
+  public SignalingMessage binaryDecodeOffer() throws IOException {
+    return SignalingBinaryCodec.decode(offerFrame);
+  }
+
+  @Benchmark
+  public String jsonEncodeCandidate() {
+    return encoder.encodeCandidate(candidate.candidates[0]);
+  }
+
+  @Benchmark
+  public byte[] binaryEncodeCandidate() {
+    return SignalingBinaryCodec.encode(candidate);
+  }
+
+  @Benchmark
+  public SignalingMessage jsonDecodeCandidate() throws IOException {
+    return SignalingMessageDecoder.decodeSignalingMessage(candidateJson);
+  }
+
+  @Benchmark
+  public SignalingMessage binaryDecodeCandidate() throws IOException {
+    return SignalingBinaryCodec.decode(candidateFrame);
+  }
+}
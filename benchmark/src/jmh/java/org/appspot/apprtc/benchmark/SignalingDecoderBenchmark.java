@@ -0,0 +1,60 @@
+/*
+ *  Copyright 2017 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc.benchmark;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.appspot.apprtc.LegacySignalingJson;
+import org.appspot.apprtc.SignalingMessageDecoder;
+import org.appspot.apprtc.TestCorpus;
+import org.json.JSONException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Decoding of captured WebSocket messages and room join responses by
+ * SignalingMessageDecoder and by the org.json code it replaced.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class SignalingDecoderBenchmark {
+  @Param({"ws_answer.json", "ws_candidate.json", "ws_remove_candidates.json",
+      "room_join_initiator.json", "room_join_receiver.json"})
+  public String messageFile;
+
+  private String message;
+  private boolean roomResponse;
+
+  @Setup
+  public void setUp() {
+    message = TestCorpus.loadSignaling(messageFile);
+    roomResponse = messageFile.startsWith("room_");
+  }
+
+  @Benchmark
+  public Object legacyDecode() throws JSONException {
+    return roomResponse ? LegacySignalingJson.decodeRoomResponse(message)
+                        : LegacySignalingJson.decodeWebSocketMessage(message);
+  }
+
+  @Benchmark
+  public Object decoderDecode() throws IOException {
+    return roomResponse ? SignalingMessageDecoder.decodeRoomResponse(message, null)
+                        : SignalingMessageDecoder.decodeWebSocketMessage(message);
+  }
+}
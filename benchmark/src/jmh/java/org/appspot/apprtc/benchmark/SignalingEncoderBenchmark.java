@@ -0,0 +1,69 @@
+/*
+ *  Copyright 2017 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc.benchmark;
+
+import java.util.concurrent.TimeUnit;
+import org.appspot.apprtc.LegacySignalingJson;
+import org.appspot.apprtc.SignalingMessageEncoder;
+import org.appspot.apprtc.TestCorpus;
+import org.json.JSONException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.webrtc.IceCandidate;
+import org.webrtc.SessionDescription;
+
+/**
+ * Framing of outgoing WebSocket messages by SignalingMessageEncoder and by the
+ * org.json code it replaced: the message is encoded, then wrapped in a send
+ * command.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class SignalingEncoderBenchmark {
+  private final SignalingMessageEncoder encoder = new SignalingMessageEncoder();
+  private SessionDescription offer;
+  private IceCandidate candidate;
+
+  @Setup
+  public void setUp() {
+    offer = new SessionDescription(
+        SessionDescription.Type.OFFER, TestCorpus.loadSdp("android_offer.sdp"));
+    candidate = new IceCandidate("video", 1,
+        "candidate:3993518542 1 udp 41885439 198.51.100.7 54132 typ relay raddr 203.0.113.18"
+            + " rport 46243 generation 0 ufrag sLhX network-id 3 network-cost 10");
+  }
+
+  @Benchmark
+  public String legacySendOffer() throws JSONException {
+    return LegacySignalingJson.encodeSend(LegacySignalingJson.encodeSessionDescription(offer));
+  }
+
+  @Benchmark
+  public String encoderSendOffer() {
+    return encoder.encodeSend(encoder.encodeSessionDescription(offer));
+  }
+
+  @Benchmark
+  public String legacySendCandidate() throws JSONException {
+    return LegacySignalingJson.encodeSend(LegacySignalingJson.encodeCandidate(candidate));
+  }
+
+  @Benchmark
+  public String encoderSendCandidate() {
+    return encoder.encodeSend(encoder.encodeCandidate(candidate));
+  }
+}
@@ -0,0 +1,104 @@
+/*
+ *  Copyright 2017 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package android.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * JVM stand-in for the framework JsonReader, which the android.jar used by
+ * unit tests only stubs. The framework class is a copy of the Gson one, so
+ * this delegates to Gson and has the same behavior, including the
+ * exceptions thrown on unexpected tokens. Shadows the stub on the unit test
+ * classpath and is also compiled into the benchmark module.
+ */
+public final class JsonReader implements Closeable {
+  private final com.google.gson.stream.JsonReader reader;
+
+  public JsonReader(Reader in) {
+    reader = new com.google.gson.stream.JsonReader(in);
+  }
+
+  public void setLenient(boolean lenient) {
+    reader.setLenient(lenient);
+  }
+
+  public boolean isLenient() {
+    return reader.isLenient();
+  }
+
+  public void beginArray() throws IOException {
+    reader.beginArray();
+  }
+
+  public void endArray() throws IOException {
+    reader.endArray();
+  }
+
+  public void beginObject() throws IOException {
+    reader.beginObject();
+  }
+
+  public void endObject() throws IOException {
+    reader.endObject();
+  }
+
+  public boolean hasNext() throws IOException {
+    return reader.hasNext();
+  }
+
+  public JsonToken peek() throws IOException {
+    return JsonToken.valueOf(reader.peek().name());
+  }
+
+  public String nextName() throws IOException {
+    return reader.nextName();
+  }
+
+  public String nextString() throws IOException {
+    return reader.nextString();
+  }
+
+  public boolean nextBoolean() throws IOException {
+    return reader.nextBoolean();
+  }
+
+  public void nextNull() throws IOException {
+    reader.nextNull();
+  }
+
+  public double nextDouble() throws IOException {
+    return reader.nextDouble();
+  }
+
+  public long nextLong() throws IOException {
+    return reader.nextLong();
+  }
+
+  public int nextInt() throws IOException {
+    return reader.nextInt();
+  }
+
+  public void skipValue() throws IOException {
+    reader.skipValue();
+  }
+
+  @Override
+  public void close() throws IOException {
+    reader.close();
+  }
+
+  @Override
+  public String toString() {
+    return reader.toString();
+  }
+}
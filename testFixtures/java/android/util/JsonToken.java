@@ -0,0 +1,25 @@
+/*
+ *  Copyright 2017 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package android.util;
+
+/** JVM stand-in for the framework class, see JsonReader. */
+public enum JsonToken {
+  BEGIN_ARRAY,
+  END_ARRAY,
+  BEGIN_OBJECT,
+  END_OBJECT,
+  NAME,
+  STRING,
+  NUMBER,
+  BOOLEAN,
+  NULL,
+  END_DOCUMENT
+}
@@ -0,0 +1,133 @@
+/*
+ *  Copyright 2017 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import org.webrtc.DataChannel;
+
+/**
+ * Open DataChannel without a native channel, for DataChannelClient tests and
+ * benchmarks. Sent messages are delivered synchronously to the observer of
+ * the connected channel, if any, which makes a pair of FakeDataChannels a
+ * loopback link with infinite bandwidth. Chosen messages can be dropped to
+ * simulate a lossy link.
+ */
+public class FakeDataChannel extends DataChannel {
+  private final String label;
+  private Observer observer;
+  private FakeDataChannel remote;
+  private long bufferedAmount;
+  // Written by the sending thread, read by any.
+  private volatile long messagesSent;
+  private volatile long bytesSent;
+  // Indexes of the sent messages not to deliver.
+  private final Set<Long> droppedMessages = new HashSet<>();
+
+  public FakeDataChannel(String label) {
+    super(0 /* nativeDataChannel */);
+    this.label = label;
+  }
+
+  /** Delivers the messages sent on this channel to |remote|. */
+  public void connect(FakeDataChannel remote) {
+    this.remote = remote;
+  }
+
+  /** Creates a client sending on this channel and receiving on |remote|. */
+  public DataChannelClient createClient(
+      boolean ordered, Executor sendExecutor, FakeDataChannel remote) {
+    DataChannelClient client = new DataChannelClient(this, ordered, sendExecutor);
+    if (remote != null) {
+      client.addRemoteChannel(remote);
+    }
+    return client;
+  }
+
+  /** Sets the amount reported buffered, and notifies the observer. */
+  public void setBufferedAmount(long bufferedAmount) {
+    final long previousAmount = this.bufferedAmount;
+    this.bufferedAmount = bufferedAmount;
+    if (observer != null) {
+      observer.onBufferedAmountChange(previousAmount);
+    }
+  }
+
+  /** Does not deliver the message sent at |index|, counting from 0. */
+  public synchronized void dropMessage(long index) {
+    droppedMessages.add(index);
+  }
+
+  /** Delivers |data| as a message received on this channel. */
+  public void receive(ByteBuffer data, boolean binary) {
+    observer.onMessage(new Buffer(data, binary));
+  }
+
+  public long getMessagesSent() {
+    return messagesSent;
+  }
+
+  public long getBytesSent() {
+    return bytesSent;
+  }
+
+  @Override
+  public void registerObserver(Observer observer) {
+    this.observer = observer;
+  }
+
+  @Override
+  public void unregisterObserver() {
+    observer = null;
+  }
+
+  @Override
+  public String label() {
+    return label;
+  }
+
+  @Override
+  public int id() {
+    return 0;
+  }
+
+  @Override
+  public State state() {
+    return State.OPEN;
+  }
+
+  @Override
+  public long bufferedAmount() {
+    return bufferedAmount;
+  }
+
+  @Override
+  public boolean send(Buffer buffer) {
+    final boolean dropped;
+    synchronized (this) {
+      dropped = droppedMessages.remove(messagesSent);
+    }
+    messagesSent++;
+    bytesSent += buffer.data.remaining();
+    if (!dropped && remote != null && remote.observer != null) {
+      remote.observer.onMessage(new Buffer(buffer.data.duplicate(), buffer.binary));
+    }
+    return true;
+  }
+
+  @Override
+  public void close() {}
+
+  @Override
+  public void dispose() {}
+}
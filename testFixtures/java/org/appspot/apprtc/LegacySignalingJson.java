@@ -0,0 +1,172 @@
+/*
+ *  Copyright 2017 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.appspot.apprtc.SignalingMessageDecoder.RoomResponse;
+import org.appspot.apprtc.SignalingMessageDecoder.SignalingMessage;
+import org.appspot.apprtc.SignalingMessageDecoder.Type;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.webrtc.IceCandidate;
+import org.webrtc.PeerConnection;
+import org.webrtc.SessionDescription;
+
+/**
+ * The org.json signaling code that SignalingMessageEncoder and
+ * SignalingMessageDecoder replaced, from WebSocketChannelClient,
+ * WebSocketRTCClient and RoomParametersFetcher, to check and benchmark them
+ * against it. Values the framework org.json coerced to strings are converted
+ * explicitly so that it also runs on the reference org.json.
+ */
+public class LegacySignalingJson {
+  private LegacySignalingJson() {}
+
+  public static String encodeRegister(String roomId, String clientId) throws JSONException {
+    JSONObject json = new JSONObject();
+    json.put("cmd", "register");
+    json.put("roomid", roomId);
+    json.put("clientid", clientId);
+    return json.toString();
+  }
+
+  public static String encodeSend(String message) throws JSONException {
+    JSONObject json = new JSONObject();
+    json.put("cmd", "send");
+    json.put("msg", message);
+    return json.toString();
+  }
+
+  public static String encodeSessionDescription(SessionDescription sdp) throws JSONException {
+    JSONObject json = new JSONObject();
+    json.put("sdp", sdp.description);
+    json.put("type", sdp.type.canonicalForm());
+    return json.toString();
+  }
+
+  public static String encodeCandidate(IceCandidate candidate) throws JSONException {
+    JSONObject json = new JSONObject();
+    json.put("type", "candidate");
+    json.put("label", candidate.sdpMLineIndex);
+    json.put("id", candidate.sdpMid);
+    json.put("candidate", candidate.sdp);
+    return json.toString();
+  }
+
+  public static String encodeCandidates(String type, List<IceCandidate> candidates)
+      throws JSONException {
+    JSONObject json = new JSONObject();
+    json.put("type", type);
+    JSONArray jsonArray = new JSONArray();
+    for (IceCandidate candidate : candidates) {
+      jsonArray.put(toJsonCandidate(candidate));
+    }
+    json.put("candidates", jsonArray);
+    return json.toString();
+  }
+
+  /**
+   * Decodes a WebSocket server message like WebSocketRTCClient did. Returns
+   * null if it carries no message.
+   */
+  public static SignalingMessage decodeWebSocketMessage(String msg) throws JSONException {
+    JSONObject json = new JSONObject(msg);
+    String msgText = json.getString("msg");
+    if (msgText.length() == 0) {
+      return null;
+    }
+    return decodeSignalingMessage(msgText);
+  }
+
+  public static SignalingMessage decodeSignalingMessage(String msgText) throws JSONException {
+    JSONObject json = new JSONObject(msgText);
+    String type = json.optString("type");
+    if (type.equals("candidate")) {
+      return new SignalingMessage(
+          Type.CANDIDATE, type, null, new IceCandidate[] {toJavaCandidate(json)});
+    } else if (type.equals("remove-candidates")) {
+      JSONArray candidateArray = json.getJSONArray("candidates");
+      IceCandidate[] candidates = new IceCandidate[candidateArray.length()];
+      for (int i = 0; i < candidateArray.length(); ++i) {
+        candidates[i] = toJavaCandidate(candidateArray.getJSONObject(i));
+      }
+      return new SignalingMessage(Type.REMOVE_CANDIDATES, type, null, candidates);
+    } else if (type.equals("answer") || type.equals("offer")) {
+      SessionDescription sdp = new SessionDescription(
+          SessionDescription.Type.fromCanonicalForm(type), json.getString("sdp"));
+      return new SignalingMessage(
+          type.equals("offer") ? Type.OFFER : Type.ANSWER, type, sdp, null);
+    } else if (type.equals("bye")) {
+      return new SignalingMessage(Type.BYE, type, null, null);
+    }
+    return new SignalingMessage(Type.UNKNOWN, type, null, null);
+  }
+
+  /** Decodes a room join response like RoomParametersFetcher did. */
+  public static RoomResponse decodeRoomResponse(String response) throws JSONException {
+    JSONObject roomJson = new JSONObject(response);
+    String result = roomJson.getString("result");
+    if (!result.equals("SUCCESS")) {
+      return new RoomResponse(result, null, null, null, null, false,
+          new ArrayList<SignalingMessage>(), new ArrayList<PeerConnection.IceServer>(), "");
+    }
+    response = roomJson.get("params").toString();
+    roomJson = new JSONObject(response);
+    String roomId = roomJson.getString("room_id");
+    String clientId = roomJson.getString("client_id");
+    String wssUrl = roomJson.getString("wss_url");
+    String wssPostUrl = roomJson.getString("wss_post_url");
+    boolean initiator = (roomJson.getBoolean("is_initiator"));
+    List<SignalingMessage> messages = new ArrayList<>();
+    if (!initiator) {
+      String messagesString = roomJson.get("messages").toString();
+      JSONArray messagesJson = new JSONArray(messagesString);
+      for (int i = 0; i < messagesJson.length(); ++i) {
+        messages.add(decodeSignalingMessage(messagesJson.getString(i)));
+      }
+    }
+    List<PeerConnection.IceServer> iceServers =
+        iceServersFromPCConfigJSON(roomJson.getString("pc_config"));
+    return new RoomResponse(result, roomId, clientId, wssUrl, wssPostUrl, initiator, messages,
+        iceServers, roomJson.optString("ice_server_url"));
+  }
+
+  private static List<PeerConnection.IceServer> iceServersFromPCConfigJSON(String pcConfig)
+      throws JSONException {
+    JSONObject json = new JSONObject(pcConfig);
+    JSONArray servers = json.getJSONArray("iceServers");
+    List<PeerConnection.IceServer> ret = new ArrayList<>();
+    for (int i = 0; i < servers.length(); ++i) {
+      JSONObject server = servers.getJSONObject(i);
+      String url = server.getString("urls");
+      String credential = server.has("credential") ? server.getString("credential") : "";
+      PeerConnection.IceServer turnServer =
+          PeerConnection.IceServer.builder(url).setPassword(credential).createIceServer();
+      ret.add(turnServer);
+    }
+    return ret;
+  }
+
+  private static JSONObject toJsonCandidate(final IceCandidate candidate) throws JSONException {
+    JSONObject json = new JSONObject();
+    json.put("label", candidate.sdpMLineIndex);
+    json.put("id", candidate.sdpMid);
+    json.put("candidate", candidate.sdp);
+    return json;
+  }
+
+  private static IceCandidate toJavaCandidate(JSONObject json) throws JSONException {
+    return new IceCandidate(
+        json.getString("id"), json.getInt("label"), json.getString("candidate"));
+  }
+}
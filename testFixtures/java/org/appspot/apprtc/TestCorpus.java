@@ -0,0 +1,96 @@
+/*
+ *  Copyright 2017 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Captured session descriptions, signaling messages and stats traces, stored
+ * as resources under sdp/, signaling/ and stats/.
+ */
+public class TestCorpus {
+  public static final String[] SDP_FILES = {"android_offer.sdp", "chrome_answer.sdp",
+      "firefox_offer.sdp", "audio_only_offer.sdp"};
+  public static final String[] ROOM_RESPONSE_FILES = {
+      "room_join_initiator.json", "room_join_receiver.json", "room_join_full.json"};
+  public static final String[] WEBSOCKET_MESSAGE_FILES = {"ws_answer.json", "ws_candidate.json",
+      "ws_remove_candidates.json", "ws_bye.json", "ws_error.json"};
+  public static final String[] STATS_TRACE_FILES = {"congestion.csv", "handover.csv"};
+
+  private TestCorpus() {}
+
+  /** Returns sdp/|name| with CRLF line endings, as sent on the wire. */
+  public static String loadSdp(String name) {
+    StringBuilder builder = new StringBuilder();
+    try (BufferedReader reader = open("sdp/" + name)) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        builder.append(line).append("\r\n");
+      }
+    } catch (IOException e) {
+      throw new AssertionError("Failed to read " + name, e);
+    }
+    return builder.toString();
+  }
+
+  /** Returns signaling/|name| with its trailing line break removed. */
+  public static String loadSignaling(String name) {
+    StringBuilder builder = new StringBuilder();
+    try (BufferedReader reader = open("signaling/" + name)) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        if (builder.length() > 0) {
+          builder.append('\n');
+        }
+        builder.append(line);
+      }
+    } catch (IOException e) {
+      throw new AssertionError("Failed to read " + name, e);
+    }
+    return builder.toString();
+  }
+
+  /**
+   * Returns the samples of stats/|name|, one "timeMs,bandwidthBps,rttMs,loss"
+   * line per sample. Lines starting with '#' are comments.
+   */
+  public static List<BitrateController.Sample> loadStatsTrace(String name) {
+    List<BitrateController.Sample> samples = new ArrayList<>();
+    try (BufferedReader reader = open("stats/" + name)) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        if (line.isEmpty() || line.startsWith("#")) {
+          continue;
+        }
+        String[] fields = line.split(",");
+        samples.add(new BitrateController.Sample(Long.parseLong(fields[0]),
+            Long.parseLong(fields[1]), Long.parseLong(fields[2]), Long.parseLong(fields[3])));
+      }
+    } catch (IOException e) {
+      throw new AssertionError("Failed to read " + name, e);
+    }
+    return samples;
+  }
+
+  private static BufferedReader open(String path) throws IOException {
+    InputStream stream = TestCorpus.class.getClassLoader().getResourceAsStream(path);
+    if (stream == null) {
+      throw new IOException("Missing resource " + path);
+    }
+    return new BufferedReader(new InputStreamReader(stream, Charset.forName("UTF-8")));
+  }
+}